@@ -0,0 +1,414 @@
+package com.example.mqlimitdemo.breaker;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 无锁熔断器
+ *
+ * 状态机：CLOSED -> OPEN -> HALF_OPEN -> CLOSED / OPEN
+ * 1. CLOSED：每次调用结果写入环形窗口（最近 slidingWindowSize 次），
+ *    调用数达到 minimumNumberOfCalls 后，失败率或慢调用率超过阈值即熔断
+ * 2. OPEN：拒绝所有调用，waitDurationInOpenMillis 后第一个请求把状态切换为 HALF_OPEN
+ * 3. HALF_OPEN：只放行 permittedCallsInHalfOpen 个探测调用，其余继续拒绝；
+ *    探测全部完成后按失败率决定关闭（窗口清空）还是重新熔断
+ *
+ * 状态和窗口放在不可变的状态对象中，状态切换只做一次 CAS，多个消费线程并发调用时只有一个线程切换成功；
+ * 每次调用只有几次原子操作，不加锁。
+ * 调用结果通过申请时拿到的 {@link Permission} 记录，许可属于申请时的状态对象：
+ * 状态切换后才返回的调用（如 CLOSED 时发起、HALF_OPEN 后才完成）不计入新状态的窗口，不会被当作探测结果
+ *
+ * 集群模式下（{@link ClusterCircuitBreakerSync}）关闭自动半开，OPEN -> HALF_OPEN 由抢到探测权的实例切换，
+ * 其他实例的状态通过 transitionTo* 方法按 Redis 中的集群状态强制切换
+ *
+ * 使用方式：
+ * <pre>
+ * CircuitBreaker.Permission permission = breaker.tryAcquirePermission();
+ * if (permission == null) { 延迟重试; }
+ * long start = System.nanoTime();
+ * 调用成功：permission.onSuccess(System.nanoTime() - start);
+ * 调用失败：permission.onError(System.nanoTime() - start);
+ * 拿到许可但没有发起调用，或结果不反映下游健康状况：permission.release();
+ * </pre>
+ *
+ * @author demo
+ */
+@Slf4j
+public class CircuitBreaker {
+
+    /**
+     * 熔断器状态
+     */
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * 状态切换监听器（在切换成功的线程上同步调用，不应阻塞）
+     */
+    public interface TransitionListener {
+
+        /**
+         * @param forced true 表示通过 transitionTo* 强制切换（如按集群状态同步），false 表示本地调用结果触发
+         */
+        void onTransition(CircuitBreaker breaker, State from, State to, boolean forced);
+    }
+
+    private static final int FAILURE = 1;
+    private static final int SLOW = 2;
+
+    private final String name;
+
+    private final CircuitBreakerConfig config;
+
+    private final long slowCallNanos;
+
+    private final long waitInOpenNanos;
+
+    private final AtomicReference<StateHolder> state;
+
+    private final LongAdder notPermitted = new LongAdder();
+
+    private final LongAdder staleResults = new LongAdder();
+
+    private final AtomicLong transitions = new AtomicLong();
+
+    private final List<TransitionListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * OPEN 等待期满后是否由本地第一个请求自动切换为 HALF_OPEN
+     */
+    private volatile boolean autoHalfOpen = true;
+
+    public CircuitBreaker(String name, CircuitBreakerConfig config) {
+        this.name = name;
+        this.config = config;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(config.getSlowCallDurationMillis());
+        this.waitInOpenNanos = TimeUnit.MILLISECONDS.toNanos(config.getWaitDurationInOpenMillis());
+        this.state = new AtomicReference<>(closed());
+    }
+
+    /**
+     * 申请调用许可
+     *
+     * @return 调用许可，拒绝时返回 null：CLOSED 时总是放行；OPEN 时拒绝（等待期满则切换为 HALF_OPEN）；
+     * HALF_OPEN 时只放行剩余的探测许可
+     */
+    public Permission tryAcquirePermission() {
+        while (true) {
+            StateHolder current = state.get();
+            switch (current.state) {
+                case CLOSED:
+                    return current.permission;
+                case OPEN:
+                    if (!autoHalfOpen || System.nanoTime() - current.sinceNanos < waitInOpenNanos) {
+                        notPermitted.increment();
+                        return null;
+                    }
+                    // 不论 CAS 是否成功，重新读取状态后在 HALF_OPEN 中抢探测许可
+                    transition(current, halfOpen());
+                    break;
+                default:
+                    if (current.tryTakeProbe()) {
+                        return current.permission;
+                    }
+                    notPermitted.increment();
+                    return null;
+            }
+        }
+    }
+
+    private void record(StateHolder owner, int outcome) {
+        StateHolder current = state.get();
+        if (current != owner || current.state == State.OPEN) {
+            // 在之前的状态中发起、状态切换后才返回的调用，不影响当前状态
+            staleResults.increment();
+            return;
+        }
+
+        long calls = current.window.record(outcome);
+        if (current.state == State.CLOSED) {
+            if (calls >= config.getMinimumNumberOfCalls() && current.window.exceedsThreshold()) {
+                transition(current, open());
+            }
+        } else if (calls == config.getPermittedCallsInHalfOpen()) {
+            // 最后一个探测结果：只有一个线程会走到这里
+            transition(current, current.window.exceedsThreshold() ? open() : closed());
+        }
+    }
+
+    /**
+     * 强制切换为 OPEN
+     *
+     * @param remainingMillis 距离半开探测的剩余时间
+     */
+    public void transitionToOpen(long remainingMillis) {
+        long elapsed = Math.max(0, waitInOpenNanos - TimeUnit.MILLISECONDS.toNanos(remainingMillis));
+        forceTransition(new StateHolder(State.OPEN, new Window(1), 0, System.nanoTime() - elapsed));
+    }
+
+    /**
+     * 强制切换为 HALF_OPEN（重新发放探测许可）
+     */
+    public void transitionToHalfOpen() {
+        forceTransition(halfOpen());
+    }
+
+    /**
+     * 强制切换为 CLOSED（清空窗口）
+     */
+    public void transitionToClosed() {
+        forceTransition(closed());
+    }
+
+    private void forceTransition(StateHolder to) {
+        while (true) {
+            StateHolder current = state.get();
+            if (transition(current, to, true)) {
+                return;
+            }
+        }
+    }
+
+    private boolean transition(StateHolder from, StateHolder to) {
+        return transition(from, to, false);
+    }
+
+    private boolean transition(StateHolder from, StateHolder to, boolean forced) {
+        if (!state.compareAndSet(from, to)) {
+            return false;
+        }
+        transitions.incrementAndGet();
+        if (to.state == State.OPEN) {
+            log.error("🔴 熔断器 [{}] {} -> OPEN，失败率: {}%, 慢调用率: {}%, {} ms 后半开探测",
+                    name, from.state, from.window.failureRate(), from.window.slowCallRate(),
+                    config.getWaitDurationInOpenMillis());
+        } else if (to.state == State.HALF_OPEN) {
+            log.info("🟡 熔断器 [{}] {} -> HALF_OPEN，放行 {} 个探测调用", name, from.state, config.getPermittedCallsInHalfOpen());
+        } else {
+            log.info("🟢 熔断器 [{}] {} -> CLOSED", name, from.state);
+        }
+        for (TransitionListener listener : listeners) {
+            try {
+                listener.onTransition(this, from.state, to.state, forced);
+            } catch (Exception e) {
+                log.error("熔断器 [{}] 状态切换监听器异常: {}", name, e.getMessage(), e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 注册状态切换监听器
+     */
+    public void addListener(TransitionListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * 设置 OPEN 等待期满后是否自动半开（集群模式下关闭，由探测实例切换）
+     */
+    public void setAutoHalfOpen(boolean autoHalfOpen) {
+        this.autoHalfOpen = autoHalfOpen;
+    }
+
+    public CircuitBreakerConfig getConfig() {
+        return config;
+    }
+
+    private StateHolder closed() {
+        return new StateHolder(State.CLOSED, new Window(config.getSlidingWindowSize()), 0, System.nanoTime());
+    }
+
+    private StateHolder open() {
+        return new StateHolder(State.OPEN, new Window(1), 0, System.nanoTime());
+    }
+
+    private StateHolder halfOpen() {
+        return new StateHolder(State.HALF_OPEN, new Window(config.getPermittedCallsInHalfOpen()),
+                config.getPermittedCallsInHalfOpen(), System.nanoTime());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public State getState() {
+        return state.get().state;
+    }
+
+    /**
+     * OPEN 状态下距离半开探测的剩余时间（毫秒），其他状态返回 0
+     */
+    public long getRemainingOpenMillis() {
+        StateHolder current = state.get();
+        if (current.state != State.OPEN) {
+            return 0;
+        }
+        long remaining = waitInOpenNanos - (System.nanoTime() - current.sinceNanos);
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(remaining));
+    }
+
+    /**
+     * 熔断器状态
+     */
+    public Map<String, Object> getStatus() {
+        StateHolder current = state.get();
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("name", name);
+        status.put("state", current.state);
+        status.put("bufferedCalls", current.window.bufferedCalls());
+        status.put("failureRate", current.window.failureRate());
+        status.put("slowCallRate", current.window.slowCallRate());
+        status.put("remainingOpenMillis", getRemainingOpenMillis());
+        status.put("notPermitted", notPermitted.sum());
+        status.put("staleResults", staleResults.sum());
+        status.put("transitions", transitions.get());
+        status.put("autoHalfOpen", autoHalfOpen);
+        status.put("config", config);
+        return status;
+    }
+
+    /**
+     * 调用许可：记录结果时只作用于申请许可时的状态
+     *
+     * 同一状态下的所有调用共用一个许可对象，申请许可不分配内存
+     */
+    public final class Permission {
+        private final StateHolder owner;
+
+        private Permission(StateHolder owner) {
+            this.owner = owner;
+        }
+
+        /**
+         * 记录一次成功调用
+         *
+         * @param durationNanos 调用耗时
+         */
+        public void onSuccess(long durationNanos) {
+            record(owner, durationNanos >= slowCallNanos ? SLOW : 0);
+        }
+
+        /**
+         * 记录一次失败调用
+         *
+         * @param durationNanos 调用耗时
+         */
+        public void onError(long durationNanos) {
+            record(owner, FAILURE | (durationNanos >= slowCallNanos ? SLOW : 0));
+        }
+
+        /**
+         * 没有发起调用（如排队超时），或调用结果不反映下游健康状况（如超出对方配额被限流）时归还，
+         * 半开状态下探测许可不会被白白占用
+         */
+        public void release() {
+            if (owner.state == State.HALF_OPEN && state.get() == owner) {
+                owner.returnProbe();
+            }
+        }
+    }
+
+    /**
+     * 不可变的状态：状态类型、进入时间、本状态的调用窗口、半开探测许可和本状态发出的调用许可
+     */
+    private final class StateHolder {
+        private final State state;
+        private final long sinceNanos;
+        private final Window window;
+        private final AtomicInteger probes;
+        private final Permission permission;
+
+        private StateHolder(State state, Window window, int probes, long sinceNanos) {
+            this.state = state;
+            this.window = window;
+            this.probes = new AtomicInteger(probes);
+            this.sinceNanos = sinceNanos;
+            this.permission = new Permission(this);
+        }
+
+        private boolean tryTakeProbe() {
+            while (true) {
+                int remaining = probes.get();
+                if (remaining <= 0) {
+                    return false;
+                }
+                if (probes.compareAndSet(remaining, remaining - 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private void returnProbe() {
+            probes.incrementAndGet();
+        }
+    }
+
+    /**
+     * 环形调用窗口
+     *
+     * 每个槽位保存一次调用的结果位（FAILURE / SLOW），新结果覆盖最旧的槽位，
+     * 通过 getAndSet 取回被覆盖的结果，失败数和慢调用数按差值增减，始终对应窗口内的调用
+     */
+    private final class Window {
+        private final int size;
+        private final AtomicIntegerArray outcomes;
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicInteger slowCalls = new AtomicInteger();
+
+        private Window(int size) {
+            this.size = size;
+            this.outcomes = new AtomicIntegerArray(size);
+        }
+
+        /**
+         * @return 写入后的累计调用数
+         */
+        private long record(int outcome) {
+            long index = calls.getAndIncrement();
+            int previous = outcomes.getAndSet((int) (index % size), outcome);
+            int failureDelta = (outcome & FAILURE) - (previous & FAILURE);
+            if (failureDelta != 0) {
+                failures.addAndGet(failureDelta);
+            }
+            int slowDelta = ((outcome & SLOW) - (previous & SLOW)) / SLOW;
+            if (slowDelta != 0) {
+                slowCalls.addAndGet(slowDelta);
+            }
+            return index + 1;
+        }
+
+        private int bufferedCalls() {
+            return (int) Math.min(calls.get(), size);
+        }
+
+        private int failureRate() {
+            int buffered = bufferedCalls();
+            return buffered == 0 ? 0 : failures.get() * 100 / buffered;
+        }
+
+        private int slowCallRate() {
+            int buffered = bufferedCalls();
+            return buffered == 0 ? 0 : slowCalls.get() * 100 / buffered;
+        }
+
+        private boolean exceedsThreshold() {
+            return failureRate() >= config.getFailureRateThreshold()
+                    || slowCallRate() >= config.getSlowCallRateThreshold();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.mqlimitdemo.breaker;
+
+import lombok.Data;
+
+/**
+ * 熔断器参数
+ *
+ * @author demo
+ */
+@Data
+public class CircuitBreakerConfig {
+
+    /**
+     * 失败率阈值（%），窗口内失败率达到该值时熔断
+     */
+    private int failureRateThreshold = 50;
+
+    /**
+     * 慢调用率阈值（%），窗口内慢调用率达到该值时熔断
+     */
+    private int slowCallRateThreshold = 80;
+
+    /**
+     * 慢调用耗时阈值（毫秒），超过即记为慢调用（成功的慢调用也计入）
+     */
+    private long slowCallDurationMillis = 1000;
+
+    /**
+     * 滑动窗口大小：按最近多少次调用计算失败率和慢调用率
+     */
+    private int slidingWindowSize = 20;
+
+    /**
+     * 窗口内至少有多少次调用才计算比率，避免启动时一两次失败就熔断
+     */
+    private int minimumNumberOfCalls = 10;
+
+    /**
+     * 熔断后等待多久进入半开状态（毫秒）
+     */
+    private long waitDurationInOpenMillis = 10000;
+
+    /**
+     * 半开状态允许的探测调用数，全部完成后按失败率决定关闭还是重新熔断
+     */
+    private int permittedCallsInHalfOpen = 3;
+}
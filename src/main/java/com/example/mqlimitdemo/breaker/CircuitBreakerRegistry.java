@@ -0,0 +1,91 @@
+package com.example.mqlimitdemo.breaker;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 熔断器注册表
+ *
+ * 按名称（通常是下游接口名）共享熔断器，同一个下游的所有消费者看到同一个熔断状态；
+ * 默认参数来自 rate-limiter.circuit-breaker 配置；启用集群熔断时，创建的熔断器自动接入 {@link ClusterCircuitBreakerSync}
+ *
+ * @author demo
+ */
+@Slf4j
+@Component
+public class CircuitBreakerRegistry {
+
+    @Value("${rate-limiter.circuit-breaker.failure-rate-threshold:50}")
+    private int failureRateThreshold;
+
+    @Value("${rate-limiter.circuit-breaker.slow-call-rate-threshold:80}")
+    private int slowCallRateThreshold;
+
+    @Value("${rate-limiter.circuit-breaker.slow-call-duration-millis:1000}")
+    private long slowCallDurationMillis;
+
+    @Value("${rate-limiter.circuit-breaker.sliding-window-size:20}")
+    private int slidingWindowSize;
+
+    @Value("${rate-limiter.circuit-breaker.minimum-number-of-calls:10}")
+    private int minimumNumberOfCalls;
+
+    @Value("${rate-limiter.circuit-breaker.wait-duration-in-open-millis:10000}")
+    private long waitDurationInOpenMillis;
+
+    @Value("${rate-limiter.circuit-breaker.permitted-calls-in-half-open:3}")
+    private int permittedCallsInHalfOpen;
+
+    @Resource
+    private ClusterCircuitBreakerSync clusterCircuitBreakerSync;
+
+    private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    /**
+     * 获取（不存在则按默认参数创建）熔断器
+     */
+    public CircuitBreaker get(String name) {
+        return breakers.computeIfAbsent(name, n -> {
+            CircuitBreakerConfig config = defaultConfig();
+            log.info("创建熔断器 [{}] - {}", n, config);
+            CircuitBreaker breaker = new CircuitBreaker(n, config);
+            clusterCircuitBreakerSync.bind(breaker);
+            return breaker;
+        });
+    }
+
+    /**
+     * 默认熔断参数
+     */
+    public CircuitBreakerConfig defaultConfig() {
+        CircuitBreakerConfig config = new CircuitBreakerConfig();
+        config.setFailureRateThreshold(failureRateThreshold);
+        config.setSlowCallRateThreshold(slowCallRateThreshold);
+        config.setSlowCallDurationMillis(slowCallDurationMillis);
+        config.setSlidingWindowSize(slidingWindowSize);
+        config.setMinimumNumberOfCalls(minimumNumberOfCalls);
+        config.setWaitDurationInOpenMillis(waitDurationInOpenMillis);
+        config.setPermittedCallsInHalfOpen(permittedCallsInHalfOpen);
+        return config;
+    }
+
+    /**
+     * 所有熔断器状态
+     */
+    public List<Map<String, Object>> getStatus() {
+        List<Map<String, Object>> statuses = new ArrayList<>();
+        for (CircuitBreaker breaker : breakers.values()) {
+            statuses.add(breaker.getStatus());
+        }
+        return statuses;
+    }
+}
@@ -0,0 +1,341 @@
+package com.example.mqlimitdemo.breaker;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.example.mqlimitdemo.limiter.LimiterRedisConnection;
+import com.example.mqlimitdemo.limiter.LuaScriptRegistry;
+import com.example.mqlimitdemo.limiter.QuotaCoordinator;
+import com.example.mqlimitdemo.limiter.RedisRateLimiter;
+import io.lettuce.core.KeyValue;
+import io.lettuce.core.RedisFuture;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 集群熔断状态同步
+ *
+ * 每个实例各自发现下游故障时，N 个实例 × 每个实例的熔断阈值次数的调用都会打到已经故障的下游。
+ * 同步器把熔断状态放到 Redis（circuit_breaker_transition.lua），按下游名称区分：
+ * 1. 任一实例本地熔断（CLOSED -> OPEN）立即写入 Redis 并 PUBLISH，其他实例收到事件后直接熔断
+ * 2. 本地熔断器关闭自动半开；OPEN 等待期满后由同步线程抢探测权，只有抢到的实例切换为 HALF_OPEN，
+ *    其他实例保持 OPEN；探测实例给出结果（close / reopen）后再广播给所有实例
+ * 3. 探测实例超时未给出结果（宕机）时，其他实例可以接管探测
+ * 4. 状态缓存在本地熔断器中，消费线程只读本地状态；同步线程每 syncMillis 读取一次 Redis，
+ *    补上丢失的 Pub/Sub 事件；状态版本号单调递增，只应用比本地新的状态
+ *
+ * Redis 不可用时熔断器恢复为单机模式（自动半开），与限流器的降级策略一致
+ *
+ * @author demo
+ */
+@Slf4j
+@Component
+public class ClusterCircuitBreakerSync {
+
+    private static final String TRANSITION_SCRIPT = "circuit_breaker_transition";
+
+    private static final String KEY_PREFIX = RedisRateLimiter.KEY_PREFIX + "breaker:";
+
+    private static final String CHANNEL = KEY_PREFIX + "events";
+
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
+
+    @Resource
+    private LimiterRedisConnection limiterRedisConnection;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private QuotaCoordinator quotaCoordinator;
+
+    /**
+     * 是否启用集群熔断
+     */
+    @Value("${rate-limiter.circuit-breaker.cluster.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 读取 Redis 状态的周期（毫秒），同时是抢探测权的检查周期
+     */
+    @Value("${rate-limiter.circuit-breaker.cluster.sync-millis:1000}")
+    private long syncMillis;
+
+    private final ConcurrentMap<String, Binding> bindings = new ConcurrentHashMap<>();
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder syncFailures = new LongAdder();
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        // 集群熔断脚本返回版本号而不是 0/1，自检使用一定不会切换的操作（非探测实例 close）
+        luaScriptRegistry.registerSelfTest(TRANSITION_SCRIPT, "close", "self-test", "1000", CHANNEL, "self-test");
+        if (!enabled) {
+            log.info("集群熔断未启用，熔断器按单机模式运行");
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "circuit-breaker-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::syncAll, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> onEvent(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CHANNEL));
+        log.info("集群熔断已启用 - 实例: {}, 同步周期: {} ms", quotaCoordinator.getInstanceId(), syncMillis);
+    }
+
+    /**
+     * 把熔断器接入集群状态
+     */
+    public void bind(CircuitBreaker breaker) {
+        if (!enabled) {
+            return;
+        }
+        Binding binding = new Binding(breaker);
+        if (bindings.putIfAbsent(breaker.getName(), binding) != null) {
+            return;
+        }
+        breaker.setAutoHalfOpen(false);
+        breaker.addListener(this::onLocalTransition);
+        scheduler.execute(() -> sync(binding));
+    }
+
+    /**
+     * 本地调用结果触发的状态切换，交给同步线程写入 Redis（不阻塞消费线程）
+     */
+    private void onLocalTransition(CircuitBreaker breaker, CircuitBreaker.State from, CircuitBreaker.State to,
+                                   boolean forced) {
+        Binding binding = bindings.get(breaker.getName());
+        if (forced || binding == null || binding.degraded) {
+            return;
+        }
+        String op;
+        if (to == CircuitBreaker.State.OPEN) {
+            op = from == CircuitBreaker.State.HALF_OPEN ? "reopen" : "open";
+        } else if (to == CircuitBreaker.State.CLOSED) {
+            op = "close";
+        } else {
+            return;
+        }
+        scheduler.execute(() -> {
+            long generation = transition(binding, op);
+            if (generation > 0) {
+                log.info("📣 熔断状态已广播 - [{}] {} -> {}", breaker.getName(), from, to);
+            }
+        });
+    }
+
+    /**
+     * 执行集群状态切换
+     *
+     * @return 切换成功返回新版本号，否则返回 0（状态以下一次同步为准）
+     */
+    private long transition(Binding binding, String op) {
+        CircuitBreaker breaker = binding.breaker;
+        try {
+            Long generation = luaScriptRegistry.execute(TRANSITION_SCRIPT,
+                    Collections.singletonList(KEY_PREFIX + breaker.getName()),
+                    op,
+                    quotaCoordinator.getInstanceId(),
+                    String.valueOf(breaker.getConfig().getWaitDurationInOpenMillis()),
+                    CHANNEL,
+                    breaker.getName());
+            if (generation != null && generation > 0) {
+                binding.advance(generation);
+                published.increment();
+                return generation;
+            }
+        } catch (Exception e) {
+            markDegraded(binding, e);
+        }
+        return 0;
+    }
+
+    /**
+     * 其他实例广播的状态切换
+     */
+    private void onEvent(String payload) {
+        try {
+            JSONObject event = JSON.parseObject(payload);
+            Binding binding = bindings.get(event.getString("name"));
+            if (binding == null || quotaCoordinator.getInstanceId().equals(event.getString("instance"))) {
+                return;
+            }
+            received.increment();
+            if (binding.advance(event.getLongValue("generation"))) {
+                // 收到事件的实例都不是探测实例
+                apply(binding, CircuitBreaker.State.valueOf(event.getString("state")),
+                        event.getLongValue("remainingMillis"), false);
+            }
+        } catch (Exception e) {
+            log.error("解析熔断事件失败: {}, error: {}", payload, e.getMessage());
+        }
+    }
+
+    private void syncAll() {
+        for (Binding binding : bindings.values()) {
+            sync(binding);
+        }
+    }
+
+    /**
+     * 同步一个熔断器：OPEN 等待期满时抢探测权，然后读取 Redis 状态补上丢失的事件
+     */
+    private void sync(Binding binding) {
+        CircuitBreaker breaker = binding.breaker;
+        try {
+            if (breaker.getState() == CircuitBreaker.State.OPEN && breaker.getRemainingOpenMillis() == 0
+                    && transition(binding, "probe") > 0) {
+                log.info("🔍 本实例获得熔断器 [{}] 的探测权", breaker.getName());
+                breaker.transitionToHalfOpen();
+                return;
+            }
+
+            String key = KEY_PREFIX + breaker.getName();
+            RedisFuture<List<KeyValue<String, String>>> fields = limiterRedisConnection.dispatch(commands ->
+                    commands.hmget(key, "state", "generation", "openUntil", "prober"));
+            RedisFuture<List<String>> time = limiterRedisConnection.dispatch(commands -> commands.time());
+            limiterRedisConnection.flush();
+            List<KeyValue<String, String>> values = limiterRedisConnection.await(fields);
+            List<String> serverTime = limiterRedisConnection.await(time);
+            recover(binding);
+
+            if (!values.get(0).hasValue()) {
+                return;
+            }
+            long generation = Long.parseLong(values.get(1).getValueOrElse("0"));
+            if (!binding.advance(generation)) {
+                return;
+            }
+            long now = Long.parseLong(serverTime.get(0)) * 1000 + Long.parseLong(serverTime.get(1)) / 1000;
+            long openUntil = Long.parseLong(values.get(2).getValueOrElse("0"));
+            boolean prober = quotaCoordinator.getInstanceId().equals(values.get(3).getValueOrElse(""));
+            log.info("🔄 按集群状态同步熔断器 [{}]: {}", breaker.getName(), values.get(0).getValue());
+            apply(binding, CircuitBreaker.State.valueOf(values.get(0).getValue()), Math.max(0, openUntil - now), prober);
+        } catch (Exception e) {
+            markDegraded(binding, e);
+        }
+    }
+
+    /**
+     * 按集群状态强制切换本地熔断器
+     *
+     * 集群处于 HALF_OPEN 时，只有探测实例在本地半开，其他实例保持 OPEN 等待探测结果
+     */
+    private void apply(Binding binding, CircuitBreaker.State state, long remainingMillis, boolean prober) {
+        CircuitBreaker breaker = binding.breaker;
+        if (state == CircuitBreaker.State.CLOSED) {
+            if (breaker.getState() != CircuitBreaker.State.CLOSED) {
+                breaker.transitionToClosed();
+            }
+        } else if (state == CircuitBreaker.State.OPEN || !prober) {
+            breaker.transitionToOpen(remainingMillis);
+        } else if (breaker.getState() != CircuitBreaker.State.HALF_OPEN) {
+            breaker.transitionToHalfOpen();
+        }
+    }
+
+    private void markDegraded(Binding binding, Exception e) {
+        syncFailures.increment();
+        if (!binding.degraded) {
+            binding.degraded = true;
+            binding.breaker.setAutoHalfOpen(true);
+            log.error("⚠️ 集群熔断同步失败，熔断器 [{}] 临时按单机模式运行: {}", binding.breaker.getName(), e.getMessage());
+        }
+    }
+
+    private void recover(Binding binding) {
+        if (binding.degraded) {
+            binding.degraded = false;
+            binding.breaker.setAutoHalfOpen(false);
+            log.info("✅ 集群熔断同步恢复 - [{}]", binding.breaker.getName());
+        }
+    }
+
+    /**
+     * 集群熔断状态
+     */
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("enabled", enabled);
+        status.put("instanceId", quotaCoordinator.getInstanceId());
+        status.put("published", published.sum());
+        status.put("received", received.sum());
+        status.put("syncFailures", syncFailures.sum());
+        Map<String, Object> breakers = new LinkedHashMap<>();
+        for (Binding binding : bindings.values()) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("localState", binding.breaker.getState());
+            item.put("generation", binding.generation.get());
+            item.put("degraded", binding.degraded);
+            try {
+                item.put("redis", limiterRedisConnection.execute(commands ->
+                        commands.hgetall(KEY_PREFIX + binding.breaker.getName())));
+            } catch (Exception e) {
+                item.put("redis", "查询失败: " + e.getMessage());
+            }
+            breakers.put(binding.breaker.getName(), item);
+        }
+        status.put("breakers", breakers);
+        return status;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * 接入集群的熔断器及已应用的集群状态版本号
+     */
+    private static final class Binding {
+        private final CircuitBreaker breaker;
+        private final AtomicLong generation = new AtomicLong();
+        private volatile boolean degraded;
+
+        private Binding(CircuitBreaker breaker) {
+            this.breaker = breaker;
+        }
+
+        /**
+         * 版本号比已应用的新时更新并返回 true
+         */
+        private boolean advance(long newGeneration) {
+            while (true) {
+                long current = generation.get();
+                if (newGeneration <= current) {
+                    return false;
+                }
+                if (generation.compareAndSet(current, newGeneration)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.example.mqlimitdemo.cache;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * 幂等下游调用的响应缓存与并发合并（single-flight）
+ *
+ * 重试、重复的状态推送等同一请求经常在几秒内多次到达，每次都要占用一个许可。
+ * 对声明为幂等的下游操作，在获取许可之前先查缓存：
+ * 1. 只对 idempotent-operations 中声明的操作生效，且调用方必须给出显式的幂等 Key
+ *    （如生产者设置的消息属性 {@link #PROPERTY_IDEMPOTENCY_KEY}）；没有幂等 Key 或操作未声明时直接调用下游，
+ *    不按请求内容猜测——内容相同的两条消息可能是两次不同的业务请求
+ * 2. 缓存 key 为 操作名 + 幂等 Key，只缓存调用方认为可复用的结果（如发送成功），异常不缓存
+ * 3. 缓存按估算的内存大小限制（max-weight-bytes），过期时间 ttl-millis，淘汰策略为 W-TinyLFU（{@link WTinyLfuCache}）
+ * 4. 同一 key 同时只有一个调用在进行，其他线程等待它的结果；领头调用失败时各自再调用一次，
+ *    不把领头调用的排队超时等与自身截止时间相关的异常传给别人
+ *
+ * 默认不启用。只有下游按幂等 Key 去重（同一 Key 重复请求视为同一次请求）时，才应把发送类操作声明为幂等。
+ * 与 MessageDeduplicator 的区别：去重识别同一条消息的重投递；响应缓存识别携带同一幂等 Key 的不同消息。
+ * 缓存命中和合并的请求都不占用许可，统计中的 savedPermits 即为省下的配额
+ *
+ * @author demo
+ */
+@Slf4j
+@Component
+public class DownstreamResponseCache {
+
+    /**
+     * 操作名：第三方接口发送消息（需在 idempotent-operations 中声明才会缓存）
+     */
+    public static final String SEND_MESSAGE = "third_party_api.sendMessage";
+
+    /**
+     * 消息属性：幂等 Key，由生产者按业务请求设置
+     */
+    public static final String PROPERTY_IDEMPOTENCY_KEY = "IDEMPOTENCY_KEY";
+
+    /**
+     * 单个条目的固定开销估算（Node、HashMap 和三段 LinkedHashMap 的 Entry、key 对象头），字节
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 160;
+
+    /**
+     * 按平均条目大小估算条目数，决定频率统计的大小
+     */
+    private static final int ESTIMATED_ENTRY_BYTES = 512;
+
+    /**
+     * 是否启用响应缓存
+     */
+    @Value("${rate-limiter.response-cache.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * 声明为幂等的操作名（逗号分隔），未声明的操作不缓存
+     */
+    @Value("${rate-limiter.response-cache.idempotent-operations:}")
+    private String[] idempotentOperations;
+
+    /**
+     * 缓存条目估算大小之和的上限（字节）
+     */
+    @Value("${rate-limiter.response-cache.max-weight-bytes:16777216}")
+    private long maxWeightBytes;
+
+    /**
+     * 缓存有效期（毫秒，从写入算起）
+     */
+    @Value("${rate-limiter.response-cache.ttl-millis:10000}")
+    private long ttlMillis;
+
+    private WTinyLfuCache<String, Object> cache;
+
+    private final Set<String> operations = new HashSet<>();
+
+    private final ConcurrentMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService cleaner;
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder bypassed = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder collapsed = new LongAdder();
+    private final LongAdder leaderFailures = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        long expectedEntries = Math.max(16, maxWeightBytes / ESTIMATED_ENTRY_BYTES);
+        cache = new WTinyLfuCache<>(maxWeightBytes, (int) Math.min(Integer.MAX_VALUE, expectedEntries),
+                DownstreamResponseCache::weigh);
+        for (String operation : idempotentOperations) {
+            if (operation != null && !operation.trim().isEmpty()) {
+                operations.add(operation.trim());
+            }
+        }
+        if (!enabled) {
+            log.info("下游响应缓存未启用");
+            return;
+        }
+        long cleanMillis = Math.max(1000, ttlMillis);
+        cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "response-cache-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        cleaner.scheduleWithFixedDelay(() -> cache.cleanUp(System.nanoTime()), cleanMillis, cleanMillis, TimeUnit.MILLISECONDS);
+        log.info("下游响应缓存已启动 - 容量: {} 字节, 有效期: {} ms, 幂等操作: {}", maxWeightBytes, ttlMillis, operations);
+    }
+
+    /**
+     * 查缓存，未命中时调用下游；相同幂等 Key 同时只调用一次
+     *
+     * @param operation      操作名，未声明为幂等时直接调用下游
+     * @param idempotencyKey 显式的幂等 Key，为空时直接调用下游
+     * @param call           下游调用（通常包含排队等待许可）
+     * @param cacheable      结果是否可以缓存
+     * @return 缓存的结果或本次调用的结果
+     * @throws Exception 下游调用抛出的异常
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V get(String operation, String idempotencyKey, Callable<V> call, Predicate<V> cacheable) throws Exception {
+        if (!enabled) {
+            return call.call();
+        }
+        if (!isIdempotent(operation) || idempotencyKey == null || idempotencyKey.isEmpty()) {
+            bypassed.increment();
+            return call.call();
+        }
+        calls.increment();
+        String key = operation + '\n' + idempotencyKey;
+        long now = System.nanoTime();
+        Object cached = cache.get(key, now);
+        if (cached != null) {
+            cacheHits.increment();
+            log.info("💾 响应缓存命中，不再调用下游 - 操作: {}", operation);
+            return (V) cached;
+        }
+
+        CompletableFuture<Object> mine = new CompletableFuture<>();
+        CompletableFuture<Object> leader = inFlight.putIfAbsent(key, mine);
+        if (leader != null) {
+            return (V) follow(operation, leader, call);
+        }
+        try {
+            // 查缓存和成为领头调用之间，上一个领头调用可能刚写入缓存
+            cached = cache.peek(key, System.nanoTime());
+            if (cached != null) {
+                cacheHits.increment();
+                mine.complete(cached);
+                return (V) cached;
+            }
+            V value = call.call();
+            if (value != null && cacheable.test(value)) {
+                cache.put(key, value, TimeUnit.MILLISECONDS.toNanos(ttlMillis), System.nanoTime());
+            }
+            mine.complete(value);
+            return value;
+        } catch (Exception | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * 等待领头调用的结果；领头调用失败时自己调用一次
+     */
+    private <V> Object follow(String operation, CompletableFuture<Object> leader, Callable<V> call) throws Exception {
+        collapsed.increment();
+        log.info("🔗 相同请求正在调用下游，等待其结果 - 操作: {}", operation);
+        try {
+            return leader.get();
+        } catch (ExecutionException e) {
+            leaderFailures.increment();
+            collapsed.decrement();
+            log.warn("相同请求的领头调用失败（{}），自行调用下游 - 操作: {}", e.getCause().getMessage(), operation);
+            return call.call();
+        }
+    }
+
+    /**
+     * 条目估算大小：固定开销 + key + value（字符串按每字符 2 字节）
+     */
+    private static int weigh(String key, Object value) {
+        long bytes = ENTRY_OVERHEAD_BYTES + 40L + 2L * key.length() + estimateBytes(value);
+        return (int) Math.min(Integer.MAX_VALUE, bytes);
+    }
+
+    private static long estimateBytes(Object value) {
+        if (value == null || value instanceof Boolean) {
+            // Boolean.TRUE / FALSE 是共享实例，只占引用
+            return 0;
+        }
+        if (value instanceof Number) {
+            return 24;
+        }
+        if (value instanceof CharSequence) {
+            return 40L + 2L * ((CharSequence) value).length();
+        }
+        if (value instanceof byte[]) {
+            return 16L + ((byte[]) value).length;
+        }
+        return 64;
+    }
+
+    /**
+     * 操作是否声明为幂等
+     */
+    public boolean isIdempotent(String operation) {
+        return operations.contains(operation);
+    }
+
+    public void invalidate(String operation, String idempotencyKey) {
+        cache.invalidate(operation + '\n' + idempotencyKey);
+    }
+
+    /**
+     * 缓存统计（命中率、内存占用、淘汰数）和省下的许可数
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("ttlMillis", ttlMillis);
+        stats.put("idempotentOperations", operations);
+        stats.put("bypassed", bypassed.sum());
+        stats.put("calls", calls.sum());
+        stats.put("cacheHits", cacheHits.sum());
+        stats.put("collapsed", collapsed.sum());
+        stats.put("leaderFailures", leaderFailures.sum());
+        stats.put("inFlight", inFlight.size());
+        stats.put("savedPermits", cacheHits.sum() + collapsed.sum());
+        stats.put("cache", cache.stats());
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (cleaner != null) {
+            cleaner.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.mqlimitdemo.cache;
+
+/**
+ * 访问频率估计（4 位 Count-Min Sketch）
+ *
+ * 每个 long 存 16 个 4 位计数器，每个元素按 4 个哈希各取一个计数器，频率取最小值，上限 15：
+ * 1. 只记录频率不记录 key，内存固定，与缓存条目数无关
+ * 2. 累计递增次数达到 sampleSize（计数器数的 10 倍左右）时所有计数器减半，
+ *    旧的热点逐渐衰减，新的热点可以被识别出来
+ *
+ * 非线程安全，由 {@link WTinyLfuCache} 的锁保护
+ *
+ * @author demo
+ */
+class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    /**
+     * 减半时清除每个计数器最高位移下来的位
+     */
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedEntries 预计同时缓存的条目数
+     */
+    FrequencySketch(int expectedEntries) {
+        int length = Integer.highestOneBit(Math.max(16, Math.min(expectedEntries, 1 << 24)) - 1) << 1;
+        this.table = new long[length];
+        this.mask = length - 1;
+        this.sampleSize = 10 * length;
+    }
+
+    /**
+     * 估计的访问频率（0 ~ 15）
+     */
+    int frequency(int hashCode) {
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long hash = hash(hashCode, i);
+            int index = (int) hash & mask;
+            int offset = offset(hash);
+            frequency = Math.min(frequency, (int) ((table[index] >>> offset) & 0xF));
+        }
+        return frequency;
+    }
+
+    /**
+     * 记录一次访问，达到采样数时整体减半
+     */
+    void increment(int hashCode) {
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long hash = hash(hashCode, i);
+            int index = (int) hash & mask;
+            int offset = offset(hash);
+            if (((table[index] >>> offset) & 0xF) != MAX_COUNT) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private static long hash(int hashCode, int i) {
+        long hash = (hashCode + SEEDS[i]) * SEEDS[i];
+        return hash + (hash >>> 32);
+    }
+
+    /**
+     * 计数器在 long 中的位偏移（16 个计数器之一）
+     */
+    private static int offset(long hash) {
+        return (int) ((hash >>> 40) & 0xF) << 2;
+    }
+}
@@ -0,0 +1,281 @@
+package com.example.mqlimitdemo.cache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * 按内存大小限制、带过期时间的 W-TinyLFU 缓存
+ *
+ * 容量按条目估算的字节数（weigher）计算，分三段：
+ * 1. 窗口区（1%）：新条目先进入窗口，按 LRU 淘汰，短时间内的突发访问不需要经过准入判断
+ * 2. 主区的试用段和保护段（保护段占主区 80%）：窗口淘汰出来的条目作为候选进入试用段，
+ *    主区空间不足时候选与试用段最老的条目比较 {@link FrequencySketch} 估计的访问频率，频率高的留下；
+ *    试用段中再次被访问的条目升入保护段，保护段超出时最老的条目降回试用段
+ * 3. 过期时间从写入算起，读取时发现过期按未命中处理，{@link #cleanUp} 批量清理
+ *
+ * 只访问一次的条目很难挤掉反复访问的热点，扫描式访问不会冲掉缓存。
+ * 所有方法在同一把锁内执行，面向的是每秒几次到几百次的下游调用，不需要分段
+ *
+ * @author demo
+ */
+class WTinyLfuCache<K, V> {
+
+    private enum Region {
+        WINDOW, PROBATION, PROTECTED
+    }
+
+    private final long maxWeight;
+    private final long windowMaxWeight;
+    private final long protectedMaxWeight;
+    private final ToIntBiFunction<K, V> weigher;
+    private final FrequencySketch sketch;
+
+    private final Map<K, Node<K, V>> data = new HashMap<>();
+
+    /**
+     * 三段各自的 LRU 顺序（插入顺序，访问时移到末尾，第一个为最老）
+     */
+    private final LinkedHashMap<K, Node<K, V>> window = new LinkedHashMap<>();
+    private final LinkedHashMap<K, Node<K, V>> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<K, Node<K, V>> protectedSegment = new LinkedHashMap<>();
+
+    private long windowWeight;
+    private long probationWeight;
+    private long protectedWeight;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+    private long expirations;
+
+    /**
+     * @param maxWeight       所有条目估算大小之和的上限（字节）
+     * @param expectedEntries 预计条目数，决定频率统计的大小
+     * @param weigher         条目估算大小（字节）
+     */
+    WTinyLfuCache(long maxWeight, int expectedEntries, ToIntBiFunction<K, V> weigher) {
+        this.maxWeight = Math.max(1, maxWeight);
+        this.windowMaxWeight = Math.max(1, this.maxWeight / 100);
+        this.protectedMaxWeight = (this.maxWeight - windowMaxWeight) * 80 / 100;
+        this.weigher = weigher;
+        this.sketch = new FrequencySketch(expectedEntries);
+    }
+
+    /**
+     * 读取并记录一次访问（命中和未命中都计入频率）
+     *
+     * @return 未命中或已过期返回 null
+     */
+    synchronized V get(K key, long nowNanos) {
+        sketch.increment(key.hashCode());
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            misses++;
+            return null;
+        }
+        if (node.expireAtNanos - nowNanos <= 0) {
+            remove(node);
+            expirations++;
+            misses++;
+            return null;
+        }
+        onAccess(node);
+        hits++;
+        return node.value;
+    }
+
+    /**
+     * 只读取，不记录访问和命中统计
+     */
+    synchronized V peek(K key, long nowNanos) {
+        Node<K, V> node = data.get(key);
+        return node == null || node.expireAtNanos - nowNanos <= 0 ? null : node.value;
+    }
+
+    /**
+     * 写入或替换条目
+     *
+     * @return false 条目超过主区容量，没有缓存
+     */
+    synchronized boolean put(K key, V value, long ttlNanos, long nowNanos) {
+        int weight = Math.max(1, weigher.applyAsInt(key, value));
+        Node<K, V> node = data.get(key);
+        if (node != null) {
+            remove(node);
+        }
+        if (weight > maxWeight - windowMaxWeight) {
+            rejections++;
+            return false;
+        }
+        node = new Node<>(key, value, weight, nowNanos + ttlNanos);
+        data.put(key, node);
+        node.region = Region.WINDOW;
+        window.put(key, node);
+        windowWeight += weight;
+        evict();
+        return data.get(key) == node;
+    }
+
+    synchronized void invalidate(K key) {
+        Node<K, V> node = data.get(key);
+        if (node != null) {
+            remove(node);
+        }
+    }
+
+    /**
+     * 清理所有已过期的条目
+     *
+     * @return 清理的条目数
+     */
+    synchronized int cleanUp(long nowNanos) {
+        int removed = 0;
+        Iterator<Node<K, V>> iterator = data.values().iterator();
+        while (iterator.hasNext()) {
+            Node<K, V> node = iterator.next();
+            if (node.expireAtNanos - nowNanos <= 0) {
+                iterator.remove();
+                unlink(node);
+                removed++;
+            }
+        }
+        expirations += removed;
+        return removed;
+    }
+
+    private void onAccess(Node<K, V> node) {
+        switch (node.region) {
+            case WINDOW:
+                moveToTail(window, node);
+                break;
+            case PROBATION:
+                // 试用段再次访问，升入保护段
+                probation.remove(node.key);
+                probationWeight -= node.weight;
+                node.region = Region.PROTECTED;
+                protectedSegment.put(node.key, node);
+                protectedWeight += node.weight;
+                demoteProtected();
+                break;
+            case PROTECTED:
+                moveToTail(protectedSegment, node);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 保护段超出时，最老的条目降回试用段末尾
+     */
+    private void demoteProtected() {
+        while (protectedWeight > protectedMaxWeight && protectedSegment.size() > 1) {
+            Node<K, V> oldest = protectedSegment.values().iterator().next();
+            protectedSegment.remove(oldest.key);
+            protectedWeight -= oldest.weight;
+            oldest.region = Region.PROBATION;
+            probation.put(oldest.key, oldest);
+            probationWeight += oldest.weight;
+        }
+    }
+
+    /**
+     * 窗口超出时，最老的条目作为候选申请进入主区；主区不够时按访问频率决定候选和受害者谁留下
+     */
+    private void evict() {
+        long mainMaxWeight = maxWeight - windowMaxWeight;
+        while (windowWeight > windowMaxWeight && !window.isEmpty()) {
+            Node<K, V> candidate = window.values().iterator().next();
+            window.remove(candidate.key);
+            windowWeight -= candidate.weight;
+
+            boolean admitted = true;
+            while (probationWeight + protectedWeight + candidate.weight > mainMaxWeight) {
+                Node<K, V> victim = !probation.isEmpty()
+                        ? probation.values().iterator().next()
+                        : protectedSegment.values().iterator().next();
+                if (sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+                    remove(victim);
+                    evictions++;
+                } else {
+                    admitted = false;
+                    break;
+                }
+            }
+            if (admitted) {
+                candidate.region = Region.PROBATION;
+                probation.put(candidate.key, candidate);
+                probationWeight += candidate.weight;
+            } else {
+                data.remove(candidate.key);
+                evictions++;
+            }
+        }
+    }
+
+    private void remove(Node<K, V> node) {
+        data.remove(node.key);
+        unlink(node);
+    }
+
+    private void unlink(Node<K, V> node) {
+        switch (node.region) {
+            case WINDOW:
+                window.remove(node.key);
+                windowWeight -= node.weight;
+                break;
+            case PROBATION:
+                probation.remove(node.key);
+                probationWeight -= node.weight;
+                break;
+            case PROTECTED:
+                protectedSegment.remove(node.key);
+                protectedWeight -= node.weight;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static <K, V> void moveToTail(LinkedHashMap<K, Node<K, V>> segment, Node<K, V> node) {
+        segment.remove(node.key);
+        segment.put(node.key, node);
+    }
+
+    synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long requests = hits + misses;
+        stats.put("entries", data.size());
+        stats.put("weightBytes", windowWeight + probationWeight + protectedWeight);
+        stats.put("maxWeightBytes", maxWeight);
+        stats.put("windowBytes", windowWeight);
+        stats.put("probationBytes", probationWeight);
+        stats.put("protectedBytes", protectedWeight);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("hitRate", requests == 0 ? "0.00%" : String.format("%.2f%%", hits * 100.0 / requests));
+        stats.put("evictions", evictions);
+        stats.put("rejections", rejections);
+        stats.put("expirations", expirations);
+        return stats;
+    }
+
+    private static class Node<K, V> {
+        final K key;
+        final V value;
+        final int weight;
+        final long expireAtNanos;
+        Region region;
+
+        Node(K key, V value, int weight, long expireAtNanos) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.expireAtNanos = expireAtNanos;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.example.mqlimitdemo.codec;
+
+import com.example.mqlimitdemo.domain.OrderMessage;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * 订单消息紧凑二进制编解码器
+ *
+ * 格式（所有整数为 varint，有符号数先 zigzag）：
+ * <pre>
+ * 版本(1 字节) | 字段数(1 字节) | 非空字段位图(varint) | 按字段顺序排列的非空字段
+ * </pre>
+ * 字段顺序：orderId、userId、productName、amount、status、createTime、remark
+ * 1. 字符串：UTF-8 字节长度 + 字节，编码时直接从 char 写入输出缓冲区，不生成中间 byte[]
+ * 2. amount：scale + 非标度值（能放进 long 时写 varint，否则写字节数组）
+ * 3. createTime：毫秒时间戳
+ *
+ * 版本兼容：新增字段只能追加到末尾并增加字段数，旧版本解码器读取已知字段、忽略后面的字段，
+ * 新版本解码器读取旧消息时缺少的字段为 null；字段类型或顺序变化时升级版本号，解码器拒绝不支持的版本
+ *
+ * @author demo
+ */
+@Component
+public class BinaryOrderMessageCodec implements MessageCodec<OrderMessage> {
+
+    public static final String NAME = "binary";
+
+    /**
+     * 当前格式版本
+     */
+    static final int VERSION = 1;
+
+    /**
+     * 当前版本的字段数
+     */
+    private static final int FIELD_COUNT = 7;
+
+    private static final int ORDER_ID = 0;
+    private static final int USER_ID = 1;
+    private static final int PRODUCT_NAME = 2;
+    private static final int AMOUNT = 3;
+    private static final int STATUS = 4;
+    private static final int CREATE_TIME = 5;
+    private static final int REMARK = 6;
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public Class<OrderMessage> type() {
+        return OrderMessage.class;
+    }
+
+    @Override
+    public byte[] encode(OrderMessage value) {
+        Object[] fields = {
+                value.getOrderId(), value.getUserId(), value.getProductName(), value.getAmount(),
+                value.getStatus(), value.getCreateTime(), value.getRemark()
+        };
+        long present = 0;
+        for (int i = 0; i < FIELD_COUNT; i++) {
+            if (fields[i] != null) {
+                present |= 1L << i;
+            }
+        }
+
+        // 典型订单消息不到 100 字节，初始 128 字节一般不需要扩容
+        Writer writer = new Writer(128);
+        writer.writeByte(VERSION);
+        writer.writeByte(FIELD_COUNT);
+        writer.writeVarLong(present);
+        writer.writeString(value.getOrderId());
+        writer.writeString(value.getUserId());
+        writer.writeString(value.getProductName());
+        if (value.getAmount() != null) {
+            writer.writeDecimal(value.getAmount());
+        }
+        writer.writeString(value.getStatus());
+        if (value.getCreateTime() != null) {
+            writer.writeVarLong(zigzag(value.getCreateTime().getTime()));
+        }
+        writer.writeString(value.getRemark());
+        return writer.toByteArray();
+    }
+
+    @Override
+    public OrderMessage decode(byte[] body) {
+        try {
+            Reader reader = new Reader(body);
+            int version = reader.readByte();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("不支持的订单消息二进制格式版本: " + version);
+            }
+            int fieldCount = reader.readByte();
+            long present = reader.readVarLong();
+
+            OrderMessage message = new OrderMessage();
+            // 只读取本版本已知的字段，后续版本追加的字段忽略
+            int known = Math.min(fieldCount, FIELD_COUNT);
+            for (int i = 0; i < known; i++) {
+                if ((present & (1L << i)) == 0) {
+                    continue;
+                }
+                switch (i) {
+                    case ORDER_ID:
+                        message.setOrderId(reader.readString());
+                        break;
+                    case USER_ID:
+                        message.setUserId(reader.readString());
+                        break;
+                    case PRODUCT_NAME:
+                        message.setProductName(reader.readString());
+                        break;
+                    case AMOUNT:
+                        message.setAmount(reader.readDecimal());
+                        break;
+                    case STATUS:
+                        message.setStatus(reader.readString());
+                        break;
+                    case CREATE_TIME:
+                        message.setCreateTime(new Date(unzigzag(reader.readVarLong())));
+                        break;
+                    case REMARK:
+                        message.setRemark(reader.readString());
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return message;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("订单消息二进制数据不完整", e);
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * 可扩容的输出缓冲区
+     */
+    private static class Writer {
+        private byte[] buffer;
+        private int position;
+
+        Writer(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        private void ensure(int bytes) {
+            if (position + bytes > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+            }
+        }
+
+        void writeByte(int value) {
+            ensure(1);
+            buffer[position++] = (byte) value;
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        /**
+         * 先计算 UTF-8 长度，再把字符直接编码到缓冲区；null 不写入（由位图表示）
+         */
+        void writeString(String value) {
+            if (value == null) {
+                return;
+            }
+            int length = value.length();
+            int utf8Length = 0;
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    utf8Length++;
+                } else if (c < 0x800) {
+                    utf8Length += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    utf8Length += 4;
+                    i++;
+                } else {
+                    utf8Length += 3;
+                }
+            }
+            writeVarLong(utf8Length);
+            ensure(utf8Length);
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    buffer[position++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[position++] = (byte) (0xC0 | (c >> 6));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                    buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    // 不成对的代理字符按 3 字节编码，与长度计算一致（解码后为替换字符）
+                    buffer[position++] = (byte) (0xE0 | (c >> 12));
+                    buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        /**
+         * scale + 非标度值：bitLength < 64 时 0 + zigzag varint，否则 1 + 字节数组
+         */
+        void writeDecimal(BigDecimal value) {
+            writeVarLong(zigzag(value.scale()));
+            BigInteger unscaled = value.unscaledValue();
+            if (unscaled.bitLength() < 64) {
+                writeByte(0);
+                writeVarLong(zigzag(unscaled.longValue()));
+            } else {
+                writeByte(1);
+                writeBytes(unscaled.toByteArray());
+            }
+        }
+
+        byte[] toByteArray() {
+            return position == buffer.length ? buffer : Arrays.copyOf(buffer, position);
+        }
+    }
+
+    private static class Reader {
+        private final byte[] buffer;
+        private int position;
+
+        Reader(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        int readByte() {
+            return buffer[position++] & 0xFF;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buffer[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("varint 格式错误");
+        }
+
+        int readLength() {
+            long length = readVarLong();
+            if (length < 0 || length > buffer.length - position) {
+                throw new IllegalArgumentException("长度越界: " + length);
+            }
+            return (int) length;
+        }
+
+        String readString() {
+            int length = readLength();
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        BigDecimal readDecimal() {
+            int scale = (int) unzigzag(readVarLong());
+            if (readByte() == 0) {
+                return BigDecimal.valueOf(unzigzag(readVarLong()), scale);
+            }
+            int length = readLength();
+            byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+            position += length;
+            return new BigDecimal(new BigInteger(bytes), scale);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.mqlimitdemo.codec;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 基于 {@link MessageCodecRegistry} 的消息转换器
+ *
+ * 由 RocketMQConverterConfig 注册到 rocketmq-spring 的 RocketMQMessageConverter 中，排在默认转换器（Jackson 等）之前，
+ * 只处理注册了编解码器的业务类型，其他类型交给默认转换器：
+ * 1. 消费端：消息体 byte[] 按消息属性 CODEC 选择编解码器解码（由 RocketMQUtil#convertToSpringMessage 转成的消息带有用户属性）；
+ *    rocketmq-spring 的监听容器直接转换时只传入 String 形式的消息体、不带属性，此时只能按 JSON 解码
+ * 2. 生产端：按消息头 CODEC（没有时用默认编解码器）编码为 byte[]，并把编解码器名称写入消息头
+ *
+ * @author demo
+ */
+@Component
+public class CodecMessageConverter implements MessageConverter {
+
+    @Resource
+    private MessageCodecRegistry messageCodecRegistry;
+
+    @Override
+    public Object fromMessage(Message<?> message, Class<?> targetClass) {
+        if (!messageCodecRegistry.supports(targetClass)) {
+            return null;
+        }
+        Object payload = message.getPayload();
+        if (payload instanceof byte[]) {
+            String name = message.getHeaders().get(MessageCodecRegistry.PROPERTY_CODEC, String.class);
+            return messageCodecRegistry.decode(targetClass, name, (byte[]) payload);
+        }
+        if (payload instanceof String) {
+            return messageCodecRegistry.decode(targetClass, JsonOrderMessageCodec.NAME,
+                    ((String) payload).getBytes(StandardCharsets.UTF_8));
+        }
+        return null;
+    }
+
+    @Override
+    public Message<?> toMessage(Object payload, MessageHeaders headers) {
+        if (!messageCodecRegistry.supports(payload.getClass())) {
+            return null;
+        }
+        return encode(payload, headers);
+    }
+
+    private <T> Message<byte[]> encode(T payload, MessageHeaders headers) {
+        @SuppressWarnings("unchecked")
+        Class<T> type = (Class<T>) payload.getClass();
+        String name = headers == null ? null : headers.get(MessageCodecRegistry.PROPERTY_CODEC, String.class);
+        MessageCodec<T> codec = name != null
+                ? messageCodecRegistry.get(type, name) : messageCodecRegistry.getDefault(type);
+        MessageBuilder<byte[]> builder = MessageBuilder.withPayload(codec.encode(payload));
+        if (headers != null) {
+            builder.copyHeaders(headers);
+        }
+        return builder.setHeader(MessageCodecRegistry.PROPERTY_CODEC, codec.name()).build();
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.mqlimitdemo.codec;
+
+import com.alibaba.fastjson.JSON;
+import com.example.mqlimitdemo.domain.OrderMessage;
+import org.springframework.stereotype.Component;
+
+/**
+ * 订单消息 JSON 编解码器（默认）
+ *
+ * 与原来的 JSON 格式完全兼容；fastjson 直接读写 UTF-8 字节，不经过中间 String
+ *
+ * @author demo
+ */
+@Component
+public class JsonOrderMessageCodec implements MessageCodec<OrderMessage> {
+
+    public static final String NAME = "json";
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public Class<OrderMessage> type() {
+        return OrderMessage.class;
+    }
+
+    @Override
+    public byte[] encode(OrderMessage value) {
+        return JSON.toJSONBytes(value);
+    }
+
+    @Override
+    public OrderMessage decode(byte[] body) {
+        try {
+            return JSON.parseObject(body, OrderMessage.class);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("订单消息 JSON 解析失败: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.mqlimitdemo.codec;
+
+/**
+ * 消息编解码器 SPI
+ *
+ * 直接在消息体 byte[] 和业务对象之间转换，不经过中间 String（JSON 文本转 UTF-16 再解析）；
+ * 实现类注册为 Spring Bean 即被 {@link MessageCodecRegistry} 发现，生产端在消息属性 CODEC 中写入编解码器名称，
+ * 消费端按名称选择编解码器
+ *
+ * @param <T> 业务对象类型
+ * @author demo
+ */
+public interface MessageCodec<T> {
+
+    /**
+     * 编解码器名称，写入消息属性，同一类型内唯一
+     */
+    String name();
+
+    /**
+     * 业务对象类型
+     */
+    Class<T> type();
+
+    /**
+     * 编码为消息体
+     */
+    byte[] encode(T value);
+
+    /**
+     * 从消息体解码
+     *
+     * @throws IllegalArgumentException 消息体格式错误或版本不支持
+     */
+    T decode(byte[] body);
+}
@@ -0,0 +1,101 @@
+package com.example.mqlimitdemo.codec;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 编解码器注册表
+ *
+ * 收集所有 {@link MessageCodec} Bean，按 业务类型 + 名称 查找：
+ * 1. 生产端用默认编解码器（rate-limiter.codec.default）编码，并把名称写入消息属性 CODEC
+ * 2. 消费端按消息属性选择编解码器；没有该属性的消息（旧消息、其他系统发送的消息）按 JSON 解码，
+ *    解码由注册到 rocketmq-spring 的 {@link CodecMessageConverter} 完成，监听器直接收到业务对象
+ *
+ * @author demo
+ */
+@Slf4j
+@Component
+public class MessageCodecRegistry {
+
+    /**
+     * 消息属性：编解码器名称
+     */
+    public static final String PROPERTY_CODEC = "CODEC";
+
+    @Resource
+    private List<MessageCodec<?>> codecs;
+
+    /**
+     * 生产端默认编解码器名称
+     */
+    @Value("${rate-limiter.codec.default:json}")
+    private String defaultCodec;
+
+    private final Map<Class<?>, Map<String, MessageCodec<?>>> codecsByType = new LinkedHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        for (MessageCodec<?> codec : codecs) {
+            MessageCodec<?> previous = codecsByType.computeIfAbsent(codec.type(), t -> new LinkedHashMap<>())
+                    .put(codec.name(), codec);
+            if (previous != null) {
+                throw new IllegalStateException("编解码器名称重复: " + codec.type().getSimpleName() + "/" + codec.name());
+            }
+        }
+        log.info("消息编解码器已注册 - 默认: {}, 已注册: {}", defaultCodec, getCodecNames());
+    }
+
+    /**
+     * 按名称获取编解码器
+     *
+     * @throws IllegalArgumentException 未注册该编解码器
+     */
+    @SuppressWarnings("unchecked")
+    public <T> MessageCodec<T> get(Class<T> type, String name) {
+        Map<String, MessageCodec<?>> byName = codecsByType.get(type);
+        MessageCodec<?> codec = byName == null ? null : byName.get(name);
+        if (codec == null) {
+            throw new IllegalArgumentException("未注册的编解码器: " + type.getSimpleName() + "/" + name);
+        }
+        return (MessageCodec<T>) codec;
+    }
+
+    /**
+     * 生产端默认编解码器
+     */
+    public <T> MessageCodec<T> getDefault(Class<T> type) {
+        return get(type, defaultCodec);
+    }
+
+    /**
+     * 按编解码器名称直接从消息体解码，名称为空（消息没有 CODEC 属性）时按 JSON 解码
+     */
+    public <T> T decode(Class<T> type, String name, byte[] body) {
+        return get(type, name != null ? name : JsonOrderMessageCodec.NAME).decode(body);
+    }
+
+    /**
+     * 是否注册了该类型的编解码器
+     */
+    public boolean supports(Class<?> type) {
+        return codecsByType.containsKey(type);
+    }
+
+    /**
+     * 已注册的编解码器（类型/名称）
+     */
+    public List<String> getCodecNames() {
+        List<String> names = new ArrayList<>();
+        codecsByType.forEach((type, byName) -> byName.keySet()
+                .forEach(name -> names.add(type.getSimpleName() + "/" + name)));
+        return names;
+    }
+}
@@ -0,0 +1,197 @@
+package com.example.mqlimitdemo.config;
+
+import com.example.mqlimitdemo.limiter.LimiterRedisConnection;
+import io.lettuce.core.ClientOptions;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.TimeoutOptions;
+import io.lettuce.core.cluster.ClusterClientOptions;
+import io.lettuce.core.cluster.ClusterTopologyRefreshOptions;
+import io.lettuce.core.cluster.RedisClusterClient;
+import io.lettuce.core.resource.ClientResources;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.StringUtils;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 限流器专用 Redis 连接配置
+ *
+ * 限流器使用独立的多路复用连接，不与 RedisTemplate 共用 spring.redis.lettuce.pool 连接池。
+ * 连接方式默认沿用 spring.redis 配置，优先级与 Spring 的 Lettuce 连接工厂一致：
+ * 1. spring.redis.sentinel：通过哨兵发现主节点
+ * 2. spring.redis.cluster：集群模式，使用 RedisClusterClient，按 spring.redis.lettuce.cluster.refresh 刷新拓扑
+ * 3. spring.redis.url 或 host/port：单机模式
+ * 用户名、密码、数据库和 spring.redis.ssl 对三种模式都生效。
+ * 配置了 rate-limiter.redis.connection.host 时，限流器单独连接该单机地址（其余项未单独配置时沿用 spring.redis）
+ *
+ * @author demo
+ */
+@Slf4j
+@Configuration
+public class LimiterRedisConfig {
+
+    @Value("${rate-limiter.redis.connection.host:}")
+    private String host;
+
+    @Value("${rate-limiter.redis.connection.port:${spring.redis.port:6379}}")
+    private int port;
+
+    @Value("${rate-limiter.redis.connection.password:${spring.redis.password:}}")
+    private String password;
+
+    @Value("${rate-limiter.redis.connection.database:${spring.redis.database:0}}")
+    private int database;
+
+    @Value("${rate-limiter.redis.connection.ssl:${spring.redis.ssl:false}}")
+    private boolean ssl;
+
+    /**
+     * 命令超时时间（毫秒）
+     */
+    @Value("${rate-limiter.redis.connection.timeout:3000}")
+    private long timeout;
+
+    /**
+     * 是否开启自动批量刷写
+     */
+    @Value("${rate-limiter.redis.connection.batching:true}")
+    private boolean batching;
+
+    /**
+     * 单次刷写的最大命令数
+     */
+    @Value("${rate-limiter.redis.connection.max-batch-size:64}")
+    private int maxBatchSize;
+
+    /**
+     * 未攒够一批时的最长等待时间（微秒）
+     */
+    @Value("${rate-limiter.redis.connection.linger-micros:100}")
+    private long lingerMicros;
+
+    /**
+     * 限流器专用 Redis 连接
+     *
+     * 与 Spring 的 Lettuce 连接共用 ClientResources（事件循环、事件总线），连接本身独立
+     */
+    @Bean
+    public LimiterRedisConnection limiterRedisConnection(ClientResources clientResources,
+                                                         RedisProperties redisProperties) {
+        Duration commandTimeout = Duration.ofMillis(timeout);
+
+        if (!StringUtils.hasText(host) && redisProperties.getSentinel() == null
+                && redisProperties.getCluster() != null) {
+            List<RedisURI> nodes = new ArrayList<>();
+            for (String node : redisProperties.getCluster().getNodes()) {
+                nodes.add(withCredentials(RedisURI.builder(), redisProperties)
+                        .withHost(hostOf(node))
+                        .withPort(portOf(node))
+                        .withSsl(ssl)
+                        .withTimeout(commandTimeout)
+                        .build());
+            }
+
+            RedisClusterClient clusterClient = RedisClusterClient.create(clientResources, nodes);
+            clusterClient.setOptions(ClusterClientOptions.builder()
+                    .autoReconnect(true)
+                    .timeoutOptions(TimeoutOptions.enabled(commandTimeout))
+                    .maxRedirects(redisProperties.getCluster().getMaxRedirects() != null
+                            ? redisProperties.getCluster().getMaxRedirects() : ClusterClientOptions.DEFAULT_MAX_REDIRECTS)
+                    .topologyRefreshOptions(topologyRefresh(redisProperties))
+                    .build());
+            log.info("限流器 Redis 连接使用集群模式 - 节点: {}", redisProperties.getCluster().getNodes());
+            return new LimiterRedisConnection(clusterClient, timeout, batching, maxBatchSize, lingerMicros);
+        }
+
+        RedisClient redisClient = RedisClient.create(clientResources, standaloneOrSentinelUri(redisProperties));
+        redisClient.setOptions(ClientOptions.builder()
+                .autoReconnect(true)
+                .timeoutOptions(TimeoutOptions.enabled(commandTimeout))
+                .build());
+
+        return new LimiterRedisConnection(redisClient, timeout, batching, maxBatchSize, lingerMicros);
+    }
+
+    /**
+     * 单机或哨兵模式的连接地址
+     */
+    private RedisURI standaloneOrSentinelUri(RedisProperties redisProperties) {
+        RedisURI.Builder uri;
+        if (StringUtils.hasText(host)) {
+            uri = RedisURI.builder().withHost(host).withPort(port);
+        } else if (redisProperties.getSentinel() != null) {
+            RedisProperties.Sentinel sentinel = redisProperties.getSentinel();
+            uri = RedisURI.builder().withSentinelMasterId(sentinel.getMaster());
+            for (String node : sentinel.getNodes()) {
+                RedisURI.Builder sentinelUri = RedisURI.builder()
+                        .withHost(hostOf(node))
+                        .withPort(portOf(node))
+                        .withSsl(ssl);
+                if (StringUtils.hasText(sentinel.getPassword())) {
+                    sentinelUri.withAuthentication(sentinel.getUsername(), sentinel.getPassword().toCharArray());
+                }
+                uri.withSentinel(sentinelUri.build());
+            }
+            log.info("限流器 Redis 连接使用哨兵模式 - master: {}, 哨兵: {}", sentinel.getMaster(), sentinel.getNodes());
+        } else if (StringUtils.hasText(redisProperties.getUrl())) {
+            // url 中的地址、密码、数据库和 rediss:// 协议优先
+            return RedisURI.builder(RedisURI.create(redisProperties.getUrl()))
+                    .withTimeout(Duration.ofMillis(timeout))
+                    .build();
+        } else {
+            uri = RedisURI.builder().withHost(redisProperties.getHost()).withPort(port);
+        }
+
+        return withCredentials(uri, redisProperties)
+                .withDatabase(database)
+                .withSsl(ssl)
+                .withTimeout(Duration.ofMillis(timeout))
+                .build();
+    }
+
+    /**
+     * 用户名和密码（Redis 6 ACL 用户名可为空）
+     */
+    private RedisURI.Builder withCredentials(RedisURI.Builder uri, RedisProperties redisProperties) {
+        if (StringUtils.hasText(password)) {
+            String username = redisProperties.getUsername();
+            if (StringUtils.hasText(username)) {
+                uri.withAuthentication(username, password.toCharArray());
+            } else {
+                uri.withPassword(password.toCharArray());
+            }
+        }
+        return uri;
+    }
+
+    /**
+     * 集群拓扑刷新（沿用 spring.redis.lettuce.cluster.refresh）
+     */
+    private ClusterTopologyRefreshOptions topologyRefresh(RedisProperties redisProperties) {
+        RedisProperties.Lettuce.Cluster.Refresh refresh = redisProperties.getLettuce().getCluster().getRefresh();
+        ClusterTopologyRefreshOptions.Builder options = ClusterTopologyRefreshOptions.builder()
+                .dynamicRefreshSources(refresh.isDynamicRefreshSources());
+        if (refresh.getPeriod() != null) {
+            options.enablePeriodicRefresh(refresh.getPeriod());
+        }
+        if (refresh.isAdaptive()) {
+            options.enableAllAdaptiveRefreshTriggers();
+        }
+        return options.build();
+    }
+
+    private static String hostOf(String node) {
+        return node.substring(0, node.lastIndexOf(':'));
+    }
+
+    private static int portOf(String node) {
+        return Integer.parseInt(node.substring(node.lastIndexOf(':') + 1));
+    }
+}
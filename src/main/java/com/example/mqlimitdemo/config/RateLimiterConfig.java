@@ -9,6 +9,8 @@ import org.springframework.context.annotation.Configuration;
  * 
  * 使用 Guava RateLimiter 实现令牌桶算法
  *
+ * 消费者的下游调用已统一由 DownstreamScheduler 按共享配额调度，该 Bean 只用于演示单机令牌桶（consumeWithRetry）
+ *
  * @author demo
  */
 @Configuration
@@ -1,51 +1,46 @@
 package com.example.mqlimitdemo.config;
 
-import lombok.extern.slf4j.Slf4j;
+import com.example.mqlimitdemo.limiter.LimiterRedisConnection;
+import com.example.mqlimitdemo.limiter.LuaScriptRegistry;
+import io.lettuce.core.resource.ClientResources;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
-import org.springframework.scripting.support.ResourceScriptSource;
 
 /**
  * Redis Lua 脚本配置
  * 
  * 将 Lua 脚本从代码中分离到 resources 目录，便于维护和管理
+ * 
+ * resources/lua/ 下的脚本由 {@link LuaScriptRegistry} 自动发现，新增脚本无需再声明 Bean，
+ * 按文件名（不含 .lua）调用即可
  *
  * @author demo
  */
-@Slf4j
 @Configuration
 public class RedisLuaScriptConfig {
 
     /**
-     * 滑动窗口限流脚本
-     * 
-     * 脚本位置：resources/lua/sliding_window_rate_limit.lua
+     * 是否以 Redis Function 库方式安装脚本并通过 FCALL 调用（需要 Redis 7+）
      */
-    @Bean(name = "slidingWindowScript")
-    public DefaultRedisScript<Long> slidingWindowScript() {
-        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
-        script.setScriptSource(new ResourceScriptSource(
-                new ClassPathResource("lua/sliding_window_rate_limit.lua")));
-        script.setResultType(Long.class);
-        log.info("加载 Lua 脚本：滑动窗口限流");
-        return script;
-    }
+    @Value("${rate-limiter.redis.functions:false}")
+    private boolean functionsEnabled;
 
     /**
-     * 令牌桶限流脚本
+     * 启动时是否对脚本执行自检
+     */
+    @Value("${rate-limiter.redis.self-test:true}")
+    private boolean selfTestEnabled;
+
+    /**
+     * Lua 脚本注册中心
      * 
-     * 脚本位置：resources/lua/token_bucket_rate_limit.lua
+     * 脚本位置：resources/lua/*.lua
      */
-    @Bean(name = "tokenBucketScript")
-    public DefaultRedisScript<Long> tokenBucketScript() {
-        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
-        script.setScriptSource(new ResourceScriptSource(
-                new ClassPathResource("lua/token_bucket_rate_limit.lua")));
-        script.setResultType(Long.class);
-        log.info("加载 Lua 脚本：令牌桶限流");
-        return script;
+    @Bean
+    public LuaScriptRegistry luaScriptRegistry(LimiterRedisConnection limiterRedisConnection,
+                                               ClientResources clientResources) {
+        return new LuaScriptRegistry(limiterRedisConnection, clientResources,
+                "classpath:lua/*.lua", functionsEnabled, selfTestEnabled);
     }
 }
-
@@ -0,0 +1,44 @@
+package com.example.mqlimitdemo.config;
+
+import com.example.mqlimitdemo.codec.CodecMessageConverter;
+import org.apache.rocketmq.spring.support.RocketMQMessageConverter;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.converter.CompositeMessageConverter;
+import org.springframework.messaging.converter.MessageConverter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RocketMQ 消息转换器配置
+ *
+ * 替换 rocketmq-spring 默认的 RocketMQMessageConverter（默认配置在已有该 Bean 时不再创建），
+ * 把 {@link CodecMessageConverter} 放在默认转换器之前，RocketMQTemplate 和监听容器都使用它
+ *
+ * @author demo
+ */
+@Configuration
+public class RocketMQConverterConfig {
+
+    @Bean
+    public RocketMQMessageConverter rocketMQMessageConverter(CodecMessageConverter codecMessageConverter) {
+        return new RocketMQMessageConverter() {
+
+            private final CompositeMessageConverter messageConverter = compose(codecMessageConverter,
+                    (CompositeMessageConverter) super.getMessageConverter());
+
+            @Override
+            public MessageConverter getMessageConverter() {
+                return messageConverter;
+            }
+        };
+    }
+
+    private static CompositeMessageConverter compose(MessageConverter first, CompositeMessageConverter defaults) {
+        List<MessageConverter> converters = new ArrayList<>();
+        converters.add(first);
+        converters.addAll(defaults.getConverters());
+        return new CompositeMessageConverter(converters);
+    }
+}
@@ -0,0 +1,220 @@
+package com.example.mqlimitdemo.consumer;
+
+import com.example.mqlimitdemo.service.ConsumerRetryService;
+import com.example.mqlimitdemo.service.PushConsumerInternals;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerConcurrently;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.spring.core.RocketMQListener;
+import org.apache.rocketmq.spring.core.RocketMQPushConsumerLifecycleListener;
+import org.springframework.beans.factory.annotation.Value;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 批量消费基类
+ *
+ * RocketMQListener 每次回调只处理一条消息，每条消息都要单独获取许可、单独调用下游。
+ * 继承本类的消费者改为按批处理：
+ * 1. 启动前替换容器注册的监听器，设置 consumeMessageBatchMaxSize，回调一次收到多条消息
+ * 2. 多个消费线程的消息汇集成批：攒够 maxBatchSize 条立即处理，否则最多等待 lingerMillis
+ *    （第一个到达的线程负责等待并处理，其他线程等待自己消息的结果）
+ * 3. 整批的许可数为权重之和，由 {@link #consumeBatch(List, int)} 一次获取（通常在下游调度器中整批排队一次），
+ *    获取失败则整批重试
+ * 4. {@link #consumeBatch(List, int)} 返回每条消息的处理结果，只有失败的消息由 {@link ConsumerRetryService}
+ *    单独发到重试队列，成功的消息不会重复消费
+ *
+ * @author demo
+ */
+@Slf4j
+public abstract class AbstractBatchConsumer implements RocketMQListener<MessageExt>, RocketMQPushConsumerLifecycleListener {
+
+    /**
+     * 每批最大消息数
+     */
+    @Value("${rate-limiter.batch.max-batch-size:10}")
+    protected int maxBatchSize;
+
+    /**
+     * 凑批最长等待时间（毫秒）
+     */
+    @Value("${rate-limiter.batch.linger-millis:50}")
+    protected long lingerMillis;
+
+    @Resource
+    private ConsumerRetryService consumerRetryService;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition drained = lock.newCondition();
+
+    /**
+     * 等待凑批的消息
+     */
+    private final List<PendingMessage> pending = new ArrayList<>();
+
+    /**
+     * 是否已有线程在等待凑批
+     */
+    private boolean lingering;
+
+    private volatile DefaultMQPushConsumer pushConsumer;
+
+    /**
+     * 处理一批消息
+     *
+     * @param messages 本批消息
+     * @param permits  整批消息的权重之和，整批一次获取
+     * @return 与 messages 一一对应的处理结果，true 表示成功；许可获取失败时全部为 false
+     */
+    protected abstract boolean[] consumeBatch(List<MessageExt> messages, int permits);
+
+    /**
+     * 单条消息的权重（占用的许可数），默认 1
+     */
+    protected int permitsOf(MessageExt message) {
+        return 1;
+    }
+
+    @Override
+    public void prepareStart(DefaultMQPushConsumer consumer) {
+        this.pushConsumer = consumer;
+        consumer.setConsumeMessageBatchMaxSize(maxBatchSize);
+        consumer.setPullBatchSize(Math.max(consumer.getPullBatchSize(), maxBatchSize));
+        consumer.registerMessageListener((MessageListenerConcurrently) this::consume);
+        log.info("批量消费已启用 - 消费组: {}, 批量大小: {}, 凑批等待: {} ms",
+                consumer.getConsumerGroup(), maxBatchSize, lingerMillis);
+    }
+
+    /**
+     * 本消费者积压：已拉取到本地、尚未消费完成的消息数
+     */
+    protected long backlog() {
+        return PushConsumerInternals.backlog(pushConsumer);
+    }
+
+    /**
+     * 未启用批量监听器时（理论上不会发生）按单条消息的批处理
+     */
+    @Override
+    public void onMessage(MessageExt message) {
+        boolean[] results = process(Collections.singletonList(message));
+        if (!results[0]) {
+            throw new RuntimeException("消息消费失败: " + message.getMsgId());
+        }
+    }
+
+    private ConsumeConcurrentlyStatus consume(List<MessageExt> messages, ConsumeConcurrentlyContext context) {
+        List<PendingMessage> mine = new ArrayList<>(messages.size());
+        for (MessageExt message : messages) {
+            mine.add(new PendingMessage(message));
+        }
+
+        for (List<PendingMessage> batch : collect(mine)) {
+            processPending(batch);
+        }
+
+        boolean[] results = new boolean[mine.size()];
+        for (int i = 0; i < mine.size(); i++) {
+            results[i] = mine.get(i).result.join();
+        }
+        // 只把失败的消息发到重试队列，同批成功的消息不会被重复消费
+        return consumerRetryService.retryFailed(pushConsumer, messages, results, context);
+    }
+
+    /**
+     * 加入凑批队列，返回由当前线程处理的批次
+     *
+     * 满批由加入消息的线程直接取走；不足一批时，第一个线程等待 lingerMillis 后取走剩余消息，
+     * 其他线程的消息由它处理
+     */
+    private List<List<PendingMessage>> collect(List<PendingMessage> messages) {
+        List<List<PendingMessage>> batches = new ArrayList<>();
+        lock.lock();
+        try {
+            pending.addAll(messages);
+            while (pending.size() >= maxBatchSize) {
+                batches.add(take());
+            }
+            if (pending.isEmpty()) {
+                drained.signalAll();
+                return batches;
+            }
+            if (lingering) {
+                return batches;
+            }
+
+            lingering = true;
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+                while (!pending.isEmpty() && remaining > 0) {
+                    remaining = drained.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                while (!pending.isEmpty()) {
+                    batches.add(take());
+                }
+                lingering = false;
+            }
+            return batches;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<PendingMessage> take() {
+        int size = Math.min(maxBatchSize, pending.size());
+        List<PendingMessage> batch = new ArrayList<>(pending.subList(0, size));
+        pending.subList(0, size).clear();
+        return batch;
+    }
+
+    private void processPending(List<PendingMessage> batch) {
+        List<MessageExt> messages = new ArrayList<>(batch.size());
+        for (PendingMessage message : batch) {
+            messages.add(message.message);
+        }
+        boolean[] results;
+        try {
+            results = process(messages);
+        } catch (Exception e) {
+            log.error("批量消费异常 - 批量: {} 条, error: {}", messages.size(), e.getMessage(), e);
+            results = new boolean[messages.size()];
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).result.complete(i < results.length && results[i]);
+        }
+    }
+
+    private boolean[] process(List<MessageExt> messages) {
+        int permits = 0;
+        for (MessageExt message : messages) {
+            permits += permitsOf(message);
+        }
+        return consumeBatch(messages, permits);
+    }
+
+    /**
+     * 等待处理的消息及其结果
+     */
+    private static final class PendingMessage {
+        private final MessageExt message;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        private PendingMessage(MessageExt message) {
+            this.message = message;
+        }
+    }
+}
@@ -1,13 +1,25 @@
 package com.example.mqlimitdemo.consumer;
 
+import com.example.mqlimitdemo.breaker.CircuitBreaker;
+import com.example.mqlimitdemo.breaker.CircuitBreakerRegistry;
+import com.example.mqlimitdemo.dedup.MessageDeduplicator;
+import com.example.mqlimitdemo.service.ConsumerAutoTuner;
+import com.example.mqlimitdemo.service.DownstreamScheduler;
 import com.example.mqlimitdemo.service.ThirdPartyApiService;
-import com.google.common.util.concurrent.RateLimiter;
+import com.example.mqlimitdemo.service.ThrottledRetryService;
+import com.example.mqlimitdemo.spill.DegradationSpillStore;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.common.message.MessageExt;
 import org.apache.rocketmq.spring.annotation.RocketMQMessageListener;
 import org.apache.rocketmq.spring.core.RocketMQListener;
+import org.apache.rocketmq.spring.core.RocketMQPushConsumerLifecycleListener;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -17,10 +29,12 @@ import java.util.concurrent.TimeUnit;
  * ConsumerGroup: advanced-limit-consumer-group
  * 
  * 演示多种限流处理策略：
- * 1. 令牌桶限流
- * 2. 降级处理
- * 3. 延迟重试
- * 4. 熔断机制
+ * 1. 统一调度限流（提交给 DownstreamScheduler，与其他 Topic 按权重共享第三方接口配额）
+ * 2. 降级处理（写入本地降级日志后直接确认，按限流器空闲速率回放）
+ * 3. 延迟重试（按限流器计算的等待时间投递延迟消息）
+ * 4. 熔断机制（按失败率和慢调用率熔断，半开状态只放行少量探测调用）
+ * 5. 消息去重（已处理成功的重投递消息不再占用熔断许可和令牌）
+ * 6. 消费线程数和本地拉取缓存由 ConsumerAutoTuner 按分到的速率和下游耗时调整
  *
  * @author demo
  */
@@ -29,134 +43,200 @@ import java.util.concurrent.TimeUnit;
 @RocketMQMessageListener(
         topic = "advanced-limit-topic",
         consumerGroup = "advanced-limit-consumer-group",
-        consumeThreadMax = 3 // 允许 3 个线程并发消费
+        consumeThreadMax = 3 // 初始 3 个线程，启动后由 ConsumerAutoTuner 调整
 )
-public class AdvancedRateLimitConsumer implements RocketMQListener<String> {
-
-    @Resource(name = "thirdPartyApiRateLimiter")
-    private RateLimiter rateLimiter;
+public class AdvancedRateLimitConsumer implements RocketMQListener<MessageExt>, RocketMQPushConsumerLifecycleListener {
 
     @Resource
     private ThirdPartyApiService thirdPartyApiService;
 
-    // 熔断计数器
-    private static final int CIRCUIT_BREAKER_THRESHOLD = 5;
-    private int consecutiveFailures = 0;
-    private long circuitBreakerOpenTime = 0;
-    private static final long CIRCUIT_BREAKER_RESET_TIME = 10000; // 10秒后尝试恢复
+    @Resource
+    private DownstreamScheduler downstreamScheduler;
+
+    @Resource
+    private ThrottledRetryService throttledRetryService;
+
+    @Resource
+    private CircuitBreakerRegistry circuitBreakerRegistry;
+
+    @Resource
+    private MessageDeduplicator messageDeduplicator;
+
+    @Resource
+    private DegradationSpillStore degradationSpillStore;
+
+    @Resource
+    private ConsumerAutoTuner consumerAutoTuner;
+
+    private static final String RATE_LIMIT_KEY = "third_party_api";
+    private static final String DEDUP_SCOPE = "advanced-limit-consumer-group";
+    private static final String SCHEDULER_FLOW = "advanced-limit-topic";
+    private static final long ACQUIRE_TIMEOUT_SECONDS = 3;
+
+    /**
+     * 第三方接口熔断器（多个消费线程共享，无锁）
+     */
+    private CircuitBreaker circuitBreaker;
+
+    /**
+     * 在下游统一调度器中的权重
+     */
+    @Value("${rate-limiter.scheduler.weights.advanced-limit-topic:2}")
+    private int schedulerWeight;
+
+    @PostConstruct
+    public void initCircuitBreaker() {
+        circuitBreaker = circuitBreakerRegistry.get(RATE_LIMIT_KEY);
+        downstreamScheduler.registerFlow(SCHEDULER_FLOW, schedulerWeight);
+    }
 
     @Override
-    public void onMessage(String message) {
+    public void prepareStart(DefaultMQPushConsumer consumer) {
+        consumerAutoTuner.register(SCHEDULER_FLOW, consumer);
+    }
+
+    @Override
+    public void onMessage(MessageExt messageExt) {
+        // 去重：已处理成功的消息直接确认，其他消费者正在处理的消息稍后重试
+        String dedupKey = messageDeduplicator.dedupKey(messageExt);
+        MessageDeduplicator.Decision decision = messageDeduplicator.begin(DEDUP_SCOPE, dedupKey);
+        if (decision == MessageDeduplicator.Decision.DUPLICATE) {
+            log.info("♻️ 重复消息，已处理过，直接确认 - Key: {}", dedupKey);
+            return;
+        }
+        if (decision == MessageDeduplicator.Decision.IN_PROGRESS) {
+            throw new RuntimeException("消息正在其他消费者处理: " + dedupKey);
+        }
+
+        boolean success = false;
+        try {
+            success = process(messageExt);
+        } finally {
+            if (success) {
+                messageDeduplicator.complete(DEDUP_SCOPE, dedupKey);
+            } else {
+                // 释放处理权，延迟重试或 RocketMQ 重投递的消息可以重新处理
+                messageDeduplicator.release(DEDUP_SCOPE, dedupKey);
+            }
+        }
+    }
+
+    /**
+     * 处理消息
+     *
+     * @return 第三方接口调用成功或已写入本地降级日志返回 true；已投递延迟重试返回 false；调用失败抛出异常
+     */
+    private boolean process(MessageExt messageExt) {
+        String message = new String(messageExt.getBody(), StandardCharsets.UTF_8);
         log.info("========== 高级限流消费者 ==========");
         log.info("接收到消息: {}", message);
 
-        // 检查熔断器状态
-        if (isCircuitBreakerOpen()) {
-            log.warn("⚠️ 熔断器已打开，消息将被延迟处理");
-            // 可以将消息放入延迟队列，或者抛出异常让MQ稍后重试
-            throw new RuntimeException("熔断器打开，消息延迟处理");
+        // 检查熔断器状态（半开状态下只有少量探测消息能拿到许可）
+        CircuitBreaker.Permission permission = circuitBreaker.tryAcquirePermission();
+        if (permission == null) {
+            log.warn("⚠️ 熔断器{}，消息将被延迟处理", circuitBreaker.getState() == CircuitBreaker.State.OPEN ? "已打开" : "半开探测中");
+            // 在熔断器预计进入半开时重新投递（半开探测中按最小延迟重试）
+            retryLater(messageExt, circuitBreaker.getRemainingOpenMillis(), "熔断器打开，消息延迟处理");
+            return false;
         }
 
+        // 调用开始时间，由执行下游调用的线程写入（future 完成后对当前线程可见）
+        long[] callStartHolder = new long[1];
+        long callStart = 0;
+        boolean success;
+
         try {
-            // 尝试获取令牌（最多等待 3 秒）
-            boolean acquired = rateLimiter.tryAcquire(3, TimeUnit.SECONDS);
-            
-            if (!acquired) {
-                log.warn("⚠️ 无法获取令牌，触发降级处理");
-                handleDegradation(message);
-                return;
+            // 在下游统一调度器中排队（最多排队 3 秒），轮到后调用第三方接口
+            try {
+                success = downstreamScheduler.execute(SCHEDULER_FLOW, () -> {
+                    callStartHolder[0] = System.nanoTime();
+                    return thirdPartyApiService.sendMessage(message);
+                }, TimeUnit.SECONDS.toMillis(ACQUIRE_TIMEOUT_SECONDS));
+            } finally {
+                callStart = callStartHolder[0];
             }
 
-            // 调用第三方接口
-            boolean success = thirdPartyApiService.sendMessage(message);
-            
             if (success) {
-                // 成功则重置失败计数
-                resetCircuitBreaker();
+                permission.onSuccess(System.nanoTime() - callStart);
                 log.info("✅ 消息处理成功");
             } else {
-                handleFailure(message);
+                permission.onError(System.nanoTime() - callStart);
             }
 
         } catch (ThirdPartyApiService.RateLimitException e) {
             log.error("❌ 触发第三方接口限流: {}", e.getMessage());
-            handleFailure(message);
-            throw new RuntimeException("频率限制，等待重试", e);
-            
+            // 超出对方配额是本方发送过快，不代表下游故障，不计入熔断失败率
+            permission.release();
+            // 第三方接口按自然秒计数，下一秒即可重试
+            retryLater(messageExt, 1000 - System.currentTimeMillis() % 1000, "频率限制，等待重试");
+            return false;
+
+        } catch (DownstreamScheduler.QueueTimeoutException e) {
+            log.warn("⚠️ 排队 {} ms 仍未轮到，触发降级处理", e.getQueuedMillis());
+            // 没有调用下游，归还熔断许可
+            permission.release();
+            return handleDegradation(messageExt);
+
         } catch (Exception e) {
             log.error("消息处理异常: {}", e.getMessage(), e);
-            handleFailure(message);
+            if (callStart > 0) {
+                permission.onError(System.nanoTime() - callStart);
+            } else {
+                permission.release();
+            }
             throw new RuntimeException("消息处理失败", e);
         }
 
+        if (!success) {
+            // 下游返回失败，抛出异常交给 RocketMQ 重试，避免消息被确认后丢失
+            log.error("❌ 第三方接口调用失败，等待重试");
+            throw new RuntimeException("第三方接口调用失败");
+        }
+
         log.info("====================================\n");
+        return true;
     }
 
     /**
-     * 检查熔断器是否打开
+     * 降级处理
+     * 
+     * 当无法正常处理时，采用降级策略：
+     * 1. 写入本地降级日志（追加写、批量刷盘），落盘后直接确认原消息，由 SpillReplayer 按限流器空闲速率回放
+     * 2. 本地存储不可用或写入失败时，按等待时长投递延迟消息重试
+     *
+     * @return 是否已写入本地降级日志
      */
-    private boolean isCircuitBreakerOpen() {
-        if (circuitBreakerOpenTime > 0) {
-            long elapsed = System.currentTimeMillis() - circuitBreakerOpenTime;
-            if (elapsed > CIRCUIT_BREAKER_RESET_TIME) {
-                // 尝试恢复
-                log.info("🔄 熔断器恢复，尝试重新处理消息");
-                circuitBreakerOpenTime = 0;
-                consecutiveFailures = 0;
-                return false;
-            }
+    private boolean handleDegradation(MessageExt messageExt) {
+        log.warn("🔻 执行降级处理 - MsgId: {}", messageExt.getMsgId());
+
+        if (degradationSpillStore.append(messageExt)) {
+            log.info("💾 消息已写入本地降级日志，稍后按空闲配额回放 - MsgId: {}", messageExt.getMsgId());
             return true;
         }
+
+        // 排队 3 秒仍未轮到，说明积压已超过 3 秒，按等待时长加一个许可间隔重新投递
+        double rate = Math.max(0.001, downstreamScheduler.getRate());
+        long retryAfterMillis = TimeUnit.SECONDS.toMillis(ACQUIRE_TIMEOUT_SECONDS) + (long) (1000 / rate);
+        retryLater(messageExt, retryAfterMillis, "系统繁忙，触发降级处理");
         return false;
     }
 
     /**
-     * 处理失败情况
+     * 按等待时间投递延迟消息后确认原消息；投递失败则抛出异常交给 RocketMQ 重试
      */
-    private void handleFailure(String message) {
-        consecutiveFailures++;
-        log.warn("连续失败次数: {}/{}", consecutiveFailures, CIRCUIT_BREAKER_THRESHOLD);
-
-        if (consecutiveFailures >= CIRCUIT_BREAKER_THRESHOLD) {
-            // 打开熔断器
-            circuitBreakerOpenTime = System.currentTimeMillis();
-            log.error("🔴 熔断器已打开！连续失败 {} 次", consecutiveFailures);
+    private void retryLater(MessageExt messageExt, long retryAfterMillis, String reason) {
+        if (!throttledRetryService.retryLater(messageExt, retryAfterMillis)) {
+            throw new ThrottledException(reason);
         }
     }
 
     /**
-     * 重置熔断器
+     * 限流重试投递失败，交给 RocketMQ 重试
      */
-    private void resetCircuitBreaker() {
-        if (consecutiveFailures > 0) {
-            log.info("✅ 重置熔断器，连续失败次数: {} -> 0", consecutiveFailures);
-            consecutiveFailures = 0;
-            circuitBreakerOpenTime = 0;
+    private static class ThrottledException extends RuntimeException {
+        ThrottledException(String message) {
+            super(message);
         }
     }
-
-    /**
-     * 降级处理
-     * 
-     * 当无法正常处理时，采用降级策略：
-     * 1. 记录到本地队列，稍后重试
-     * 2. 发送到备用通道
-     * 3. 仅记录日志，不调用第三方接口
-     */
-    private void handleDegradation(String message) {
-        log.warn("🔻 执行降级处理 - 消息: {}", message);
-        
-        // 降级策略：将消息记录到日志，等待后续处理
-        log.info("降级策略：消息已记录，等待系统恢复后重新处理");
-        
-        // 实际场景可以：
-        // 1. 保存到数据库
-        // 2. 写入本地文件
-        // 3. 发送到备用队列
-        // 4. 发送告警通知
-        
-        // 这里抛出异常，让 RocketMQ 稍后重试
-        throw new RuntimeException("系统繁忙，触发降级处理");
-    }
 }
 
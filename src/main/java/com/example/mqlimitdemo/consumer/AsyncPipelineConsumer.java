@@ -0,0 +1,220 @@
+package com.example.mqlimitdemo.consumer;
+
+import com.example.mqlimitdemo.service.AsyncDownstreamExecutor;
+import com.example.mqlimitdemo.service.ConsumerRetryService;
+import com.example.mqlimitdemo.service.DownstreamScheduler;
+import com.example.mqlimitdemo.service.ThirdPartyApiService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerConcurrently;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.spring.annotation.RocketMQMessageListener;
+import org.apache.rocketmq.spring.core.RocketMQListener;
+import org.apache.rocketmq.spring.core.RocketMQPushConsumerLifecycleListener;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 异步在途流水线消费者
+ *
+ * Topic: async-limit-topic
+ * ConsumerGroup: async-limit-consumer-group
+ *
+ * 同步消费时下游延迟 100 ms，每个消费线程最多约 10 条/秒，要跑满限流速率只能增加消费线程。
+ * 本消费者只用 2 个消费线程：
+ * 1. 一次回调收到一批消息，消费线程把每条消息的下游调用提交给 {@link DownstreamScheduler}（不等待许可），
+ *    许可由调度线程按 third_party_api 份额与其他 Topic 公平发放，拿到许可的调用在 {@link AsyncDownstreamExecutor} 上执行
+ * 2. 在途调用数受执行器窗口限制，排队数受调度器单队列上限限制，队列满的消息按失败重试
+ * 3. 整批下游调用全部完成后才返回消费结果，RocketMQ 确认语义不变；
+ *    失败的消息由 {@link ConsumerRetryService} 单独发到重试队列，成功的消息不会重复消费
+ * 4. 等待超过 call-timeout-millis 时，还没开始的调用取消（不调用下游、不占用许可）并重试；
+ *    已经开始的调用不能撤回，继续等它结束并按实际结果确认，避免下游调用还在进行时又重试一次造成重复调用
+ *
+ * 吞吐由限流速率决定，在途窗口只需不小于 速率 × 下游延迟。
+ *
+ * 没有做成 rate-limit / advanced-limit / redis-limit 消费者的执行模式：那三个消费者是单条监听器，
+ * 去重、截止时间、熔断、限流重试都按"单条消息抛异常即重试"编写，下游调用已经交给同一个调度器和异步执行器，
+ * 消费线程数由 ConsumerAutoTuner 按 Little 定律调整；批量回调 + 在途流水线在这个独立的 Topic 上演示和对比
+ *
+ * @author demo
+ */
+@Slf4j
+@Component
+@RocketMQMessageListener(
+        topic = "async-limit-topic",
+        consumerGroup = "async-limit-consumer-group",
+        consumeThreadNumber = 2,
+        consumeThreadMax = 2
+)
+public class AsyncPipelineConsumer implements RocketMQListener<MessageExt>, RocketMQPushConsumerLifecycleListener {
+
+    private static final String SCHEDULER_FLOW = "async-limit-topic";
+
+    /**
+     * 下游调用的状态：排队中 → 已开始，或 排队中 → 已放弃（超时后取消）
+     */
+    private static final int QUEUED = 0;
+    private static final int STARTED = 1;
+    private static final int ABANDONED = 2;
+
+    @Resource
+    private AsyncDownstreamExecutor asyncDownstreamExecutor;
+
+    @Resource
+    private DownstreamScheduler downstreamScheduler;
+
+    @Resource
+    private ThirdPartyApiService thirdPartyApiService;
+
+    @Resource
+    private ConsumerRetryService consumerRetryService;
+
+    /**
+     * 等待单批下游调用的最长时间（毫秒），超时后尚未开始的调用取消并重试
+     */
+    @Value("${rate-limiter.async.call-timeout-millis:5000}")
+    private long callTimeoutMillis;
+
+    /**
+     * 在调度器中的权重
+     */
+    @Value("${rate-limiter.scheduler.weights.async-limit-topic:1}")
+    private int schedulerWeight;
+
+    private volatile DefaultMQPushConsumer pushConsumer;
+
+    private final LongAdder abandoned = new LongAdder();
+    private final LongAdder overran = new LongAdder();
+
+    @PostConstruct
+    public void registerSchedulerFlow() {
+        downstreamScheduler.registerFlow(SCHEDULER_FLOW, schedulerWeight);
+    }
+
+    @Override
+    public void prepareStart(DefaultMQPushConsumer consumer) {
+        this.pushConsumer = consumer;
+        // 一次回调最多收到一个窗口的消息，单个消费线程即可填满在途窗口
+        int batchSize = asyncDownstreamExecutor.getMaxInFlight();
+        consumer.setConsumeMessageBatchMaxSize(batchSize);
+        consumer.setPullBatchSize(Math.max(consumer.getPullBatchSize(), batchSize));
+        consumer.registerMessageListener((MessageListenerConcurrently) this::consume);
+        log.info("异步流水线消费已启用 - 消费组: {}, 单批最多: {}", consumer.getConsumerGroup(), batchSize);
+    }
+
+    /**
+     * 未启用批量监听器时（理论上不会发生）按单条消息处理
+     */
+    @Override
+    public void onMessage(MessageExt message) {
+        boolean[] results = process(Collections.singletonList(message));
+        if (!results[0]) {
+            throw new RuntimeException("消息消费失败: " + message.getMsgId());
+        }
+    }
+
+    private ConsumeConcurrentlyStatus consume(List<MessageExt> messages, ConsumeConcurrentlyContext context) {
+        boolean[] results = process(messages);
+        return consumerRetryService.retryFailed(pushConsumer, messages, results, context);
+    }
+
+    /**
+     * 提交整批下游调用并等待完成
+     *
+     * @return 与 messages 一一对应的处理结果
+     */
+    private boolean[] process(List<MessageExt> messages) {
+        List<AtomicInteger> states = new ArrayList<>(messages.size());
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>(messages.size());
+        for (MessageExt message : messages) {
+            AtomicInteger state = new AtomicInteger(QUEUED);
+            states.add(state);
+            futures.add(submit(message, state));
+        }
+
+        boolean[] results = new boolean[messages.size()];
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(callTimeoutMillis);
+        for (int i = 0; i < futures.size(); i++) {
+            MessageExt message = messages.get(i);
+            CompletableFuture<Boolean> future = futures.get(i);
+            try {
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                try {
+                    results[i] = future.get(remaining, TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    if (states.get(i).compareAndSet(QUEUED, ABANDONED)) {
+                        // 还在排队：取消后调度器丢弃该任务，不占用许可
+                        future.cancel(false);
+                        abandoned.increment();
+                        log.warn("⏱️ 等待 {} ms 仍未开始下游调用，取消并重试 - MsgId: {}", callTimeoutMillis, message.getMsgId());
+                        continue;
+                    }
+                    // 已经开始：等它结束，按实际结果确认
+                    overran.increment();
+                    log.warn("⏱️ 下游调用超过 {} ms 仍在进行，等待其结束 - MsgId: {}", callTimeoutMillis, message.getMsgId());
+                    results[i] = future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.error("等待下游调用被中断 - MsgId: {}", message.getMsgId());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                if (cause instanceof ThirdPartyApiService.RateLimitException) {
+                    log.warn("第三方接口限流，消息单独重试 - MsgId: {}", message.getMsgId());
+                } else if (cause instanceof DownstreamScheduler.QueueTimeoutException) {
+                    log.warn("调度排队超时，消息单独重试 - MsgId: {}", message.getMsgId());
+                } else {
+                    log.error("调用第三方接口异常 - MsgId: {}, error: {}", message.getMsgId(), cause.getMessage());
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * 把一条消息的下游调用提交给调度器；调用开始前检查是否已被放弃
+     */
+    private CompletableFuture<Boolean> submit(MessageExt message, AtomicInteger state) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            return downstreamScheduler.submit(SCHEDULER_FLOW, () -> {
+                if (!state.compareAndSet(QUEUED, STARTED)) {
+                    // 已超时放弃并发回重试，不再调用下游
+                    return false;
+                }
+                return thirdPartyApiService.sendMessage(body);
+            }, callTimeoutMillis);
+        } catch (RejectedExecutionException e) {
+            log.warn("⚠️ 调度队列已满，消息单独重试 - MsgId: {}", message.getMsgId());
+            state.set(ABANDONED);
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    /**
+     * 超时放弃（未调用下游）和超时后继续等待的调用数
+     */
+    public long getAbandoned() {
+        return abandoned.sum();
+    }
+
+    public long getOverran() {
+        return overran.sum();
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.mqlimitdemo.consumer;
+
+import com.example.mqlimitdemo.limiter.QuotaCoordinator;
+import com.example.mqlimitdemo.service.DownstreamScheduler;
+import com.example.mqlimitdemo.service.ThirdPartyApiService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.spring.annotation.RocketMQMessageListener;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 批量限流消费者
+ *
+ * Topic: batch-limit-topic
+ * ConsumerGroup: batch-limit-consumer-group
+ *
+ * 特点：
+ * 1. 一次回调处理一批消息，整批作为一个任务在 {@link DownstreamScheduler} 中排队一次，
+ *    占用的许可数为整批权重之和（与其他 Topic 共用 third_party_api 配额，按权重公平排队）
+ * 2. 消息权重取用户属性 permits（默认 1），整批许可数为权重之和
+ * 3. 轮到后逐条调用第三方接口，只有失败的消息单独重试
+ *
+ * @author demo
+ */
+@Slf4j
+@Component
+@RocketMQMessageListener(
+        topic = "batch-limit-topic",
+        consumerGroup = "batch-limit-consumer-group",
+        consumeThreadMax = 5
+)
+public class BatchRateLimitConsumer extends AbstractBatchConsumer {
+
+    @Resource
+    private QuotaCoordinator quotaCoordinator;
+
+    @Resource
+    private DownstreamScheduler downstreamScheduler;
+
+    @Resource
+    private ThirdPartyApiService thirdPartyApiService;
+
+    /**
+     * 下游调度器中的权重
+     */
+    @Value("${rate-limiter.scheduler.weights.batch-limit-topic:1}")
+    private int schedulerWeight;
+
+    // 全局配额由 DownstreamScheduler 注册，这里只登记积压
+    private static final String SCHEDULER_FLOW = "batch-limit-topic";
+    private static final long ACQUIRE_TIMEOUT_SECONDS = 5; // 整批最长排队时间
+
+    @PostConstruct
+    public void registerQuota() {
+        quotaCoordinator.addBacklog(DownstreamScheduler.QUOTA_KEY, SCHEDULER_FLOW, this::backlog);
+        downstreamScheduler.registerFlow(SCHEDULER_FLOW, schedulerWeight);
+    }
+
+    @Override
+    protected int permitsOf(MessageExt message) {
+        String permits = message.getUserProperty("permits");
+        if (permits == null) {
+            return 1;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(permits));
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    @Override
+    protected boolean[] consumeBatch(List<MessageExt> messages, int permits) {
+        log.info("========== 批量限流消费者：{} 条 ==========", messages.size());
+        try {
+            return downstreamScheduler.execute(SCHEDULER_FLOW, permits, () -> sendAll(messages),
+                    TimeUnit.SECONDS.toMillis(ACQUIRE_TIMEOUT_SECONDS));
+        } catch (DownstreamScheduler.QueueTimeoutException | RejectedExecutionException e) {
+            log.warn("⚠️ 批量许可获取失败 - 批量: {} 条, 许可: {}，整批重试: {}", messages.size(), permits, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("批量调用第三方接口异常 - 批量: {} 条, error: {}", messages.size(), e.getMessage(), e);
+        }
+        return new boolean[messages.size()];
+    }
+
+    /**
+     * 逐条调用第三方接口（已占用整批许可）
+     */
+    private boolean[] sendAll(List<MessageExt> messages) {
+        boolean[] results = new boolean[messages.size()];
+        for (int i = 0; i < messages.size(); i++) {
+            String body = new String(messages.get(i).getBody(), StandardCharsets.UTF_8);
+            try {
+                results[i] = thirdPartyApiService.sendMessage(body);
+            } catch (ThirdPartyApiService.RateLimitException e) {
+                log.warn("第三方接口限流，消息单独重试 - MsgId: {}", messages.get(i).getMsgId());
+            } catch (Exception e) {
+                log.error("调用第三方接口异常 - MsgId: {}, error: {}", messages.get(i).getMsgId(), e.getMessage());
+            }
+        }
+        return results;
+    }
+}
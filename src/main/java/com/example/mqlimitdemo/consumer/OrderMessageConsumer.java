@@ -1,20 +1,67 @@
 package com.example.mqlimitdemo.consumer;
 
-import com.alibaba.fastjson.JSON;
+import com.example.mqlimitdemo.codec.CodecMessageConverter;
 import com.example.mqlimitdemo.domain.OrderMessage;
+import com.example.mqlimitdemo.service.ConsumerRetryService;
+import com.example.mqlimitdemo.service.KeyOrderedExecutor;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerConcurrently;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageExt;
 import org.apache.rocketmq.spring.annotation.ConsumeMode;
 import org.apache.rocketmq.spring.annotation.MessageModel;
 import org.apache.rocketmq.spring.annotation.RocketMQMessageListener;
 import org.apache.rocketmq.spring.core.RocketMQListener;
+import org.apache.rocketmq.spring.core.RocketMQPushConsumerLifecycleListener;
+import org.apache.rocketmq.spring.support.RocketMQMessageConverter;
+import org.apache.rocketmq.spring.support.RocketMQUtil;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * 订单消息消费者
- * 
+ *
  * Topic: order-topic
  * ConsumerGroup: demo-consumer-group
  *
+ * 同一订单的多条消息（创建、支付、发货……）必须按顺序处理，但不同订单之间没有顺序要求。
+ * 按 Key 保序并行消费：
+ * 1. 只有 1 个消费线程，按拉取顺序把整批消息提交给 {@link KeyOrderedExecutor}，
+ *    同一 Key（orderId 或 userId）的消息按队列顺序依次执行，不同 Key 并行执行
+ * 2. Key 的队列满时不阻塞消费线程：该 Key 在本批中的剩余消息直接重试，其他 Key 照常提交
+ * 3. 整批执行完成（或超时）后才返回消费结果；某条消息失败后，同一 Key 的后续消息不再执行，
+ *    一起由 {@link ConsumerRetryService} 发到重试队列
+ * 4. 失败的 Key 在重试消息消费成功前一直处于阻塞状态（{@link BlockedKeys}）：之后到达的同 Key 新消息也发回重试，
+ *    重试消息按原顺序逐条放行，前面的重试消息成功后才处理下一条，避免后续事件先于失败的消息处理。
+ *    重试次数用完（进入死信队列）或 blocked-key-ttl-millis 内没有进展时放弃该消息并告警
+ *
+ * 消息体由注册到 rocketmq-spring 的 {@link CodecMessageConverter} 按消息属性 CODEC 选择编解码器（JSON / 二进制）
+ * 直接解码为 {@link OrderMessage}，不经过中间 String。
+ *
+ * 生产端需按同一 Key 发送到同一队列（syncSendOrderly），否则不同队列之间无法保序。
+ * 阻塞状态只保存在本实例内存中，队列在实例之间重新分配后由新实例按普通重试处理
+ *
  * @author demo
  */
 @Slf4j
@@ -28,57 +75,427 @@ import org.springframework.stereotype.Component;
         messageModel = MessageModel.CLUSTERING,
         // 消费模式：并发消费（默认）
         consumeMode = ConsumeMode.CONCURRENTLY,
-        // 最大消费线程数
-        consumeThreadMax = 20
+        // 单个消费线程负责按序分发，并行度由 KeyOrderedExecutor 决定
+        consumeThreadNumber = 1,
+        consumeThreadMax = 1
 )
-public class OrderMessageConsumer implements RocketMQListener<String> {
+public class OrderMessageConsumer implements RocketMQListener<OrderMessage>, RocketMQPushConsumerLifecycleListener {
+
+    @Resource
+    private KeyOrderedExecutor keyOrderedExecutor;
+
+    @Resource
+    private ConsumerRetryService consumerRetryService;
+
+    @Resource
+    private RocketMQMessageConverter rocketMQMessageConverter;
+
+    /**
+     * 保序的业务 Key：orderId 或 userId
+     */
+    @Value("${rate-limiter.key-ordered.key-field:orderId}")
+    private String keyField;
+
+    /**
+     * 单批最多消息数
+     */
+    @Value("${rate-limiter.key-ordered.batch-size:64}")
+    private int batchSize;
+
+    /**
+     * 等待单批消息执行完成的最长时间（毫秒），超时的消息按失败重试
+     */
+    @Value("${rate-limiter.key-ordered.batch-timeout-millis:30000}")
+    private long batchTimeoutMillis;
+
+    /**
+     * 阻塞的 Key 在没有任何进展（重试消息成功或新增失败消息）多久后放弃（毫秒）
+     */
+    @Value("${rate-limiter.key-ordered.blocked-key-ttl-millis:3600000}")
+    private long blockedKeyTtlMillis;
+
+    private volatile DefaultMQPushConsumer pushConsumer;
+
+    private final BlockedKeys blockedKeys = new BlockedKeys();
+
+    /**
+     * 每个 Key 最近处理的订单状态序号，用于检查乱序
+     */
+    private final Map<String, Integer> lastStatus = new ConcurrentHashMap<>();
+
+    private final LongAdder outOfOrder = new LongAdder();
+
+    private static final List<String> STATUS_SEQUENCE = Arrays.asList("PENDING", "PAID", "SHIPPED", "COMPLETED");
 
     @Override
-    public void onMessage(String message) {
-        log.info("========== 开始消费消息 ==========");
-        log.info("接收到的原始消息: {}", message);
-        
-        try {
-            // 解析消息
-            OrderMessage orderMessage = JSON.parseObject(message, OrderMessage.class);
-            log.info("解析后的订单信息: {}", orderMessage);
-            
-            // 业务处理
-            processOrder(orderMessage);
-            
-            log.info("订单 {} 处理成功", orderMessage.getOrderId());
-            
-        } catch (Exception e) {
-            log.error("消息消费失败: {}", e.getMessage(), e);
-            // 抛出异常，消息会重新消费
-            throw new RuntimeException("消息消费失败", e);
-        } finally {
-            log.info("========== 消息消费结束 ==========\n");
+    public void prepareStart(DefaultMQPushConsumer consumer) {
+        this.pushConsumer = consumer;
+        consumer.setConsumeMessageBatchMaxSize(batchSize);
+        consumer.setPullBatchSize(Math.max(consumer.getPullBatchSize(), batchSize));
+        consumer.registerMessageListener((MessageListenerConcurrently) this::consume);
+        log.info("按Key保序并行消费已启用 - 消费组: {}, Key: {}, 单批最多: {}", consumer.getConsumerGroup(), keyField, batchSize);
+    }
+
+    /**
+     * 未启用批量监听器时（理论上不会发生）由监听容器经消息转换器解码后逐条处理，不经过 Key 队列
+     */
+    @Override
+    public void onMessage(OrderMessage orderMessage) {
+        String key = businessKey(orderMessage);
+        processOrder(key != null ? key : "", orderMessage);
+    }
+
+    private ConsumeConcurrentlyStatus consume(List<MessageExt> messages, ConsumeConcurrentlyContext context) {
+        boolean[] results = process(messages);
+
+        for (int i = 0; i < messages.size(); i++) {
+            if (!results[i]) {
+                giveUpIfExhausted(messages.get(i));
+            }
+        }
+        return consumerRetryService.retryFailed(pushConsumer, messages, results, context);
+    }
+
+    /**
+     * 这次发回后进入死信队列的消息不会再回来，从阻塞 Key 中移除，避免该 Key 永远阻塞
+     */
+    private void giveUpIfExhausted(MessageExt message) {
+        if (consumerRetryService.isExhausted(pushConsumer, message)) {
+            String key = blockedKeys.keyOf(messageId(message));
+            if (key != null) {
+                blockedKeys.release(key, messageId(message));
+                log.error("❌ 消息重试次数用完，进入死信队列，同Key后续消息不再等待它 - Key: {}, MsgId: {}", key, message.getMsgId());
+            }
+        }
+    }
+
+    /**
+     * 按 Key 提交整批消息并等待完成
+     *
+     * @return 与 messages 一一对应的处理结果
+     */
+    private boolean[] process(List<MessageExt> messages) {
+        // 等待超时后置位：整批已按失败发回重试，尚未开始的任务不再执行
+        AtomicBoolean abandoned = new AtomicBoolean();
+        // 本批中队列已满的 Key，该 Key 的剩余消息不再提交，整批结束后按顺序加入阻塞
+        Map<String, List<String>> overflow = new HashMap<>();
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>(messages.size());
+        List<String> keys = new ArrayList<>(messages.size());
+        for (MessageExt message : messages) {
+            OrderMessage orderMessage;
+            try {
+                orderMessage = decode(message);
+            } catch (Exception e) {
+                log.error("消息解析失败 - MsgId: {}, error: {}", message.getMsgId(), e.getMessage());
+                futures.add(CompletableFuture.completedFuture(false));
+                keys.add(null);
+                continue;
+            }
+
+            String key = orderKey(orderMessage, message);
+            String id = messageId(message);
+            keys.add(key);
+            if (overflow.containsKey(key)) {
+                overflow.get(key).add(id);
+                futures.add(CompletableFuture.completedFuture(false));
+                continue;
+            }
+            try {
+                futures.add(keyOrderedExecutor.submit(key, () -> {
+                    if (abandoned.get()) {
+                        return false;
+                    }
+                    // 同一 Key 的任务依次执行，阻塞登记的顺序即消息顺序
+                    if (!blockedKeys.admit(key, id)) {
+                        blockedKeys.block(key, id);
+                        log.warn("同Key前序消息尚未成功，跳过并发回重试 - Key: {}, MsgId: {}", key, message.getMsgId());
+                        return false;
+                    }
+                    try {
+                        processOrder(key, orderMessage);
+                    } catch (Exception e) {
+                        blockedKeys.block(key, id);
+                        throw e;
+                    }
+                    // 整批已超时放弃时，消息已发到重试队列，Key 保持阻塞，由重试消息成功后解除
+                    return blockedKeys.releaseUnlessAbandoned(key, id, abandoned);
+                }));
+            } catch (RejectedExecutionException e) {
+                log.warn("Key 队列已满，本批该Key剩余消息发回重试 - Key: {}, MsgId: {}", key, message.getMsgId());
+                List<String> ids = new ArrayList<>();
+                ids.add(id);
+                overflow.put(key, ids);
+                futures.add(CompletableFuture.completedFuture(false));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.add(CompletableFuture.completedFuture(false));
+            }
+        }
+
+        boolean[] results = new boolean[messages.size()];
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchTimeoutMillis);
+        for (int i = 0; i < futures.size(); i++) {
+            MessageExt message = messages.get(i);
+            try {
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                results[i] = futures.get(i).get(remaining, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                log.error("❌ 订单处理超时 {} ms，按失败重试 - MsgId: {}", batchTimeoutMillis, message.getMsgId());
+                // 尚未执行的消息不再执行，正在执行的消息完成后不再解除阻塞；同 Key 阻塞到重试消息成功
+                blockedKeys.abandon(abandoned, keys.get(i), messageId(message));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.error("等待订单处理被中断 - MsgId: {}", message.getMsgId());
+            } catch (Exception e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                log.error("消息消费失败 - MsgId: {}, error: {}", message.getMsgId(), cause.getMessage());
+            }
+        }
+        // 队列已满的消息排在同 Key 已提交的消息之后，等整批结束再登记
+        for (Map.Entry<String, List<String>> entry : overflow.entrySet()) {
+            for (String id : entry.getValue()) {
+                blockedKeys.block(entry.getKey(), id);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * 消息标识：发回重试后不变的 UNIQ_KEY，没有时用 MsgId
+     */
+    private static String messageId(MessageExt message) {
+        String uniqueKey = message.getProperty(MessageConst.PROPERTY_UNIQ_CLIENT_MESSAGE_ID_KEYIDX);
+        return uniqueKey != null ? uniqueKey : message.getMsgId();
+    }
+
+    /**
+     * 经 rocketmq-spring 的消息转换器解码：消息体和用户属性（CODEC）一起交给 {@link CodecMessageConverter}
+     *
+     * @throws IllegalArgumentException 没有转换器能解码该消息
+     */
+    private OrderMessage decode(MessageExt message) {
+        Object payload = rocketMQMessageConverter.getMessageConverter()
+                .fromMessage(RocketMQUtil.convertToSpringMessage(message), OrderMessage.class);
+        if (payload == null) {
+            throw new IllegalArgumentException("无法转换为 OrderMessage");
         }
+        return (OrderMessage) payload;
+    }
+
+    /**
+     * 保序 Key：按配置取 orderId 或 userId，缺失时退回消息 Key / MsgId（不保序）
+     */
+    private String orderKey(OrderMessage orderMessage, MessageExt message) {
+        String key = businessKey(orderMessage);
+        if (key != null) {
+            return key;
+        }
+        return message.getKeys() != null ? message.getKeys() : message.getMsgId();
+    }
+
+    private String businessKey(OrderMessage orderMessage) {
+        String key = "userId".equals(keyField) ? orderMessage.getUserId() : orderMessage.getOrderId();
+        return key == null || key.isEmpty() ? null : key;
     }
 
     /**
      * 处理订单业务逻辑
      *
+     * @param key          保序 Key
      * @param orderMessage 订单消息
      */
-    private void processOrder(OrderMessage orderMessage) {
+    private void processOrder(String key, OrderMessage orderMessage) {
         // 模拟业务处理
-        log.info("正在处理订单...");
-        log.info("订单ID: {}", orderMessage.getOrderId());
-        log.info("用户ID: {}", orderMessage.getUserId());
-        log.info("商品名称: {}", orderMessage.getProductName());
-        log.info("订单金额: {}", orderMessage.getAmount());
-        log.info("订单状态: {}", orderMessage.getStatus());
-        
+        log.info("正在处理订单 - Key: {}, 订单ID: {}, 用户ID: {}, 商品: {}, 金额: {}, 状态: {}",
+                key, orderMessage.getOrderId(), orderMessage.getUserId(), orderMessage.getProductName(),
+                orderMessage.getAmount(), orderMessage.getStatus());
+
+        // 同一 Key 的状态序号应递增（只统计演示状态流转的消息）
+        int status = STATUS_SEQUENCE.indexOf(orderMessage.getStatus());
+        if (status >= 0) {
+            // 最后一个状态后不会再有消息，移除记录避免 Map 无限增长
+            Integer previous = status == STATUS_SEQUENCE.size() - 1 ? lastStatus.remove(key) : lastStatus.put(key, status);
+            if (previous != null && previous >= status) {
+                outOfOrder.increment();
+                log.warn("⚠️ 检测到乱序 - Key: {}, {} 之后收到 {}", key,
+                        STATUS_SEQUENCE.get(previous), orderMessage.getStatus());
+            }
+        }
+
         // 模拟耗时操作
         try {
             Thread.sleep(1000);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
-        
-        log.info("订单处理完成");
+
+        log.info("订单 {} 处理完成", orderMessage.getOrderId());
     }
-}
 
+    /**
+     * 保序消费统计
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("keyField", keyField);
+        stats.put("batchSize", batchSize);
+        stats.put("trackedKeys", lastStatus.size());
+        stats.put("outOfOrder", outOfOrder.sum());
+        stats.put("blockedKeys", blockedKeys.size());
+        stats.put("blockedMessages", blockedKeys.messages());
+        stats.put("executor", keyOrderedExecutor.getStats());
+        return stats;
+    }
+
+    /**
+     * 等待重试消息的 Key
+     *
+     * 每个 Key 按失败顺序记录已发回重试、尚未成功的消息：
+     * 只有第一条可以执行（admit），成功后移除（release），全部移除后 Key 解除阻塞；
+     * 其他同 Key 消息（新消息或顺序靠后的重试消息）追加到末尾（已在其中的不重复追加）后发回重试。
+     * 与 KeyOrderedExecutor 一样只用 ReentrantLock 保护，不使用监视器
+     */
+    private class BlockedKeys {
+
+        private final Map<String, Entry> entries = new HashMap<>();
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        boolean admit(String key, String id) {
+            lock.lock();
+            try {
+                Entry entry = current(key);
+                return entry == null || entry.ids.iterator().next().equals(id);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void block(String key, String id) {
+            lock.lock();
+            try {
+                blockLocked(key, id);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void release(String key, String id) {
+            lock.lock();
+            try {
+                Entry entry = entries.get(key);
+                if (entry == null || !entry.ids.remove(id)) {
+                    return;
+                }
+                entry.touchedMillis = System.currentTimeMillis();
+                if (entry.ids.isEmpty()) {
+                    entries.remove(key);
+                    log.info("✅ Key 解除阻塞 - Key: {}", key);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 消息处理成功后解除阻塞；所在批次已超时放弃时不解除（检查和解除在同一把锁内，与 {@link #abandon} 互斥）
+         *
+         * @return 已解除（或本来就未阻塞）返回 true，批次已放弃返回 false
+         */
+        boolean releaseUnlessAbandoned(String key, String id, AtomicBoolean abandoned) {
+            lock.lock();
+            try {
+                if (abandoned.get()) {
+                    log.warn("批次已超时放弃，处理完成后不解除阻塞，等待重试消息 - Key: {}, Id: {}", key, id);
+                    return false;
+                }
+                release(key, id);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 放弃批次：置位后，批次中正在执行的任务完成时不再解除阻塞；超时的消息（key 不为空时）加入阻塞
+         */
+        void abandon(AtomicBoolean abandoned, String key, String id) {
+            lock.lock();
+            try {
+                abandoned.set(true);
+                if (key != null) {
+                    blockLocked(key, id);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        String keyOf(String id) {
+            lock.lock();
+            try {
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    if (entry.getValue().ids.contains(id)) {
+                        return entry.getKey();
+                    }
+                }
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void blockLocked(String key, String id) {
+            Entry entry = current(key);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(key, entry);
+                log.warn("🚧 Key 进入阻塞，重试消息成功前同Key消息都发回重试 - Key: {}", key);
+            }
+            if (entry.ids.add(id)) {
+                entry.touchedMillis = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * 当前阻塞记录；长时间没有进展（重试消息丢失、队列已分给其他实例）时放弃
+         */
+        private Entry current(String key) {
+            Entry entry = entries.get(key);
+            if (entry != null && System.currentTimeMillis() - entry.touchedMillis > blockedKeyTtlMillis) {
+                entries.remove(key);
+                log.error("❌ Key 阻塞超过 {} ms 没有进展，放弃等待 {} 条重试消息 - Key: {}",
+                        blockedKeyTtlMillis, entry.ids.size(), key);
+                return null;
+            }
+            return entry;
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return entries.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int messages() {
+            lock.lock();
+            try {
+                int count = 0;
+                for (Entry entry : entries.values()) {
+                    count += entry.ids.size();
+                }
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static class Entry {
+        private final Set<String> ids = new LinkedHashSet<>();
+        private long touchedMillis = System.currentTimeMillis();
+    }
+}
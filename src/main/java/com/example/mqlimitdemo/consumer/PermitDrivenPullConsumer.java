@@ -0,0 +1,473 @@
+package com.example.mqlimitdemo.consumer;
+
+import com.example.mqlimitdemo.limiter.QuotaCoordinator;
+import com.example.mqlimitdemo.service.DownstreamScheduler;
+import com.example.mqlimitdemo.service.ThirdPartyApiService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.client.consumer.DefaultLitePullConsumer;
+import org.apache.rocketmq.client.consumer.MessageQueueListener;
+import org.apache.rocketmq.common.MixAll;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.apache.rocketmq.spring.core.RocketMQTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 许可驱动的拉取消费者
+ *
+ * Topic: pull-limit-topic
+ * ConsumerGroup: pull-limit-consumer-group
+ *
+ * Push 消费者不论有没有许可都会持续拉取消息到本地缓存，消费线程再阻塞在 acquire 或 sleep 重试中。
+ * 本消费者基于 DefaultLitePullConsumer，由许可决定拉取多少：
+ * 1. 本地许可池按本 Topic 在 {@link DownstreamScheduler} 中当前可分到的速率
+ *    （third_party_api 本实例份额按权重分配后的部分）匀速补充，只决定拉取多少
+ * 2. 每次拉取前把 pullBatchSize 设为当前可用许可数，拉取到的消息数即消耗的许可数（允许透支，透支后等待补足）
+ * 3. 下游调用与其他 Topic 一样提交到 {@link DownstreamScheduler} 排队，由调度器发放实际许可，
+ *    不会绕过共享配额
+ * 4. 许可耗尽时 pause 所有分配到的队列，后台不再拉取；许可补足后 resume。
+ *    暂停期间负载均衡新分到的队列在分配回调中同样暂停
+ * 5. 本地缓存上限很小（pullThresholdForAll / pullThresholdForQueue），积压再多也只留在 Broker
+ *
+ * 只使用一个拉取线程，不阻塞消费线程池。消费位点按队列手动提交：
+ * 队列中有消息失败时只提交到第一条失败消息（不含），并 seek 回该位置；
+ * 队列已被负载均衡分走时不再 seek，新的消费者从已提交的位点（即失败消息）开始消费。
+ *
+ * Lite Pull 消费者没有 Broker 的重试队列，失败消息由本消费者自己重试：
+ * 1. 按队列记录第一条失败消息的 offset 和失败次数，该队列暂停拉取，
+ *    等待 retry-backoff-millis × 2^(失败次数-1)（最长 1 分钟）后恢复，期间不再调用下游
+ * 2. 同一条消息失败 max-attempts 次后发送到死信队列（%DLQ% + 消费组），提交越过它的位点，
+ *    毒消息或下游对该消息持续失败时不会一直阻塞队列；发送死信失败时继续退避重试
+ *
+ * 默认不启用（rate-limiter.pull.enabled）
+ *
+ * @author demo
+ */
+@Slf4j
+@Component
+public class PermitDrivenPullConsumer {
+
+    private static final String TOPIC = "pull-limit-topic";
+    private static final String CONSUMER_GROUP = "pull-limit-consumer-group";
+    private static final String SCHEDULER_FLOW = TOPIC;
+
+    @Resource
+    private QuotaCoordinator quotaCoordinator;
+
+    @Resource
+    private DownstreamScheduler downstreamScheduler;
+
+    @Resource
+    private ThirdPartyApiService thirdPartyApiService;
+
+    @Resource
+    private RocketMQTemplate rocketMQTemplate;
+
+    @Value("${rocketmq.name-server}")
+    private String nameServer;
+
+    /**
+     * 是否启用拉取消费者
+     */
+    @Value("${rate-limiter.pull.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * 单次最多拉取的消息数（许可池容量）
+     */
+    @Value("${rate-limiter.pull.max-batch-size:10}")
+    private int maxBatchSize;
+
+    /**
+     * 单次拉取等待时间（毫秒）
+     */
+    @Value("${rate-limiter.pull.poll-timeout-millis:1000}")
+    private long pollTimeoutMillis;
+
+    /**
+     * 同一条消息最多调用下游的次数，超过后发送到死信队列
+     */
+    @Value("${rate-limiter.pull.max-attempts:5}")
+    private int maxAttempts;
+
+    /**
+     * 第一次失败后的退避时间（毫秒），之后每次翻倍
+     */
+    @Value("${rate-limiter.pull.retry-backoff-millis:1000}")
+    private long retryBackoffMillis;
+
+    /**
+     * 下游调度器中的权重
+     */
+    @Value("${rate-limiter.scheduler.weights.pull-limit-topic:1}")
+    private int schedulerWeight;
+
+    private DefaultLitePullConsumer consumer;
+
+    private Thread worker;
+
+    private volatile boolean running;
+
+    /**
+     * 本地许可池（仅拉取线程访问），可为负数表示透支
+     */
+    private double permits;
+    private long lastRefillNanos;
+
+    private volatile boolean paused;
+    private volatile int lastPolled;
+
+    /**
+     * 各队列第一条失败消息（拉取线程写入，负载均衡回调中清理已分走的队列）
+     */
+    private final ConcurrentMap<MessageQueue, FailedMessage> failures = new ConcurrentHashMap<>();
+
+    /**
+     * 因退避暂停的队列，许可补足后的整体恢复不恢复它们
+     */
+    private final Set<MessageQueue> backingOff = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder polled = new LongAdder();
+    private final LongAdder consumed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder pauses = new LongAdder();
+    private final LongAdder deadLettered = new LongAdder();
+
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            log.info("许可驱动拉取消费者未启用");
+            return;
+        }
+        try {
+            consumer = new DefaultLitePullConsumer(CONSUMER_GROUP);
+            consumer.setNamesrvAddr(nameServer);
+            consumer.setAutoCommit(false);
+            consumer.setPullBatchSize(1);
+            consumer.setPollTimeoutMillis(pollTimeoutMillis);
+            // 本地缓存只保留很少的消息，积压留在 Broker
+            consumer.setPullThresholdForQueue(maxBatchSize);
+            consumer.setPullThresholdForAll(maxBatchSize * 2L);
+            consumer.subscribe(TOPIC, "*", pauseNewlyAssigned());
+            consumer.start();
+        } catch (Exception e) {
+            log.error("❌ 许可驱动拉取消费者启动失败: {}", e.getMessage(), e);
+            return;
+        }
+
+        quotaCoordinator.addBacklog(DownstreamScheduler.QUOTA_KEY, SCHEDULER_FLOW, this::backlog);
+        downstreamScheduler.registerFlow(SCHEDULER_FLOW, schedulerWeight);
+        lastRefillNanos = System.nanoTime();
+        running = true;
+        worker = new Thread(this::pollLoop, "permit-pull-consumer");
+        worker.setDaemon(true);
+        worker.start();
+        log.info("许可驱动拉取消费者已启动 - Topic: {}, 单次最多拉取: {}", TOPIC, maxBatchSize);
+    }
+
+    /**
+     * 积压估计：许可耗尽暂停时按一整批上报，否则按上次拉取到的消息数上报
+     */
+    private long backlog() {
+        return paused ? maxBatchSize : lastPolled;
+    }
+
+    private void pollLoop() {
+        while (running) {
+            try {
+                resumeBackedOffQueues();
+                refill();
+                if (permits < 1) {
+                    pause();
+                    double share = Math.max(0.001, downstreamScheduler.getPermittedRate(SCHEDULER_FLOW));
+                    long sleepMillis = (long) Math.ceil((1 - permits) * 1000 / share);
+                    Thread.sleep(Math.min(Math.max(1, sleepMillis), 1000));
+                    continue;
+                }
+                resume();
+
+                consumer.setPullBatchSize((int) Math.min(maxBatchSize, Math.floor(permits)));
+                List<MessageExt> messages = consumer.poll(pollTimeoutMillis);
+                lastPolled = messages.size();
+                if (messages.isEmpty()) {
+                    continue;
+                }
+                polled.add(messages.size());
+                permits -= messages.size();
+
+                consumer.commitSync(consume(messages), true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("拉取消费异常: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * 按本 Topic 在调度器中可分到的速率补充许可，许可池最多积累一批
+     */
+    private void refill() {
+        long now = System.nanoTime();
+        double share = Math.max(0, downstreamScheduler.getPermittedRate(SCHEDULER_FLOW));
+        permits = Math.min(maxBatchSize, permits + (now - lastRefillNanos) / 1e9 * share);
+        lastRefillNanos = now;
+    }
+
+    /**
+     * 逐条经下游调度器调用第三方接口；某个队列的消息失败后 seek 回失败位置并退避，
+     * 该队列本轮剩余消息不调用下游，退还拉取时扣除的许可
+     *
+     * @return 各队列可以提交的位点（第一条失败消息的 offset，全部成功时为最后一条的下一个 offset）
+     * @throws InterruptedException 关闭时排队被中断，本轮不提交位点
+     */
+    private Map<MessageQueue, Long> consume(List<MessageExt> messages) throws InterruptedException {
+        Map<MessageQueue, Long> commitOffsets = new HashMap<>();
+        Map<MessageQueue, Long> failedOffsets = new HashMap<>();
+        for (MessageExt message : messages) {
+            MessageQueue queue = new MessageQueue(message.getTopic(), message.getBrokerName(), message.getQueueId());
+            if (failedOffsets.containsKey(queue)) {
+                permits++;
+                continue;
+            }
+            FailedMessage previous = failures.get(queue);
+            if (previous != null && previous.offset != message.getQueueOffset()) {
+                previous = null;
+            }
+            if (previous != null && System.nanoTime() < previous.retryAtNanos) {
+                // 退避尚未结束（许可补足后整体恢复时拉到），不调用下游
+                permits++;
+                failedOffsets.put(queue, message.getQueueOffset());
+                commitOffsets.put(queue, message.getQueueOffset());
+                seekBack(queue, message.getQueueOffset());
+                backOff(queue);
+                continue;
+            }
+
+            boolean success = false;
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            try {
+                // 拉取量已按本 Topic 可分到的速率控制，这里不设排队超时
+                success = downstreamScheduler.execute(SCHEDULER_FLOW,
+                        () -> thirdPartyApiService.sendMessage(body), DownstreamScheduler.NO_TIMEOUT);
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (ThirdPartyApiService.RateLimitException e) {
+                log.warn("第三方接口限流，稍后重新拉取 - MsgId: {}", message.getMsgId());
+            } catch (Exception e) {
+                log.error("调用第三方接口异常 - MsgId: {}, error: {}", message.getMsgId(), e.getMessage());
+            }
+
+            if (success) {
+                consumed.increment();
+                failures.remove(queue);
+                commitOffsets.put(queue, message.getQueueOffset() + 1);
+                continue;
+            }
+            failed.increment();
+            int attempts = previous != null ? previous.attempts + 1 : 1;
+            if (attempts >= maxAttempts && deadLetter(message, attempts)) {
+                failures.remove(queue);
+                commitOffsets.put(queue, message.getQueueOffset() + 1);
+                continue;
+            }
+
+            long backoffMillis = Math.min(MAX_BACKOFF_MILLIS, retryBackoffMillis << Math.min(attempts - 1, 16));
+            failures.put(queue, new FailedMessage(message.getQueueOffset(), attempts,
+                    System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis)));
+            log.warn("消息处理失败，{} ms 后重试 - MsgId: {}, 第 {}/{} 次", backoffMillis, message.getMsgId(),
+                    attempts, maxAttempts);
+            failedOffsets.put(queue, message.getQueueOffset());
+            commitOffsets.put(queue, message.getQueueOffset());
+            seekBack(queue, message.getQueueOffset());
+            backOff(queue);
+        }
+        return commitOffsets;
+    }
+
+    /**
+     * 发送到死信队列（%DLQ% + 消费组），消息体和属性原样复制
+     *
+     * @return 发送成功返回 true，失败时消息继续按退避重试
+     */
+    private boolean deadLetter(MessageExt message, int attempts) {
+        try {
+            Message dlq = new Message(MixAll.getDLQTopic(CONSUMER_GROUP), message.getBody());
+            dlq.setFlag(message.getFlag());
+            MessageAccessor.setProperties(dlq, new HashMap<>(message.getProperties()));
+            String originMsgId = MessageAccessor.getOriginMessageId(message);
+            MessageAccessor.setOriginMessageId(dlq, originMsgId == null || originMsgId.isEmpty()
+                    ? message.getMsgId() : originMsgId);
+            MessageAccessor.putProperty(dlq, MessageConst.PROPERTY_RETRY_TOPIC, message.getTopic());
+            MessageAccessor.setReconsumeTime(dlq, String.valueOf(attempts));
+            rocketMQTemplate.getProducer().send(dlq);
+            deadLettered.increment();
+            log.error("❌ 消息失败 {} 次，已转入死信队列 - MsgId: {}, 队列: {}, offset: {}",
+                    attempts, message.getMsgId(), message.getQueueId(), message.getQueueOffset());
+            return true;
+        } catch (Exception e) {
+            log.error("❌ 发送死信队列失败，继续退避重试 - MsgId: {}, error: {}", message.getMsgId(), e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 退避期间暂停该队列，不再拉取
+     */
+    private void backOff(MessageQueue queue) {
+        try {
+            if (!consumer.assignment().contains(queue) || !backingOff.add(queue)) {
+                return;
+            }
+            consumer.pause(Collections.singletonList(queue));
+        } catch (Exception e) {
+            backingOff.remove(queue);
+            log.error("暂停队列失败 - 队列: {}, error: {}", queue, e.getMessage());
+        }
+    }
+
+    /**
+     * 恢复退避已结束的队列（整体暂停期间只移出集合，由 resume 统一恢复）
+     */
+    private void resumeBackedOffQueues() throws Exception {
+        long now = System.nanoTime();
+        List<MessageQueue> due = new ArrayList<>();
+        for (MessageQueue queue : backingOff) {
+            FailedMessage failure = failures.get(queue);
+            if (failure == null || now >= failure.retryAtNanos) {
+                due.add(queue);
+            }
+        }
+        if (due.isEmpty()) {
+            return;
+        }
+        backingOff.removeAll(due);
+        if (!paused) {
+            due.retainAll(consumer.assignment());
+            consumer.resume(due);
+        }
+    }
+
+    /**
+     * 回退拉取位置；队列已不再分配给本实例时跳过（提交的位点停在失败消息，新的消费者会重新消费）
+     */
+    private void seekBack(MessageQueue queue, long offset) {
+        try {
+            if (!consumer.assignment().contains(queue)) {
+                log.warn("队列已被重新分配，不再回退拉取位置 - 队列: {}, offset: {}", queue, offset);
+                return;
+            }
+            consumer.seek(queue, offset);
+        } catch (Exception e) {
+            log.error("❌ 回退拉取位置失败 - 队列: {}, offset: {}, error: {}", queue, offset, e.getMessage());
+        }
+    }
+
+    /**
+     * 负载均衡分配回调：许可耗尽暂停期间，新分到的队列同样暂停
+     */
+    private MessageQueueListener pauseNewlyAssigned() {
+        return (topic, mqAll, mqDivided) -> {
+            // 已分走的队列由新的消费者从已提交的位点（失败消息）开始处理
+            failures.keySet().retainAll(mqDivided);
+            backingOff.retainAll(mqDivided);
+            if (paused && !mqDivided.isEmpty()) {
+                consumer.pause(mqDivided);
+                log.debug("暂停期间重新分配队列，保持暂停 - 队列数: {}", mqDivided.size());
+            }
+        };
+    }
+
+    private void pause() throws Exception {
+        if (!paused) {
+            paused = true;
+            consumer.pause(consumer.assignment());
+            pauses.increment();
+            log.debug("许可耗尽，暂停拉取");
+        }
+    }
+
+    private void resume() throws Exception {
+        if (paused) {
+            paused = false;
+            Collection<MessageQueue> queues = new ArrayList<>(consumer.assignment());
+            queues.removeAll(backingOff);
+            consumer.resume(queues);
+            log.debug("许可已补充，恢复拉取");
+        }
+    }
+
+    /**
+     * 拉取消费者状态
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("running", running);
+        stats.put("paused", paused);
+        stats.put("sharePerSecond", String.format("%.3f", downstreamScheduler.getPermittedRate(SCHEDULER_FLOW)));
+        stats.put("polled", polled.sum());
+        stats.put("consumed", consumed.sum());
+        stats.put("failed", failed.sum());
+        stats.put("deadLettered", deadLettered.sum());
+        stats.put("backingOffQueues", backingOff.size());
+        stats.put("maxAttempts", maxAttempts);
+        stats.put("pauses", pauses.sum());
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+            try {
+                worker.join(TimeUnit.SECONDS.toMillis(3));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (consumer != null) {
+            consumer.shutdown();
+        }
+    }
+
+    /**
+     * 队列中第一条失败消息
+     */
+    private static final class FailedMessage {
+        private final long offset;
+        private final int attempts;
+        private final long retryAtNanos;
+
+        private FailedMessage(long offset, int attempts, long retryAtNanos) {
+            this.offset = offset;
+            this.attempts = attempts;
+            this.retryAtNanos = retryAtNanos;
+        }
+    }
+}
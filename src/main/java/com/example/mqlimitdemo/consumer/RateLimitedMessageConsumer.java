@@ -1,13 +1,25 @@
 package com.example.mqlimitdemo.consumer;
 
+import com.example.mqlimitdemo.cache.DownstreamResponseCache;
+import com.example.mqlimitdemo.deadline.DeadlinePolicy;
+import com.example.mqlimitdemo.deadline.MessageDeadlineGuard;
+import com.example.mqlimitdemo.service.ConsumerAutoTuner;
+import com.example.mqlimitdemo.service.DownstreamBatcher;
+import com.example.mqlimitdemo.service.DownstreamScheduler;
 import com.example.mqlimitdemo.service.ThirdPartyApiService;
 import com.google.common.util.concurrent.RateLimiter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.common.message.MessageExt;
 import org.apache.rocketmq.spring.annotation.RocketMQMessageListener;
 import org.apache.rocketmq.spring.core.RocketMQListener;
+import org.apache.rocketmq.spring.core.RocketMQPushConsumerLifecycleListener;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -16,7 +28,10 @@ import java.util.concurrent.TimeUnit;
  * Topic: rate-limit-topic
  * ConsumerGroup: rate-limit-consumer-group
  * 
- * 该消费者演示如何处理第三方接口的频率限制
+ * 该消费者演示如何处理第三方接口的频率限制：
+ * 下游调用提交给 {@link DownstreamScheduler}，与其他 Topic 按权重共享同一个第三方接口配额；
+ * 启用截止时间时，已过期的消息不再排队，排队最多等到截止时间；
+ * 限流由调度器保证，消费线程数由 {@link ConsumerAutoTuner} 按分到的速率和下游耗时调整
  *
  * @author demo
  */
@@ -25,10 +40,10 @@ import java.util.concurrent.TimeUnit;
 @RocketMQMessageListener(
         topic = "rate-limit-topic",
         consumerGroup = "rate-limit-consumer-group",
-        // 设置单线程消费，避免并发导致限流问题
+        // 初始单线程，启动后由 ConsumerAutoTuner 调整
         consumeThreadMax = 1
 )
-public class RateLimitedMessageConsumer implements RocketMQListener<String> {
+public class RateLimitedMessageConsumer implements RocketMQListener<MessageExt>, RocketMQPushConsumerLifecycleListener {
 
     @Resource(name = "thirdPartyApiRateLimiter")
     private RateLimiter rateLimiter;
@@ -36,16 +51,78 @@ public class RateLimitedMessageConsumer implements RocketMQListener<String> {
     @Resource
     private ThirdPartyApiService thirdPartyApiService;
 
+    @Resource
+    private MessageDeadlineGuard messageDeadlineGuard;
+
+    @Resource
+    private DownstreamScheduler downstreamScheduler;
+
+    @Resource
+    private ConsumerAutoTuner consumerAutoTuner;
+
+    @Resource
+    private DownstreamBatcher downstreamBatcher;
+
+    @Resource
+    private DownstreamResponseCache downstreamResponseCache;
+
+    /**
+     * 在下游统一调度器中的权重
+     */
+    @Value("${rate-limiter.scheduler.weights.rate-limit-topic:1}")
+    private int schedulerWeight;
+
+    /**
+     * 截止时间策略：是否启用、消息最长有效期（毫秒）、过期处理方式
+     */
+    @Value("${rate-limiter.deadline.rate-limit.enabled:true}")
+    private boolean deadlineEnabled;
+
+    @Value("${rate-limiter.deadline.rate-limit.max-age-millis:120000}")
+    private long deadlineMaxAgeMillis;
+
+    @Value("${rate-limiter.deadline.rate-limit.action:FORWARD}")
+    private DeadlinePolicy.Action deadlineAction;
+
+    private static final String DEADLINE_POLICY = "rate-limit";
+    private static final String SCHEDULER_FLOW = "rate-limit-topic";
+
     // 最大重试次数
     private static final int MAX_RETRY_TIMES = 3;
 
+    @PostConstruct
+    public void registerSchedulerFlow() {
+        downstreamScheduler.registerFlow(SCHEDULER_FLOW, schedulerWeight);
+    }
+
     @Override
-    public void onMessage(String message) {
+    public void prepareStart(DefaultMQPushConsumer consumer) {
+        consumerAutoTuner.register(SCHEDULER_FLOW, consumer);
+    }
+
+    @PostConstruct
+    public void registerDeadline() {
+        DeadlinePolicy policy = new DeadlinePolicy();
+        policy.setName(DEADLINE_POLICY);
+        policy.setEnabled(deadlineEnabled);
+        policy.setMaxAgeMillis(deadlineMaxAgeMillis);
+        policy.setAction(deadlineAction);
+        messageDeadlineGuard.register(policy);
+    }
+
+    @Override
+    public void onMessage(MessageExt messageExt) {
+        String message = new String(messageExt.getBody(), StandardCharsets.UTF_8);
         log.info("========== 开始消费消息（带限流） ==========");
         log.info("接收到消息: {}", message);
 
-        // 方案1：使用 RateLimiter 控制消费速度
-        boolean success = consumeWithRateLimiter(message);
+        // 已过期的消息不再获取令牌，直接丢弃或转发到过期消息 Topic
+        if (messageDeadlineGuard.rejectIfExpired(DEADLINE_POLICY, messageExt)) {
+            return;
+        }
+
+        // 方案1：通过下游统一调度器控制调用频率
+        boolean success = consumeWithScheduler(messageExt, message);
 
         if (!success) {
             // 如果失败，尝试重试机制
@@ -57,23 +134,34 @@ public class RateLimitedMessageConsumer implements RocketMQListener<String> {
     }
 
     /**
-     * 方案1：使用 RateLimiter 控制调用频率
+     * 方案1：通过下游统一调度器排队，与其他 Topic 共享第三方接口配额；
+     * 消息先由 {@link DownstreamBatcher} 攒批，整批只占一个许可（批次排队上限取批内最早的截止时间）；
+     * 消息带幂等 Key 且发送操作声明为幂等时，有效期内同一 Key 发送成功过的消息直接返回成功（{@link DownstreamResponseCache}）
+     *
+     * @return 调用成功，或截止时间前未轮到已按过期处理时返回 true
      */
-    private boolean consumeWithRateLimiter(String message) {
+    private boolean consumeWithScheduler(MessageExt messageExt, String message) {
+        // 有截止时间时最多排队到截止时间，否则一直排队
+        long remainingMillis = messageDeadlineGuard.remainingMillis(DEADLINE_POLICY, messageExt);
         try {
-            // 获取令牌，如果获取不到会阻塞等待
-            log.info("正在获取令牌...");
-            double waitTime = rateLimiter.acquire();
-            log.info("成功获取令牌，等待时间: {} 秒", String.format("%.2f", waitTime));
-
-            // 调用第三方接口
-            boolean result = thirdPartyApiService.sendMessage(message);
+            log.info("进入下游调度队列...");
+            long maxQueueMillis = remainingMillis == Long.MAX_VALUE ? DownstreamScheduler.NO_TIMEOUT : remainingMillis;
+            String idempotencyKey = messageExt.getUserProperty(DownstreamResponseCache.PROPERTY_IDEMPOTENCY_KEY);
+            boolean result = downstreamResponseCache.get(DownstreamResponseCache.SEND_MESSAGE, idempotencyKey,
+                    () -> downstreamBatcher.send(SCHEDULER_FLOW, message, maxQueueMillis), Boolean.TRUE::equals);
             log.info("第三方接口调用结果: {}", result ? "成功" : "失败");
             return result;
 
+        } catch (DownstreamScheduler.QueueTimeoutException e) {
+            // 截止时间前没有轮到，排队的任务没有占用许可，配额留给后面的消息
+            messageDeadlineGuard.rejectAfterWait(DEADLINE_POLICY, messageExt);
+            return true;
         } catch (ThirdPartyApiService.RateLimitException e) {
             log.error("触发第三方接口频率限制: {}", e.getMessage());
             return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         } catch (Exception e) {
             log.error("调用第三方接口异常: {}", e.getMessage(), e);
             return false;
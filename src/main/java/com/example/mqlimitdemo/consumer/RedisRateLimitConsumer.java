@@ -1,13 +1,31 @@
 package com.example.mqlimitdemo.consumer;
 
+import com.example.mqlimitdemo.cache.DownstreamResponseCache;
+import com.example.mqlimitdemo.deadline.DeadlinePolicy;
+import com.example.mqlimitdemo.deadline.MessageDeadlineGuard;
+import com.example.mqlimitdemo.dedup.MessageDeduplicator;
+import com.example.mqlimitdemo.limiter.QuotaCoordinator;
+import com.example.mqlimitdemo.limiter.RateLimitAlgorithm;
+import com.example.mqlimitdemo.limiter.RateLimiterMetrics;
 import com.example.mqlimitdemo.limiter.RedisRateLimiter;
+import com.example.mqlimitdemo.service.ConsumerAutoTuner;
+import com.example.mqlimitdemo.service.DownstreamBatcher;
+import com.example.mqlimitdemo.service.DownstreamScheduler;
+import com.example.mqlimitdemo.service.PushConsumerInternals;
 import com.example.mqlimitdemo.service.ThirdPartyApiService;
+import com.example.mqlimitdemo.service.ThrottledRetryService;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.common.message.MessageExt;
 import org.apache.rocketmq.spring.annotation.RocketMQMessageListener;
 import org.apache.rocketmq.spring.core.RocketMQListener;
+import org.apache.rocketmq.spring.core.RocketMQPushConsumerLifecycleListener;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 
 /**
  * 基于 Redis 分布式限流的消息消费者
@@ -19,6 +37,12 @@ import javax.annotation.Resource;
  * 1. 使用 Redis 实现分布式限流
  * 2. 多个消费者实例共享限流配置
  * 3. 支持滑动窗口、令牌桶、固定窗口三种算法
+ * 4. 默认使用分布式公平配额：各实例按积压分得全局配额，本地限流，每条消息不访问 Redis；
+ *    下游调用经 DownstreamBatcher 攒批后由 DownstreamScheduler 与其他 Topic 按权重共享本实例份额，消费线程数由 ConsumerAutoTuner 按份额和下游耗时调整
+ * 5. 被限流的消息按限流器计算的等待时间投递延迟消息重试，而不是抛异常走 RocketMQ 固定重试阶梯
+ * 6. 获取许可前先去重，已处理成功的重投递消息直接确认，不再占用许可
+ * 7. 获取许可前先检查截止时间，已过期的消息丢弃或转发到过期消息 Topic，配额留给仍有价值的消息
+ * 8. 公平配额方案下，携带同一幂等 Key 的消息可以命中响应缓存或合并到同一次调用（需显式启用并声明幂等操作）
  *
  * @author demo
  */
@@ -27,10 +51,10 @@ import javax.annotation.Resource;
 @RocketMQMessageListener(
         topic = "redis-limit-topic",
         consumerGroup = "redis-limit-consumer-group",
-        // 允许多线程消费，限流由 Redis 控制
+        // 初始线程数，启动后由 ConsumerAutoTuner 按许可速率和下游耗时调整
         consumeThreadMax = 5
 )
-public class RedisRateLimitConsumer implements RocketMQListener<String> {
+public class RedisRateLimitConsumer implements RocketMQListener<MessageExt>, RocketMQPushConsumerLifecycleListener {
 
     @Resource
     private RedisRateLimiter redisRateLimiter;
@@ -38,19 +62,122 @@ public class RedisRateLimitConsumer implements RocketMQListener<String> {
     @Resource
     private ThirdPartyApiService thirdPartyApiService;
 
+    @Resource
+    private RateLimiterMetrics rateLimiterMetrics;
+
+    @Resource
+    private QuotaCoordinator quotaCoordinator;
+
+    @Resource
+    private ThrottledRetryService throttledRetryService;
+
+    @Resource
+    private MessageDeduplicator messageDeduplicator;
+
+    @Resource
+    private MessageDeadlineGuard messageDeadlineGuard;
+
+    @Resource
+    private DownstreamScheduler downstreamScheduler;
+
+    @Resource
+    private ConsumerAutoTuner consumerAutoTuner;
+
+    @Resource
+    private DownstreamBatcher downstreamBatcher;
+
+    @Resource
+    private DownstreamResponseCache downstreamResponseCache;
+
+    /**
+     * 在下游统一调度器中的权重
+     */
+    @Value("${rate-limiter.scheduler.weights.redis-limit-topic:2}")
+    private int schedulerWeight;
+
+    /**
+     * 截止时间策略：是否启用、消息最长有效期（毫秒）、过期处理方式
+     */
+    @Value("${rate-limiter.deadline.redis-limit.enabled:true}")
+    private boolean deadlineEnabled;
+
+    @Value("${rate-limiter.deadline.redis-limit.max-age-millis:60000}")
+    private long deadlineMaxAgeMillis;
+
+    @Value("${rate-limiter.deadline.redis-limit.action:FORWARD}")
+    private DeadlinePolicy.Action deadlineAction;
+
+    /**
+     * 底层 Push 消费者，用于统计本实例积压
+     */
+    private volatile DefaultMQPushConsumer pushConsumer;
+
     // 限流配置
     private static final String RATE_LIMIT_KEY = "third_party_api";
+    private static final String DEDUP_SCOPE = "redis-limit-consumer-group";
+    private static final String DEADLINE_POLICY = "redis-limit";
+    private static final String SCHEDULER_FLOW = "redis-limit-topic";
     private static final int LIMIT = 5; // 每秒最多5次
     private static final int WINDOW_SIZE = 1; // 1秒窗口
     private static final int MAX_RETRY = 3; // 最大重试次数
+    private static final long QUOTA_TIMEOUT_MILLIS = 600; // 本地配额最长等待，与滑动窗口重试总时长相当
+
+    @PostConstruct
+    public void registerQuota() {
+        quotaCoordinator.addBacklog(DownstreamScheduler.QUOTA_KEY, SCHEDULER_FLOW, this::backlog);
+        downstreamScheduler.registerFlow(SCHEDULER_FLOW, schedulerWeight);
+    }
+
+    @PostConstruct
+    public void registerDeadline() {
+        DeadlinePolicy policy = new DeadlinePolicy();
+        policy.setName(DEADLINE_POLICY);
+        policy.setEnabled(deadlineEnabled);
+        policy.setMaxAgeMillis(deadlineMaxAgeMillis);
+        policy.setAction(deadlineAction);
+        messageDeadlineGuard.register(policy);
+    }
 
     @Override
-    public void onMessage(String message) {
+    public void prepareStart(DefaultMQPushConsumer consumer) {
+        this.pushConsumer = consumer;
+        consumerAutoTuner.register(SCHEDULER_FLOW, consumer);
+    }
+
+    /**
+     * 本实例积压：已拉取到本地、尚未消费完成的消息数
+     */
+    private long backlog() {
+        return PushConsumerInternals.backlog(pushConsumer);
+    }
+
+    @Override
+    public void onMessage(MessageExt messageExt) {
+        String message = new String(messageExt.getBody(), StandardCharsets.UTF_8);
         log.info("========== Redis 分布式限流消费者 ==========");
         log.info("接收到消息: {}", message);
 
-        // 使用滑动窗口算法限流（推荐）
-        boolean success = consumeWithSlidingWindow(message);
+        // 已过期的消息不再去重和获取许可，直接丢弃或转发到过期消息 Topic
+        if (messageDeadlineGuard.rejectIfExpired(DEADLINE_POLICY, messageExt)) {
+            return;
+        }
+
+        // 去重：已处理成功的消息直接确认，其他消费者正在处理的消息稍后重试
+        String dedupKey = messageDeduplicator.dedupKey(messageExt);
+        MessageDeduplicator.Decision decision = messageDeduplicator.begin(DEDUP_SCOPE, dedupKey);
+        if (decision == MessageDeduplicator.Decision.DUPLICATE) {
+            log.info("♻️ 重复消息，已处理过，直接确认 - Key: {}", dedupKey);
+            return;
+        }
+        if (decision == MessageDeduplicator.Decision.IN_PROGRESS) {
+            throw new RuntimeException("消息正在其他消费者处理: " + dedupKey);
+        }
+
+        // 使用分布式公平配额（推荐，多实例部署时各实例按积压分配全局配额）
+        boolean success = consumeWithFairShare(messageExt, message);
+
+        // 或者使用滑动窗口算法
+        // boolean success = consumeWithSlidingWindow(message);
 
         // 或者使用令牌桶算法
         // boolean success = consumeWithTokenBucket(message);
@@ -59,21 +186,80 @@ public class RedisRateLimitConsumer implements RocketMQListener<String> {
         // boolean success = consumeWithFixedWindow(message);
 
         if (!success) {
+            // 释放处理权，延迟重试或 RocketMQ 重投递的消息可以重新处理
+            messageDeduplicator.release(DEDUP_SCOPE, dedupKey);
+            // 按限流器给出的等待时间延迟重试，投递成功后正常返回确认原消息
+            if (throttledRetryService.retryLater(messageExt, retryAfterMillis())) {
+                return;
+            }
             log.error("消息消费失败，等待重试");
             throw new RuntimeException("消息消费失败");
         }
 
+        messageDeduplicator.complete(DEDUP_SCOPE, dedupKey);
         log.info("========== 消息消费成功 ==========\n");
     }
 
     /**
-     * 方案1：滑动窗口算法（推荐）
+     * 限流器预计的下一个许可可用时间（毫秒），与 onMessage 中使用的算法对应
+     */
+    private long retryAfterMillis() {
+        // 公平配额：本地等待已超时，排在前面的消息至少还需要 QUOTA_TIMEOUT_MILLIS，再加一个许可间隔
+        double share = Math.max(0.001, quotaCoordinator.getShare(DownstreamScheduler.QUOTA_KEY));
+        return QUOTA_TIMEOUT_MILLIS + (long) Math.ceil(1000 / share);
+
+        // 滑动窗口：窗口内最早的一条请求滑出窗口的时间
+        // return redisRateLimiter.slidingWindowRetryAfter(RATE_LIMIT_KEY, LIMIT, WINDOW_SIZE);
+
+        // 令牌桶：生成下一个令牌的时间
+        // return redisRateLimiter.tokenBucketRetryAfter(RATE_LIMIT_KEY, LIMIT);
+
+        // 固定窗口：当前窗口结束的时间
+        // return redisRateLimiter.fixedWindowRetryAfter(RATE_LIMIT_KEY, WINDOW_SIZE);
+    }
+
+    /**
+     * 方案0：分布式公平配额
+     *
+     * 下游调用交给 {@link DownstreamBatcher} 攒批，整批作为一次调用提交给 {@link DownstreamScheduler}，
+     * 在本实例份额内与其他 Topic 按权重排队；消息带幂等 Key 且发送操作声明为幂等时，
+     * 有效期内同一 Key 发送成功过的消息命中响应缓存，不占用许可
+     *
+     * 优点：每条消息不访问 Redis，各实例按积压分得配额，不会出现某个实例抢走全部许可；
+     *      同一实例内各 Topic 共用一个配额，合计速率不会超过第三方限制
+     * 缺点：实例加入或退出后，最多一个心跳周期内份额尚未重新平衡
+     */
+    private boolean consumeWithFairShare(MessageExt messageExt, String message) {
+        try {
+            String idempotencyKey = messageExt.getUserProperty(DownstreamResponseCache.PROPERTY_IDEMPOTENCY_KEY);
+            boolean result = downstreamResponseCache.get(DownstreamResponseCache.SEND_MESSAGE, idempotencyKey,
+                    () -> downstreamBatcher.send(SCHEDULER_FLOW, message, QUOTA_TIMEOUT_MILLIS), Boolean.TRUE::equals);
+            if (result) {
+                log.info("✅ 消息处理成功（公平配额）");
+                return true;
+            }
+        } catch (DownstreamScheduler.QueueTimeoutException e) {
+            log.warn("⚠️ 本实例配额不足（份额 {}/s），排队 {} ms 未轮到，等待重试",
+                    String.format("%.3f", downstreamScheduler.getRate()), e.getQueuedMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ThirdPartyApiService.RateLimitException e) {
+            log.warn("第三方接口限流: {}", e.getMessage());
+        } catch (Exception e) {
+            log.error("调用第三方接口异常: {}", e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * 方案1：滑动窗口算法
      * 
      * 优点：精确限流，没有临界问题
      * 缺点：需要存储窗口内所有请求记录
      */
     private boolean consumeWithSlidingWindow(String message) {
         int retryCount = 0;
+        long waitStart = System.nanoTime();
 
         while (retryCount < MAX_RETRY) {
             // 尝试获取限流许可
@@ -84,6 +270,8 @@ public class RedisRateLimitConsumer implements RocketMQListener<String> {
             );
 
             if (allowed) {
+                rateLimiterMetrics.recordPermitWait(RateLimitAlgorithm.SLIDING_WINDOW, RATE_LIMIT_KEY,
+                        System.nanoTime() - waitStart);
                 try {
                     // 调用第三方接口
                     boolean result = thirdPartyApiService.sendMessage(message);
@@ -125,6 +313,7 @@ public class RedisRateLimitConsumer implements RocketMQListener<String> {
      */
     private boolean consumeWithTokenBucket(String message) {
         int retryCount = 0;
+        long waitStart = System.nanoTime();
 
         while (retryCount < MAX_RETRY) {
             // 尝试获取令牌
@@ -135,6 +324,8 @@ public class RedisRateLimitConsumer implements RocketMQListener<String> {
             );
 
             if (allowed) {
+                rateLimiterMetrics.recordPermitWait(RateLimitAlgorithm.TOKEN_BUCKET, RATE_LIMIT_KEY,
+                        System.nanoTime() - waitStart);
                 try {
                     boolean result = thirdPartyApiService.sendMessage(message);
                     if (result) {
@@ -0,0 +1,95 @@
+package com.example.mqlimitdemo.controller;
+
+import com.example.mqlimitdemo.limiter.RateLimitAlgorithm;
+import com.example.mqlimitdemo.simulator.LimiterSimulator;
+import com.example.mqlimitdemo.simulator.SimulationConfig;
+import com.example.mqlimitdemo.simulator.SimulationResult;
+import com.example.mqlimitdemo.simulator.TrafficTrace;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.bind.annotation.*;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 限流离线仿真控制器
+ *
+ * 参数见 {@link SimulationConfig}，均可通过 query 参数覆盖，例如：
+ * /simulation/run?trace=BURSTY&arrivalRate=8&permitsPerSecond=5&durationSeconds=3600
+ *
+ * @author demo
+ */
+@Slf4j
+@RestController
+@RequestMapping("/simulation")
+public class LimiterSimulationController {
+
+    @Resource
+    private LimiterSimulator limiterSimulator;
+
+    /**
+     * 合成流量仿真
+     *
+     * @param algorithm 指定算法时只仿真该算法，否则用同一条流量仿真全部算法
+     */
+    @GetMapping("/run")
+    public Map<String, Object> run(SimulationConfig config,
+                                   @RequestParam(required = false) RateLimitAlgorithm algorithm) {
+        Map<String, Object> response = new HashMap<>();
+        if (config.getTrace() == TrafficTrace.Type.RECORDED) {
+            response.put("success", false);
+            response.put("message", "录制流量请使用 POST /simulation/replay");
+            return response;
+        }
+
+        log.info("========== 开始限流仿真 ==========");
+        log.info("仿真参数: {}", config);
+        List<SimulationResult> results = algorithm != null
+                ? Collections.singletonList(limiterSimulator.simulate(algorithm, config))
+                : limiterSimulator.simulateAll(config);
+
+        response.put("success", true);
+        response.put("config", config);
+        response.put("results", results);
+        return response;
+    }
+
+    /**
+     * 回放录制的流量
+     *
+     * 请求体为到达时间戳（毫秒），以换行、空格或逗号分隔，例如从消费日志中导出的 bornTimestamp
+     */
+    @PostMapping("/replay")
+    public Map<String, Object> replay(SimulationConfig config, @RequestBody String timestamps) {
+        Map<String, Object> response = new HashMap<>();
+        long[] arrivals;
+        try {
+            arrivals = Arrays.stream(timestamps.trim().split("[\\s,]+"))
+                    .filter(s -> !s.isEmpty())
+                    .mapToLong(Long::parseLong)
+                    .toArray();
+        } catch (NumberFormatException e) {
+            response.put("success", false);
+            response.put("message", "时间戳格式错误: " + e.getMessage());
+            return response;
+        }
+        if (arrivals.length == 0) {
+            response.put("success", false);
+            response.put("message", "请求体中没有时间戳");
+            return response;
+        }
+
+        log.info("========== 开始回放录制流量 ==========");
+        log.info("到达数: {}, 仿真参数: {}", arrivals.length, config);
+        config.setTrace(TrafficTrace.Type.RECORDED);
+
+        response.put("success", true);
+        response.put("config", config);
+        response.put("results", limiterSimulator.replayAll(config, arrivals));
+        return response;
+    }
+}
@@ -1,5 +1,7 @@
 package com.example.mqlimitdemo.controller;
 
+import com.example.mqlimitdemo.codec.MessageCodecRegistry;
+import com.example.mqlimitdemo.consumer.OrderMessageConsumer;
 import com.example.mqlimitdemo.domain.OrderMessage;
 import com.example.mqlimitdemo.producer.MessageProducer;
 import lombok.extern.slf4j.Slf4j;
@@ -26,6 +28,12 @@ public class MessageController {
     @Resource
     private MessageProducer messageProducer;
 
+    @Resource
+    private OrderMessageConsumer orderMessageConsumer;
+
+    @Resource
+    private MessageCodecRegistry messageCodecRegistry;
+
     /**
      * 发送简单消息
      *
@@ -41,10 +49,11 @@ public class MessageController {
     /**
      * 发送订单消息
      *
+     * @param codec 编解码器名称（json / binary），默认使用 rate-limiter.codec.default
      * @return 结果
      */
     @PostMapping("/send/order")
-    public Map<String, Object> sendOrderMessage() {
+    public Map<String, Object> sendOrderMessage(@RequestParam(required = false) String codec) {
         OrderMessage orderMessage = new OrderMessage();
         orderMessage.setOrderId("ORDER-" + UUID.randomUUID().toString().substring(0, 8));
         orderMessage.setUserId("USER-" + System.currentTimeMillis());
@@ -54,7 +63,10 @@ public class MessageController {
         orderMessage.setCreateTime(new Date());
         orderMessage.setRemark("这是一个测试订单");
 
-        SendResult result = messageProducer.sendObjectMessage("order-topic", orderMessage);
+        SendResult result = codec == null
+                ? messageProducer.sendObjectMessage("order-topic", orderMessage)
+                : messageProducer.sendObjectMessage("order-topic", orderMessage,
+                        messageCodecRegistry.get(OrderMessage.class, codec));
         return buildResponse(true, "订单消息发送成功", result);
     }
 
@@ -128,6 +140,50 @@ public class MessageController {
         return buildResponse(true, "批量发送完成，共发送 " + count + " 条消息", null);
     }
 
+    /**
+     * 发送订单状态流转消息（测试按 Key 保序并行消费）
+     *
+     * 每个订单依次发送 PENDING / PAID / SHIPPED / COMPLETED 四条消息，同一订单发送到同一队列；
+     * 多个订单交错发送，消费端不同订单并行处理，同一订单按状态顺序处理
+     *
+     * @param orders 订单数量
+     * @return 结果
+     */
+    @GetMapping("/send/order-sequence")
+    public Map<String, Object> sendOrderSequence(@RequestParam(defaultValue = "10") int orders) {
+        String[] statuses = {"PENDING", "PAID", "SHIPPED", "COMPLETED"};
+        String batchId = UUID.randomUUID().toString().substring(0, 8);
+        int sent = 0;
+        for (String status : statuses) {
+            for (int i = 0; i < orders; i++) {
+                OrderMessage orderMessage = new OrderMessage();
+                orderMessage.setOrderId("ORDER-" + batchId + "-" + i);
+                orderMessage.setUserId("USER-" + (i % 3));
+                orderMessage.setProductName("MacBook Pro");
+                orderMessage.setAmount(new BigDecimal("12999.00"));
+                orderMessage.setStatus(status);
+                orderMessage.setCreateTime(new Date());
+                orderMessage.setRemark("订单状态流转测试");
+                messageProducer.sendOrderlyObjectMessage("order-topic", orderMessage, orderMessage.getOrderId());
+                sent++;
+            }
+        }
+        return buildResponse(true, "订单状态流转消息发送完成，共 " + orders + " 个订单 " + sent
+                + " 条消息，可通过 /message/order/stats 查看乱序数和执行器统计", null);
+    }
+
+    /**
+     * 按 Key 保序消费统计
+     *
+     * @return 结果
+     */
+    @GetMapping("/order/stats")
+    public Map<String, Object> orderStats() {
+        Map<String, Object> response = buildResponse(true, "按Key保序消费统计", null);
+        response.put("stats", orderMessageConsumer.getStats());
+        return response;
+    }
+
     /**
      * 构建响应结果
      */
@@ -1,7 +1,13 @@
 package com.example.mqlimitdemo.controller;
 
+import com.example.mqlimitdemo.cache.DownstreamResponseCache;
 import com.example.mqlimitdemo.producer.MessageProducer;
+import com.example.mqlimitdemo.service.ConsumerAutoTuner;
+import com.example.mqlimitdemo.service.DownstreamBatcher;
+import com.example.mqlimitdemo.service.DownstreamScheduler;
 import com.example.mqlimitdemo.service.ThirdPartyApiService;
+import com.example.mqlimitdemo.spill.DegradationSpillStore;
+import com.example.mqlimitdemo.spill.SpillReplayer;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.rocketmq.client.producer.SendResult;
 import org.springframework.web.bind.annotation.*;
@@ -29,6 +35,24 @@ public class RateLimitTestController {
     @Resource
     private ThirdPartyApiService thirdPartyApiService;
 
+    @Resource
+    private DegradationSpillStore degradationSpillStore;
+
+    @Resource
+    private SpillReplayer spillReplayer;
+
+    @Resource
+    private DownstreamScheduler downstreamScheduler;
+
+    @Resource
+    private ConsumerAutoTuner consumerAutoTuner;
+
+    @Resource
+    private DownstreamBatcher downstreamBatcher;
+
+    @Resource
+    private DownstreamResponseCache downstreamResponseCache;
+
     private final ExecutorService executorService = Executors.newFixedThreadPool(10);
 
     /**
@@ -178,5 +202,60 @@ public class RateLimitTestController {
         response.put("timestamp", System.currentTimeMillis());
         return response;
     }
-}
 
+    /**
+     * 本地降级日志状态（写入、刷盘、待回放字节数）和回放统计
+     */
+    @GetMapping("/spill")
+    public Map<String, Object> getSpillStatus() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("store", degradationSpillStore.getStats());
+        response.put("replay", spillReplayer.getStats());
+        return response;
+    }
+
+    /**
+     * 下游统一调度器状态（各 Topic 的权重、排队数、排队时延、派发占比）
+     */
+    @GetMapping("/scheduler")
+    public Map<String, Object> getSchedulerStatus() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("scheduler", downstreamScheduler.getStats());
+        return response;
+    }
+
+    /**
+     * 消费并发自动调优状态（各消费者的许可速率、下游耗时、目标/当前线程数、拉取缓存）
+     */
+    @GetMapping("/auto-tune")
+    public Map<String, Object> getAutoTuneStatus() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("consumers", consumerAutoTuner.getStats());
+        return response;
+    }
+
+    /**
+     * 下游微批聚合状态（各 Topic 的批次数、平均批次大小、省下的许可数）
+     */
+    @GetMapping("/batching")
+    public Map<String, Object> getBatchingStatus() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("batching", downstreamBatcher.getStats());
+        return response;
+    }
+
+    /**
+     * 下游响应缓存状态（命中率、合并的并发请求、内存占用、省下的许可数）
+     */
+    @GetMapping("/response-cache")
+    public Map<String, Object> getResponseCacheStatus() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("responseCache", downstreamResponseCache.getStats());
+        return response;
+    }
+}
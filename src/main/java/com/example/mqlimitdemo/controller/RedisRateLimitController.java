@@ -1,15 +1,37 @@
 package com.example.mqlimitdemo.controller;
 
+import com.example.mqlimitdemo.breaker.CircuitBreakerRegistry;
+import com.example.mqlimitdemo.breaker.ClusterCircuitBreakerSync;
+import com.example.mqlimitdemo.consumer.AsyncPipelineConsumer;
+import com.example.mqlimitdemo.consumer.PermitDrivenPullConsumer;
+import com.example.mqlimitdemo.deadline.MessageDeadlineGuard;
+import com.example.mqlimitdemo.dedup.MessageDeduplicator;
+import com.example.mqlimitdemo.limiter.HotKeyTracker;
+import com.example.mqlimitdemo.limiter.LimiterRedisConnection;
+import com.example.mqlimitdemo.limiter.LuaScriptRegistry;
+import com.example.mqlimitdemo.limiter.QuotaCoordinator;
+import com.example.mqlimitdemo.limiter.RateLimitAlgorithm;
 import com.example.mqlimitdemo.limiter.RedisRateLimiter;
+import com.example.mqlimitdemo.limiter.ShadowRateLimiter;
 import com.example.mqlimitdemo.producer.MessageProducer;
+import com.example.mqlimitdemo.service.AsyncDownstreamExecutor;
+import com.example.mqlimitdemo.service.ThrottledRetryService;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.rocketmq.client.producer.SendResult;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Redis 分布式限流测试控制器
@@ -21,6 +43,11 @@ import java.util.Map;
 @RequestMapping("/redis-rate-limit")
 public class RedisRateLimitController {
 
+    /**
+     * 去重测试使用的幂等 Key 消息属性（与 rate-limiter.dedup.key-property 对应）
+     */
+    private static final String DEDUP_KEY_PROPERTY = "DEDUP_KEY";
+
     @Resource
     private MessageProducer messageProducer;
 
@@ -30,6 +57,45 @@ public class RedisRateLimitController {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
+
+    @Resource
+    private LimiterRedisConnection limiterRedisConnection;
+
+    @Resource
+    private HotKeyTracker hotKeyTracker;
+
+    @Resource
+    private ShadowRateLimiter shadowRateLimiter;
+
+    @Resource
+    private QuotaCoordinator quotaCoordinator;
+
+    @Resource
+    private PermitDrivenPullConsumer permitDrivenPullConsumer;
+
+    @Resource
+    private ThrottledRetryService throttledRetryService;
+
+    @Resource
+    private AsyncDownstreamExecutor asyncDownstreamExecutor;
+
+    @Resource
+    private AsyncPipelineConsumer asyncPipelineConsumer;
+
+    @Resource
+    private CircuitBreakerRegistry circuitBreakerRegistry;
+
+    @Resource
+    private ClusterCircuitBreakerSync clusterCircuitBreakerSync;
+
+    @Resource
+    private MessageDeduplicator messageDeduplicator;
+
+    @Resource
+    private MessageDeadlineGuard messageDeadlineGuard;
+
     /**
      * 测试 Redis 滑动窗口限流
      */
@@ -59,6 +125,226 @@ public class RedisRateLimitController {
         return response;
     }
 
+    /**
+     * 测试批量限流消费（整批获取一次许可）
+     */
+    @GetMapping("/test/batch")
+    public Map<String, Object> testBatchConsume(@RequestParam(defaultValue = "30") int count) {
+        log.info("========== 测试批量限流消费 ==========");
+
+        int successCount = 0;
+        for (int i = 1; i <= count; i++) {
+            try {
+                String message = String.format("批量限流测试 #%d", i);
+                SendResult result = messageProducer.sendSyncMessage("batch-limit-topic", message);
+                log.info("消息 #{} 发送成功，MsgId: {}", i, result.getMsgId());
+                successCount++;
+            } catch (Exception e) {
+                log.error("消息 #{} 发送失败: {}", i, e.getMessage());
+            }
+        }
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("algorithm", "批量消费 + 分布式公平配额");
+        response.put("totalCount", count);
+        response.put("successCount", successCount);
+        response.put("message", "测试完成，请观察消费日志中的批量大小");
+        return response;
+    }
+
+    /**
+     * 测试许可驱动拉取消费（按可用许可拉取，许可耗尽时暂停队列）
+     */
+    @GetMapping("/test/pull")
+    public Map<String, Object> testPullConsume(@RequestParam(defaultValue = "50") int count) {
+        log.info("========== 测试许可驱动拉取消费 ==========");
+
+        int successCount = 0;
+        for (int i = 1; i <= count; i++) {
+            try {
+                String message = String.format("拉取限流测试 #%d", i);
+                SendResult result = messageProducer.sendSyncMessage("pull-limit-topic", message);
+                log.info("消息 #{} 发送成功，MsgId: {}", i, result.getMsgId());
+                successCount++;
+            } catch (Exception e) {
+                log.error("消息 #{} 发送失败: {}", i, e.getMessage());
+            }
+        }
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("algorithm", "许可驱动拉取 + 分布式公平配额");
+        response.put("totalCount", count);
+        response.put("successCount", successCount);
+        response.put("message", "测试完成，可通过 /redis-rate-limit/pull/stats 观察暂停次数");
+        return response;
+    }
+
+    /**
+     * 测试异步在途流水线消费（2 个消费线程，下游调用异步执行）
+     */
+    @GetMapping("/test/async")
+    public Map<String, Object> testAsyncPipeline(@RequestParam(defaultValue = "50") int count) {
+        log.info("========== 测试异步在途流水线消费 ==========");
+
+        int successCount = 0;
+        for (int i = 1; i <= count; i++) {
+            try {
+                String message = String.format("异步流水线测试 #%d", i);
+                SendResult result = messageProducer.sendSyncMessage("async-limit-topic", message);
+                log.info("消息 #{} 发送成功，MsgId: {}", i, result.getMsgId());
+                successCount++;
+            } catch (Exception e) {
+                log.error("消息 #{} 发送失败: {}", i, e.getMessage());
+            }
+        }
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("algorithm", "异步在途流水线 + 分布式公平配额");
+        response.put("totalCount", count);
+        response.put("successCount", successCount);
+        response.put("message", "测试完成，可通过 /redis-rate-limit/async/stats 观察在途调用数");
+        return response;
+    }
+
+    /**
+     * 测试消息去重：同一业务请求（消息属性 DEDUP_KEY 相同）重复发送多次，只有第一条调用第三方接口
+     *
+     * 需要配置 rate-limiter.dedup.key-property=DEDUP_KEY；未配置时按消息 ID 去重，每条都会调用
+     */
+    @GetMapping("/test/dedup")
+    public Map<String, Object> testDedup(@RequestParam(defaultValue = "5") int count,
+                                         @RequestParam(defaultValue = "3") int duplicates) {
+        log.info("========== 测试消息去重 ==========");
+
+        String batchId = UUID.randomUUID().toString().substring(0, 8);
+        int successCount = 0;
+        for (int i = 1; i <= count; i++) {
+            String orderId = "ORDER-" + batchId + "-" + i;
+            // 幂等 Key 标识一次业务请求（订单的某个事件），不是订单本身
+            String requestId = orderId + "-PAY";
+            for (int d = 1; d <= duplicates; d++) {
+                try {
+                    String message = String.format("去重测试 %s 第 %d 次", requestId, d);
+                    messageProducer.sendMessageWithProperties("redis-limit-topic", message,
+                            Collections.singletonMap(DEDUP_KEY_PROPERTY, requestId));
+                    successCount++;
+                } catch (Exception e) {
+                    log.error("消息 {} 第 {} 次发送失败: {}", orderId, d, e.getMessage());
+                }
+            }
+        }
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("totalCount", count * duplicates);
+        response.put("successCount", successCount);
+        response.put("message", "测试完成，每个请求只应调用一次第三方接口（需配置 rate-limiter.dedup.key-property=DEDUP_KEY），可通过 /redis-rate-limit/dedup/stats 查看去重统计");
+        return response;
+    }
+
+    /**
+     * 消息去重统计（本地布隆过滤器命中、Redis 命中、处理中）
+     */
+    @GetMapping("/dedup/stats")
+    public Map<String, Object> dedupStats() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("dedup", messageDeduplicator.getStats());
+        return response;
+    }
+
+    /**
+     * 测试消息截止时间：一次发送超过配额的消息，每条带截止时间，排在后面、截止前轮不到的消息不再占用许可
+     */
+    @GetMapping("/test/deadline")
+    public Map<String, Object> testDeadline(@RequestParam(defaultValue = "30") int count,
+                                            @RequestParam(defaultValue = "2000") long deadlineMillis) {
+        log.info("========== 测试消息截止时间 ==========");
+
+        int successCount = 0;
+        for (int i = 1; i <= count; i++) {
+            try {
+                String message = String.format("截止时间测试 #%d", i);
+                Map<String, String> properties = new HashMap<>();
+                properties.put(MessageDeadlineGuard.PROPERTY_DEADLINE,
+                        String.valueOf(System.currentTimeMillis() + deadlineMillis));
+                messageProducer.sendMessageWithProperties("redis-limit-topic", message, properties);
+                successCount++;
+            } catch (Exception e) {
+                log.error("消息 #{} 发送失败: {}", i, e.getMessage());
+            }
+        }
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("totalCount", count);
+        response.put("successCount", successCount);
+        response.put("deadlineMillis", deadlineMillis);
+        response.put("message", "测试完成，可通过 /redis-rate-limit/deadline/stats 查看过期消息数和省下的许可数");
+        return response;
+    }
+
+    /**
+     * 消息截止时间统计（过期消息数、转发/丢弃数、省下的许可数）
+     */
+    @GetMapping("/deadline/stats")
+    public Map<String, Object> deadlineStats() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("deadline", messageDeadlineGuard.getStats());
+        return response;
+    }
+
+    /**
+     * 异步在途流水线状态
+     */
+    @GetMapping("/async/stats")
+    public Map<String, Object> asyncStats() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("async", asyncDownstreamExecutor.getStats());
+        response.put("abandonedBeforeStart", asyncPipelineConsumer.getAbandoned());
+        response.put("overranTimeout", asyncPipelineConsumer.getOverran());
+        return response;
+    }
+
+    /**
+     * 熔断器状态（本地状态 + 集群状态）
+     */
+    @GetMapping("/circuit-breaker")
+    public Map<String, Object> circuitBreakerStatus() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("breakers", circuitBreakerRegistry.getStatus());
+        response.put("cluster", clusterCircuitBreakerSync.getStatus());
+        return response;
+    }
+
+    /**
+     * 许可驱动拉取消费者状态
+     */
+    @GetMapping("/pull/stats")
+    public Map<String, Object> pullStats() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("pull", permitDrivenPullConsumer.getStats());
+        return response;
+    }
+
+    /**
+     * 限流重试统计（按延迟级别分布）
+     */
+    @GetMapping("/throttle-retry/stats")
+    public Map<String, Object> throttleRetryStats() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("throttleRetry", throttledRetryService.getStats());
+        return response;
+    }
+
     /**
      * 测试 Redis 令牌桶限流
      */
@@ -191,6 +477,93 @@ public class RedisRateLimitController {
         return stats;
     }
 
+    /**
+     * 分页列出限流 key（SCAN）
+     * 
+     * @param pattern 限流key匹配模式（不含 rate_limit:<算法>: 前缀）
+     * @param cursor  游标，首页传 0，后续传上一页返回的 cursor（算法序号:SCAN游标）
+     * @param count   期望的每页数量
+     */
+    @GetMapping("/keys")
+    public Map<String, Object> listKeys(
+            @RequestParam(defaultValue = "*") String pattern,
+            @RequestParam(defaultValue = "0") String cursor,
+            @RequestParam(defaultValue = "100") int count) {
+        Map<String, Object> response = new HashMap<>();
+
+        try {
+            RedisRateLimiter.KeyPage page = redisRateLimiter.scanLimiterKeys(pattern, cursor, count);
+
+            response.put("success", true);
+            response.put("keys", page.getKeys());
+            response.put("cursor", page.getCursor());
+            response.put("finished", page.isFinished());
+        } catch (Exception e) {
+            log.error("扫描限流 key 失败: {}", e.getMessage());
+            response.put("success", false);
+            response.put("error", e.getMessage());
+        }
+
+        return response;
+    }
+
+    /**
+     * 分页批量获取限流统计信息
+     * 
+     * 先 SCAN 一页限流 key，再用一次 pipeline 读取这一页所有 key 的统计信息
+     */
+    @GetMapping("/stats/batch")
+    public Map<String, Object> getBatchStats(
+            @RequestParam(defaultValue = "*") String pattern,
+            @RequestParam(defaultValue = "0") String cursor,
+            @RequestParam(defaultValue = "100") int count) {
+        Map<String, Object> response = new HashMap<>();
+
+        try {
+            RedisRateLimiter.KeyPage page = redisRateLimiter.scanLimiterKeys(pattern, cursor, count);
+
+            Set<String> limiterKeys = new LinkedHashSet<>();
+            for (String redisKey : page.getKeys()) {
+                String limiterKey = redisRateLimiter.toLimiterKey(redisKey);
+                if (limiterKey != null) {
+                    limiterKeys.add(limiterKey);
+                }
+            }
+
+            response.put("success", true);
+            response.put("stats", redisRateLimiter.getStats(limiterKeys).values());
+            response.put("cursor", page.getCursor());
+            response.put("finished", page.isFinished());
+            response.put("timestamp", System.currentTimeMillis());
+        } catch (Exception e) {
+            log.error("批量获取统计信息失败: {}", e.getMessage());
+            response.put("success", false);
+            response.put("error", e.getMessage());
+        }
+
+        return response;
+    }
+
+    /**
+     * 按前缀批量重置限流计数（SCAN + UNLINK）
+     */
+    @PostMapping("/reset/batch")
+    public Map<String, Object> resetByPrefix(@RequestParam String prefix) {
+        Map<String, Object> response = new HashMap<>();
+
+        try {
+            long removed = redisRateLimiter.resetByPrefix(prefix);
+            response.put("success", true);
+            response.put("removed", removed);
+            response.put("message", "已按前缀重置限流计数: " + prefix);
+        } catch (Exception e) {
+            response.put("success", false);
+            response.put("message", "重置失败: " + e.getMessage());
+        }
+
+        return response;
+    }
+
     /**
      * 重置限流计数
      */
@@ -211,6 +584,173 @@ public class RedisRateLimitController {
         }
     }
 
+    /**
+     * 查看热点限流 key（Top-K）
+     */
+    @GetMapping("/hot-keys")
+    public Map<String, Object> getHotKeys(@RequestParam(defaultValue = "10") int top) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("hotKeys", hotKeyTracker.topKeys(top));
+        response.put("timestamp", System.currentTimeMillis());
+        return response;
+    }
+
+    /**
+     * 查看 Lua 脚本加载与自检状态
+     */
+    @GetMapping("/scripts")
+    public Map<String, Object> getScripts() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("functionsEnabled", luaScriptRegistry.isFunctionsEnabled());
+        response.put("scripts", luaScriptRegistry.getStatus());
+        return response;
+    }
+
+    /**
+     * 重新加载 Lua 脚本并执行自检
+     */
+    @PostMapping("/scripts/reload")
+    public Map<String, Object> reloadScripts() {
+        Map<String, Object> response = new HashMap<>();
+
+        try {
+            luaScriptRegistry.loadAll();
+            luaScriptRegistry.selfTest();
+            response.put("success", true);
+            response.put("scripts", luaScriptRegistry.getStatus());
+        } catch (Exception e) {
+            response.put("success", false);
+            response.put("message", "重新加载失败: " + e.getMessage());
+        }
+
+        return response;
+    }
+
+    /**
+     * 查看限流器专用连接的写入时间与命令执行时间（没有连接池，借出等待固定为 0）
+     */
+    @GetMapping("/connection/stats")
+    public Map<String, Object> getConnectionStats() {
+        return limiterRedisConnection.getStats();
+    }
+
+    /**
+     * 限流器专用连接并发压测
+     * 
+     * 多个线程并发读取限流统计，压测前清空连接统计，压测后返回吞吐量以及
+     * 写入时间（共用连接时的排队）与命令执行时间的对比；与连接池借出等待的对比见 LimiterConnectionBenchmark
+     */
+    @GetMapping("/test/connection")
+    public Map<String, Object> testConnection(
+            @RequestParam(defaultValue = "32") int threads,
+            @RequestParam(defaultValue = "200") int requestsPerThread) {
+
+        log.info("========== 限流器连接并发压测 ==========");
+        limiterRedisConnection.resetStats();
+
+        CountDownLatch done = new CountDownLatch(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < threads; i++) {
+            executor.submit(() -> {
+                try {
+                    for (int j = 0; j < requestsPerThread; j++) {
+                        redisRateLimiter.getSlidingWindowCount("connection_test");
+                    }
+                } catch (Exception e) {
+                    log.error("压测请求失败: {}", e.getMessage());
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        try {
+            done.await(60, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long elapsedMillis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("threads", threads);
+        response.put("totalRequests", threads * requestsPerThread);
+        response.put("elapsedMillis", elapsedMillis);
+        response.put("throughputPerSecond", threads * requestsPerThread * 1000L / elapsedMillis);
+        response.put("connection", limiterRedisConnection.getStats());
+        return response;
+    }
+
+    /**
+     * 注册影子限流策略（只评估、不执行）
+     *
+     * @param key        线上限流key
+     * @param algorithm  候选算法：SLIDING_WINDOW / TOKEN_BUCKET / FIXED_WINDOW
+     * @param limit      限流次数或桶容量
+     * @param windowSize 窗口大小（秒）
+     * @param rate       令牌生成速率（个/秒）
+     */
+    @PostMapping("/shadow")
+    public Map<String, Object> registerShadow(
+            @RequestParam String key,
+            @RequestParam(defaultValue = "SLIDING_WINDOW") RateLimitAlgorithm algorithm,
+            @RequestParam(defaultValue = "10") int limit,
+            @RequestParam(defaultValue = "1") int windowSize,
+            @RequestParam(defaultValue = "10") double rate) {
+
+        Map<String, Object> response = new HashMap<>();
+        if (algorithm == RateLimitAlgorithm.GUAVA || limit <= 0 || windowSize <= 0 || rate <= 0) {
+            response.put("success", false);
+            response.put("message", "影子限流仅支持 SLIDING_WINDOW / TOKEN_BUCKET / FIXED_WINDOW，且参数必须大于 0");
+            return response;
+        }
+
+        ShadowRateLimiter.ShadowPolicy policy = new ShadowRateLimiter.ShadowPolicy(key, algorithm, limit, windowSize, rate);
+        shadowRateLimiter.register(policy);
+        response.put("success", true);
+        response.put("policy", policy);
+        return response;
+    }
+
+    /**
+     * 移除影子限流策略
+     */
+    @PostMapping("/shadow/remove")
+    public Map<String, Object> removeShadow(@RequestParam String key) {
+        shadowRateLimiter.remove(key);
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("key", key);
+        return response;
+    }
+
+    /**
+     * 影子限流对比报告
+     */
+    @GetMapping("/shadow/report")
+    public Map<String, Object> shadowReport() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("dropped", shadowRateLimiter.getDropped());
+        response.put("policies", shadowRateLimiter.report());
+        return response;
+    }
+
+    /**
+     * 分布式公平配额状态（本实例份额及所有存活实例的心跳和积压）
+     */
+    @GetMapping("/quota")
+    public Map<String, Object> quotaStatus() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("quotas", quotaCoordinator.getStatus());
+        return response;
+    }
+
     /**
      * 检查 Redis 连接状态
      */
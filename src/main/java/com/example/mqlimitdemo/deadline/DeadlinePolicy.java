@@ -0,0 +1,51 @@
+package com.example.mqlimitdemo.deadline;
+
+import lombok.Data;
+
+/**
+ * 消息截止时间策略（每个消费者一份）
+ *
+ * @author demo
+ */
+@Data
+public class DeadlinePolicy {
+
+    /**
+     * 过期消息的处理方式
+     */
+    public enum Action {
+        /**
+         * 记录日志后直接确认
+         */
+        DROP,
+        /**
+         * 转发到过期消息 Topic 后确认，由下游对账或人工处理
+         */
+        FORWARD
+    }
+
+    /**
+     * 策略名称（统计和转发属性中使用）
+     */
+    private String name;
+
+    /**
+     * 是否启用；未启用时消息头中的截止时间也不生效
+     */
+    private boolean enabled = true;
+
+    /**
+     * 消息最长有效期（毫秒），从消息第一次发送的时间算起；0 表示只按消息头中的截止时间判断
+     */
+    private long maxAgeMillis;
+
+    /**
+     * 过期消息的处理方式
+     */
+    private Action action = Action.FORWARD;
+
+    /**
+     * 过期消息转发的 Topic（action 为 FORWARD 时使用）
+     */
+    private String expiredTopic;
+}
@@ -0,0 +1,234 @@
+package com.example.mqlimitdemo.deadline;
+
+import com.example.mqlimitdemo.producer.MessageProducer;
+import com.example.mqlimitdemo.service.ThrottledRetryService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 消息截止时间检查
+ *
+ * 限流期间积压不断增长，排在后面的消息轮到时可能已经没有业务价值（订单已超时关闭、验证码已失效等），
+ * 仍然为它们消耗稀缺的下游配额会让新消息等得更久。消费者在获取许可之前先检查截止时间：
+ * 1. 截止时间优先取消息属性 DEADLINE（绝对时间，毫秒时间戳），由生产者按业务设置
+ * 2. 没有 DEADLINE 时按策略的最长有效期计算：第一次发送时间 + maxAgeMillis；
+ *    限流重试重新发送的消息按属性 THROTTLE_ORIGIN_BORN_TIMESTAMP 取第一次发送的时间，不会因为重试而“变新”
+ * 3. 已过期的消息按策略丢弃或转发到过期消息 Topic，然后确认，不再获取许可
+ * 4. 阻塞等待许可的消费者最多等到截止时间，等不到就按过期处理（Guava tryAcquire 超时不会预占令牌）
+ *
+ * 每条过期消息省下一个许可，统计中的 savedPermits 即为省下的配额。
+ * 发送时间取自生产者主机时钟，主机时钟偏差会直接影响判断，有效期不宜设置得过短
+ *
+ * @author demo
+ */
+@Slf4j
+@Component
+public class MessageDeadlineGuard {
+
+    /**
+     * 消息属性：截止时间（毫秒时间戳）
+     */
+    public static final String PROPERTY_DEADLINE = "DEADLINE";
+
+    /**
+     * 转发属性：过期策略、原 Topic、原消息ID、过期时长（毫秒）
+     */
+    public static final String PROPERTY_EXPIRED_POLICY = "EXPIRED_POLICY";
+    public static final String PROPERTY_EXPIRED_ORIGIN_TOPIC = "EXPIRED_ORIGIN_TOPIC";
+    public static final String PROPERTY_EXPIRED_ORIGIN_MSG_ID = "EXPIRED_ORIGIN_MSG_ID";
+    public static final String PROPERTY_EXPIRED_LATE_MILLIS = "EXPIRED_LATE_MILLIS";
+
+    @Resource
+    private MessageProducer messageProducer;
+
+    /**
+     * 策略未指定时使用的过期消息 Topic
+     */
+    @Value("${rate-limiter.deadline.expired-topic:expired-message-topic}")
+    private String defaultExpiredTopic;
+
+    private final ConcurrentMap<String, DeadlinePolicy> policies = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Counters> counters = new ConcurrentHashMap<>();
+
+    /**
+     * 注册消费者的截止时间策略
+     */
+    public void register(DeadlinePolicy policy) {
+        if (policy.getExpiredTopic() == null || policy.getExpiredTopic().isEmpty()) {
+            policy.setExpiredTopic(defaultExpiredTopic);
+        }
+        policies.put(policy.getName(), policy);
+        counters.computeIfAbsent(policy.getName(), n -> new Counters());
+        log.info("注册消息截止时间策略 - {}", policy);
+    }
+
+    /**
+     * 消息的截止时间（毫秒时间戳），没有截止时间返回 Long.MAX_VALUE
+     */
+    public long deadlineOf(String policyName, MessageExt message) {
+        DeadlinePolicy policy = policies.get(policyName);
+        if (policy == null || !policy.isEnabled()) {
+            return Long.MAX_VALUE;
+        }
+        long deadline = parseLong(message.getUserProperty(PROPERTY_DEADLINE));
+        if (deadline > 0) {
+            return deadline;
+        }
+        if (policy.getMaxAgeMillis() <= 0) {
+            return Long.MAX_VALUE;
+        }
+        long born = parseLong(message.getUserProperty(ThrottledRetryService.PROPERTY_ORIGIN_BORN_TIMESTAMP));
+        if (born <= 0) {
+            born = message.getBornTimestamp();
+        }
+        return born + policy.getMaxAgeMillis();
+    }
+
+    /**
+     * 距截止时间的剩余毫秒数（已过期时小于等于 0），没有截止时间返回 Long.MAX_VALUE
+     */
+    public long remainingMillis(String policyName, MessageExt message) {
+        long deadline = deadlineOf(policyName, message);
+        return deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.currentTimeMillis();
+    }
+
+    /**
+     * 获取许可前检查：已过期的消息按策略丢弃或转发
+     *
+     * @return true 消息已过期并已处理，调用方直接确认，不再获取许可；false 继续正常处理
+     * @throws IllegalStateException 过期消息转发失败，交给 RocketMQ 重试
+     */
+    public boolean rejectIfExpired(String policyName, MessageExt message) {
+        Counters stats = counters.get(policyName);
+        if (stats != null) {
+            stats.checked.increment();
+        }
+        long remaining = remainingMillis(policyName, message);
+        if (remaining > 0) {
+            return false;
+        }
+        stats.expiredBeforeAcquire.increment();
+        expire(policyName, message, -remaining, "获取许可前已过期");
+        return true;
+    }
+
+    /**
+     * 等待许可直到截止时间仍未拿到：按过期处理
+     *
+     * @throws IllegalStateException 过期消息转发失败，交给 RocketMQ 重试
+     */
+    public void rejectAfterWait(String policyName, MessageExt message) {
+        counters.get(policyName).expiredWhileWaiting.increment();
+        expire(policyName, message, Math.max(0, -remainingMillis(policyName, message)), "截止时间前未拿到许可");
+    }
+
+    private void expire(String policyName, MessageExt message, long lateMillis, String reason) {
+        DeadlinePolicy policy = policies.get(policyName);
+        Counters stats = counters.get(policyName);
+        stats.lateMillis.add(lateMillis);
+
+        if (policy.getAction() == DeadlinePolicy.Action.DROP) {
+            stats.dropped.increment();
+            log.warn("⌛ 消息已过期（{}），丢弃 - 策略: {}, MsgId: {}, 超时: {} ms",
+                    reason, policyName, message.getMsgId(), lateMillis);
+            return;
+        }
+
+        Message forward = copyForForward(policy.getExpiredTopic(), message);
+        forward.putUserProperty(PROPERTY_EXPIRED_POLICY, policyName);
+        forward.putUserProperty(PROPERTY_EXPIRED_ORIGIN_TOPIC, message.getTopic());
+        String originMsgId = message.getUserProperty(ThrottledRetryService.PROPERTY_ORIGIN_MSG_ID);
+        forward.putUserProperty(PROPERTY_EXPIRED_ORIGIN_MSG_ID, originMsgId != null ? originMsgId : message.getMsgId());
+        forward.putUserProperty(PROPERTY_EXPIRED_LATE_MILLIS, String.valueOf(lateMillis));
+        try {
+            messageProducer.sendRawMessage(forward);
+            stats.forwarded.increment();
+            log.warn("⌛ 消息已过期（{}），转发到 {} - 策略: {}, MsgId: {}, 超时: {} ms",
+                    reason, forward.getTopic(), policyName, message.getMsgId(), lateMillis);
+        } catch (Exception e) {
+            stats.forwardFailures.increment();
+            log.error("❌ 过期消息转发失败，交给 RocketMQ 重试 - MsgId: {}, error: {}", message.getMsgId(), e.getMessage());
+            throw new IllegalStateException("过期消息转发失败: " + message.getMsgId(), e);
+        }
+    }
+
+    /**
+     * 转发消息：byte[] 消息体原样转发，保留 Tag、KEYS 和全部用户属性（CODEC 等），系统属性由 Broker 重新生成
+     */
+    private static Message copyForForward(String topic, MessageExt message) {
+        Message forward = new Message(topic, message.getTags(), message.getKeys(), message.getBody());
+        for (Map.Entry<String, String> property : message.getProperties().entrySet()) {
+            if (!MessageConst.STRING_HASH_SET.contains(property.getKey())) {
+                forward.putUserProperty(property.getKey(), property.getValue());
+            }
+        }
+        return forward;
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 截止时间统计（按策略）
+     */
+    public Map<String, Object> getStats() {
+        long totalExpired = 0;
+        Map<String, Object> byPolicy = new LinkedHashMap<>();
+        for (Map.Entry<String, DeadlinePolicy> entry : policies.entrySet()) {
+            DeadlinePolicy policy = entry.getValue();
+            Counters stats = counters.get(entry.getKey());
+            long expired = stats.expiredBeforeAcquire.sum() + stats.expiredWhileWaiting.sum();
+            totalExpired += expired;
+
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("enabled", policy.isEnabled());
+            item.put("maxAgeMillis", policy.getMaxAgeMillis());
+            item.put("action", policy.getAction());
+            item.put("expiredTopic", policy.getExpiredTopic());
+            item.put("checked", stats.checked.sum());
+            item.put("expiredBeforeAcquire", stats.expiredBeforeAcquire.sum());
+            item.put("expiredWhileWaiting", stats.expiredWhileWaiting.sum());
+            item.put("forwarded", stats.forwarded.sum());
+            item.put("dropped", stats.dropped.sum());
+            item.put("forwardFailures", stats.forwardFailures.sum());
+            item.put("savedPermits", expired);
+            item.put("avgLateMillis", expired == 0 ? 0 : stats.lateMillis.sum() / expired);
+            byPolicy.put(entry.getKey(), item);
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("expired", totalExpired);
+        result.put("savedPermits", totalExpired);
+        result.put("policies", byPolicy);
+        return result;
+    }
+
+    private static class Counters {
+        final LongAdder checked = new LongAdder();
+        final LongAdder expiredBeforeAcquire = new LongAdder();
+        final LongAdder expiredWhileWaiting = new LongAdder();
+        final LongAdder forwarded = new LongAdder();
+        final LongAdder dropped = new LongAdder();
+        final LongAdder forwardFailures = new LongAdder();
+        final LongAdder lateMillis = new LongAdder();
+    }
+}
@@ -0,0 +1,267 @@
+package com.example.mqlimitdemo.dedup;
+
+import com.example.mqlimitdemo.limiter.LuaScriptRegistry;
+import com.example.mqlimitdemo.limiter.QuotaCoordinator;
+import com.example.mqlimitdemo.limiter.RedisRateLimiter;
+import com.example.mqlimitdemo.service.ThrottledRetryService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 消息去重器
+ *
+ * 消费失败抛出异常会触发重投递，已经调用过第三方接口的消息重投递后会再占用一个许可、再调用一次下游。
+ * 去重放在获取许可之前，分两级：
+ * 1. 本地按时间分桶的布隆过滤器：记录本实例处理成功的消息（重投递通常回到同一实例）；
+ *    布隆过滤器有误判，命中后仍要由 Redis 确认是 DONE 才丢弃，误判的消息按 Redis 结果正常处理
+ * 2. Redis（message_dedup.lua）为准：抢占处理权，key 不存在才写入本实例租约；
+ *    已是 DONE 说明处理过，未命中本地时同时写入本地布隆过滤器
+ *
+ * 调用约定：{@link #begin} 返回 NEW 的消息，处理成功后调用 {@link #complete}，
+ * 失败（包括被限流后延迟重试）调用 {@link #release} 释放处理权，否则重投递的消息要等租约过期才能处理
+ *
+ * Redis 不可用时去重退化为只有本地布隆过滤器：命中按重复消息确认，未命中放行（按新消息处理），与限流器的降级策略一致
+ *
+ * @author demo
+ */
+@Slf4j
+@Component
+public class MessageDeduplicator {
+
+    private static final String DEDUP_SCRIPT = "message_dedup";
+
+    private static final String KEY_PREFIX = RedisRateLimiter.KEY_PREFIX + "dedup:";
+
+    /**
+     * 去重结果
+     */
+    public enum Decision {
+        /**
+         * 新消息，本实例获得处理权
+         */
+        NEW,
+        /**
+         * 已处理成功的重复消息，直接确认
+         */
+        DUPLICATE,
+        /**
+         * 其他消费者正在处理，稍后重试
+         */
+        IN_PROGRESS
+    }
+
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
+
+    @Resource
+    private QuotaCoordinator quotaCoordinator;
+
+    /**
+     * 是否启用去重
+     */
+    @Value("${rate-limiter.dedup.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 业务幂等 Key 所在的消息属性（为空时按消息 ID 去重）
+     */
+    @Value("${rate-limiter.dedup.key-property:}")
+    private String keyProperty;
+
+    /**
+     * 处理中租约（秒）：实例宕机后租约过期，消息可被重新处理
+     */
+    @Value("${rate-limiter.dedup.processing-ttl-seconds:60}")
+    private long processingTtlSeconds;
+
+    /**
+     * 处理成功记录保留时间（秒）
+     */
+    @Value("${rate-limiter.dedup.done-ttl-seconds:86400}")
+    private long doneTtlSeconds;
+
+    /**
+     * 布隆过滤器桶数和每个桶覆盖的时间（秒），合计为本地去重的时间范围
+     */
+    @Value("${rate-limiter.dedup.bloom.buckets:6}")
+    private int bloomBuckets;
+
+    @Value("${rate-limiter.dedup.bloom.bucket-seconds:600}")
+    private long bloomBucketSeconds;
+
+    /**
+     * 每个桶预计写入的消息数和误判率
+     */
+    @Value("${rate-limiter.dedup.bloom.expected-insertions:100000}")
+    private int bloomExpectedInsertions;
+
+    @Value("${rate-limiter.dedup.bloom.fpp:0.000001}")
+    private double bloomFpp;
+
+    private TimeBucketedBloomFilter bloomFilter;
+
+    private final LongAdder newMessages = new LongAdder();
+    private final LongAdder localDuplicates = new LongAdder();
+    private final LongAdder redisDuplicates = new LongAdder();
+    private final LongAdder bloomFalsePositives = new LongAdder();
+    private final LongAdder inProgress = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder redisErrors = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        bloomFilter = new TimeBucketedBloomFilter(bloomBuckets, TimeUnit.SECONDS.toMillis(bloomBucketSeconds),
+                bloomExpectedInsertions, bloomFpp);
+        // 临时 key 不存在，release 返回 0
+        luaScriptRegistry.registerSelfTest(DEDUP_SCRIPT, "release", "self-test", "1000");
+        log.info("消息去重已初始化 - enabled: {}, 本地布隆过滤器: {} 桶 × {} 秒（每桶 {} 条，误判率 {}），处理租约: {} 秒，成功记录保留: {} 秒",
+                enabled, bloomBuckets, bloomBucketSeconds, bloomExpectedInsertions, bloomFpp,
+                processingTtlSeconds, doneTtlSeconds);
+    }
+
+    /**
+     * 去重 Key：识别同一条消息的重投递
+     * 1. 配置了 key-property 时取该属性（生产者显式设置的业务幂等 Key）
+     * 2. 限流重试重新发送的消息取原始 MsgId
+     * 3. 否则取客户端生成的唯一 ID（UNIQ_KEY，RocketMQ 重投递时保持不变），最后是 MsgId
+     *
+     * 不使用 KEYS：KEYS 是索引 Key，通常是 orderId，同一订单的创建、支付、发货等不同事件共用同一个值
+     */
+    public String dedupKey(MessageExt message) {
+        if (!keyProperty.isEmpty()) {
+            String businessKey = message.getUserProperty(keyProperty);
+            if (businessKey != null && !businessKey.isEmpty()) {
+                return businessKey;
+            }
+        }
+        String originMsgId = message.getUserProperty(ThrottledRetryService.PROPERTY_ORIGIN_MSG_ID);
+        if (originMsgId != null) {
+            return originMsgId;
+        }
+        String uniqueKey = message.getProperty(MessageConst.PROPERTY_UNIQ_CLIENT_MESSAGE_ID_KEYIDX);
+        return uniqueKey != null ? uniqueKey : message.getMsgId();
+    }
+
+    /**
+     * 开始处理前检查是否重复，新消息同时获得处理权
+     *
+     * @param scope 去重范围（通常是消费组，不同消费组各自处理同一条消息）
+     * @param key   去重 Key
+     */
+    public Decision begin(String scope, String key) {
+        if (!enabled) {
+            return Decision.NEW;
+        }
+        String member = scope + ":" + key;
+        // 本地命中可能是误判，仍由 Redis 确认；claim 在误判时同时为本实例抢占处理权
+        boolean localHit = bloomFilter.mightContain(member, System.currentTimeMillis());
+
+        Long result;
+        try {
+            result = luaScriptRegistry.execute(DEDUP_SCRIPT, Collections.singletonList(KEY_PREFIX + member),
+                    "claim", quotaCoordinator.getInstanceId(),
+                    String.valueOf(TimeUnit.SECONDS.toMillis(processingTtlSeconds)));
+        } catch (Exception e) {
+            redisErrors.increment();
+            if (localHit) {
+                log.warn("⚠️ 去重检查失败，本地布隆过滤器命中，按重复消息处理 - key: {}, error: {}", member, e.getMessage());
+                localDuplicates.increment();
+                return Decision.DUPLICATE;
+            }
+            log.warn("⚠️ 去重检查失败，按新消息处理 - key: {}, error: {}", member, e.getMessage());
+            newMessages.increment();
+            return Decision.NEW;
+        }
+
+        if (result != null && result == 2) {
+            if (localHit) {
+                localDuplicates.increment();
+            } else {
+                redisDuplicates.increment();
+                bloomFilter.put(member, System.currentTimeMillis());
+            }
+            return Decision.DUPLICATE;
+        }
+        if (localHit) {
+            bloomFalsePositives.increment();
+            log.debug("本地布隆过滤器命中但 Redis 中没有处理成功记录，按 Redis 结果处理 - key: {}", member);
+        }
+        if (result != null && result == 3) {
+            inProgress.increment();
+            return Decision.IN_PROGRESS;
+        }
+        newMessages.increment();
+        return Decision.NEW;
+    }
+
+    /**
+     * 处理成功，记录为已处理
+     */
+    public void complete(String scope, String key) {
+        if (!enabled) {
+            return;
+        }
+        String member = scope + ":" + key;
+        bloomFilter.put(member, System.currentTimeMillis());
+        completed.increment();
+        try {
+            luaScriptRegistry.execute(DEDUP_SCRIPT, Collections.singletonList(KEY_PREFIX + member),
+                    "done", quotaCoordinator.getInstanceId(), String.valueOf(TimeUnit.SECONDS.toMillis(doneTtlSeconds)));
+        } catch (Exception e) {
+            redisErrors.increment();
+            log.warn("⚠️ 去重记录写入失败，仅本地记录 - key: {}, error: {}", member, e.getMessage());
+        }
+    }
+
+    /**
+     * 处理失败，释放处理权，重投递的消息可以立即重新处理
+     */
+    public void release(String scope, String key) {
+        if (!enabled) {
+            return;
+        }
+        String member = scope + ":" + key;
+        released.increment();
+        try {
+            luaScriptRegistry.execute(DEDUP_SCRIPT, Collections.singletonList(KEY_PREFIX + member),
+                    "release", quotaCoordinator.getInstanceId(), "0");
+        } catch (Exception e) {
+            redisErrors.increment();
+            log.warn("⚠️ 释放去重处理权失败，等待租约过期 - key: {}, error: {}", member, e.getMessage());
+        }
+    }
+
+    /**
+     * 去重统计
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("newMessages", newMessages.sum());
+        stats.put("localDuplicates", localDuplicates.sum());
+        stats.put("redisDuplicates", redisDuplicates.sum());
+        stats.put("bloomFalsePositives", bloomFalsePositives.sum());
+        stats.put("inProgress", inProgress.sum());
+        stats.put("completed", completed.sum());
+        stats.put("released", released.sum());
+        stats.put("redisErrors", redisErrors.sum());
+        long duplicates = localDuplicates.sum() + redisDuplicates.sum();
+        stats.put("localHitRate", duplicates == 0 ? "0.00%"
+                : String.format("%.2f%%", localDuplicates.sum() * 100.0 / duplicates));
+        stats.put("bloomWindowSeconds", TimeUnit.MILLISECONDS.toSeconds(bloomFilter.getWindowMillis()));
+        stats.put("bloomApproximateElements", bloomFilter.approximateElementCount(System.currentTimeMillis()));
+        return stats;
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.mqlimitdemo.dedup;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 按时间分桶的布隆过滤器
+ *
+ * 普通布隆过滤器只能添加不能删除，持续写入后误判率不断升高。按时间分成 buckets 个桶：
+ * 1. 写入当前时间所在的桶，查询时检查最近 buckets 个桶，覆盖 buckets × bucketMillis 的时间范围
+ * 2. 进入新的时间段时复用最老的桶（整桶替换），过期数据一次性丢弃，内存固定
+ *
+ * 桶的替换在写入时按需 CAS 完成，不需要后台线程；Guava BloomFilter 的 put / mightContain 本身线程安全
+ *
+ * @author demo
+ */
+class TimeBucketedBloomFilter {
+
+    private final int buckets;
+    private final long bucketMillis;
+    private final int expectedInsertions;
+    private final double fpp;
+
+    private final AtomicReferenceArray<Bucket> slots;
+
+    /**
+     * @param buckets            桶数
+     * @param bucketMillis       每个桶覆盖的时间（毫秒）
+     * @param expectedInsertions 每个桶预计写入的元素数
+     * @param fpp                每个桶的误判率
+     */
+    TimeBucketedBloomFilter(int buckets, long bucketMillis, int expectedInsertions, double fpp) {
+        this.buckets = Math.max(1, buckets);
+        this.bucketMillis = Math.max(1, bucketMillis);
+        this.expectedInsertions = Math.max(1, expectedInsertions);
+        this.fpp = fpp;
+        this.slots = new AtomicReferenceArray<>(this.buckets);
+    }
+
+    /**
+     * 写入当前时间所在的桶
+     */
+    void put(String value, long nowMillis) {
+        long epoch = nowMillis / bucketMillis;
+        int index = (int) (epoch % buckets);
+        Bucket bucket = slots.get(index);
+        while (bucket == null || bucket.epoch < epoch) {
+            Bucket fresh = new Bucket(epoch, BloomFilter.create(
+                    Funnels.stringFunnel(StandardCharsets.UTF_8), expectedInsertions, fpp));
+            if (slots.compareAndSet(index, bucket, fresh)) {
+                bucket = fresh;
+                break;
+            }
+            bucket = slots.get(index);
+        }
+        bucket.filter.put(value);
+    }
+
+    /**
+     * 最近 buckets 个时间段内是否可能写入过
+     *
+     * @return false 一定没有写入过；true 可能写入过（存在误判）
+     */
+    boolean mightContain(String value, long nowMillis) {
+        long oldest = nowMillis / bucketMillis - buckets + 1;
+        for (int i = 0; i < buckets; i++) {
+            Bucket bucket = slots.get(i);
+            if (bucket != null && bucket.epoch >= oldest && bucket.filter.mightContain(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 有效桶内估计的元素数
+     */
+    long approximateElementCount(long nowMillis) {
+        long oldest = nowMillis / bucketMillis - buckets + 1;
+        long count = 0;
+        for (int i = 0; i < buckets; i++) {
+            Bucket bucket = slots.get(i);
+            if (bucket != null && bucket.epoch >= oldest) {
+                count += bucket.filter.approximateElementCount();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 覆盖的时间范围（毫秒）
+     */
+    long getWindowMillis() {
+        return buckets * bucketMillis;
+    }
+
+    private static class Bucket {
+        private final long epoch;
+        private final BloomFilter<CharSequence> filter;
+
+        Bucket(long epoch, BloomFilter<CharSequence> filter) {
+            this.epoch = epoch;
+            this.filter = filter;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.example.mqlimitdemo.limiter;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.MultiGauge;
+import io.micrometer.core.instrument.Tags;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.Collectors;
+
+/**
+ * 限流热点 key 探测器
+ *
+ * 无需在 Redis 上执行 MONITOR，进程内统计每个限流key的决策数和拒绝数，找出 Top-K 热点 key
+ *
+ * 实现：
+ * 1. Count-Min Sketch 计数（depth 行 × width 列，AtomicLongArray，内存固定）
+ * 2. 候选表：容量为 2 × topK 的槽位数组，key 哈希到两个槽位，估计值更大的 key 通过 CAS 抢占槽位
+ * 3. 按时间窗口轮换两份 Sketch：当前窗口计数，上一个完整窗口用于计算速率；
+ *    轮换和指标刷新在后台线程执行
+ *
+ * 热路径只有数组 CAS/累加，不加锁、不分配对象（key 的 hashCode 由 String 缓存）
+ *
+ * @author demo
+ */
+@Slf4j
+@Component
+public class HotKeyTracker {
+
+    private static final int DECISIONS = 0;
+    private static final int DENIALS = 1;
+
+    private static final long[] SEEDS = {
+            0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0x27D4EB2F165667C5L,
+            0x94D049BB133111EBL, 0xBF58476D1CE4E5B9L, 0x2545F4914F6CDD1DL, 0x5851F42D4C957F2DL
+    };
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 是否开启热点 key 探测
+     */
+    @Value("${rate-limiter.hot-key.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * Top-K 数量
+     */
+    @Value("${rate-limiter.hot-key.top-k:10}")
+    private int topK;
+
+    /**
+     * 统计窗口（秒）
+     */
+    @Value("${rate-limiter.hot-key.window-seconds:10}")
+    private int windowSeconds;
+
+    /**
+     * Sketch 宽度（会向上取整为 2 的幂）
+     */
+    @Value("${rate-limiter.hot-key.sketch-width:1024}")
+    private int sketchWidth;
+
+    /**
+     * Sketch 深度（哈希函数个数，最多 8）
+     */
+    @Value("${rate-limiter.hot-key.sketch-depth:4}")
+    private int sketchDepth;
+
+    private int width;
+    private int depth;
+    private int mask;
+
+    /**
+     * 两个窗口的 Sketch，每个包含决策数和拒绝数两组计数器
+     */
+    private AtomicLongArray[] sketches;
+
+    /**
+     * 当前窗口使用的 Sketch 下标
+     */
+    private volatile int current;
+
+    /**
+     * 候选热点 key
+     */
+    private AtomicReferenceArray<String> candidates;
+
+    private ScheduledExecutorService scheduler;
+
+    private MultiGauge decisionRateGauge;
+    private MultiGauge denialRateGauge;
+
+    @PostConstruct
+    public void init() {
+        width = Integer.highestOneBit(Math.max(16, sketchWidth - 1) << 1);
+        depth = Math.max(1, Math.min(SEEDS.length, sketchDepth));
+        mask = width - 1;
+        sketches = new AtomicLongArray[]{
+                new AtomicLongArray(2 * depth * width),
+                new AtomicLongArray(2 * depth * width)
+        };
+        candidates = new AtomicReferenceArray<>(Math.max(2, topK * 2));
+
+        decisionRateGauge = MultiGauge.builder("rate_limiter.hot_key.decision_rate")
+                .description("热点 key 每秒决策数（上一个窗口）")
+                .register(meterRegistry);
+        denialRateGauge = MultiGauge.builder("rate_limiter.hot_key.denial_rate")
+                .description("热点 key 每秒拒绝数（上一个窗口）")
+                .register(meterRegistry);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "hot-key-rotate");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::rotate, windowSeconds, windowSeconds, TimeUnit.SECONDS);
+        log.info("热点 key 探测已初始化 - enabled: {}, topK: {}, sketch: {}x{}, 窗口: {} 秒",
+                enabled, topK, depth, width, windowSeconds);
+    }
+
+    /**
+     * 记录一次限流决策
+     *
+     * @param key     限流key
+     * @param allowed 是否放行
+     */
+    public void record(String key, boolean allowed) {
+        if (!enabled) {
+            return;
+        }
+        AtomicLongArray sketch = sketches[current];
+        int hash = key.hashCode();
+
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int index = index(DECISIONS, row, hash);
+            estimate = Math.min(estimate, sketch.incrementAndGet(index));
+            if (!allowed) {
+                sketch.incrementAndGet(index(DENIALS, row, hash));
+            }
+        }
+
+        offerCandidate(key, hash, estimate, sketch);
+    }
+
+    /**
+     * 尝试把 key 放入候选表
+     *
+     * 两个候选槽位中，已是该 key 则结束；有空位则占用；否则替换估计值更小的占用者
+     */
+    private void offerCandidate(String key, int hash, long estimate, AtomicLongArray sketch) {
+        int slots = candidates.length();
+        int first = (int) ((mix(hash, SEEDS[0]) & Integer.MAX_VALUE) % slots);
+        int second = (int) ((mix(hash, SEEDS[1]) & Integer.MAX_VALUE) % slots);
+
+        String a = candidates.get(first);
+        if (key.equals(a)) {
+            return;
+        }
+        String b = candidates.get(second);
+        if (key.equals(b)) {
+            return;
+        }
+        if (a == null) {
+            candidates.compareAndSet(first, null, key);
+            return;
+        }
+        if (b == null) {
+            candidates.compareAndSet(second, null, key);
+            return;
+        }
+
+        long estimateA = estimate(sketch, DECISIONS, a.hashCode());
+        long estimateB = estimate(sketch, DECISIONS, b.hashCode());
+        if (estimateA <= estimateB) {
+            if (estimate > estimateA) {
+                candidates.compareAndSet(first, a, key);
+            }
+        } else if (estimate > estimateB) {
+            candidates.compareAndSet(second, b, key);
+        }
+    }
+
+    /**
+     * 获取当前 Top-K 热点 key
+     *
+     * 按当前窗口和上一个窗口的决策数之和排序，速率取上一个完整窗口的值
+     */
+    public List<HotKey> topKeys(int limit) {
+        AtomicLongArray currentSketch = sketches[current];
+        AtomicLongArray previousSketch = sketches[1 - current];
+
+        Set<String> keys = new LinkedHashSet<>();
+        for (int i = 0; i < candidates.length(); i++) {
+            String key = candidates.get(i);
+            if (key != null) {
+                keys.add(key);
+            }
+        }
+
+        List<HotKey> hotKeys = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            int hash = key.hashCode();
+            long currentDecisions = estimate(currentSketch, DECISIONS, hash);
+            long previousDecisions = estimate(previousSketch, DECISIONS, hash);
+            long currentDenials = estimate(currentSketch, DENIALS, hash);
+            long previousDenials = estimate(previousSketch, DENIALS, hash);
+            if (currentDecisions + previousDecisions == 0) {
+                continue;
+            }
+            hotKeys.add(new HotKey(key,
+                    currentDecisions + previousDecisions,
+                    currentDenials + previousDenials,
+                    previousDecisions * 1.0 / windowSeconds,
+                    previousDenials * 1.0 / windowSeconds));
+        }
+
+        return hotKeys.stream()
+                .sorted(Comparator.comparingLong(HotKey::getDecisions).reversed())
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 窗口轮换：清空两个窗口前的 Sketch 作为新的当前窗口，并刷新指标
+     */
+    private void rotate() {
+        try {
+            int next = 1 - current;
+            AtomicLongArray sketch = sketches[next];
+            for (int i = 0; i < sketch.length(); i++) {
+                sketch.set(i, 0);
+            }
+            current = next;
+            refreshMetrics();
+        } catch (Exception e) {
+            log.error("热点 key 窗口轮换失败: {}", e.getMessage(), e);
+        }
+    }
+
+    private void refreshMetrics() {
+        List<HotKey> hotKeys = topKeys(topK);
+        decisionRateGauge.register(hotKeys.stream()
+                .map(k -> MultiGauge.Row.of(Tags.of("key", k.getKey()), k.getDecisionRate()))
+                .collect(Collectors.toList()), true);
+        denialRateGauge.register(hotKeys.stream()
+                .map(k -> MultiGauge.Row.of(Tags.of("key", k.getKey()), k.getDenialRate()))
+                .collect(Collectors.toList()), true);
+    }
+
+    private long estimate(AtomicLongArray sketch, int counter, int hash) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, sketch.get(index(counter, row, hash)));
+        }
+        return estimate;
+    }
+
+    private int index(int counter, int row, int hash) {
+        return (counter * depth + row) * width + (int) (mix(hash, SEEDS[row]) & mask);
+    }
+
+    /**
+     * 64 位混淆（SplitMix64 终结函数），为每行生成独立的哈希
+     */
+    private static long mix(int hash, long seed) {
+        long z = hash * 0x9E3779B97F4A7C15L + seed;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * 热点 key
+     */
+    @Data
+    @AllArgsConstructor
+    public static class HotKey {
+        /**
+         * 限流key
+         */
+        private String key;
+        /**
+         * 当前及上一个窗口的决策数（估计值，可能偏大）
+         */
+        private long decisions;
+        /**
+         * 当前及上一个窗口的拒绝数（估计值，可能偏大）
+         */
+        private long denials;
+        /**
+         * 每秒决策数（上一个窗口）
+         */
+        private double decisionRate;
+        /**
+         * 每秒拒绝数（上一个窗口）
+         */
+        private double denialRate;
+    }
+}
@@ -0,0 +1,217 @@
+package com.example.mqlimitdemo.limiter;
+
+import io.lettuce.core.AbstractRedisClient;
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.api.StatefulConnection;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.cluster.RedisClusterClient;
+import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 限流器专用 Redis 连接
+ *
+ * 与应用其他 Redis 流量（RedisTemplate、连接池）隔离：
+ * 1. 单个多路复用的 Lettuce 连接，线程安全，所有消费线程共享，不存在借还连接池的排队；
+ *    单机/哨兵模式使用 {@link RedisClient}，集群模式使用 {@link RedisClusterClient}（命令按槽路由）
+ * 2. 自动批量刷写：关闭逐条 flush，命令先写入缓冲区，攒够 maxBatchSize 条或等待
+ *    lingerMicros 微秒后一次性写出，多线程并发限流时合并系统调用和网络包
+ * 3. 统计每条命令的写入时间（从调用到命令写入连接，多线程共用连接时的排队）和执行时间（从写入连接到收到响应）。
+ *    这里没有借连接这一步，连接池的借出等待与命令时间的对比见测试中的 LimiterConnectionBenchmark
+ *
+ * @author demo
+ */
+@Slf4j
+public class LimiterRedisConnection {
+
+    private final AbstractRedisClient redisClient;
+
+    private final StatefulConnection<String, String> connection;
+
+    private final RedisClusterAsyncCommands<String, String> commands;
+
+    private final long timeoutMillis;
+
+    private final boolean batching;
+
+    private final int maxBatchSize;
+
+    private final long lingerMicros;
+
+    /**
+     * 已写入缓冲区、尚未 flush 的命令数
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final ScheduledExecutorService flusher;
+
+    private final LongAdder dispatchCount = new LongAdder();
+    private final LongAdder commandCount = new LongAdder();
+    private final LongAdder flushCount = new LongAdder();
+    private final LongAdder dispatchNanos = new LongAdder();
+    private final LongAdder commandNanos = new LongAdder();
+    private final LongAccumulator maxDispatchNanos = new LongAccumulator(Long::max, 0);
+    private final LongAccumulator maxCommandNanos = new LongAccumulator(Long::max, 0);
+
+    public LimiterRedisConnection(RedisClient redisClient, long timeoutMillis,
+                                  boolean batching, int maxBatchSize, long lingerMicros) {
+        this(redisClient, redisClient.connect(), timeoutMillis, batching, maxBatchSize, lingerMicros);
+    }
+
+    public LimiterRedisConnection(RedisClusterClient redisClient, long timeoutMillis,
+                                  boolean batching, int maxBatchSize, long lingerMicros) {
+        this(redisClient, redisClient.connect(), timeoutMillis, batching, maxBatchSize, lingerMicros);
+    }
+
+    private LimiterRedisConnection(AbstractRedisClient redisClient, StatefulConnection<String, String> connection,
+                                   long timeoutMillis, boolean batching, int maxBatchSize, long lingerMicros) {
+        this.redisClient = redisClient;
+        this.connection = connection;
+        this.commands = connection instanceof StatefulRedisClusterConnection
+                ? ((StatefulRedisClusterConnection<String, String>) connection).async()
+                : ((StatefulRedisConnection<String, String>) connection).async();
+        this.timeoutMillis = timeoutMillis;
+        this.batching = batching;
+        this.maxBatchSize = maxBatchSize;
+        this.lingerMicros = lingerMicros;
+
+        if (batching) {
+            connection.setAutoFlushCommands(false);
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "limiter-redis-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            flusher = null;
+        }
+        log.info("限流器 Redis 连接已建立 - 自动批量: {}, 批量大小: {}, 等待: {} 微秒",
+                batching, maxBatchSize, lingerMicros);
+    }
+
+    /**
+     * 同步执行命令并记录耗时
+     *
+     * @param command 基于异步命令接口发出的命令
+     * @return 命令结果
+     */
+    public <T> T execute(Function<RedisClusterAsyncCommands<String, String>, RedisFuture<T>> command) {
+        long start = System.nanoTime();
+        RedisFuture<T> future = dispatch(command);
+        long dispatched = System.nanoTime();
+
+        T result = LettuceFutures.awaitOrCancel(future, timeoutMillis, TimeUnit.MILLISECONDS);
+        long completed = System.nanoTime();
+
+        record(dispatched - start, completed - dispatched);
+        return result;
+    }
+
+    /**
+     * 异步发出命令（不等待结果）
+     *
+     * 连续调用多次即构成 pipeline，批量模式下结束后可调用 {@link #flush()} 立即写出
+     */
+    public <T> RedisFuture<T> dispatch(Function<RedisClusterAsyncCommands<String, String>, RedisFuture<T>> command) {
+        RedisFuture<T> future = command.apply(commands);
+        dispatchCount.increment();
+        if (batching) {
+            // 命令先进入缓冲区再计数，flush 时清零的计数一定已在缓冲区中
+            int count = pending.incrementAndGet();
+            if (count >= maxBatchSize) {
+                flush();
+            } else if (count == 1) {
+                flusher.schedule(this::flush, lingerMicros, TimeUnit.MICROSECONDS);
+            }
+        }
+        return future;
+    }
+
+    /**
+     * 立即写出缓冲区中的命令
+     */
+    public void flush() {
+        if (batching && pending.getAndSet(0) > 0) {
+            connection.flushCommands();
+            flushCount.increment();
+        }
+    }
+
+    /**
+     * 等待异步命令结果
+     */
+    public <T> T await(RedisFuture<T> future) {
+        return LettuceFutures.awaitOrCancel(future, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void record(long dispatch, long command) {
+        commandCount.increment();
+        dispatchNanos.add(dispatch);
+        commandNanos.add(command);
+        maxDispatchNanos.accumulate(dispatch);
+        maxCommandNanos.accumulate(command);
+    }
+
+    /**
+     * 获取连接统计
+     *
+     * dispatched：发出的命令总数（含 pipeline 批量命令）
+     * commands：同步执行并计时的命令数
+     * dispatchMicros：从调用到命令写入连接的时间（多线程共用连接时的排队）
+     * commandMicros：从写入连接到收到响应的时间（含批量等待、网络往返和 Redis 执行）
+     */
+    public Map<String, Object> getStats() {
+        long count = commandCount.sum();
+        long flushes = flushCount.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("batching", batching);
+        stats.put("maxBatchSize", maxBatchSize);
+        stats.put("lingerMicros", lingerMicros);
+        stats.put("dispatched", dispatchCount.sum());
+        stats.put("commands", count);
+        stats.put("flushes", flushes);
+        stats.put("avgBatchSize", flushes > 0 ? String.format("%.2f", dispatchCount.sum() * 1.0 / flushes) : "-");
+        stats.put("avgDispatchMicros", count > 0 ? dispatchNanos.sum() / count / 1000 : 0);
+        stats.put("maxDispatchMicros", maxDispatchNanos.get() / 1000);
+        stats.put("avgCommandMicros", count > 0 ? commandNanos.sum() / count / 1000 : 0);
+        stats.put("maxCommandMicros", maxCommandNanos.get() / 1000);
+        return stats;
+    }
+
+    /**
+     * 重置连接统计
+     */
+    public void resetStats() {
+        dispatchCount.reset();
+        commandCount.reset();
+        flushCount.reset();
+        dispatchNanos.reset();
+        commandNanos.reset();
+        maxDispatchNanos.reset();
+        maxCommandNanos.reset();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (flusher != null) {
+            flush();
+            flusher.shutdownNow();
+        }
+        connection.close();
+        redisClient.shutdown();
+    }
+}
@@ -0,0 +1,454 @@
+package com.example.mqlimitdemo.limiter;
+
+import io.lettuce.core.RedisCommandExecutionException;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.RedisNoScriptException;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.event.connection.ConnectionActivatedEvent;
+import io.lettuce.core.output.IntegerOutput;
+import io.lettuce.core.output.StatusOutput;
+import io.lettuce.core.protocol.CommandArgs;
+import io.lettuce.core.protocol.ProtocolKeyword;
+import io.lettuce.core.resource.ClientResources;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
+import reactor.core.Disposable;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lua 脚本注册中心
+ *
+ * 1. 启动时发现 resources/lua/ 下的所有脚本，脚本名即文件名（不含 .lua）
+ * 2. 应用就绪后 SCRIPT LOAD 全部脚本。连接建立（重连、主从切换）或执行时遇到 NOSCRIPT 后，
+ *    等连接事件平静 1 秒再检查一次（SCRIPT EXISTS），只加载缺失的脚本：
+ *    重连风暴合并为一次检查，脚本仍在缓存中时不重复上传
+ * 3. 可选 Redis Functions 模式：把全部脚本作为一个 Function 库（Redis 7+）安装，
+ *    通过 FCALL 调用
+ * 4. 启动自检：对注册了自检参数的脚本，使用临时 key 实际执行一次并校验返回值（默认 0 或 1，可注册期望值）
+ *
+ * 约定：脚本返回值均为整数，命令通过限流器专用连接 {@link LimiterRedisConnection} 发出
+ *
+ * @author demo
+ */
+@Slf4j
+public class LuaScriptRegistry {
+
+    /**
+     * Function 库名称
+     */
+    public static final String LIBRARY_NAME = "mq_limit";
+
+    /**
+     * 自检使用的临时 key 前缀
+     */
+    private static final String SELF_TEST_KEY_PREFIX = RedisRateLimiter.KEY_PREFIX + "self_test:";
+
+    /**
+     * 重新加载前等待连接事件平静的时间（毫秒）
+     */
+    private static final long RELOAD_DEBOUNCE_MILLIS = 1000;
+
+    private final LimiterRedisConnection limiterRedisConnection;
+
+    private final ClientResources clientResources;
+
+    private final String locationPattern;
+
+    private final boolean functionsEnabled;
+
+    private final boolean selfTestEnabled;
+
+    /**
+     * 脚本名 -> 脚本
+     */
+    private final Map<String, DefaultRedisScript<Long>> scripts = new LinkedHashMap<>();
+
+    /**
+     * 脚本名 -> 自检参数（ARGV）
+     */
+    private final Map<String, String[]> selfTestArgs = new ConcurrentHashMap<>();
+
+    /**
+     * 脚本名 -> 自检期望返回值（未注册时返回 0 或 1 即通过）
+     */
+    private final Map<String, Long> selfTestExpected = new ConcurrentHashMap<>();
+
+    /**
+     * 脚本名 -> 自检结果
+     */
+    private final Map<String, String> selfTestResults = new ConcurrentHashMap<>();
+
+    /**
+     * 重连后的重新加载在独立线程执行，不能阻塞 Lettuce 的事件线程
+     */
+    private final ScheduledExecutorService reloadExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "lua-script-reload");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 是否已有待执行的重新加载任务（多个连接同时重连时合并为一次）
+     */
+    private final AtomicBoolean reloadPending = new AtomicBoolean(false);
+
+    /**
+     * 最近一次触发重新加载的时间（System.nanoTime）
+     */
+    private volatile long lastReloadRequest;
+
+    private volatile long lastLoadTime;
+
+    private Disposable eventSubscription;
+
+    public LuaScriptRegistry(LimiterRedisConnection limiterRedisConnection, ClientResources clientResources,
+                             String locationPattern, boolean functionsEnabled, boolean selfTestEnabled) {
+        this.limiterRedisConnection = limiterRedisConnection;
+        this.clientResources = clientResources;
+        this.locationPattern = locationPattern;
+        this.functionsEnabled = functionsEnabled;
+        this.selfTestEnabled = selfTestEnabled;
+        discover();
+    }
+
+    /**
+     * 发现脚本目录下的所有 Lua 脚本
+     */
+    private void discover() {
+        try {
+            Resource[] resources = new PathMatchingResourcePatternResolver().getResources(locationPattern);
+            for (Resource resource : resources) {
+                String filename = resource.getFilename();
+                if (filename == null || !filename.endsWith(".lua")) {
+                    continue;
+                }
+                DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+                script.setScriptSource(new ResourceScriptSource(resource));
+                script.setResultType(Long.class);
+                scripts.put(filename.substring(0, filename.length() - ".lua".length()), script);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("扫描 Lua 脚本失败: " + locationPattern, e);
+        }
+        log.info("发现 Lua 脚本 {} 个：{}", scripts.size(), scripts.keySet());
+    }
+
+    /**
+     * 注册脚本自检参数
+     *
+     * 自检时以一个临时 key 作为 KEYS[1]，args 作为 ARGV 执行脚本
+     */
+    public void registerSelfTest(String name, String... args) {
+        requireScript(name);
+        selfTestArgs.put(name, args);
+        selfTestExpected.remove(name);
+    }
+
+    /**
+     * 注册脚本自检参数及期望返回值（返回值不是 0/1 的脚本，例如配额份额）
+     */
+    public void registerSelfTest(String name, long expected, String... args) {
+        registerSelfTest(name, args);
+        selfTestExpected.put(name, expected);
+    }
+
+    /**
+     * 应用就绪后预加载脚本并执行自检，同时监听连接建立事件
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        try {
+            loadAll();
+            if (selfTestEnabled) {
+                selfTest();
+            }
+        } catch (Exception e) {
+            // Redis 不可用时不影响启动，执行时仍会退回 EVAL 上传脚本
+            log.error("Lua 脚本预加载失败: {}", e.getMessage(), e);
+        }
+
+        eventSubscription = clientResources.eventBus().get()
+                .filter(event -> event instanceof ConnectionActivatedEvent)
+                .subscribe(event -> scheduleReload());
+    }
+
+    /**
+     * 连接建立（重连、故障转移）或遇到 NOSCRIPT 后重新加载脚本
+     *
+     * 距最近一次触发满 RELOAD_DEBOUNCE_MILLIS 才执行，期间的触发合并为一次
+     */
+    private void scheduleReload() {
+        lastReloadRequest = System.nanoTime();
+        if (reloadPending.compareAndSet(false, true)) {
+            reloadExecutor.schedule(this::reloadWhenQuiet, RELOAD_DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void reloadWhenQuiet() {
+        long quietMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReloadRequest);
+        if (quietMillis < RELOAD_DEBOUNCE_MILLIS) {
+            reloadExecutor.schedule(this::reloadWhenQuiet, RELOAD_DEBOUNCE_MILLIS - quietMillis, TimeUnit.MILLISECONDS);
+            return;
+        }
+        reloadPending.set(false);
+        try {
+            loadMissing();
+        } catch (Exception e) {
+            log.error("重新加载 Lua 脚本失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 只加载 Redis 脚本缓存中缺失的脚本
+     *
+     * 脚本模式：一次 SCRIPT EXISTS 检查全部脚本，只 SCRIPT LOAD 缺失的；
+     * Functions 模式：函数库随 RDB/AOF 持久化和主从复制，无法按函数检查，整库重新安装
+     *
+     * @return 加载的脚本数
+     */
+    public int loadMissing() {
+        if (functionsEnabled) {
+            loadAll();
+            return scripts.size();
+        }
+        List<String> names = new ArrayList<>(scripts.keySet());
+        String[] shas = names.stream().map(name -> scripts.get(name).getSha1()).toArray(String[]::new);
+        List<Boolean> exists = limiterRedisConnection.execute(commands -> commands.scriptExists(shas));
+
+        List<String> missing = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            if (!Boolean.TRUE.equals(exists.get(i))) {
+                String body = scripts.get(names.get(i)).getScriptAsString();
+                limiterRedisConnection.execute(commands -> commands.scriptLoad(body));
+                missing.add(names.get(i));
+            }
+        }
+        if (!missing.isEmpty()) {
+            lastLoadTime = System.currentTimeMillis();
+            log.info("✅ 已重新加载缺失的 Lua 脚本：{}", missing);
+        }
+        return missing.size();
+    }
+
+    /**
+     * 加载全部脚本
+     *
+     * 脚本模式：SCRIPT LOAD 每个脚本，并校验返回的 SHA1
+     * Functions 模式：FUNCTION LOAD REPLACE 整个函数库
+     */
+    public void loadAll() {
+        if (functionsEnabled) {
+            String library = buildLibrary();
+            String name = limiterRedisConnection.execute(commands -> commands.dispatch(
+                    RedisKeyword.FUNCTION,
+                    new StatusOutput<>(StringCodec.UTF8),
+                    new CommandArgs<>(StringCodec.UTF8).add("LOAD").add("REPLACE").add(library)));
+            log.info("✅ 已安装 Redis Function 库：{}，函数：{}", name, scripts.keySet());
+        } else {
+            for (Map.Entry<String, DefaultRedisScript<Long>> entry : scripts.entrySet()) {
+                DefaultRedisScript<Long> script = entry.getValue();
+                String body = script.getScriptAsString();
+                String sha = limiterRedisConnection.execute(commands -> commands.scriptLoad(body));
+                if (!script.getSha1().equals(sha)) {
+                    throw new IllegalStateException("脚本 SHA1 不一致: " + entry.getKey());
+                }
+            }
+            log.info("✅ 已预加载 Lua 脚本：{}", scripts.keySet());
+        }
+        lastLoadTime = System.currentTimeMillis();
+    }
+
+    /**
+     * 执行脚本
+     *
+     * 脚本模式使用 EVALSHA（NOSCRIPT 时退回 EVAL），Functions 模式使用 FCALL
+     *
+     * @param name 脚本名（文件名，不含 .lua）
+     * @param keys KEYS
+     * @param args ARGV
+     * @return 脚本返回值
+     */
+    public Long execute(String name, List<String> keys, String... args) {
+        DefaultRedisScript<Long> script = requireScript(name);
+        if (!functionsEnabled) {
+            String[] keyArray = keys.toArray(new String[0]);
+            try {
+                return limiterRedisConnection.execute(commands ->
+                        commands.evalsha(script.getSha1(), ScriptOutputType.INTEGER, keyArray, args));
+            } catch (RedisNoScriptException e) {
+                // 预加载之前或脚本缓存被清空，退回 EVAL（同时会缓存脚本），其余缺失的脚本在后台补齐
+                log.warn("Lua 脚本未加载，使用 EVAL 执行: {}", name);
+                scheduleReload();
+                return limiterRedisConnection.execute(commands ->
+                        commands.eval(script.getScriptAsString(), ScriptOutputType.INTEGER, keyArray, args));
+            }
+        }
+
+        try {
+            return fcall(name, keys, args);
+        } catch (RedisCommandExecutionException e) {
+            if (e.getMessage() == null || !e.getMessage().contains("Function not found")) {
+                throw e;
+            }
+            // 函数库丢失（例如切换到未同步函数库的新主节点），重新安装后重试一次
+            log.warn("Redis Function 不存在，重新安装函数库: {}", name);
+            loadAll();
+            return fcall(name, keys, args);
+        }
+    }
+
+    /**
+     * 异步发出脚本调用（不等待结果），连续调用即构成 pipeline
+     *
+     * 不处理 NOSCRIPT 和函数不存在，调用方失败时可改用 {@link #execute} 重试
+     */
+    public RedisFuture<Long> dispatch(String name, List<String> keys, String... args) {
+        DefaultRedisScript<Long> script = requireScript(name);
+        if (!functionsEnabled) {
+            String[] keyArray = keys.toArray(new String[0]);
+            return limiterRedisConnection.dispatch(commands ->
+                    commands.evalsha(script.getSha1(), ScriptOutputType.INTEGER, keyArray, args));
+        }
+        CommandArgs<String, String> commandArgs = fcallArgs(name, keys, args);
+        return limiterRedisConnection.dispatch(commands ->
+                commands.dispatch(RedisKeyword.FCALL, new IntegerOutput<>(StringCodec.UTF8), commandArgs));
+    }
+
+    private Long fcall(String name, List<String> keys, String... args) {
+        CommandArgs<String, String> commandArgs = fcallArgs(name, keys, args);
+        return limiterRedisConnection.execute(commands ->
+                commands.dispatch(RedisKeyword.FCALL, new IntegerOutput<>(StringCodec.UTF8), commandArgs));
+    }
+
+    private static CommandArgs<String, String> fcallArgs(String name, List<String> keys, String... args) {
+        return new CommandArgs<>(StringCodec.UTF8)
+                .add(name)
+                .add(keys.size())
+                .addKeys(keys)
+                .addValues(args);
+    }
+
+    /**
+     * 启动自检：对每个注册了自检参数的脚本，使用临时 key 执行一次
+     *
+     * 脚本执行成功且返回值符合期望（未注册期望值时为 0 或 1）视为通过，执行后删除临时 key
+     */
+    public void selfTest() {
+        for (String name : scripts.keySet()) {
+            String[] args = selfTestArgs.get(name);
+            if (args == null) {
+                selfTestResults.put(name, "SKIPPED");
+                log.info("Lua 脚本自检跳过（未注册自检参数）：{}", name);
+                continue;
+            }
+
+            String scratchKey = SELF_TEST_KEY_PREFIX + name + ":" + UUID.randomUUID();
+            try {
+                Long result = execute(name, Collections.singletonList(scratchKey), args);
+                Long expected = selfTestExpected.get(name);
+                boolean passed = expected != null
+                        ? expected.equals(result)
+                        : result != null && (result == 0 || result == 1);
+                String expectation = expected != null ? String.valueOf(expected) : "0 或 1";
+                selfTestResults.put(name, passed ? "PASSED" : "FAILED: 返回值 " + result + "，期望 " + expectation);
+                if (passed) {
+                    log.info("✅ Lua 脚本自检通过：{}", name);
+                } else {
+                    log.error("❌ Lua 脚本自检失败：{}，返回值: {}，期望: {}", name, result, expectation);
+                }
+            } catch (Exception e) {
+                selfTestResults.put(name, "FAILED: " + e.getMessage());
+                log.error("❌ Lua 脚本自检失败：{}，异常: {}", name, e.getMessage());
+            } finally {
+                limiterRedisConnection.execute(commands -> commands.unlink(scratchKey));
+            }
+        }
+    }
+
+    /**
+     * 获取脚本状态
+     */
+    public List<Map<String, Object>> getStatus() {
+        List<Map<String, Object>> status = new ArrayList<>();
+        for (Map.Entry<String, DefaultRedisScript<Long>> entry : scripts.entrySet()) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("name", entry.getKey());
+            item.put("sha1", entry.getValue().getSha1());
+            item.put("mode", functionsEnabled ? "FCALL" : "EVALSHA");
+            item.put("selfTest", selfTestResults.getOrDefault(entry.getKey(), "NOT_RUN"));
+            item.put("lastLoadTime", lastLoadTime);
+            status.add(item);
+        }
+        return status;
+    }
+
+    public boolean isFunctionsEnabled() {
+        return functionsEnabled;
+    }
+
+    /**
+     * 把全部脚本拼装为 Function 库
+     *
+     * 每个脚本包装为同名函数，参数命名为 KEYS、ARGV，脚本内容无需修改
+     */
+    private String buildLibrary() {
+        StringBuilder library = new StringBuilder("#!lua name=").append(LIBRARY_NAME).append('\n');
+        for (Map.Entry<String, DefaultRedisScript<Long>> entry : scripts.entrySet()) {
+            library.append("redis.register_function('").append(entry.getKey())
+                    .append("', function(KEYS, ARGV)\n")
+                    .append(entry.getValue().getScriptAsString())
+                    .append("\nend)\n");
+        }
+        return library.toString();
+    }
+
+    private DefaultRedisScript<Long> requireScript(String name) {
+        DefaultRedisScript<Long> script = scripts.get(name);
+        if (script == null) {
+            throw new IllegalArgumentException("Lua 脚本不存在: " + name);
+        }
+        return script;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (eventSubscription != null) {
+            eventSubscription.dispose();
+        }
+        reloadExecutor.shutdownNow();
+    }
+
+    /**
+     * Lettuce 6.1 未内置的 Redis 7 命令
+     */
+    private enum RedisKeyword implements ProtocolKeyword {
+        FUNCTION, FCALL;
+
+        private final byte[] bytes = name().getBytes(StandardCharsets.US_ASCII);
+
+        @Override
+        public byte[] getBytes() {
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.example.mqlimitdemo.limiter;
+
+import com.google.common.util.concurrent.RateLimiter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 分布式公平配额协调器
+ *
+ * 多个实例共享同一个全局限流（如 third_party_api 每秒 5 次）时，逐条消息争抢 Redis 许可会让
+ * 最快的实例拿走大部分许可，其余实例空转重试。协调器改为：
+ * 1. 每个实例按 heartbeatMillis 周期执行 fair_share_quota.lua，上报心跳和本地积压消息数
+ * 2. 脚本移除心跳超时的实例，按积压加权计算本实例份额（各实例份额之和等于全局速率）
+ * 3. 实例用本地 Guava RateLimiter 按份额限流，每条消息不访问 Redis；
+ *    Redis 调用次数从"每条消息一次"降为"每个实例每个心跳周期一次"
+ * 4. 实例加入、退出（@PreDestroy 主动移除，异常退出则心跳超时）后，下一个心跳周期内各实例份额自动重新平衡
+ * 5. 启动预热：多个实例同时启动时，先心跳的实例看不到其他实例，会分到全部配额。
+ *    注册后的 instance-ttl-millis 内（同时启动的实例都已至少心跳一次），份额不超过 全局速率 / expected-instances，
+ *    首次心跳前也按该值限流
+ *
+ * 每个 key 只有一个速率：由 {@link #register} 声明（目前只有 DownstreamScheduler 声明 third_party_api），
+ * 用不同速率重复注册同一个 key 时抛出异常，不再按先注册者为准。
+ * 其他组件只通过 {@link #addBacklog} 登记积压：本实例上报的积压是该 key 下所有登记方积压之和
+ * （消费者的本地积压包含已提交到调度器、尚在排队的消息，与调度器排队数有重叠，只影响实例间的分配比例），
+ * 各登记方的积压在状态接口中分别列出
+ *
+ * Redis 不可用时沿用上一次的份额（与 RedisRateLimiter 的降级策略一致，不阻塞消费）
+ *
+ * @author demo
+ */
+@Slf4j
+@Component
+public class QuotaCoordinator {
+
+    private static final String QUOTA_SCRIPT = "fair_share_quota";
+
+    private static final String QUOTA_PREFIX = RedisRateLimiter.KEY_PREFIX + "quota:";
+
+    /**
+     * 份额下限（个/秒），Guava RateLimiter 要求速率大于 0
+     */
+    private static final double MIN_SHARE = 0.001;
+
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
+
+    @Resource
+    private LimiterRedisConnection limiterRedisConnection;
+
+    /**
+     * 心跳间隔（毫秒）
+     */
+    @Value("${rate-limiter.quota.heartbeat-millis:1000}")
+    private long heartbeatMillis;
+
+    /**
+     * 实例心跳超时（毫秒）
+     */
+    @Value("${rate-limiter.quota.instance-ttl-millis:5000}")
+    private long instanceTtlMillis;
+
+    /**
+     * 保底份额占比：这部分配额在存活实例间平分，避免没有积压的实例拿不到许可
+     */
+    @Value("${rate-limiter.quota.min-share-fraction:0.2}")
+    private double minShareFraction;
+
+    /**
+     * 预期实例数：启动预热期间本实例份额不超过 全局速率 / 预期实例数
+     */
+    @Value("${rate-limiter.quota.expected-instances:1}")
+    private int expectedInstances;
+
+    private final String instanceId = buildInstanceId();
+
+    private final ConcurrentMap<String, QuotaShare> quotas = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        // 临时 key 中只有自检实例，份额为全局速率 5/s，返回 5000（千分之一许可/秒）
+        luaScriptRegistry.registerSelfTest(QUOTA_SCRIPT, 5000, "self-test", "0", "5", "1000", "0.2");
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "quota-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::heartbeatAll, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        log.info("分布式配额协调器已启动 - 实例: {}, 心跳: {} ms, 超时: {} ms, 保底占比: {}, 预期实例数: {}",
+                instanceId, heartbeatMillis, instanceTtlMillis, minShareFraction, expectedInstances);
+    }
+
+    /**
+     * 注册全局配额
+     *
+     * 注册时立即执行一次心跳获取份额；同一个 key 只能按同一速率注册
+     *
+     * @param key                    限流key
+     * @param globalPermitsPerSecond 全局速率（所有实例合计）
+     * @param registrant             登记方名称（状态接口中按名称列出积压）
+     * @param backlog                登记方积压消息数
+     * @throws IllegalStateException 该 key 已按不同速率注册
+     */
+    public void register(String key, double globalPermitsPerSecond, String registrant, LongSupplier backlog) {
+        QuotaShare quota = quotas.computeIfAbsent(key, k -> new QuotaShare(k, globalPermitsPerSecond,
+                globalPermitsPerSecond / Math.max(1, expectedInstances),
+                System.currentTimeMillis() + instanceTtlMillis));
+        if (Double.compare(quota.globalPermitsPerSecond, globalPermitsPerSecond) != 0) {
+            throw new IllegalStateException(String.format("全局配额 %s 已按 %s/s 注册，%s 不能改为 %s/s",
+                    key, quota.globalPermitsPerSecond, registrant, globalPermitsPerSecond));
+        }
+        quota.backlogs.put(registrant, backlog);
+        heartbeat(quota);
+        log.info("已注册全局配额 - key: {}, 登记方: {}, 全局速率: {}/s, 本实例份额: {}/s（预热期上限 {}/s）",
+                key, registrant, quota.globalPermitsPerSecond, String.format("%.3f", quota.share),
+                String.format("%.3f", quota.warmupShare));
+    }
+
+    /**
+     * 为已注册的全局配额登记积压（不声明速率）
+     *
+     * @param key        限流key
+     * @param registrant 登记方名称
+     * @param backlog    登记方积压消息数
+     * @throws IllegalStateException 该 key 尚未注册
+     */
+    public void addBacklog(String key, String registrant, LongSupplier backlog) {
+        QuotaShare quota = quotas.get(key);
+        if (quota == null) {
+            throw new IllegalStateException("全局配额 " + key + " 尚未注册，" + registrant + " 无法登记积压");
+        }
+        quota.backlogs.put(registrant, backlog);
+        log.info("已登记配额积压 - key: {}, 登记方: {}", key, registrant);
+    }
+
+    /**
+     * 在本实例份额内获取许可（不访问 Redis）
+     *
+     * @return 超时前获取到许可返回 true；key 未注册时直接放行
+     */
+    public boolean tryAcquire(String key, long timeout, TimeUnit unit) {
+        return tryAcquire(key, 1, timeout, unit);
+    }
+
+    /**
+     * 在本实例份额内一次获取多个许可（批量消费时整批只调用一次）
+     */
+    public boolean tryAcquire(String key, int permits, long timeout, TimeUnit unit) {
+        QuotaShare quota = quotas.get(key);
+        if (quota == null) {
+            return true;
+        }
+        boolean acquired = quota.limiter.tryAcquire(permits, timeout, unit);
+        (acquired ? quota.acquired : quota.denied).add(permits);
+        return acquired;
+    }
+
+    /**
+     * 本实例ID（主机名:进程号:随机串），其他需要区分实例的组件共用
+     */
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    /**
+     * 本实例当前份额（个/秒），key 未注册时返回 -1
+     */
+    public double getShare(String key) {
+        QuotaShare quota = quotas.get(key);
+        return quota != null ? quota.share : -1;
+    }
+
+    private void heartbeatAll() {
+        for (QuotaShare quota : quotas.values()) {
+            heartbeat(quota);
+        }
+    }
+
+    private void heartbeat(QuotaShare quota) {
+        try {
+            long backlog = 0;
+            Map<String, Long> backlogs = new LinkedHashMap<>();
+            for (Map.Entry<String, LongSupplier> entry : quota.backlogs.entrySet()) {
+                long value = Math.max(0, entry.getValue().getAsLong());
+                backlogs.put(entry.getKey(), value);
+                backlog += value;
+            }
+            Long milliShare = luaScriptRegistry.execute(QUOTA_SCRIPT,
+                    Collections.singletonList(QUOTA_PREFIX + quota.key),
+                    instanceId,
+                    String.valueOf(backlog),
+                    String.valueOf(quota.globalPermitsPerSecond),
+                    String.valueOf(instanceTtlMillis),
+                    String.valueOf(minShareFraction));
+            quota.heartbeats.increment();
+            quota.lastBacklog = backlog;
+            quota.lastBacklogs = backlogs;
+
+            double share = Math.max(MIN_SHARE, milliShare / 1000.0);
+            if (quota.inWarmup()) {
+                // 同时启动的其他实例可能还没有心跳，暂不超过预期实例数下的平均份额
+                share = Math.min(share, quota.warmupShare);
+            }
+            if (Math.abs(share - quota.share) >= MIN_SHARE) {
+                log.info("配额重新平衡 - key: {}, 份额: {}/s -> {}/s, 本实例积压: {}",
+                        quota.key, String.format("%.3f", quota.share), String.format("%.3f", share), backlog);
+                quota.share = share;
+                quota.limiter.setRate(share);
+            }
+        } catch (Exception e) {
+            quota.heartbeatFailures.increment();
+            log.error("配额心跳失败，沿用当前份额 - key: {}, 份额: {}/s, error: {}",
+                    quota.key, String.format("%.3f", quota.share), e.getMessage());
+        }
+    }
+
+    /**
+     * 配额状态：本实例份额和统计，以及 Redis 中登记的所有存活实例
+     */
+    public List<Map<String, Object>> getStatus() {
+        List<Map<String, Object>> statuses = new ArrayList<>();
+        for (QuotaShare quota : quotas.values()) {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("key", quota.key);
+            status.put("instanceId", instanceId);
+            status.put("globalPermitsPerSecond", quota.globalPermitsPerSecond);
+            status.put("sharePerSecond", String.format("%.3f", quota.share));
+            status.put("warmup", quota.inWarmup());
+            status.put("warmupSharePerSecond", String.format("%.3f", quota.warmupShare));
+            status.put("backlog", quota.lastBacklog);
+            status.put("backlogs", quota.lastBacklogs);
+            status.put("acquired", quota.acquired.sum());
+            status.put("denied", quota.denied.sum());
+            status.put("heartbeats", quota.heartbeats.sum());
+            status.put("heartbeatFailures", quota.heartbeatFailures.sum());
+            try {
+                Map<String, String> instances = limiterRedisConnection.execute(commands ->
+                        commands.hgetall(QUOTA_PREFIX + quota.key));
+                status.put("instances", instances);
+            } catch (Exception e) {
+                status.put("instances", "查询失败: " + e.getMessage());
+            }
+            statuses.add(status);
+        }
+        return statuses;
+    }
+
+    /**
+     * 退出时主动移除本实例，其他实例下一个心跳周期即可分到释放的配额
+     */
+    @PreDestroy
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        for (QuotaShare quota : quotas.values()) {
+            try {
+                limiterRedisConnection.execute(commands -> commands.hdel(QUOTA_PREFIX + quota.key, instanceId));
+            } catch (Exception e) {
+                log.warn("移除配额实例失败，等待心跳超时 - key: {}, error: {}", quota.key, e.getMessage());
+            }
+        }
+    }
+
+    private static String buildInstanceId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            host = "unknown";
+        }
+        String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+        return host + ":" + pid + ":" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    /**
+     * 单个全局配额在本实例的份额
+     */
+    private static final class QuotaShare {
+        private final String key;
+        private final double globalPermitsPerSecond;
+        private final Map<String, LongSupplier> backlogs = new ConcurrentHashMap<>();
+        private final RateLimiter limiter;
+        private final double warmupShare;
+        private final long warmupUntil;
+
+        private final LongAdder acquired = new LongAdder();
+        private final LongAdder denied = new LongAdder();
+        private final LongAdder heartbeats = new LongAdder();
+        private final LongAdder heartbeatFailures = new LongAdder();
+
+        private volatile double share;
+        private volatile long lastBacklog;
+        private volatile Map<String, Long> lastBacklogs = Collections.emptyMap();
+
+        private QuotaShare(String key, double globalPermitsPerSecond, double warmupShare, long warmupUntil) {
+            this.key = key;
+            this.globalPermitsPerSecond = globalPermitsPerSecond;
+            this.warmupShare = Math.max(MIN_SHARE, warmupShare);
+            this.warmupUntil = warmupUntil;
+            // 首次心跳成功前按预期实例数下的平均份额放行，多个实例同时启动时合计不超过全局速率
+            this.share = this.warmupShare;
+            this.limiter = RateLimiter.create(this.warmupShare);
+        }
+
+        private boolean inWarmup() {
+            return System.currentTimeMillis() < warmupUntil;
+        }
+    }
+}
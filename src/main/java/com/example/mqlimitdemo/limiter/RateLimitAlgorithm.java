@@ -0,0 +1,42 @@
+package com.example.mqlimitdemo.limiter;
+
+/**
+ * 限流算法
+ *
+ * @author demo
+ */
+public enum RateLimitAlgorithm {
+
+    /**
+     * Redis 滑动窗口
+     */
+    SLIDING_WINDOW("sliding_window"),
+
+    /**
+     * Redis 令牌桶
+     */
+    TOKEN_BUCKET("token_bucket"),
+
+    /**
+     * Redis 固定窗口
+     */
+    FIXED_WINDOW("fixed_window"),
+
+    /**
+     * Guava 本地令牌桶
+     */
+    GUAVA("guava");
+
+    private final String tag;
+
+    RateLimitAlgorithm(String tag) {
+        this.tag = tag;
+    }
+
+    /**
+     * 指标标签值
+     */
+    public String getTag() {
+        return tag;
+    }
+}
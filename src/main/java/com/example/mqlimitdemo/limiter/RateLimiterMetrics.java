@@ -0,0 +1,208 @@
+package com.example.mqlimitdemo.limiter;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 限流器指标（Micrometer）
+ * 
+ * 指标按 algorithm + policy 打标签，不使用原始 key，避免按用户/租户维度的 key 撑爆时间序列：
+ * policy 取限流key中第一个 ':' 之前的部分，例如 user:1001 -> user；
+ * 不同 policy 超过 {@link #MAX_POLICIES} 个后统一归入 other
+ * 
+ * 指标：
+ * 1. rate_limiter_decisions_total{outcome=allowed|denied} - 限流决策数
+ * 2. rate_limiter_redis_latency_seconds - Redis 脚本耗时直方图
+ * 3. rate_limiter_permit_wait_seconds - 获取许可的等待时间
+ * 4. rate_limiter_fallback_total - Redis 异常降级放行次数
+ * 5. rate_limiter_permit_limit / rate_limiter_permit_utilization - 配置速率与上一秒利用率
+ * 
+ * 热路径只做一次 ConcurrentHashMap 查找和若干 LongAdder 累加，不加锁
+ *
+ * @author demo
+ */
+@Component
+public class RateLimiterMetrics {
+
+    /**
+     * 最多区分的 policy 数量
+     */
+    static final int MAX_POLICIES = 100;
+
+    private static final String OTHER_POLICY = "other";
+
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * 按算法分组的 policy -> 指标
+     */
+    private final ConcurrentMap<String, PolicyMeters>[] meters;
+
+    private final AtomicLong policyCount = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public RateLimiterMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.meters = new ConcurrentMap[RateLimitAlgorithm.values().length];
+        for (int i = 0; i < meters.length; i++) {
+            meters[i] = new ConcurrentHashMap<>();
+        }
+    }
+
+    /**
+     * 记录一次限流决策
+     * 
+     * @param algorithm      限流算法
+     * @param key            限流key
+     * @param allowed        是否放行
+     * @param redisNanos     Redis 调用耗时（纳秒），本地限流传 -1
+     * @param limitPerSecond 配置的每秒许可数
+     */
+    public void recordDecision(RateLimitAlgorithm algorithm, String key, boolean allowed,
+                               long redisNanos, double limitPerSecond) {
+        PolicyMeters policy = policy(algorithm, key);
+        policy.limitPerSecond = limitPerSecond;
+        if (allowed) {
+            policy.allowed.increment();
+            policy.recordAllowed(System.currentTimeMillis() / 1000);
+        } else {
+            policy.denied.increment();
+        }
+        if (redisNanos >= 0) {
+            policy.redisLatency.record(redisNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 记录 Redis 异常导致的降级放行
+     */
+    public void recordFallback(RateLimitAlgorithm algorithm, String key) {
+        policy(algorithm, key).fallback.increment();
+    }
+
+    /**
+     * 记录获取许可的等待时间
+     */
+    public void recordPermitWait(RateLimitAlgorithm algorithm, String key, long waitNanos) {
+        policy(algorithm, key).permitWait.record(waitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 从限流key中提取 policy
+     */
+    static String policyOf(String key) {
+        int index = key.indexOf(':');
+        return index > 0 ? key.substring(0, index) : key;
+    }
+
+    private PolicyMeters policy(RateLimitAlgorithm algorithm, String key) {
+        ConcurrentMap<String, PolicyMeters> byPolicy = meters[algorithm.ordinal()];
+        String name = policyOf(key);
+        PolicyMeters policy = byPolicy.get(name);
+        if (policy != null) {
+            return policy;
+        }
+        if (policyCount.get() >= MAX_POLICIES) {
+            name = OTHER_POLICY;
+            policy = byPolicy.get(name);
+            if (policy != null) {
+                return policy;
+            }
+        }
+        String policyName = name;
+        return byPolicy.computeIfAbsent(policyName, p -> {
+            policyCount.incrementAndGet();
+            return new PolicyMeters(algorithm, p);
+        });
+    }
+
+    /**
+     * 单个 algorithm + policy 的指标
+     */
+    private final class PolicyMeters {
+
+        private final Counter allowed;
+        private final Counter denied;
+        private final Counter fallback;
+        private final Timer redisLatency;
+        private final Timer permitWait;
+
+        private volatile double limitPerSecond;
+
+        /**
+         * 当前秒及其放行数，上一秒的放行数
+         */
+        private final AtomicLong currentSecond = new AtomicLong();
+        private final LongAdder currentAllowed = new LongAdder();
+        private volatile long lastSecondAllowed;
+
+        PolicyMeters(RateLimitAlgorithm algorithm, String policy) {
+            String alg = algorithm.getTag();
+            allowed = Counter.builder("rate_limiter.decisions")
+                    .description("限流决策数")
+                    .tags("algorithm", alg, "policy", policy, "outcome", "allowed")
+                    .register(meterRegistry);
+            denied = Counter.builder("rate_limiter.decisions")
+                    .description("限流决策数")
+                    .tags("algorithm", alg, "policy", policy, "outcome", "denied")
+                    .register(meterRegistry);
+            fallback = Counter.builder("rate_limiter.fallback")
+                    .description("Redis 异常降级放行次数")
+                    .tags("algorithm", alg, "policy", policy)
+                    .register(meterRegistry);
+            redisLatency = Timer.builder("rate_limiter.redis.latency")
+                    .description("Redis 限流脚本耗时")
+                    .tags("algorithm", alg, "policy", policy)
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(Duration.ofNanos(100_000))
+                    .maximumExpectedValue(Duration.ofSeconds(1))
+                    .register(meterRegistry);
+            permitWait = Timer.builder("rate_limiter.permit.wait")
+                    .description("获取许可的等待时间")
+                    .tags("algorithm", alg, "policy", policy)
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(Duration.ofMillis(1))
+                    .maximumExpectedValue(Duration.ofSeconds(10))
+                    .register(meterRegistry);
+            Gauge.builder("rate_limiter.permit.limit", this, m -> m.limitPerSecond)
+                    .description("配置的每秒许可数")
+                    .tags("algorithm", alg, "policy", policy)
+                    .register(meterRegistry);
+            Gauge.builder("rate_limiter.permit.utilization", this, PolicyMeters::utilization)
+                    .description("上一秒放行数 / 配置的每秒许可数")
+                    .tags("algorithm", alg, "policy", policy)
+                    .register(meterRegistry);
+        }
+
+        void recordAllowed(long nowSecond) {
+            roll(nowSecond);
+            currentAllowed.increment();
+        }
+
+        double utilization() {
+            roll(System.currentTimeMillis() / 1000);
+            return limitPerSecond > 0 ? lastSecondAllowed / limitPerSecond : 0;
+        }
+
+        /**
+         * 进入新的一秒时，把当前秒的计数转为上一秒
+         */
+        private void roll(long nowSecond) {
+            long second = currentSecond.get();
+            if (nowSecond > second && currentSecond.compareAndSet(second, nowSecond)) {
+                long count = currentAllowed.sumThenReset();
+                lastSecondAllowed = nowSecond == second + 1 ? count : 0;
+            }
+        }
+    }
+}
@@ -1,14 +1,28 @@
 package com.example.mqlimitdemo.limiter;
 
+import io.lettuce.core.KeyScanCursor;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.ScanArgs;
+import io.lettuce.core.ScanCursor;
+import io.lettuce.core.ScoredValue;
+import lombok.AllArgsConstructor;
+import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.Instant;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.concurrent.TimeUnit;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 /**
  * 基于 Redis 的分布式限流器
@@ -18,7 +32,14 @@ import java.util.concurrent.TimeUnit;
  * 2. 令牌桶算法（适合流量整形）
  * 3. 固定窗口算法（简单高效）
  * 
- * Lua 脚本位置：resources/lua/
+ * Lua 脚本位置：resources/lua/，由 {@link LuaScriptRegistry} 统一加载和执行
+ * 
+ * Redis 连接：
+ * 使用限流器专用的多路复用连接 {@link LimiterRedisConnection}，不与 RedisTemplate 共用连接池
+ * 
+ * 时钟来源：
+ * 默认使用客户端时间；开启 rate-limiter.redis.server-time 后，脚本内通过
+ * redis.call('TIME') 读取 Redis 服务器时间，多节点部署时不受主机时钟偏移影响
  *
  * @author demo
  */
@@ -26,14 +47,78 @@ import java.util.concurrent.TimeUnit;
 @Component
 public class RedisRateLimiter {
 
+    /**
+     * Redis key 前缀
+     */
+    public static final String KEY_PREFIX = "rate_limit:";
+    private static final String SLIDING_PREFIX = KEY_PREFIX + "sliding:";
+    private static final String TOKEN_PREFIX = KEY_PREFIX + "token:";
+    private static final String FIXED_PREFIX = KEY_PREFIX + "fixed:";
+
+    /**
+     * 三种算法的 key 前缀。去重、熔断、配额、影子限流和脚本自检也使用 rate_limit: 前缀，
+     * 批量扫描和重置只按这三个前缀逐个 SCAN，不会碰到它们的 key
+     */
+    private static final String[] LIMITER_PREFIXES = {SLIDING_PREFIX, TOKEN_PREFIX, FIXED_PREFIX};
+
+    /**
+     * 批量删除时每批 UNLINK 的 key 数量
+     */
+    private static final int UNLINK_BATCH_SIZE = 500;
+
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private LimiterRedisConnection limiterRedisConnection;
 
-    @Resource(name = "slidingWindowScript")
-    private RedisScript<Long> slidingWindowScript;
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
 
-    @Resource(name = "tokenBucketScript")
-    private RedisScript<Long> tokenBucketScript;
+    @Resource
+    private RateLimiterMetrics rateLimiterMetrics;
+
+    @Resource
+    private HotKeyTracker hotKeyTracker;
+
+    @Resource
+    private ShadowRateLimiter shadowRateLimiter;
+
+    private static final String SLIDING_WINDOW_SCRIPT = "sliding_window_rate_limit";
+    private static final String TOKEN_BUCKET_SCRIPT = "token_bucket_rate_limit";
+    private static final String FIXED_WINDOW_SCRIPT = "fixed_window_rate_limit";
+
+    /**
+     * 是否使用 Redis 服务器时间
+     */
+    @Value("${rate-limiter.redis.server-time:false}")
+    private boolean serverTime;
+
+    /**
+     * 客户端时间模式使用的时钟（测试中替换为带偏移的时钟，模拟节点之间的时钟偏移）
+     */
+    private Clock clock = Clock.systemUTC();
+
+    /**
+     * 滑动窗口请求标识：实例随机前缀 + 递增序号，客户端时间模式下同一毫秒的请求（包括其他实例的）不会互相覆盖
+     */
+    private final String requestIdPrefix = UUID.randomUUID().toString().substring(0, 8) + "-";
+
+    private final AtomicLong requestSequence = new AtomicLong();
+
+    /**
+     * 注册脚本自检参数（服务器时间模式，限流 5 次/秒）
+     */
+    @PostConstruct
+    public void registerSelfTests() {
+        luaScriptRegistry.registerSelfTest(SLIDING_WINDOW_SCRIPT, "", "", "5", "1");
+        luaScriptRegistry.registerSelfTest(TOKEN_BUCKET_SCRIPT, "", "5", "5");
+        luaScriptRegistry.registerSelfTest(FIXED_WINDOW_SCRIPT, "5", "1");
+    }
+
+    /**
+     * 是否使用 Redis 服务器时间
+     */
+    public boolean isServerTime() {
+        return serverTime;
+    }
 
     /**
      * 滑动窗口限流算法（推荐）
@@ -47,23 +132,34 @@ public class RedisRateLimiter {
      * @return true-允许通过，false-限流
      */
     public boolean slidingWindowRateLimit(String key, int limit, int windowSize) {
-        long now = Instant.now().toEpochMilli();
-        long windowStart = now - windowSize * 1000L;
+        String now = "";
+        String windowStart = "";
+        if (!serverTime) {
+            long clientNow = clock.millis();
+            now = String.valueOf(clientNow);
+            windowStart = String.valueOf(clientNow - windowSize * 1000L);
+        }
 
-        String redisKey = "rate_limit:sliding:" + key;
+        String redisKey = SLIDING_PREFIX + key;
 
         try {
             // 执行 Lua 脚本，保证原子性
-            Long result = stringRedisTemplate.execute(
-                slidingWindowScript,
+            long start = System.nanoTime();
+            Long result = luaScriptRegistry.execute(
+                SLIDING_WINDOW_SCRIPT,
                 Collections.singletonList(redisKey),
-                String.valueOf(now),
-                String.valueOf(windowStart),
+                now,
+                windowStart,
                 String.valueOf(limit),
-                String.valueOf(windowSize)
+                String.valueOf(windowSize),
+                requestIdPrefix + requestSequence.incrementAndGet()
             );
 
             boolean allowed = result != null && result == 1;
+            rateLimiterMetrics.recordDecision(RateLimitAlgorithm.SLIDING_WINDOW, key, allowed,
+                    System.nanoTime() - start, (double) limit / windowSize);
+            hotKeyTracker.record(key, allowed);
+            shadowRateLimiter.observe(key, allowed);
             
             if (allowed) {
                 log.debug("✅ 滑动窗口限流通过 - key: {}, limit: {}/{} 秒", key, limit, windowSize);
@@ -75,6 +171,7 @@ public class RedisRateLimiter {
 
         } catch (Exception e) {
             log.error("Redis 限流异常: {}", e.getMessage(), e);
+            rateLimiterMetrics.recordFallback(RateLimitAlgorithm.SLIDING_WINDOW, key);
             // 异常时允许通过，避免影响业务（可根据实际情况调整）
             return true;
         }
@@ -92,20 +189,25 @@ public class RedisRateLimiter {
      * @return true-允许通过，false-限流
      */
     public boolean tokenBucketRateLimit(String key, int limit, double rate) {
-        String redisKey = "rate_limit:token:" + key;
-        long now = Instant.now().toEpochMilli();
+        String redisKey = TOKEN_PREFIX + key;
+        String now = serverTime ? "" : String.valueOf(clock.millis());
 
         try {
             // 执行 Lua 脚本，保证原子性
-            Long result = stringRedisTemplate.execute(
-                tokenBucketScript,
+            long start = System.nanoTime();
+            Long result = luaScriptRegistry.execute(
+                TOKEN_BUCKET_SCRIPT,
                 Collections.singletonList(redisKey),
-                String.valueOf(now),
+                now,
                 String.valueOf(limit),
                 String.valueOf(rate)
             );
 
             boolean allowed = result != null && result == 1;
+            rateLimiterMetrics.recordDecision(RateLimitAlgorithm.TOKEN_BUCKET, key, allowed,
+                    System.nanoTime() - start, rate);
+            hotKeyTracker.record(key, allowed);
+            shadowRateLimiter.observe(key, allowed);
             
             if (allowed) {
                 log.debug("✅ 令牌桶限流通过 - key: {}, capacity: {}, rate: {}/秒", key, limit, rate);
@@ -117,6 +219,7 @@ public class RedisRateLimiter {
 
         } catch (Exception e) {
             log.error("Redis 限流异常: {}", e.getMessage(), e);
+            rateLimiterMetrics.recordFallback(RateLimitAlgorithm.TOKEN_BUCKET, key);
             return true;
         }
     }
@@ -132,12 +235,16 @@ public class RedisRateLimiter {
      * @return true-允许通过，false-限流
      */
     public boolean fixedWindowRateLimit(String key, int limit, int windowSize) {
+        if (serverTime) {
+            return fixedWindowRateLimitByServerTime(key, limit, windowSize);
+        }
+
         // 构建按时间窗口分段的key
-        long currentWindow = System.currentTimeMillis() / (windowSize * 1000);
-        String redisKey = "rate_limit:fixed:" + key + ":" + currentWindow;
+        String redisKey = fixedWindowKey(key, windowSize, false);
 
         try {
-            Long count = stringRedisTemplate.opsForValue().increment(redisKey);
+            long start = System.nanoTime();
+            Long count = limiterRedisConnection.execute(commands -> commands.incr(redisKey));
             
             if (count == null) {
                 return true;
@@ -145,10 +252,14 @@ public class RedisRateLimiter {
 
             // 第一次设置过期时间
             if (count == 1) {
-                stringRedisTemplate.expire(redisKey, windowSize, TimeUnit.SECONDS);
+                limiterRedisConnection.execute(commands -> commands.expire(redisKey, windowSize));
             }
 
             boolean allowed = count <= limit;
+            rateLimiterMetrics.recordDecision(RateLimitAlgorithm.FIXED_WINDOW, key, allowed,
+                    System.nanoTime() - start, (double) limit / windowSize);
+            hotKeyTracker.record(key, allowed);
+            shadowRateLimiter.observe(key, allowed);
             
             if (allowed) {
                 log.debug("✅ 固定窗口限流通过 - key: {}, count: {}/{}, window: {} 秒", 
@@ -162,6 +273,46 @@ public class RedisRateLimiter {
 
         } catch (Exception e) {
             log.error("Redis 限流异常: {}", e.getMessage(), e);
+            rateLimiterMetrics.recordFallback(RateLimitAlgorithm.FIXED_WINDOW, key);
+            return true;
+        }
+    }
+
+    /**
+     * 固定窗口限流算法（服务器时间模式）
+     * 
+     * 窗口按 Redis 服务器时间对齐，计数和过期时间在 Lua 脚本中原子设置
+     * Lua 脚本：resources/lua/fixed_window_rate_limit.lua
+     */
+    private boolean fixedWindowRateLimitByServerTime(String key, int limit, int windowSize) {
+        String redisKey = fixedWindowKey(key, windowSize, true);
+
+        try {
+            long start = System.nanoTime();
+            Long result = luaScriptRegistry.execute(
+                FIXED_WINDOW_SCRIPT,
+                Collections.singletonList(redisKey),
+                String.valueOf(limit),
+                String.valueOf(windowSize)
+            );
+
+            boolean allowed = result != null && result == 1;
+            rateLimiterMetrics.recordDecision(RateLimitAlgorithm.FIXED_WINDOW, key, allowed,
+                    System.nanoTime() - start, (double) limit / windowSize);
+            hotKeyTracker.record(key, allowed);
+            shadowRateLimiter.observe(key, allowed);
+
+            if (allowed) {
+                log.debug("✅ 固定窗口限流通过 - key: {}, limit: {}, window: {} 秒", key, limit, windowSize);
+            } else {
+                log.warn("⚠️ 固定窗口限流拦截 - key: {}, limit: {}, window: {} 秒", key, limit, windowSize);
+            }
+
+            return allowed;
+
+        } catch (Exception e) {
+            log.error("Redis 限流异常: {}", e.getMessage(), e);
+            rateLimiterMetrics.recordFallback(RateLimitAlgorithm.FIXED_WINDOW, key);
             return true;
         }
     }
@@ -170,8 +321,8 @@ public class RedisRateLimiter {
      * 获取当前限流统计信息（滑动窗口）
      */
     public long getSlidingWindowCount(String key) {
-        String redisKey = "rate_limit:sliding:" + key;
-        Long count = stringRedisTemplate.opsForZSet().zCard(redisKey);
+        String redisKey = SLIDING_PREFIX + key;
+        Long count = limiterRedisConnection.execute(commands -> commands.zcard(redisKey));
         return count != null ? count : 0;
     }
 
@@ -179,18 +330,362 @@ public class RedisRateLimiter {
      * 获取当前剩余令牌数（令牌桶）
      */
     public long getTokenBucketRemaining(String key) {
-        String redisKey = "rate_limit:token:" + key;
-        String tokens = stringRedisTemplate.opsForHash().get(redisKey, "tokens").toString();
-        return tokens != null ? Long.parseLong(tokens) : 0;
+        String redisKey = TOKEN_PREFIX + key;
+        String tokens = limiterRedisConnection.execute(commands -> commands.hget(redisKey, "tokens"));
+        return parseTokens(tokens);
+    }
+
+    /**
+     * 滑动窗口的重试等待时间（毫秒）
+     *
+     * 窗口内已有 count 条记录时，最早的 count - limit + 1 条移出窗口后才有空位，
+     * 即第 count - limit 条（从 0 开始）记录的时间 + 窗口大小；窗口未满返回 0
+     */
+    public long slidingWindowRetryAfter(String key, int limit, int windowSize) {
+        String redisKey = SLIDING_PREFIX + key;
+        try {
+            Long count = limiterRedisConnection.execute(commands -> commands.zcard(redisKey));
+            if (count == null || count < limit) {
+                return 0;
+            }
+            long index = count - limit;
+            List<ScoredValue<String>> entries = limiterRedisConnection.execute(commands ->
+                    commands.zrangeWithScores(redisKey, index, index));
+            if (entries.isEmpty()) {
+                return 0;
+            }
+            long freeAt = (long) entries.get(0).getScore() + windowSize * 1000L;
+            return Math.max(0, freeAt - currentTimeMillis());
+        } catch (Exception e) {
+            log.error("计算滑动窗口重试等待时间失败: {}", e.getMessage());
+            return windowSize * 1000L;
+        }
+    }
+
+    /**
+     * 令牌桶的重试等待时间（毫秒）
+     *
+     * 桶内有令牌返回 0，否则为上次补充时间 + 生成一个令牌所需时间
+     */
+    public long tokenBucketRetryAfter(String key, double rate) {
+        String redisKey = TOKEN_PREFIX + key;
+        long interval = (long) Math.ceil(1000 / rate);
+        try {
+            List<String> values = limiterRedisConnection.execute(commands -> commands.hmget(redisKey, "tokens", "timestamp"))
+                    .stream()
+                    .map(value -> value.getValueOrElse(null))
+                    .collect(Collectors.toList());
+            if (values.get(0) == null || values.get(1) == null || parseTokens(values.get(0)) >= 1) {
+                return 0;
+            }
+            long nextToken = (long) Math.ceil(Double.parseDouble(values.get(1)) + 1000 / rate);
+            return Math.max(0, nextToken - currentTimeMillis());
+        } catch (Exception e) {
+            log.error("计算令牌桶重试等待时间失败: {}", e.getMessage());
+            return interval;
+        }
+    }
+
+    /**
+     * 固定窗口的 Redis key
+     * 
+     * 服务器时间模式下窗口由 Lua 脚本按 Redis 时间对齐，key 不带窗口编号；
+     * 客户端时间模式下按本机时间计算窗口编号，key 为 限流key:窗口编号
+     */
+    private String fixedWindowKey(String key, int windowSize, boolean serverTime) {
+        if (serverTime) {
+            return FIXED_PREFIX + key;
+        }
+        return FIXED_PREFIX + key + ":" + clock.millis() / (windowSize * 1000L);
+    }
+
+    /**
+     * 固定窗口的重试等待时间（毫秒）：当前窗口的剩余时间
+     * 
+     * 服务器时间模式读取限流脚本写入的 key 的 PTTL（过期时间即窗口剩余时长）；
+     * 客户端时间模式的窗口按本机时间对齐，直接计算
+     */
+    public long fixedWindowRetryAfter(String key, int windowSize) {
+        long windowMillis = windowSize * 1000L;
+        if (!serverTime) {
+            return windowMillis - clock.millis() % windowMillis;
+        }
+        String redisKey = fixedWindowKey(key, windowSize, true);
+        try {
+            Long ttl = limiterRedisConnection.execute(commands -> commands.pttl(redisKey));
+            // -2：key 不存在（窗口已结束），-1：没有过期时间（脚本总会设置，按整个窗口处理）
+            if (ttl == null || ttl == -2) {
+                return 0;
+            }
+            return ttl > 0 ? ttl : windowMillis;
+        } catch (Exception e) {
+            log.error("计算固定窗口重试等待时间失败: {}", e.getMessage());
+            return windowMillis;
+        }
+    }
+
+    /**
+     * 与限流脚本一致的当前时间：服务器时间模式取 Redis TIME，否则取本机时间
+     */
+    private long currentTimeMillis() {
+        if (!serverTime) {
+            return clock.millis();
+        }
+        List<String> time = limiterRedisConnection.execute(commands -> commands.time());
+        return Long.parseLong(time.get(0)) * 1000 + Long.parseLong(time.get(1)) / 1000;
     }
 
     /**
      * 重置限流计数
+     * 
+     * 一次 UNLINK 删除各算法对应的 key，由 Redis 后台线程回收内存；
+     * 客户端时间模式的固定窗口 key 带窗口编号（窗口大小由调用方决定，这里不知道），
+     * 通过 SCAN 找出 限流key:窗口编号 形式的 key 一并删除。不按当前模式判断，切换模式后遗留的 key 也能清掉
      */
     public void reset(String key) {
-        stringRedisTemplate.delete("rate_limit:sliding:" + key);
-        stringRedisTemplate.delete("rate_limit:token:" + key);
-        log.info("已重置限流计数 - key: {}", key);
+        Long removed = limiterRedisConnection.execute(commands ->
+                commands.unlink(SLIDING_PREFIX + key, TOKEN_PREFIX + key, FIXED_PREFIX + key));
+        long total = removed != null ? removed : 0;
+
+        String windowPrefix = FIXED_PREFIX + key + ":";
+        String pattern = FIXED_PREFIX + escapePattern(key) + ":[0-9]*";
+        String cursor = "0";
+        do {
+            KeyPage page = scanKeys(pattern, cursor, UNLINK_BATCH_SIZE);
+            // 模式只保证第一个字符是数字，这里排除 限流key:数字xxx 形式的其他限流key
+            String[] batch = page.getKeys().stream()
+                    .filter(redisKey -> isWindowNumber(redisKey.substring(windowPrefix.length())))
+                    .toArray(String[]::new);
+            if (batch.length > 0) {
+                Long count = limiterRedisConnection.execute(commands -> commands.unlink(batch));
+                total += count != null ? count : 0;
+            }
+            cursor = page.getCursor();
+        } while (!"0".equals(cursor));
+
+        log.info("已重置限流计数 - key: {}, 删除 key 数量: {}", key, total);
+    }
+
+    /**
+     * 按模式分页扫描 Redis key（SCAN，不阻塞 Redis）
+     * 
+     * SCAN 的 COUNT 只是提示值，每页返回的 key 数量是近似值；
+     * 同一个 key 在扩容 rehash 期间可能出现在多页中
+     * 
+     * @param pattern Redis key 匹配模式，例如 rate_limit:token:*
+     * @param cursor  游标，首次传 0
+     * @param count   期望的每页数量，必须大于 0
+     * @return 当前页的 key 及下一页游标
+     */
+    public KeyPage scanKeys(String pattern, String cursor, int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("每页数量必须大于 0: " + count);
+        }
+        ScanArgs args = ScanArgs.Builder.matches(pattern).limit(count);
+        List<String> keys = new ArrayList<>();
+        String next = cursor;
+        boolean finished = false;
+
+        // 单次 SCAN 可能返回空结果，循环直到凑够一页或遍历结束
+        while (keys.size() < count && !finished) {
+            ScanCursor scanCursor = ScanCursor.of(next);
+            KeyScanCursor<String> result = limiterRedisConnection.execute(commands -> commands.scan(scanCursor, args));
+            keys.addAll(result.getKeys());
+            next = result.getCursor();
+            finished = result.isFinished();
+        }
+
+        return new KeyPage(keys, finished ? "0" : next, finished);
+    }
+
+    /**
+     * 分页扫描三种算法的限流 key
+     * 
+     * 依次对 rate_limit:sliding:、rate_limit:token:、rate_limit:fixed: 加 pattern 执行 SCAN，
+     * 游标格式为 算法序号:SCAN游标，首页传 0，返回 0 表示三种算法都已遍历完
+     * 
+     * @param pattern 限流key匹配模式（不含 rate_limit:<算法>: 前缀）
+     * @param cursor  游标，首次传 0
+     * @param count   期望的每页数量，必须大于 0
+     */
+    public KeyPage scanLimiterKeys(String pattern, String cursor, int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("每页数量必须大于 0: " + count);
+        }
+        int index = 0;
+        String scanCursor = "0";
+        if (!"0".equals(cursor)) {
+            int separator = cursor.indexOf(':');
+            try {
+                index = Integer.parseInt(cursor.substring(0, Math.max(0, separator)));
+            } catch (NumberFormatException e) {
+                index = -1;
+            }
+            if (index < 0 || index >= LIMITER_PREFIXES.length) {
+                throw new IllegalArgumentException("无效的游标: " + cursor);
+            }
+            scanCursor = cursor.substring(separator + 1);
+        }
+
+        List<String> keys = new ArrayList<>();
+        while (index < LIMITER_PREFIXES.length && keys.size() < count) {
+            KeyPage page = scanKeys(LIMITER_PREFIXES[index] + pattern, scanCursor, count - keys.size());
+            keys.addAll(page.getKeys());
+            if (page.isFinished()) {
+                index++;
+                scanCursor = "0";
+            } else {
+                scanCursor = page.getCursor();
+            }
+        }
+
+        boolean finished = index >= LIMITER_PREFIXES.length;
+        return new KeyPage(keys, finished ? "0" : index + ":" + scanCursor, finished);
+    }
+
+    /**
+     * 批量获取限流统计信息
+     * 
+     * 所有 key 的 ZCARD 和 HGET 在一次 pipeline 中发送，只有一次网络往返
+     * 
+     * @param keys 限流key（不含 rate_limit: 前缀）
+     * @return key -> 统计信息，顺序与入参一致
+     */
+    public Map<String, KeyStats> getStats(Collection<String> keys) {
+        List<String> keyList = new ArrayList<>(keys);
+        List<RedisFuture<Long>> slidingCounts = new ArrayList<>(keyList.size());
+        List<RedisFuture<String>> tokens = new ArrayList<>(keyList.size());
+
+        // 先发出全部命令，再统一等待结果
+        for (String key : keyList) {
+            slidingCounts.add(limiterRedisConnection.dispatch(commands -> commands.zcard(SLIDING_PREFIX + key)));
+            tokens.add(limiterRedisConnection.dispatch(commands -> commands.hget(TOKEN_PREFIX + key, "tokens")));
+        }
+        limiterRedisConnection.flush();
+
+        Map<String, KeyStats> stats = new LinkedHashMap<>();
+        for (int i = 0; i < keyList.size(); i++) {
+            Long slidingCount = limiterRedisConnection.await(slidingCounts.get(i));
+            stats.put(keyList.get(i), new KeyStats(
+                    keyList.get(i),
+                    slidingCount != null ? slidingCount : 0,
+                    parseTokens(limiterRedisConnection.await(tokens.get(i)))));
+        }
+        return stats;
+    }
+
+    /**
+     * 按前缀批量重置限流计数
+     * 
+     * 对三种算法的 key 前缀分别 SCAN 以 prefix 开头的限流key，分批 UNLINK，
+     * 避免 KEYS 命令和大批量 DEL 阻塞 Redis；rate_limit: 下其他组件的 key 不受影响
+     * 
+     * @param prefix 限流key前缀（不含 rate_limit: 前缀），空字符串表示全部
+     * @return 删除的 key 数量
+     */
+    public long resetByPrefix(String prefix) {
+        long removed = 0;
+        for (String limiterPrefix : LIMITER_PREFIXES) {
+            String pattern = limiterPrefix + escapePattern(prefix) + "*";
+            String cursor = "0";
+            do {
+                KeyPage page = scanKeys(pattern, cursor, UNLINK_BATCH_SIZE);
+                if (!page.getKeys().isEmpty()) {
+                    String[] batch = page.getKeys().toArray(new String[0]);
+                    Long count = limiterRedisConnection.execute(commands -> commands.unlink(batch));
+                    removed += count != null ? count : 0;
+                }
+                cursor = page.getCursor();
+            } while (!"0".equals(cursor));
+        }
+
+        log.info("已按前缀重置限流计数 - prefix: {}, 删除 key 数量: {}", prefix, removed);
+        return removed;
+    }
+
+    /**
+     * 将 Redis key 还原为限流key（去掉算法前缀及固定窗口的窗口编号）
+     * 
+     * @return 限流key，非限流器 key 返回 null
+     */
+    public String toLimiterKey(String redisKey) {
+        if (redisKey.startsWith(SLIDING_PREFIX)) {
+            return redisKey.substring(SLIDING_PREFIX.length());
+        }
+        if (redisKey.startsWith(TOKEN_PREFIX)) {
+            return redisKey.substring(TOKEN_PREFIX.length());
+        }
+        if (redisKey.startsWith(FIXED_PREFIX)) {
+            String key = redisKey.substring(FIXED_PREFIX.length());
+            int index = key.lastIndexOf(':');
+            // 客户端时间模式的 key 带有 :窗口编号 后缀
+            if (!serverTime && index > 0 && isWindowNumber(key.substring(index + 1))) {
+                return key.substring(0, index);
+            }
+            return key;
+        }
+        return null;
+    }
+
+    /**
+     * 是否为固定窗口的窗口编号（非空且全部为数字）
+     */
+    private boolean isWindowNumber(String value) {
+        return !value.isEmpty() && value.chars().allMatch(Character::isDigit);
+    }
+
+    /**
+     * 解析令牌数，key 不存在时返回 0
+     */
+    private long parseTokens(String tokens) {
+        return tokens != null ? (long) Double.parseDouble(tokens) : 0;
+    }
+
+    /**
+     * 转义 SCAN 模式中的通配符
+     */
+    private String escapePattern(String value) {
+        return value.replaceAll("([*?\\[\\]\\\\])", "\\\\$1");
+    }
+
+    /**
+     * SCAN 分页结果
+     */
+    @Data
+    @AllArgsConstructor
+    public static class KeyPage {
+        /**
+         * 当前页的 Redis key
+         */
+        private List<String> keys;
+        /**
+         * 下一页游标，0 表示遍历结束
+         */
+        private String cursor;
+        /**
+         * 是否已遍历结束
+         */
+        private boolean finished;
+    }
+
+    /**
+     * 单个限流key的统计信息
+     */
+    @Data
+    @AllArgsConstructor
+    public static class KeyStats {
+        /**
+         * 限流key
+         */
+        private String key;
+        /**
+         * 滑动窗口内的请求数
+         */
+        private long slidingWindowCount;
+        /**
+         * 令牌桶剩余令牌数
+         */
+        private long tokenBucketRemaining;
     }
 }
 
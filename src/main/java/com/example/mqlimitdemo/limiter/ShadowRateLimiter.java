@@ -0,0 +1,371 @@
+package com.example.mqlimitdemo.limiter;
+
+import io.lettuce.core.RedisFuture;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 影子限流器（只评估、不执行）
+ *
+ * 调整限流配置前，先让候选策略与线上生效的策略并行跑在真实流量上：
+ * 1. 线上每次限流决策后调用 {@link #observe}，只把事件放入有界队列，不阻塞、不等待 Redis
+ * 2. 后台线程批量取出事件，通过限流器专用连接以 pipeline 方式执行候选策略的 Lua 脚本，
+ *    影子状态使用独立的 rate_limit:shadow: 前缀，不影响线上计数
+ * 3. 统计候选策略的 would-allow / would-deny、与线上决策的一致率，以及按候选速率排队时的预计等待时间
+ *
+ * 队列满时直接丢弃事件并计数，保证线上路径不受影响
+ *
+ * @author demo
+ */
+@Slf4j
+@Component
+public class ShadowRateLimiter {
+
+    private static final String SHADOW_PREFIX = RedisRateLimiter.KEY_PREFIX + "shadow:";
+
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
+
+    @Resource
+    private LimiterRedisConnection limiterRedisConnection;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 事件队列容量
+     */
+    @Value("${rate-limiter.shadow.queue-capacity:10000}")
+    private int queueCapacity;
+
+    /**
+     * 每批 pipeline 执行的事件数
+     */
+    @Value("${rate-limiter.shadow.batch-size:100}")
+    private int batchSize;
+
+    /**
+     * 限流key -> 影子策略
+     */
+    private final ConcurrentMap<String, ShadowState> policies = new ConcurrentHashMap<>();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private BlockingQueue<ShadowEvent> queue;
+
+    private Thread worker;
+
+    private volatile boolean running = true;
+
+    @PostConstruct
+    public void init() {
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        worker = new Thread(this::drainLoop, "shadow-rate-limiter");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * 注册（或替换）影子策略
+     */
+    public void register(ShadowPolicy policy) {
+        policies.put(policy.getKey(), new ShadowState(policy));
+        log.info("已注册影子限流策略: {}", policy);
+    }
+
+    /**
+     * 移除影子策略
+     */
+    public void remove(String key) {
+        policies.remove(key);
+        log.info("已移除影子限流策略 - key: {}", key);
+    }
+
+    /**
+     * 观察一次线上限流决策
+     *
+     * 未注册影子策略的 key 只有一次 Map 查找；队列满时丢弃事件
+     *
+     * @param key             限流key
+     * @param enforcedAllowed 线上策略是否放行
+     */
+    public void observe(String key, boolean enforcedAllowed) {
+        ShadowState state = policies.get(key);
+        if (state == null) {
+            return;
+        }
+        if (!queue.offer(new ShadowEvent(state, System.currentTimeMillis(), enforcedAllowed))) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * 后台批量评估
+     */
+    private void drainLoop() {
+        List<ShadowEvent> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                ShadowEvent first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                evaluate(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("影子限流评估失败: {}", e.getMessage(), e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 以 pipeline 方式评估一批事件
+     */
+    private void evaluate(List<ShadowEvent> batch) {
+        List<RedisFuture<Long>> futures = new ArrayList<>(batch.size());
+        for (ShadowEvent event : batch) {
+            futures.add(dispatch(event));
+        }
+        limiterRedisConnection.flush();
+
+        for (int i = 0; i < batch.size(); i++) {
+            ShadowEvent event = batch.get(i);
+            ShadowState state = event.state;
+            try {
+                Long result = limiterRedisConnection.await(futures.get(i));
+                boolean wouldAllow = state.policy.getAlgorithm() == RateLimitAlgorithm.FIXED_WINDOW
+                        ? result != null && result <= state.policy.getLimit()
+                        : result != null && result == 1;
+                state.record(event, wouldAllow);
+            } catch (Exception e) {
+                state.errors.increment();
+                log.debug("影子限流脚本执行失败 - key: {}, error: {}", state.policy.getKey(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 按候选策略发出 Redis 命令，时间使用事件发生时的时间戳
+     */
+    private RedisFuture<Long> dispatch(ShadowEvent event) {
+        ShadowPolicy policy = event.state.policy;
+        String now = String.valueOf(event.timestamp);
+
+        switch (policy.getAlgorithm()) {
+            case SLIDING_WINDOW:
+                return luaScriptRegistry.dispatch("sliding_window_rate_limit",
+                        Collections.singletonList(SHADOW_PREFIX + "sliding:" + policy.getKey()),
+                        now,
+                        String.valueOf(event.timestamp - policy.getWindowSize() * 1000L),
+                        String.valueOf(policy.getLimit()),
+                        String.valueOf(policy.getWindowSize()),
+                        String.valueOf(sequence.incrementAndGet()));
+            case TOKEN_BUCKET:
+                return luaScriptRegistry.dispatch("token_bucket_rate_limit",
+                        Collections.singletonList(SHADOW_PREFIX + "token:" + policy.getKey()),
+                        now,
+                        String.valueOf(policy.getLimit()),
+                        String.valueOf(policy.getRate()));
+            case FIXED_WINDOW:
+                long windowMillis = policy.getWindowSize() * 1000L;
+                String redisKey = SHADOW_PREFIX + "fixed:" + policy.getKey() + ":" + event.timestamp / windowMillis;
+                RedisFuture<Long> count = limiterRedisConnection.dispatch(commands -> commands.incr(redisKey));
+                limiterRedisConnection.dispatch(commands ->
+                        commands.pexpire(redisKey, windowMillis - event.timestamp % windowMillis));
+                return count;
+            default:
+                throw new IllegalArgumentException("影子限流不支持的算法: " + policy.getAlgorithm());
+        }
+    }
+
+    /**
+     * 影子策略对比报告
+     */
+    public List<Map<String, Object>> report() {
+        List<Map<String, Object>> reports = new ArrayList<>();
+        for (ShadowState state : policies.values()) {
+            reports.add(state.report());
+        }
+        return reports;
+    }
+
+    /**
+     * 因队列已满被丢弃的事件数
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * 影子策略配置
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class ShadowPolicy {
+        /**
+         * 限流key（与线上策略相同）
+         */
+        private String key;
+        /**
+         * 候选算法（SLIDING_WINDOW / TOKEN_BUCKET / FIXED_WINDOW）
+         */
+        private RateLimitAlgorithm algorithm;
+        /**
+         * 限流次数或桶容量
+         */
+        private int limit;
+        /**
+         * 窗口大小（秒），滑动窗口和固定窗口使用
+         */
+        private int windowSize;
+        /**
+         * 令牌生成速率（个/秒），令牌桶使用
+         */
+        private double rate;
+
+        /**
+         * 候选策略的每秒许可数
+         */
+        public double permitsPerSecond() {
+            return algorithm == RateLimitAlgorithm.TOKEN_BUCKET ? rate : (double) limit / windowSize;
+        }
+    }
+
+    /**
+     * 待评估的线上决策
+     */
+    private static final class ShadowEvent {
+        private final ShadowState state;
+        private final long timestamp;
+        private final boolean enforcedAllowed;
+
+        private ShadowEvent(ShadowState state, long timestamp, boolean enforcedAllowed) {
+            this.state = state;
+            this.timestamp = timestamp;
+            this.enforcedAllowed = enforcedAllowed;
+        }
+    }
+
+    /**
+     * 单个影子策略的统计
+     */
+    private final class ShadowState {
+
+        private final ShadowPolicy policy;
+        private final long startTime = System.currentTimeMillis();
+
+        private final LongAdder observed = new LongAdder();
+        private final LongAdder enforcedAllowed = new LongAdder();
+        private final LongAdder wouldAllow = new LongAdder();
+        private final LongAdder wouldDeny = new LongAdder();
+        private final LongAdder agreed = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder projectedWaitMillis = new LongAdder();
+        private final LongAccumulator maxProjectedWaitMillis = new LongAccumulator(Long::max, 0);
+
+        private final Counter wouldAllowCounter;
+        private final Counter wouldDenyCounter;
+
+        /**
+         * 按候选速率匀速排队时，下一个许可的可用时间（毫秒，仅后台线程访问）
+         */
+        private double nextFreeMillis;
+
+        private ShadowState(ShadowPolicy policy) {
+            this.policy = policy;
+            String policyTag = RateLimiterMetrics.policyOf(policy.getKey());
+            wouldAllowCounter = Counter.builder("rate_limiter.shadow.decisions")
+                    .description("影子限流决策数")
+                    .tags("algorithm", policy.getAlgorithm().getTag(), "policy", policyTag, "outcome", "would_allow")
+                    .register(meterRegistry);
+            wouldDenyCounter = Counter.builder("rate_limiter.shadow.decisions")
+                    .description("影子限流决策数")
+                    .tags("algorithm", policy.getAlgorithm().getTag(), "policy", policyTag, "outcome", "would_deny")
+                    .register(meterRegistry);
+        }
+
+        private void record(ShadowEvent event, boolean allow) {
+            observed.increment();
+            if (event.enforcedAllowed) {
+                enforcedAllowed.increment();
+            }
+            if (allow) {
+                wouldAllow.increment();
+                wouldAllowCounter.increment();
+            } else {
+                wouldDeny.increment();
+                wouldDenyCounter.increment();
+            }
+            if (allow == event.enforcedAllowed) {
+                agreed.increment();
+            }
+
+            // 预计等待：所有请求都按候选速率排队（而不是拒绝）时需要等待的时间
+            double free = Math.max(nextFreeMillis, event.timestamp);
+            long wait = (long) (free - event.timestamp);
+            nextFreeMillis = free + 1000.0 / policy.permitsPerSecond();
+            projectedWaitMillis.add(wait);
+            maxProjectedWaitMillis.accumulate(wait);
+        }
+
+        private Map<String, Object> report() {
+            long count = observed.sum();
+            double elapsedSeconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("policy", policy);
+            report.put("observed", count);
+            report.put("enforcedAllowed", enforcedAllowed.sum());
+            report.put("wouldAllow", wouldAllow.sum());
+            report.put("wouldDeny", wouldDeny.sum());
+            report.put("agreementRate", count > 0 ? String.format("%.2f%%", agreed.sum() * 100.0 / count) : "-");
+            report.put("errors", errors.sum());
+            report.put("elapsedSeconds", String.format("%.1f", elapsedSeconds));
+            report.put("actualThroughputPerSecond", String.format("%.2f", enforcedAllowed.sum() / elapsedSeconds));
+            report.put("projectedThroughputPerSecond", String.format("%.2f", wouldAllow.sum() / elapsedSeconds));
+            report.put("avgProjectedWaitMillis", count > 0 ? projectedWaitMillis.sum() / count : 0);
+            report.put("maxProjectedWaitMillis", maxProjectedWaitMillis.get());
+            return report;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.example.mqlimitdemo.producer;
 
-import com.alibaba.fastjson.JSON;
+import com.example.mqlimitdemo.codec.MessageCodec;
+import com.example.mqlimitdemo.codec.MessageCodecRegistry;
 import com.example.mqlimitdemo.domain.OrderMessage;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.rocketmq.client.producer.SendCallback;
@@ -11,6 +12,7 @@ import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
+import java.util.Map;
 
 /**
  * 消息生产者
@@ -24,6 +26,9 @@ public class MessageProducer {
     @Resource
     private RocketMQTemplate rocketMQTemplate;
 
+    @Resource
+    private MessageCodecRegistry messageCodecRegistry;
+
     /**
      * 发送同步消息
      *
@@ -88,22 +93,74 @@ public class MessageProducer {
     }
 
     /**
-     * 发送对象消息
+     * 发送带用户属性的消息
+     *
+     * @param destination 主题，可带 Tag（topic:tag）
+     * @param message     消息内容
+     * @param properties  用户属性，消费端通过 MessageExt.getUserProperty 读取
+     * @return 发送结果
+     */
+    public SendResult sendMessageWithProperties(String destination, String message, Map<String, String> properties) {
+        MessageBuilder<String> builder = MessageBuilder.withPayload(message);
+        properties.forEach(builder::setHeader);
+        SendResult sendResult = rocketMQTemplate.syncSend(destination, builder.build());
+        log.info("带属性消息发送成功到: {}, MsgId: {}, 属性: {}", destination, sendResult.getMsgId(), properties);
+        return sendResult;
+    }
+
+    /**
+     * 发送对象消息（默认编解码器）
      *
      * @param topic        主题
      * @param orderMessage 订单消息对象
      * @return 发送结果
      */
     public SendResult sendObjectMessage(String topic, OrderMessage orderMessage) {
-        log.info("发送对象消息到 Topic: {}", topic);
-        String jsonMessage = JSON.toJSONString(orderMessage);
-        Message<String> message = MessageBuilder.withPayload(jsonMessage).build();
-        SendResult sendResult = rocketMQTemplate.syncSend(topic, message);
+        return sendObjectMessage(topic, orderMessage, messageCodecRegistry.getDefault(OrderMessage.class));
+    }
+
+    /**
+     * 发送对象消息
+     *
+     * 消息体由编解码器直接编码为 byte[]，编解码器名称写入消息属性 CODEC，消费端按名称解码
+     *
+     * @param topic        主题
+     * @param orderMessage 订单消息对象
+     * @param codec        编解码器
+     * @return 发送结果
+     */
+    public SendResult sendObjectMessage(String topic, OrderMessage orderMessage, MessageCodec<OrderMessage> codec) {
+        log.info("发送对象消息到 Topic: {}, 编解码器: {}", topic, codec.name());
+        SendResult sendResult = rocketMQTemplate.syncSend(topic, buildObjectMessage(orderMessage, codec));
         log.info("对象消息发送成功，MsgId: {}, 订单ID: {}", 
                 sendResult.getMsgId(), orderMessage.getOrderId());
         return sendResult;
     }
 
+    /**
+     * 按 Key 发送顺序对象消息
+     *
+     * 同一 hashKey 的消息发送到同一个队列，消费端按队列顺序拉取
+     *
+     * @param topic        主题
+     * @param orderMessage 订单消息对象
+     * @param hashKey      选择队列的 Key（如 orderId、userId）
+     * @return 发送结果
+     */
+    public SendResult sendOrderlyObjectMessage(String topic, OrderMessage orderMessage, String hashKey) {
+        Message<byte[]> message = buildObjectMessage(orderMessage, messageCodecRegistry.getDefault(OrderMessage.class));
+        SendResult sendResult = rocketMQTemplate.syncSendOrderly(topic, message, hashKey);
+        log.info("顺序消息发送成功，MsgId: {}, Key: {}, 队列: {}, 状态: {}",
+                sendResult.getMsgId(), hashKey, sendResult.getMessageQueue().getQueueId(), orderMessage.getStatus());
+        return sendResult;
+    }
+
+    private Message<byte[]> buildObjectMessage(OrderMessage orderMessage, MessageCodec<OrderMessage> codec) {
+        return MessageBuilder.withPayload(codec.encode(orderMessage))
+                .setHeader(MessageCodecRegistry.PROPERTY_CODEC, codec.name())
+                .build();
+    }
+
     /**
      * 发送延迟消息
      *
@@ -120,5 +177,31 @@ public class MessageProducer {
         log.info("延迟消息发送成功，MsgId: {}", sendResult.getMsgId());
         return sendResult;
     }
-}
 
+    /**
+     * 原样发送已构建好的 RocketMQ 消息（消息体 byte[] 和属性不经过转换）
+     *
+     * @param message RocketMQ 消息
+     * @return 发送结果
+     */
+    public SendResult sendRawMessage(org.apache.rocketmq.common.message.Message message) throws Exception {
+        SendResult sendResult = rocketMQTemplate.getProducer().send(message, 3000);
+        log.info("消息发送成功到: {}, MsgId: {}, 属性: {}", message.getTopic(), sendResult.getMsgId(), message.getProperties());
+        return sendResult;
+    }
+
+    /**
+     * 原样发送已构建好的 RocketMQ 消息（消息体 byte[] 和属性不经过转换），按延迟级别投递
+     *
+     * @param message    RocketMQ 消息
+     * @param delayLevel 延迟级别 (1-18)
+     * @return 发送结果
+     */
+    public SendResult sendRawDelayMessage(org.apache.rocketmq.common.message.Message message, int delayLevel) throws Exception {
+        log.info("发送延迟消息到: {}, 延迟级别: {}, 属性: {}", message.getTopic(), delayLevel, message.getProperties());
+        message.setDelayTimeLevel(delayLevel);
+        SendResult sendResult = rocketMQTemplate.getProducer().send(message, 3000);
+        log.info("延迟消息发送成功，MsgId: {}", sendResult.getMsgId());
+        return sendResult;
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.mqlimitdemo.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 下游调用异步执行器
+ *
+ * 消费线程同步调用第三方接口时，每个线程的吞吐受下游延迟限制（100 ms 延迟即每线程约 10 条/秒）。
+ * 执行器把下游调用交给有界线程池，消费线程只负责获取许可和提交：
+ * 1. 在途窗口（maxInFlight）限制同时进行的下游调用数，窗口满时提交方阻塞，形成背压
+ * 2. 线程池大小和队列都有上限，不会因为积压无限创建线程或堆积任务
+ * 3. 返回 CompletableFuture，调用方等待结果后再向 RocketMQ 确认，消费语义不变
+ *
+ * 关闭异步模式（rate-limiter.async.enabled=false）时在提交线程上同步执行，便于对比吞吐。
+ * 开启虚拟线程（rate-limiter.virtual-threads.enabled=true，需 Java 21）时每个调用一个虚拟线程，
+ * 线程池大小不再起作用，同时进行的调用数只受在途窗口限制
+ *
+ * @author demo
+ */
+@Slf4j
+@Component
+public class AsyncDownstreamExecutor {
+
+    /**
+     * 是否异步执行下游调用
+     */
+    @Value("${rate-limiter.async.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 在途窗口：同时进行的下游调用数上限
+     */
+    @Value("${rate-limiter.async.max-in-flight:32}")
+    private int maxInFlight;
+
+    /**
+     * 执行下游调用的线程数
+     */
+    @Value("${rate-limiter.async.pool-size:16}")
+    private int poolSize;
+
+    /**
+     * 是否使用虚拟线程执行下游调用（Java 21 及以上）
+     */
+    @Value("${rate-limiter.virtual-threads.enabled:false}")
+    private boolean virtualThreadsEnabled;
+
+    private ExecutorService executor;
+
+    private boolean virtualThreads;
+
+    private Semaphore window;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder windowWaitNanos = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        window = new Semaphore(maxInFlight);
+        if (virtualThreadsEnabled) {
+            if (VirtualThreads.isSupported()) {
+                executor = VirtualThreads.newThreadPerTaskExecutor("async-downstream-vt-");
+                virtualThreads = true;
+                log.info("下游调用异步执行器已启动（虚拟线程）- 异步: {}, 在途窗口: {}", enabled, maxInFlight);
+                return;
+            }
+            log.warn("⚠️ 当前 JVM（{}）不支持虚拟线程，使用平台线程池", System.getProperty("java.version"));
+        }
+
+        AtomicInteger threadIndex = new AtomicInteger();
+        // 窗口已限制在途任务数，队列容量与窗口相同即可；CallerRunsPolicy 只是兜底
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(maxInFlight),
+                r -> {
+                    Thread thread = new Thread(r, "async-downstream-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+        log.info("下游调用异步执行器已启动 - 异步: {}, 在途窗口: {}, 线程数: {}", enabled, maxInFlight, poolSize);
+    }
+
+    /**
+     * 提交下游调用
+     *
+     * 在途调用达到窗口上限时阻塞，直到有调用完成
+     *
+     * @param call 下游调用
+     * @return 调用结果，调用抛出的异常通过 future 异常完成
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> call) throws InterruptedException {
+        if (!enabled) {
+            return runDirectly(call);
+        }
+
+        long waitStart = System.nanoTime();
+        window.acquire();
+        windowWaitNanos.add(System.nanoTime() - waitStart);
+        submitted.increment();
+        peakInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(call.call());
+                    completed.increment();
+                } catch (Throwable e) {
+                    failed.increment();
+                    future.completeExceptionally(e);
+                } finally {
+                    inFlight.decrementAndGet();
+                    window.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            // 执行器已关闭
+            inFlight.decrementAndGet();
+            window.release();
+            failed.increment();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private <T> CompletableFuture<T> runDirectly(Callable<T> call) {
+        submitted.increment();
+        try {
+            T result = call.call();
+            completed.increment();
+            return CompletableFuture.completedFuture(result);
+        } catch (Exception e) {
+            failed.increment();
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    /**
+     * 是否使用虚拟线程执行
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * 在途窗口大小
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * 执行器统计
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("maxInFlight", maxInFlight);
+        stats.put("virtualThreads", virtualThreads);
+        stats.put("poolSize", virtualThreads ? "每个调用一个虚拟线程" : poolSize);
+        stats.put("inFlight", inFlight.get());
+        stats.put("peakInFlight", peakInFlight.get());
+        stats.put("submitted", submitted.sum());
+        stats.put("completed", completed.sum());
+        stats.put("failed", failed.sum());
+        long count = submitted.sum();
+        stats.put("avgWindowWaitMs", count == 0 ? 0 : String.format("%.3f", windowWaitNanos.sum() / 1e6 / count));
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
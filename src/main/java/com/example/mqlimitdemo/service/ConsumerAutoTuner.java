@@ -0,0 +1,265 @@
+package com.example.mqlimitdemo.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 消费并发自动调优
+ *
+ * 消费线程数和本地拉取缓存原来是固定值（注解上的 consumeThreadMax、yml 中的线程数和 pull-batch-size），
+ * 与配额决定的实际吞吐无关：线程多了在调度队列里空等，少了又用不完配额。
+ * 下游调用经 {@link DownstreamScheduler} 排队，一条消息占用消费线程的时间主要是下游调用耗时，
+ * 按 Little 定律（L = λ × W）计算需要的并发数：
+ * 1. λ：队列在当前竞争下能分到的调用速率（{@link DownstreamScheduler#getPermittedRate}，其他 Topic 空闲时为全部份额）
+ *    乘以每次调用发出的消息数：攒批时取最近批次大小的 2 倍（不超过单批上限），线程多了批次才能攒大，
+ *    批次攒满后线程数随之收敛；未攒批时为 1
+ * 2. W：下游调用耗时的 EWMA（{@link DownstreamScheduler#getLatencyMillis}，还没有调用时用 default-latency-millis）
+ *    加上攒批等待时间
+ * 3. 消费线程数 = ceil(λ × W × headroom)，限制在 [min-threads, max-threads]，
+ *    通过 DefaultMQPushConsumerImpl#updateCorePoolSize 在运行时调整（消费线程池是无界队列，只有核心线程工作，
+ *    内部实现经 {@link PushConsumerInternals} 访问）
+ * 4. 本地拉取缓存按 buffer-seconds 秒的许可量设置：pullThresholdForQueue = max(线程数 × 2, λ × buffer-seconds) / 队列数，
+ *    pullBatchSize 不超过单队列缓存；拉取线程每次拉取前读取这两个值，修改后立即生效
+ *
+ * 消费者在 prepareStart 中注册：启动前按默认延迟设置初始线程数，并把线程上限放宽到 max-threads，
+ * 之后每 interval-millis 重新计算一次
+ *
+ * @author demo
+ */
+@Slf4j
+@Component
+public class ConsumerAutoTuner {
+
+    /**
+     * RocketMQ 默认的单次拉取条数，调优后不超过该值
+     */
+    private static final int DEFAULT_PULL_BATCH_SIZE = 32;
+
+    @Resource
+    private DownstreamScheduler downstreamScheduler;
+
+    @Resource
+    private DownstreamBatcher downstreamBatcher;
+
+    /**
+     * 是否启用自动调优
+     */
+    @Value("${rate-limiter.auto-tune.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 调优周期（毫秒）
+     */
+    @Value("${rate-limiter.auto-tune.interval-millis:5000}")
+    private long intervalMillis;
+
+    /**
+     * 消费线程数下限和上限
+     */
+    @Value("${rate-limiter.auto-tune.min-threads:1}")
+    private int minThreads;
+
+    @Value("${rate-limiter.auto-tune.max-threads:32}")
+    private int maxThreads;
+
+    /**
+     * 冗余系数：Little 定律算出的是平均并发，乘以该系数吸收延迟抖动
+     */
+    @Value("${rate-limiter.auto-tune.headroom:1.5}")
+    private double headroom;
+
+    /**
+     * 还没有下游调用时假定的调用耗时（毫秒）
+     */
+    @Value("${rate-limiter.auto-tune.default-latency-millis:100}")
+    private long defaultLatencyMillis;
+
+    /**
+     * 本地拉取缓存覆盖多少秒的许可量
+     */
+    @Value("${rate-limiter.auto-tune.buffer-seconds:2}")
+    private double bufferSeconds;
+
+    private final ConcurrentMap<String, Registration> registrations = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            log.info("消费并发自动调优未启用");
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "consumer-auto-tune");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::tuneAll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        log.info("消费并发自动调优已启动 - 周期: {} ms, 线程: [{}, {}], 冗余: {}, 缓存: {} 秒",
+                intervalMillis, minThreads, maxThreads, headroom, bufferSeconds);
+    }
+
+    /**
+     * 注册消费者（在 prepareStart 中调用，此时消费线程池尚未创建）
+     *
+     * @param flow     消费者在 DownstreamScheduler 中的队列名称
+     * @param consumer 底层 Push 消费者
+     */
+    public void register(String flow, DefaultMQPushConsumer consumer) {
+        if (!enabled) {
+            return;
+        }
+        Registration registration = new Registration(flow, consumer);
+        Target target = computeTarget(registration);
+        // 线程池是无界队列，最大线程数不起作用；updateCorePoolSize 要求新值严格小于 consumeThreadMax，因此上限再加 1
+        consumer.setConsumeThreadMin(target.threads);
+        consumer.setConsumeThreadMax(maxThreads + 1);
+        consumer.setPullThresholdForQueue(target.pullThresholdForQueue);
+        consumer.setPullBatchSize(target.pullBatchSize);
+        registration.apply(target);
+        registrations.put(flow, registration);
+        log.info("消费者 [{}] 接入自动调优 - 初始线程数: {}, 单队列缓存: {}, 单次拉取: {}",
+                flow, target.threads, target.pullThresholdForQueue, target.pullBatchSize);
+    }
+
+    private void tuneAll() {
+        for (Registration registration : registrations.values()) {
+            try {
+                tune(registration);
+            } catch (Exception e) {
+                log.error("消费者 [{}] 自动调优失败: {}", registration.flow, e.getMessage(), e);
+            }
+        }
+    }
+
+    private void tune(Registration registration) {
+        int currentThreads = PushConsumerInternals.corePoolSize(registration.consumer);
+        if (currentThreads < 0) {
+            // 消费者尚未启动
+            return;
+        }
+        Target target = computeTarget(registration);
+        if (target.threads != currentThreads
+                && PushConsumerInternals.updateCorePoolSize(registration.consumer, target.threads)) {
+            registration.adjustments++;
+            log.info("🔧 消费者 [{}] 线程数 {} -> {}（λ={}/s, W={} ms, L={}），单队列缓存 {} -> {}",
+                    registration.flow, currentThreads, target.threads,
+                    String.format("%.2f", target.rate), String.format("%.1f", target.latencyMillis),
+                    String.format("%.2f", target.concurrency),
+                    registration.consumer.getPullThresholdForQueue(), target.pullThresholdForQueue);
+        }
+        registration.consumer.setPullThresholdForQueue(target.pullThresholdForQueue);
+        registration.consumer.setPullBatchSize(target.pullBatchSize);
+        registration.apply(target);
+    }
+
+    private Target computeTarget(Registration registration) {
+        Target target = new Target();
+        double messagesPerCall = Math.min(downstreamBatcher.getMaxBatchSize(),
+                2 * downstreamBatcher.getMessagesPerCall(registration.flow));
+        target.rate = downstreamScheduler.getPermittedRate(registration.flow) * messagesPerCall;
+        double latency = downstreamScheduler.getLatencyMillis(registration.flow);
+        target.latencyMillis = (latency < 0 ? defaultLatencyMillis : latency) + downstreamBatcher.getLingerMillis();
+
+        // Little 定律：平均在途数 = 到达速率 × 停留时间
+        target.concurrency = target.rate * target.latencyMillis / 1000;
+        target.threads = clamp((int) Math.ceil(target.concurrency * headroom), minThreads, maxThreads);
+
+        int queues = Math.max(1, registration.queueCount());
+        int cached = Math.max(target.threads * 2, (int) Math.ceil(target.rate * bufferSeconds));
+        target.pullThresholdForQueue = Math.max(1, (cached + queues - 1) / queues);
+        target.pullBatchSize = Math.min(DEFAULT_PULL_BATCH_SIZE, target.pullThresholdForQueue);
+        return target;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * 调优状态（按消费者）
+     */
+    public List<Map<String, Object>> getStats() {
+        List<Map<String, Object>> stats = new ArrayList<>();
+        for (Registration registration : registrations.values()) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("flow", registration.flow);
+            item.put("consumerGroup", registration.consumer.getConsumerGroup());
+            item.put("permittedRate", String.format("%.3f", registration.rate));
+            item.put("latencyMs", String.format("%.1f", registration.latencyMillis));
+            item.put("littleL", String.format("%.2f", registration.concurrency));
+            item.put("targetThreads", registration.threads);
+            item.put("currentThreads", PushConsumerInternals.corePoolSize(registration.consumer));
+            item.put("queues", registration.queueCount());
+            item.put("pullThresholdForQueue", registration.consumer.getPullThresholdForQueue());
+            item.put("pullBatchSize", registration.consumer.getPullBatchSize());
+            item.put("adjustments", registration.adjustments);
+            stats.add(item);
+        }
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private static class Target {
+        double rate;
+        double latencyMillis;
+        double concurrency;
+        int threads;
+        int pullThresholdForQueue;
+        int pullBatchSize;
+    }
+
+    /**
+     * 已注册的消费者（只由调优线程和注册时修改）
+     */
+    private static class Registration {
+        final String flow;
+        final DefaultMQPushConsumer consumer;
+        volatile double rate;
+        volatile double latencyMillis;
+        volatile double concurrency;
+        volatile int threads;
+        volatile long adjustments;
+
+        Registration(String flow, DefaultMQPushConsumer consumer) {
+            this.flow = flow;
+            this.consumer = consumer;
+        }
+
+        void apply(Target target) {
+            rate = target.rate;
+            latencyMillis = target.latencyMillis;
+            concurrency = target.concurrency;
+            threads = target.threads;
+        }
+
+        /**
+         * 本实例分到的队列数（尚未完成负载均衡时为 0）
+         */
+        int queueCount() {
+            return PushConsumerInternals.queueCount(consumer);
+        }
+    }
+}
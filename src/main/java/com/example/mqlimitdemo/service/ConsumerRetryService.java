@@ -0,0 +1,120 @@
+package com.example.mqlimitdemo.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.common.MixAll;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.spring.core.RocketMQTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * 批量消费中失败消息的单独重试
+ *
+ * 一次回调收到多条消息、只有部分失败时，不能整批返回 RECONSUME_LATER（成功的消息会被重复消费）。
+ * 原来逐条调用 DefaultMQPushConsumer#sendMessageBack，该方法已废弃。
+ * 这里按 RocketMQ 客户端 sendMessageBack 失败时的兜底方式，由生产者把消息直接发到重试 Topic（%RETRY% + 消费组）：
+ * 1. 消息体和属性原样复制，RETRY_TOPIC 记录原 Topic（消费时还原），ORIGIN_MESSAGE_ID 记录第一次投递的消息ID，
+ *    UNIQ_KEY 不变，去重和保序按消息ID识别的逻辑不受影响
+ * 2. 重试次数 +1，延迟级别为 3 + 已重试次数（与 Broker 默认的重试阶梯一致），
+ *    重试次数达到 maxReconsumeTimes 时由 Broker 转入死信队列（%DLQ% + 消费组）
+ * 3. 某条消息发送失败时，通过 ackIndex 确认它之前的消息，它及之后的消息交给客户端按原有方式重试，
+ *    已成功的消息中只有排在它之后的会再次投递
+ *
+ * @author demo
+ */
+@Slf4j
+@Service
+public class ConsumerRetryService {
+
+    /**
+     * Broker 默认最大重试次数（maxReconsumeTimes 为 -1 时）
+     */
+    private static final int DEFAULT_MAX_RECONSUME_TIMES = 16;
+
+    /**
+     * 最大延迟级别
+     */
+    private static final int MAX_DELAY_LEVEL = 18;
+
+    @Resource
+    private RocketMQTemplate rocketMQTemplate;
+
+    /**
+     * 单独重试失败的消息
+     *
+     * @param consumer 消费者（取消费组和最大重试次数）
+     * @param messages 本次回调的消息
+     * @param results  与 messages 一一对应的处理结果
+     * @param context  消费上下文，发送失败时设置 ackIndex
+     * @return 消费结果，总是 CONSUME_SUCCESS（失败的消息已进入重试 Topic，或由 ackIndex 交给客户端重试）
+     */
+    public ConsumeConcurrentlyStatus retryFailed(DefaultMQPushConsumer consumer, List<MessageExt> messages,
+                                                 boolean[] results, ConsumeConcurrentlyContext context) {
+        int failed = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            if (results[i]) {
+                continue;
+            }
+            failed++;
+            MessageExt message = messages.get(i);
+            try {
+                retry(consumer, message);
+            } catch (Exception e) {
+                // 确认之前的消息，从这条开始交给客户端重试
+                context.setAckIndex(i - 1);
+                log.error("❌ 消息发送到重试队列失败，本批从该消息起交给客户端重试 - MsgId: {}, 位置: {}/{}, error: {}",
+                        message.getMsgId(), i, messages.size(), e.getMessage());
+                return ConsumeConcurrentlyStatus.CONSUME_SUCCESS;
+            }
+        }
+        if (failed > 0) {
+            log.warn("⚠️ 部分消息失败 - 消费组: {}, 本次: {} 条，失败 {} 条已单独重试",
+                    consumer.getConsumerGroup(), messages.size(), failed);
+        }
+        return ConsumeConcurrentlyStatus.CONSUME_SUCCESS;
+    }
+
+    /**
+     * 把一条消息发到消费组的重试 Topic
+     */
+    public void retry(DefaultMQPushConsumer consumer, MessageExt message) throws Exception {
+        String group = consumer.getConsumerGroup();
+        int maxReconsumeTimes = maxReconsumeTimes(consumer);
+
+        Message retry = new Message(MixAll.getRetryTopic(group), message.getBody());
+        retry.setFlag(message.getFlag());
+        MessageAccessor.setProperties(retry, new HashMap<>(message.getProperties()));
+        String originMsgId = MessageAccessor.getOriginMessageId(message);
+        MessageAccessor.setOriginMessageId(retry, originMsgId == null || originMsgId.isEmpty() ? message.getMsgId() : originMsgId);
+        MessageAccessor.putProperty(retry, MessageConst.PROPERTY_RETRY_TOPIC, message.getTopic());
+        MessageAccessor.setReconsumeTime(retry, String.valueOf(message.getReconsumeTimes() + 1));
+        MessageAccessor.setMaxReconsumeTimes(retry, String.valueOf(maxReconsumeTimes));
+        MessageAccessor.clearProperty(retry, MessageConst.PROPERTY_TRANSACTION_PREPARED);
+        retry.setDelayTimeLevel(Math.min(MAX_DELAY_LEVEL, 3 + message.getReconsumeTimes()));
+
+        rocketMQTemplate.getProducer().send(retry);
+        if (isExhausted(consumer, message)) {
+            log.error("❌ 消息重试次数已达上限 {}，进入死信队列 - 消费组: {}, MsgId: {}", maxReconsumeTimes, group, message.getMsgId());
+        }
+    }
+
+    /**
+     * 这次重试后是否进入死信队列（重试 Topic 中的重试次数达到上限时 Broker 直接转入死信队列）
+     */
+    public boolean isExhausted(DefaultMQPushConsumer consumer, MessageExt message) {
+        return message.getReconsumeTimes() + 1 >= maxReconsumeTimes(consumer);
+    }
+
+    private static int maxReconsumeTimes(DefaultMQPushConsumer consumer) {
+        return consumer.getMaxReconsumeTimes() < 0 ? DEFAULT_MAX_RECONSUME_TIMES : consumer.getMaxReconsumeTimes();
+    }
+}
@@ -0,0 +1,416 @@
+package com.example.mqlimitdemo.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 下游调用微批聚合器
+ *
+ * 第三方接口按调用次数限流（5 次/秒），逐条调用时消息吞吐也被限制在 5 条/秒。
+ * 聚合器把同一队列的消息攒成一批，通过 {@link ThirdPartyApiService#sendMessages} 一次调用发出，
+ * 整批只占用 {@link DownstreamScheduler} 的一个许可，再把逐条结果分发回各消费线程：
+ * 1. 每个队列（Topic）一个打开的批次，第一条消息进入后最多等待 linger-millis 再提交给调度器，
+ *    攒满 max-batch-size 时立即提交
+ * 2. 批次提交后在调度器中排队等待许可，期间新消息继续加入同一批次，直到攒满或拿到许可才封批；
+ *    配额越紧张，批次越大，同样的调用次数发出更多消息
+ * 3. 批次的排队上限取批内各消息等待上限的最小值；等待上限更短的消息不加入已提交的批次，另起一批
+ * 4. 排队超时、队列已满或整批调用失败时，批内每条消息都以同一个异常结束；逐条失败只影响对应的消息
+ *
+ * 关闭聚合（rate-limiter.batching.enabled=false）时每条消息单独提交给调度器，便于对比吞吐。
+ * 消费线程等待期间被中断时，消息可能已经进入批次并随批发出，由消息去重或下游幂等处理
+ *
+ * @author demo
+ */
+@Slf4j
+@Component
+public class DownstreamBatcher {
+
+    /**
+     * 批次大小 EWMA 的平滑系数
+     */
+    private static final double BATCH_SIZE_ALPHA = 0.2;
+
+    @Resource
+    private DownstreamScheduler downstreamScheduler;
+
+    @Resource
+    private ThirdPartyApiService thirdPartyApiService;
+
+    /**
+     * 是否启用微批聚合
+     */
+    @Value("${rate-limiter.batching.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 单批最多消息数（不超过第三方批量接口上限）
+     */
+    @Value("${rate-limiter.batching.max-batch-size:20}")
+    private int maxBatchSize;
+
+    /**
+     * 第一条消息进入后最多等待多久提交批次（毫秒）
+     */
+    @Value("${rate-limiter.batching.linger-millis:20}")
+    private long lingerMillis;
+
+    private final ConcurrentMap<String, Buffer> buffers = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService timer;
+
+    @PostConstruct
+    public void init() {
+        if (maxBatchSize > ThirdPartyApiService.MAX_BATCH_SIZE) {
+            log.warn("批次大小 {} 超过第三方批量接口上限，按 {} 处理", maxBatchSize, ThirdPartyApiService.MAX_BATCH_SIZE);
+            maxBatchSize = ThirdPartyApiService.MAX_BATCH_SIZE;
+        }
+        maxBatchSize = Math.max(1, maxBatchSize);
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "downstream-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        log.info("下游微批聚合器已启动 - 启用: {}, 单批上限: {}, 等待: {} ms", enabled, maxBatchSize, lingerMillis);
+    }
+
+    /**
+     * 发送一条消息，阻塞直到所在批次调用完成
+     *
+     * @param flow           调度队列名称
+     * @param message        消息内容
+     * @param maxQueueMillis 最长排队时间（毫秒），{@link DownstreamScheduler#NO_TIMEOUT} 表示一直等待
+     * @return 该条消息的发送结果
+     * @throws DownstreamScheduler.QueueTimeoutException 超时前所在批次未派发（没有占用许可）
+     * @throws RejectedExecutionException                调度队列已满或调度器已关闭
+     * @throws Exception                                 第三方接口抛出的异常（如 RateLimitException）
+     */
+    public boolean send(String flow, String message, long maxQueueMillis) throws Exception {
+        if (!enabled) {
+            return downstreamScheduler.execute(flow, () -> thirdPartyApiService.sendMessage(message), maxQueueMillis);
+        }
+        try {
+            return submit(flow, message, maxQueueMillis).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * 把消息加入队列当前的批次
+     *
+     * @return 该条消息的发送结果
+     */
+    public CompletableFuture<Boolean> submit(String flow, String message, long maxQueueMillis) {
+        long now = System.nanoTime();
+        Item item = new Item(message, maxQueueMillis == DownstreamScheduler.NO_TIMEOUT
+                || maxQueueMillis >= TimeUnit.DAYS.toMillis(1)
+                ? Long.MAX_VALUE
+                : now + TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxQueueMillis)));
+        Buffer buffer = buffers.computeIfAbsent(flow, Buffer::new);
+        Batch toSubmit = null;
+        buffer.lock.lock();
+        try {
+            Batch batch = buffer.open;
+            if (batch != null && batch.submitted && item.deadlineNanos < batch.queueDeadlineNanos) {
+                // 已提交的批次排队上限比本条消息长，加入后可能超出本条的等待上限
+                buffer.open = null;
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new Batch(now);
+                buffer.open = batch;
+            }
+            batch.items.add(item);
+            if (batch.items.size() >= maxBatchSize) {
+                buffer.open = null;
+                buffer.flushedBySize++;
+                if (!batch.submitted) {
+                    if (batch.lingerTimer != null) {
+                        batch.lingerTimer.cancel(false);
+                    }
+                    markSubmitted(batch);
+                    toSubmit = batch;
+                }
+            } else if (!batch.submitted && batch.items.size() == 1) {
+                if (lingerMillis <= 0) {
+                    markSubmitted(batch);
+                    toSubmit = batch;
+                } else {
+                    Batch lingering = batch;
+                    batch.lingerTimer = timer.schedule(() -> lingerExpired(buffer, lingering),
+                            lingerMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        } finally {
+            buffer.lock.unlock();
+        }
+        if (toSubmit != null) {
+            dispatch(buffer, toSubmit);
+        }
+        return item.future;
+    }
+
+    private void lingerExpired(Buffer buffer, Batch batch) {
+        buffer.lock.lock();
+        try {
+            if (batch.submitted) {
+                return;
+            }
+            markSubmitted(batch);
+        } finally {
+            buffer.lock.unlock();
+        }
+        dispatch(buffer, batch);
+    }
+
+    /**
+     * 标记批次已提交，排队上限取当前批内消息等待上限的最小值（调用方持有 buffer 锁）
+     */
+    private static void markSubmitted(Batch batch) {
+        batch.submitted = true;
+        long deadline = Long.MAX_VALUE;
+        for (Item item : batch.items) {
+            deadline = Math.min(deadline, item.deadlineNanos);
+        }
+        batch.queueDeadlineNanos = deadline;
+    }
+
+    private void dispatch(Buffer buffer, Batch batch) {
+        long maxQueueMillis = batch.queueDeadlineNanos == Long.MAX_VALUE
+                ? DownstreamScheduler.NO_TIMEOUT
+                : Math.max(0, TimeUnit.NANOSECONDS.toMillis(batch.queueDeadlineNanos - System.nanoTime()));
+        CompletableFuture<List<Boolean>> future;
+        try {
+            future = downstreamScheduler.submit(buffer.flow, () -> sendBatch(buffer, batch), maxQueueMillis);
+        } catch (RejectedExecutionException e) {
+            complete(buffer, batch, null, e);
+            return;
+        }
+        future.whenComplete((results, error) -> complete(buffer, batch, results, error));
+    }
+
+    /**
+     * 拿到许可后封批并调用批量接口（运行在下游执行线程上）
+     */
+    private List<Boolean> sendBatch(Buffer buffer, Batch batch) throws ThirdPartyApiService.RateLimitException {
+        List<Item> items = seal(buffer, batch);
+        List<String> messages = new ArrayList<>(items.size());
+        for (Item item : items) {
+            messages.add(item.message);
+        }
+        return thirdPartyApiService.sendMessages(messages);
+    }
+
+    /**
+     * 封批：不再接收新消息，返回最终的批内消息
+     */
+    private static List<Item> seal(Buffer buffer, Batch batch) {
+        buffer.lock.lock();
+        try {
+            if (batch.sealed == null) {
+                if (buffer.open == batch) {
+                    buffer.open = null;
+                }
+                batch.sealed = new ArrayList<>(batch.items);
+            }
+            return batch.sealed;
+        } finally {
+            buffer.lock.unlock();
+        }
+    }
+
+    /**
+     * 把批量调用结果按下标分发给各条消息
+     */
+    private void complete(Buffer buffer, Batch batch, List<Boolean> results, Throwable error) {
+        List<Item> items = seal(buffer, batch);
+        if (error == null && (results == null || results.size() != items.size())) {
+            error = new IllegalStateException("批量接口返回结果数与消息数不一致: "
+                    + (results == null ? 0 : results.size()) + " != " + items.size());
+        }
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        buffer.lock.lock();
+        try {
+            if (error == null) {
+                buffer.batches++;
+                buffer.items += items.size();
+                buffer.maxBatchSize = Math.max(buffer.maxBatchSize, items.size());
+                buffer.batchSizeEwma = buffer.batchSizeEwma < 0 ? items.size()
+                        : buffer.batchSizeEwma + BATCH_SIZE_ALPHA * (items.size() - buffer.batchSizeEwma);
+                buffer.batchLatencyNanos += System.nanoTime() - batch.createdNanos;
+            } else {
+                buffer.failedBatches++;
+                buffer.failedItems += items.size();
+            }
+        } finally {
+            buffer.lock.unlock();
+        }
+        for (int i = 0; i < items.size(); i++) {
+            Item item = items.get(i);
+            if (error != null) {
+                item.future.completeExceptionally(error);
+            } else {
+                item.future.complete(results.get(i));
+            }
+        }
+        if (error != null) {
+            log.warn("⚠️ 批次调用失败，{} 条消息以同一异常结束 - 队列: {}, error: {}",
+                    items.size(), buffer.flow, error.getMessage());
+        } else {
+            log.debug("📦 批次调用完成 - 队列: {}, 消息数: {}", buffer.flow, items.size());
+        }
+    }
+
+    /**
+     * 队列平均每次调用发出的消息数（最近批次的 EWMA），未启用或还没有批次时返回 1
+     */
+    public double getMessagesPerCall(String flow) {
+        Buffer buffer = buffers.get(flow);
+        if (!enabled || buffer == null) {
+            return 1;
+        }
+        buffer.lock.lock();
+        try {
+            return buffer.batchSizeEwma < 1 ? 1 : buffer.batchSizeEwma;
+        } finally {
+            buffer.lock.unlock();
+        }
+    }
+
+    /**
+     * 单批最多消息数，未启用时为 1
+     */
+    public int getMaxBatchSize() {
+        return enabled ? maxBatchSize : 1;
+    }
+
+    /**
+     * 攒批额外等待时间（毫秒），未启用时为 0
+     */
+    public long getLingerMillis() {
+        return enabled ? Math.max(0, lingerMillis) : 0;
+    }
+
+    /**
+     * 聚合统计（按队列：批次数、消息数、平均/最大批次、攒满提交次数、失败数）
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> byFlow = new LinkedHashMap<>();
+        long totalBatches = 0;
+        long totalItems = 0;
+        for (Buffer buffer : buffers.values()) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            buffer.lock.lock();
+            try {
+                totalBatches += buffer.batches;
+                totalItems += buffer.items;
+                item.put("batches", buffer.batches);
+                item.put("messages", buffer.items);
+                item.put("avgBatchSize", buffer.batches == 0 ? 0
+                        : String.format("%.2f", (double) buffer.items / buffer.batches));
+                item.put("recentBatchSize", buffer.batchSizeEwma < 0 ? 0 : String.format("%.2f", buffer.batchSizeEwma));
+                item.put("maxBatchSize", buffer.maxBatchSize);
+                item.put("flushedBySize", buffer.flushedBySize);
+                item.put("avgBatchLatencyMs", buffer.batches == 0 ? 0
+                        : String.format("%.1f", buffer.batchLatencyNanos / 1e6 / buffer.batches));
+                item.put("failedBatches", buffer.failedBatches);
+                item.put("failedMessages", buffer.failedItems);
+                item.put("open", buffer.open == null ? 0 : buffer.open.items.size());
+            } finally {
+                buffer.lock.unlock();
+            }
+            byFlow.put(buffer.flow, item);
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("maxBatchSize", maxBatchSize);
+        stats.put("lingerMillis", lingerMillis);
+        stats.put("batches", totalBatches);
+        stats.put("messages", totalItems);
+        // 省下的许可：逐条调用需要的调用次数 - 实际调用次数
+        stats.put("savedPermits", totalItems - totalBatches);
+        stats.put("flows", byFlow);
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    /**
+     * 队列的攒批缓冲区（字段由自身的锁保护）
+     */
+    private static class Buffer {
+        /**
+         * 保护 open 批次和统计
+         */
+        final ReentrantLock lock = new ReentrantLock();
+        final String flow;
+        Batch open;
+        long batches;
+        long items;
+        long maxBatchSize;
+        long flushedBySize;
+        long batchLatencyNanos;
+        long failedBatches;
+        long failedItems;
+        double batchSizeEwma = -1;
+
+        Buffer(String flow) {
+            this.flow = flow;
+        }
+    }
+
+    private static class Batch {
+        final long createdNanos;
+        final List<Item> items = new ArrayList<>();
+        boolean submitted;
+        long queueDeadlineNanos = Long.MAX_VALUE;
+        ScheduledFuture<?> lingerTimer;
+        List<Item> sealed;
+
+        Batch(long createdNanos) {
+            this.createdNanos = createdNanos;
+        }
+    }
+
+    private static class Item {
+        final String message;
+        final long deadlineNanos;
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        Item(String message, long deadlineNanos) {
+            this.message = message;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+}
@@ -0,0 +1,600 @@
+package com.example.mqlimitdemo.service;
+
+import com.example.mqlimitdemo.limiter.QuotaCoordinator;
+import com.example.mqlimitdemo.limiter.RateLimitAlgorithm;
+import com.example.mqlimitdemo.limiter.RateLimiterMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 下游统一调度器
+ *
+ * rate-limit-topic、advanced-limit-topic、redis-limit-topic 等调用同一个第三方接口，原来各自限流
+ * （两个共用 Guava 限流器，一个走 Redis），合计速率可能超过第三方限制，各 Topic 之间也没有保底份额。
+ * 调度器统一所有消费者（包括批量、异步、拉取消费者和降级回放）的下游调用：
+ * 1. 只有一个配额：按 {@link QuotaCoordinator} 中 third_party_api 的本实例份额发放许可，
+ *    多实例部署时各实例份额之和等于全局速率
+ * 2. 每个 Topic 一个队列（flow），按权重做公平排队（Start-time Fair Queueing）：
+ *    入队时标记开始时间 max(虚拟时间, 本队列上一条的结束时间)，结束时间 = 开始时间 + 1/权重；
+ *    每拿到一个许可，派发开始时间最小的队首任务，虚拟时间推进到该开始时间。
+ *    所有队列都有积压时各 Topic 按权重分配配额，某个 Topic 空闲时它的份额由其他 Topic 按权重分享
+ * 3. 权重为 0 的队列是后台队列，只在所有加权队列都为空时派发，只使用空闲配额（如降级消息回放）
+ * 4. 每个任务可以指定最长排队时间，超时前未派发则不占用许可，以 {@link QueueTimeoutException} 结束
+ * 5. 派发的调用交给 {@link AsyncDownstreamExecutor} 执行，调度线程只负责取许可和选择队列
+ * 6. 任务可以占用多个许可（如整批消息一次调用）：结束时间 = 开始时间 + 许可数/权重，
+ *    派发时补齐其余许可（Guava 先放行、后续任务补偿等待，总速率不变）
+ *
+ * 按队列统计排队时延（入队到派发）、下游调用耗时、派发数、超时数和实际派发占比
+ *
+ * @author demo
+ */
+@Slf4j
+@Component
+public class DownstreamScheduler {
+
+    /**
+     * 共享配额的 key（与 QuotaCoordinator 中其他消费者使用的 key 相同）
+     */
+    public static final String QUOTA_KEY = "third_party_api";
+
+    /**
+     * 不限排队时间
+     */
+    public static final long NO_TIMEOUT = Long.MAX_VALUE;
+
+    /**
+     * 调度线程单次等待许可的最长时间（毫秒）
+     */
+    private static final long PERMIT_POLL_MILLIS = 1000;
+
+    /**
+     * 最近多久内有任务入队的队列算作活跃队列（参与分配配额）
+     */
+    private static final long ACTIVE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    /**
+     * 下游调用耗时 EWMA 的平滑系数
+     */
+    private static final double LATENCY_ALPHA = 0.2;
+
+    @Resource
+    private QuotaCoordinator quotaCoordinator;
+
+    @Resource
+    private AsyncDownstreamExecutor asyncDownstreamExecutor;
+
+    @Resource
+    private RateLimiterMetrics rateLimiterMetrics;
+
+    /**
+     * 第三方接口全局速率（所有实例合计）
+     */
+    @Value("${rate-limiter.scheduler.permits-per-second:5}")
+    private double permitsPerSecond;
+
+    /**
+     * 单个队列最多排队的任务数，满时拒绝
+     */
+    @Value("${rate-limiter.scheduler.max-queue-per-flow:64}")
+    private int maxQueuePerFlow;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 有新任务入队或调度器关闭
+     */
+    private final Condition changed = lock.newCondition();
+
+    private final Map<String, Flow> flows = new LinkedHashMap<>();
+
+    /**
+     * 虚拟时间：最近派发任务的开始时间
+     */
+    private double virtualTime;
+
+    private int queued;
+
+    private long idlePermits;
+
+    private Thread dispatcher;
+
+    private volatile boolean running;
+
+    @PostConstruct
+    public void init() {
+        quotaCoordinator.register(QUOTA_KEY, permitsPerSecond, "downstream-scheduler", this::queuedCount);
+        running = true;
+        dispatcher = new Thread(this::dispatchLoop, "downstream-scheduler");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        log.info("下游统一调度器已启动 - 全局速率: {}/s, 本实例份额: {}/s, 单队列上限: {}",
+                permitsPerSecond, String.format("%.3f", getRate()), maxQueuePerFlow);
+    }
+
+    /**
+     * 注册队列
+     *
+     * @param name   队列名称（通常是 Topic）
+     * @param weight 权重，0 表示后台队列（只使用空闲配额）
+     */
+    public void registerFlow(String name, int weight) {
+        if (weight < 0) {
+            throw new IllegalArgumentException("权重不能为负数: " + name + "=" + weight);
+        }
+        lock.lock();
+        try {
+            Flow flow = flows.get(name);
+            if (flow == null) {
+                flows.put(name, new Flow(name, weight));
+            } else {
+                flow.weight = weight;
+            }
+        } finally {
+            lock.unlock();
+        }
+        log.info("注册下游调度队列 - {}: 权重 {}{}", name, weight, weight == 0 ? "（后台，只使用空闲配额）" : "");
+    }
+
+    /**
+     * 排队等待许可后执行下游调用，阻塞直到调用完成
+     *
+     * @param flow           队列名称（未注册的队列按权重 1 自动注册）
+     * @param call           下游调用
+     * @param maxQueueMillis 最长排队时间（毫秒），{@link #NO_TIMEOUT} 表示一直等待
+     * @return 调用结果
+     * @throws QueueTimeoutException      超时前未派发（没有占用许可）
+     * @throws RejectedExecutionException 队列已满或调度器已关闭
+     * @throws Exception                  下游调用抛出的异常
+     */
+    public <T> T execute(String flow, Callable<T> call, long maxQueueMillis) throws Exception {
+        return execute(flow, 1, call, maxQueueMillis);
+    }
+
+    /**
+     * 排队等待 permits 个许可后执行下游调用，阻塞直到调用完成
+     *
+     * @param permits 占用的许可数（至少 1），例如整批消息的权重之和
+     * @see #execute(String, Callable, long)
+     */
+    public <T> T execute(String flow, int permits, Callable<T> call, long maxQueueMillis) throws Exception {
+        Task<T> task = enqueue(flow, permits, call, maxQueueMillis);
+        try {
+            return task.future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        } catch (InterruptedException e) {
+            // 还在排队的任务取消后由调度线程丢弃，不再占用许可
+            task.future.cancel(false);
+            throw e;
+        }
+    }
+
+    /**
+     * 排队等待许可后执行下游调用，不阻塞调用方
+     *
+     * @param flow           队列名称（未注册的队列按权重 1 自动注册）
+     * @param call           下游调用
+     * @param maxQueueMillis 最长排队时间（毫秒），{@link #NO_TIMEOUT} 表示一直等待
+     * @return 调用结果；超时前未派发时以 {@link QueueTimeoutException} 结束
+     * @throws RejectedExecutionException 队列已满或调度器已关闭
+     */
+    public <T> CompletableFuture<T> submit(String flow, Callable<T> call, long maxQueueMillis) {
+        return enqueue(flow, 1, call, maxQueueMillis).future;
+    }
+
+    private <T> Task<T> enqueue(String flowName, int permits, Callable<T> call, long maxQueueMillis) {
+        if (permits < 1) {
+            throw new IllegalArgumentException("许可数必须大于 0: " + permits);
+        }
+        long now = System.nanoTime();
+        long deadline = maxQueueMillis == NO_TIMEOUT || maxQueueMillis >= TimeUnit.DAYS.toMillis(1)
+                ? Long.MAX_VALUE
+                : now + TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxQueueMillis));
+        lock.lock();
+        try {
+            if (!running) {
+                throw new RejectedExecutionException("下游调度器已关闭");
+            }
+            Flow flow = flows.get(flowName);
+            if (flow == null) {
+                flow = new Flow(flowName, 1);
+                flows.put(flowName, flow);
+            }
+            if (flow.queue.size() >= maxQueuePerFlow) {
+                flow.rejected++;
+                throw new RejectedExecutionException("下游调度队列已满: " + flowName);
+            }
+            Task<T> task = new Task<>(flow, permits, call, now, deadline);
+            if (flow.weight > 0) {
+                task.startTag = Math.max(virtualTime, flow.lastFinishTag);
+                flow.lastFinishTag = task.startTag + (double) permits / flow.weight;
+            }
+            flow.queue.addLast(task);
+            flow.lastEnqueueNanos = now;
+            queued++;
+            changed.signalAll();
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void dispatchLoop() {
+        while (running) {
+            try {
+                long timeoutMillis;
+                lock.lock();
+                try {
+                    while (running && queued == 0) {
+                        changed.await();
+                    }
+                    expireTimedOut();
+                    timeoutMillis = millisUntilEarliestDeadline();
+                } finally {
+                    lock.unlock();
+                }
+                // 最多等到最早一个任务的排队截止时间；Guava 判断截止前拿不到许可时立即返回 false，不预占许可
+                if (!quotaCoordinator.tryAcquire(QUOTA_KEY, timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    lock.lock();
+                    try {
+                        // 等到截止时间再移除超时任务；期间有新任务入队时提前醒来重新计算
+                        if (timeoutMillis > 0) {
+                            changed.await(timeoutMillis, TimeUnit.MILLISECONDS);
+                        }
+                        expireTimedOut();
+                    } finally {
+                        lock.unlock();
+                    }
+                    continue;
+                }
+                Task<?> task;
+                lock.lock();
+                try {
+                    expireTimedOut();
+                    task = next();
+                    if (task == null) {
+                        // 拿到许可时排队的任务都已超时或取消
+                        idlePermits++;
+                        continue;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                acquireRemaining(task);
+                dispatch(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                log.error("下游调度异常: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * 选择开始时间最小的加权队首任务；没有加权任务时选择后台队列（必须持有 lock）
+     */
+    private Task<?> next() {
+        Flow selected = null;
+        Flow background = null;
+        for (Flow flow : flows.values()) {
+            Task<?> head = flow.queue.peekFirst();
+            if (head == null) {
+                continue;
+            }
+            if (flow.weight == 0) {
+                if (background == null) {
+                    background = flow;
+                }
+            } else if (selected == null || head.startTag < selected.queue.peekFirst().startTag) {
+                selected = flow;
+            }
+        }
+        if (selected == null) {
+            selected = background;
+        }
+        if (selected == null) {
+            return null;
+        }
+        Task<?> task = selected.queue.pollFirst();
+        queued--;
+        if (selected.weight > 0) {
+            virtualTime = Math.max(virtualTime, task.startTag);
+        }
+        return task;
+    }
+
+    /**
+     * 距最早一个排队截止时间的毫秒数，最多 PERMIT_POLL_MILLIS（必须持有 lock）
+     */
+    private long millisUntilEarliestDeadline() {
+        long now = System.nanoTime();
+        long millis = PERMIT_POLL_MILLIS;
+        for (Flow flow : flows.values()) {
+            for (Task<?> task : flow.queue) {
+                if (task.deadlineNanos != Long.MAX_VALUE) {
+                    // 向上取整，避免截止前不足 1 毫秒时反复以 0 超时轮询
+                    long nanos = Math.max(0, task.deadlineNanos - now);
+                    millis = Math.min(millis, (nanos + 999_999) / 1_000_000);
+                }
+            }
+        }
+        return millis;
+    }
+
+    /**
+     * 移除排队超时和已取消的任务（必须持有 lock）
+     */
+    private void expireTimedOut() {
+        long now = System.nanoTime();
+        for (Flow flow : flows.values()) {
+            Iterator<Task<?>> iterator = flow.queue.iterator();
+            while (iterator.hasNext()) {
+                Task<?> task = iterator.next();
+                if (task.future.isDone()) {
+                    iterator.remove();
+                    queued--;
+                } else if (task.deadlineNanos != Long.MAX_VALUE && now - task.deadlineNanos >= 0) {
+                    iterator.remove();
+                    queued--;
+                    flow.timeouts++;
+                    long waitedMillis = TimeUnit.NANOSECONDS.toMillis(now - task.enqueueNanos);
+                    rateLimiterMetrics.recordDecision(RateLimitAlgorithm.GUAVA, QUOTA_KEY, false, -1, getRate());
+                    task.future.completeExceptionally(new QueueTimeoutException(flow.name, waitedMillis));
+                }
+            }
+        }
+    }
+
+    /**
+     * 补齐多许可任务的其余许可
+     *
+     * Guava 在能立即放行时先放行本次请求，欠下的许可由后续请求等待补偿，这里最多等一个许可间隔
+     */
+    private void acquireRemaining(Task<?> task) {
+        int remaining = task.permits - 1;
+        while (remaining > 0 && running
+                && !quotaCoordinator.tryAcquire(QUOTA_KEY, remaining, PERMIT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            log.debug("等待补齐多许可任务的许可 - 队列: {}, 许可: {}", task.flow.name, task.permits);
+        }
+    }
+
+    private <T> void dispatch(Task<T> task) throws InterruptedException {
+        long delayNanos = System.nanoTime() - task.enqueueNanos;
+        lock.lock();
+        try {
+            Flow flow = task.flow;
+            flow.dispatched++;
+            flow.permits += task.permits;
+            flow.queueDelayNanos += delayNanos;
+            flow.maxQueueDelayNanos = Math.max(flow.maxQueueDelayNanos, delayNanos);
+        } finally {
+            lock.unlock();
+        }
+        rateLimiterMetrics.recordDecision(RateLimitAlgorithm.GUAVA, QUOTA_KEY, true, -1, getRate());
+        rateLimiterMetrics.recordPermitWait(RateLimitAlgorithm.GUAVA, QUOTA_KEY, delayNanos);
+
+        // 在途窗口满时阻塞调度线程，许可已拿到，不会多发
+        long callStart = System.nanoTime();
+        asyncDownstreamExecutor.submit(task.call).whenComplete((result, error) -> {
+            long latencyNanos = System.nanoTime() - callStart;
+            lock.lock();
+            try {
+                Flow flow = task.flow;
+                flow.latencyEwmaNanos = flow.latencyEwmaNanos < 0 ? latencyNanos
+                        : flow.latencyEwmaNanos + LATENCY_ALPHA * (latencyNanos - flow.latencyEwmaNanos);
+            } finally {
+                lock.unlock();
+            }
+            if (error != null) {
+                task.future.completeExceptionally(error);
+            } else {
+                task.future.complete(result);
+            }
+        });
+    }
+
+    private long queuedCount() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 本实例当前派发速率（个/秒）
+     */
+    public double getRate() {
+        return quotaCoordinator.getShare(QUOTA_KEY);
+    }
+
+    /**
+     * 队列在当前竞争下可以分到的速率（个/秒）：本实例份额 × 本队列权重 / 活跃加权队列的权重之和。
+     * 其他队列空闲时即为全部份额；后台队列只在没有活跃加权队列时分到全部份额，否则为 0
+     */
+    public double getPermittedRate(String flowName) {
+        double share = Math.max(0, getRate());
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            Flow flow = flows.get(flowName);
+            if (flow == null) {
+                return share;
+            }
+            int activeWeight = 0;
+            for (Flow other : flows.values()) {
+                if (other.weight > 0 && (other == flow || isActive(other, now))) {
+                    activeWeight += other.weight;
+                }
+            }
+            if (flow.weight == 0) {
+                return activeWeight == 0 ? share : 0;
+            }
+            return share * flow.weight / activeWeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean isActive(Flow flow, long now) {
+        return !flow.queue.isEmpty() || (flow.lastEnqueueNanos != 0 && now - flow.lastEnqueueNanos < ACTIVE_WINDOW_NANOS);
+    }
+
+    /**
+     * 队列下游调用耗时的 EWMA（毫秒，派发到完成），还没有调用时返回 -1
+     */
+    public double getLatencyMillis(String flowName) {
+        lock.lock();
+        try {
+            Flow flow = flows.get(flowName);
+            return flow == null || flow.latencyEwmaNanos < 0 ? -1 : flow.latencyEwmaNanos / 1e6;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 调度统计（按队列：权重、排队数、排队时延、派发占比、超时数）
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            long totalDispatched = 0;
+            for (Flow flow : flows.values()) {
+                totalDispatched += flow.dispatched;
+            }
+            long now = System.nanoTime();
+            Map<String, Object> byFlow = new LinkedHashMap<>();
+            for (Flow flow : flows.values()) {
+                Task<?> oldest = flow.queue.peekFirst();
+                Map<String, Object> item = new LinkedHashMap<>();
+                item.put("weight", flow.weight);
+                item.put("queued", flow.queue.size());
+                item.put("oldestQueuedMs", oldest == null ? 0 : TimeUnit.NANOSECONDS.toMillis(now - oldest.enqueueNanos));
+                item.put("dispatched", flow.dispatched);
+                item.put("permits", flow.permits);
+                item.put("dispatchShare", totalDispatched == 0 ? "0.0%"
+                        : String.format("%.1f%%", flow.dispatched * 100.0 / totalDispatched));
+                item.put("avgQueueDelayMs", flow.dispatched == 0 ? 0
+                        : String.format("%.1f", flow.queueDelayNanos / 1e6 / flow.dispatched));
+                item.put("maxQueueDelayMs", TimeUnit.NANOSECONDS.toMillis(flow.maxQueueDelayNanos));
+                item.put("latencyMs", flow.latencyEwmaNanos < 0 ? -1 : String.format("%.1f", flow.latencyEwmaNanos / 1e6));
+                item.put("timeouts", flow.timeouts);
+                item.put("rejected", flow.rejected);
+                byFlow.put(flow.name, item);
+            }
+            stats.put("quotaKey", QUOTA_KEY);
+            stats.put("globalPermitsPerSecond", permitsPerSecond);
+            stats.put("sharePerSecond", String.format("%.3f", getRate()));
+            stats.put("queued", queued);
+            stats.put("dispatched", totalDispatched);
+            stats.put("idlePermits", idlePermits);
+            stats.put("virtualTime", String.format("%.3f", virtualTime));
+            stats.put("flows", byFlow);
+        } finally {
+            lock.unlock();
+        }
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        lock.lock();
+        try {
+            running = false;
+            for (Flow flow : flows.values()) {
+                for (Task<?> task : flow.queue) {
+                    task.future.completeExceptionally(new RejectedExecutionException("下游调度器已关闭"));
+                }
+                flow.queue.clear();
+            }
+            queued = 0;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+        }
+    }
+
+    /**
+     * 队列（字段由 lock 保护）
+     */
+    private static class Flow {
+        final String name;
+        int weight;
+        final ArrayDeque<Task<?>> queue = new ArrayDeque<>();
+        double lastFinishTag;
+        long dispatched;
+        long permits;
+        long timeouts;
+        long rejected;
+        long queueDelayNanos;
+        long maxQueueDelayNanos;
+        long lastEnqueueNanos;
+        double latencyEwmaNanos = -1;
+
+        Flow(String name, int weight) {
+            this.name = name;
+            this.weight = weight;
+        }
+    }
+
+    private static class Task<T> {
+        final Flow flow;
+        final int permits;
+        final Callable<T> call;
+        final long enqueueNanos;
+        final long deadlineNanos;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        double startTag;
+
+        Task(Flow flow, int permits, Callable<T> call, long enqueueNanos, long deadlineNanos) {
+            this.flow = flow;
+            this.permits = permits;
+            this.call = call;
+            this.enqueueNanos = enqueueNanos;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    /**
+     * 超过最长排队时间仍未派发（没有占用许可）
+     */
+    public static class QueueTimeoutException extends RuntimeException {
+        private final long queuedMillis;
+
+        public QueueTimeoutException(String flow, long queuedMillis) {
+            super("下游调度排队超时: " + flow + "，已排队 " + queuedMillis + " ms");
+            this.queuedMillis = queuedMillis;
+        }
+
+        public long getQueuedMillis() {
+            return queuedMillis;
+        }
+    }
+}
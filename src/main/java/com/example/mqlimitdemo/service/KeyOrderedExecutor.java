@@ -0,0 +1,245 @@
+package com.example.mqlimitdemo.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按 Key 保序的并行执行器
+ *
+ * 并发消费时同一订单（或用户）的多条消息可能被不同线程同时处理，顺序消费又会把整个队列串行化。
+ * 执行器按业务 Key 拆分：
+ * 1. 每个 Key 一个 FIFO 队列，同一 Key 的任务严格按提交顺序、同一时刻只有一个在执行
+ * 2. 不同 Key 的任务在共享线程池上并行执行；每次只执行一个任务后重新排队，热点 Key 不会独占线程
+ * 3. 单个 Key 的队列满（maxQueuePerKey）时拒绝提交（{@link RejectedExecutionException}），不阻塞提交方：
+ *    一个 Key 积压不应拖住其他 Key 的提交，由调用方决定该 Key 剩余消息的处理（如一起重试）
+ * 4. 全部排队任务数达到上限（maxPending）时提交方阻塞，背压传递到消费线程，RocketMQ 本地缓存达到阈值后停止拉取
+ *
+ * 队列为空的 Key 立即移除，Key 的数量不会无限增长。Key 队列只用 ReentrantLock 保护入队出队，
+ * 任务在锁外执行，执行线程不会因监视器等待而钉住（可换成虚拟线程）
+ *
+ * @author demo
+ */
+@Slf4j
+@Component
+public class KeyOrderedExecutor {
+
+    /**
+     * 执行任务的线程数（不同 Key 之间的最大并行度）
+     */
+    @Value("${rate-limiter.key-ordered.threads:16}")
+    private int threads;
+
+    /**
+     * 单个 Key 最多排队的任务数，超过后拒绝提交
+     */
+    @Value("${rate-limiter.key-ordered.max-queue-per-key:16}")
+    private int maxQueuePerKey;
+
+    /**
+     * 所有 Key 合计最多排队（含执行中）的任务数
+     */
+    @Value("${rate-limiter.key-ordered.max-pending:256}")
+    private int maxPending;
+
+    private ExecutorService workers;
+
+    private Semaphore pending;
+
+    private final ConcurrentMap<String, KeyQueue> queues = new ConcurrentHashMap<>();
+
+    private final AtomicInteger peakKeys = new AtomicInteger();
+    private final AtomicInteger peakQueueDepth = new AtomicInteger();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder keyRejected = new LongAdder();
+    private final LongAdder pendingBlocked = new LongAdder();
+    private final LongAdder blockedNanos = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        pending = new Semaphore(maxPending);
+        AtomicInteger threadIndex = new AtomicInteger();
+        // 每个 Key 同一时刻最多一个待执行任务在线程池队列中，队列长度不超过 Key 数（受 maxPending 限制）
+        workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "key-ordered-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        log.info("按Key保序执行器已启动 - 线程数: {}, 单Key队列: {}, 总排队上限: {}", threads, maxQueuePerKey, maxPending);
+    }
+
+    /**
+     * 提交任务
+     *
+     * 同一 Key 的任务按提交顺序依次执行；总排队数达到上限时阻塞
+     *
+     * @param key  业务 Key（如 orderId、userId）
+     * @param task 任务
+     * @return 任务结果，任务抛出的异常通过 future 异常完成
+     * @throws RejectedExecutionException Key 的队列已满，任务没有提交
+     */
+    public <T> CompletableFuture<T> submit(String key, Callable<T> task) throws InterruptedException {
+        long waitStart = System.nanoTime();
+        if (!pending.tryAcquire()) {
+            pendingBlocked.increment();
+            pending.acquire();
+        }
+
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Runnable runnable = () -> {
+            T result;
+            try {
+                result = task.call();
+            } catch (Throwable e) {
+                failed.increment();
+                pending.release();
+                future.completeExceptionally(e);
+                return;
+            }
+            completed.increment();
+            pending.release();
+            future.complete(result);
+        };
+
+        try {
+            enqueue(key, runnable);
+        } catch (RuntimeException e) {
+            pending.release();
+            throw e;
+        }
+        blockedNanos.add(System.nanoTime() - waitStart);
+        submitted.increment();
+        return future;
+    }
+
+    private void enqueue(String key, Runnable runnable) {
+        while (true) {
+            KeyQueue queue = queues.computeIfAbsent(key, KeyQueue::new);
+            boolean schedule;
+            queue.lock.lock();
+            try {
+                if (queue.retired) {
+                    // 队列刚清空并移除，重新创建
+                    continue;
+                }
+                if (queue.tasks.size() >= maxQueuePerKey) {
+                    keyRejected.increment();
+                    throw new RejectedExecutionException("Key 队列已满: " + key);
+                }
+                queue.tasks.addLast(runnable);
+                peakQueueDepth.accumulateAndGet(queue.tasks.size(), Math::max);
+                schedule = !queue.scheduled;
+                queue.scheduled = true;
+            } finally {
+                queue.lock.unlock();
+            }
+            peakKeys.accumulateAndGet(queues.size(), Math::max);
+            if (schedule) {
+                workers.execute(() -> drain(queue));
+            }
+            return;
+        }
+    }
+
+    /**
+     * 执行 Key 队列的队首任务；还有任务则重新排到线程池队尾，否则移除该 Key
+     */
+    private void drain(KeyQueue queue) {
+        Runnable next;
+        queue.lock.lock();
+        try {
+            next = queue.tasks.pollFirst();
+        } finally {
+            queue.lock.unlock();
+        }
+        if (next != null) {
+            next.run();
+        }
+
+        queue.lock.lock();
+        try {
+            if (queue.tasks.isEmpty()) {
+                queue.scheduled = false;
+                queue.retired = true;
+                queues.remove(queue.key, queue);
+                return;
+            }
+        } finally {
+            queue.lock.unlock();
+        }
+        workers.execute(() -> drain(queue));
+    }
+
+    /**
+     * 执行器统计
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("threads", threads);
+        stats.put("maxQueuePerKey", maxQueuePerKey);
+        stats.put("maxPending", maxPending);
+        stats.put("activeKeys", queues.size());
+        stats.put("peakKeys", peakKeys.get());
+        stats.put("peakQueueDepth", peakQueueDepth.get());
+        stats.put("pending", maxPending - pending.availablePermits());
+        stats.put("submitted", submitted.sum());
+        stats.put("completed", completed.sum());
+        stats.put("failed", failed.sum());
+        stats.put("keyQueueFullRejects", keyRejected.sum());
+        stats.put("pendingFullBlocks", pendingBlocked.sum());
+        long count = submitted.sum();
+        stats.put("avgSubmitWaitMs", count == 0 ? 0 : String.format("%.3f", blockedNanos.sum() / 1e6 / count));
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(5, TimeUnit.SECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 单个 Key 的任务队列
+     *
+     * scheduled：线程池中已有该 Key 的待执行 drain，保证同一 Key 同一时刻只有一个任务在执行；
+     * retired：队列已清空并从 Map 中移除，之后的提交需要重新创建队列
+     */
+    private static class KeyQueue {
+        private final String key;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private boolean scheduled;
+        private boolean retired;
+
+        KeyQueue(String key) {
+            this.key = key;
+        }
+    }
+}
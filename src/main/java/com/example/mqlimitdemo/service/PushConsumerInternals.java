@@ -0,0 +1,78 @@
+package com.example.mqlimitdemo.service;
+
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.impl.consumer.ConsumeMessageService;
+import org.apache.rocketmq.client.impl.consumer.DefaultMQPushConsumerImpl;
+import org.apache.rocketmq.client.impl.consumer.ProcessQueue;
+
+/**
+ * Push 消费者内部状态访问
+ *
+ * 本地积压、分到的队列数和消费线程数只能通过 DefaultMQPushConsumer#getDefaultMQPushConsumerImpl 取得，
+ * 该方法已废弃（客户端内部实现，升级时可能变化）。所有用到内部实现的地方都经过这里，
+ * 废弃警告只在这一个类中屏蔽，升级客户端时只需检查这里
+ *
+ * @author demo
+ */
+public final class PushConsumerInternals {
+
+    private PushConsumerInternals() {
+    }
+
+    /**
+     * 本地积压：已拉取到本地、尚未消费完成的消息数（消费者为空或尚未启动时为 0）
+     */
+    public static long backlog(DefaultMQPushConsumer consumer) {
+        DefaultMQPushConsumerImpl impl = impl(consumer);
+        if (impl == null) {
+            return 0;
+        }
+        long count = 0;
+        for (ProcessQueue processQueue : impl.getRebalanceImpl().getProcessQueueTable().values()) {
+            if (!processQueue.isDropped()) {
+                count += processQueue.getMsgCount().get();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 本实例分到的队列数（尚未完成负载均衡时为 0）
+     */
+    public static int queueCount(DefaultMQPushConsumer consumer) {
+        DefaultMQPushConsumerImpl impl = impl(consumer);
+        return impl == null ? 0 : impl.getRebalanceImpl().getProcessQueueTable().size();
+    }
+
+    /**
+     * 当前消费线程数（核心线程数），消费者尚未启动时为 -1
+     */
+    public static int corePoolSize(DefaultMQPushConsumer consumer) {
+        ConsumeMessageService service = consumeMessageService(consumer);
+        return service == null ? -1 : service.getCorePoolSize();
+    }
+
+    /**
+     * 运行时调整消费线程数
+     *
+     * @return 消费者尚未启动时返回 false
+     */
+    public static boolean updateCorePoolSize(DefaultMQPushConsumer consumer, int corePoolSize) {
+        DefaultMQPushConsumerImpl impl = impl(consumer);
+        if (impl == null || impl.getConsumeMessageService() == null) {
+            return false;
+        }
+        impl.updateCorePoolSize(corePoolSize);
+        return true;
+    }
+
+    private static ConsumeMessageService consumeMessageService(DefaultMQPushConsumer consumer) {
+        DefaultMQPushConsumerImpl impl = impl(consumer);
+        return impl == null ? null : impl.getConsumeMessageService();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static DefaultMQPushConsumerImpl impl(DefaultMQPushConsumer consumer) {
+        return consumer == null ? null : consumer.getDefaultMQPushConsumerImpl();
+    }
+}
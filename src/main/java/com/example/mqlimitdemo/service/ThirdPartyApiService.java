@@ -3,12 +3,16 @@ package com.example.mqlimitdemo.service;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 模拟第三方接口服务
  * 
- * 该接口有频率限制：每秒最多允许 5 次调用
+ * 该接口有频率限制：每秒最多允许 5 次调用（批量接口一次调用最多 50 条消息，同样只计一次）
  *
  * @author demo
  */
@@ -18,12 +22,18 @@ public class ThirdPartyApiService {
 
     // 模拟每秒允许的最大调用次数
     private static final int MAX_CALLS_PER_SECOND = 5;
+
+    /**
+     * 批量接口单次最多消息数
+     */
+    public static final int MAX_BATCH_SIZE = 50;
     
     // 当前秒内的调用次数
     private final AtomicInteger callCount = new AtomicInteger(0);
     
     // 上一次重置时间（秒）
-    private volatile long lastResetTime = System.currentTimeMillis() / 1000;
+    // 使用 CAS 重置而不是 synchronized，运行在虚拟线程上时不会固定（pin）载体线程
+    private final AtomicLong lastResetTime = new AtomicLong(System.currentTimeMillis() / 1000);
 
     /**
      * 模拟发送消息到第三方接口
@@ -33,24 +43,7 @@ public class ThirdPartyApiService {
      * @throws RateLimitException 如果超过频率限制
      */
     public boolean sendMessage(String message) throws RateLimitException {
-        // 检查是否需要重置计数器
-        long currentSecond = System.currentTimeMillis() / 1000;
-        if (currentSecond > lastResetTime) {
-            synchronized (this) {
-                if (currentSecond > lastResetTime) {
-                    callCount.set(0);
-                    lastResetTime = currentSecond;
-                    log.debug("计数器已重置，当前秒: {}", currentSecond);
-                }
-            }
-        }
-
-        // 检查是否超过限制
-        int currentCount = callCount.incrementAndGet();
-        if (currentCount > MAX_CALLS_PER_SECOND) {
-            log.warn("⚠️ 超过频率限制！当前调用次数: {}, 限制: {}/秒", currentCount, MAX_CALLS_PER_SECOND);
-            throw new RateLimitException("超过第三方接口调用频率限制: " + MAX_CALLS_PER_SECOND + " 次/秒");
-        }
+        int currentCount = countCall();
 
         // 模拟调用第三方接口（延迟 100ms）
         try {
@@ -65,12 +58,71 @@ public class ThirdPartyApiService {
         }
     }
 
+    /**
+     * 模拟批量发送消息到第三方接口
+     *
+     * 频率限制按调用次数计算，一次批量调用只占一次；每条消息单独返回结果（空消息校验失败），
+     * 调用方按下标把结果分发给各条消息
+     *
+     * @param messages 消息内容，最多 {@link #MAX_BATCH_SIZE} 条
+     * @return 与 messages 一一对应的发送结果
+     * @throws RateLimitException 如果超过频率限制（整批都未发送）
+     */
+    public List<Boolean> sendMessages(List<String> messages) throws RateLimitException {
+        if (messages.size() > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("批量消息数超过上限: " + messages.size() + " > " + MAX_BATCH_SIZE);
+        }
+        int currentCount = countCall();
+
+        // 模拟调用第三方接口（基础延迟 100ms，每条消息额外 2ms）
+        try {
+            Thread.sleep(100 + 2L * messages.size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("第三方接口批量调用被中断", e);
+            return Collections.nCopies(messages.size(), false);
+        }
+        List<Boolean> results = new ArrayList<>(messages.size());
+        int succeeded = 0;
+        for (String message : messages) {
+            boolean ok = message != null && !message.trim().isEmpty();
+            results.add(ok);
+            if (ok) {
+                succeeded++;
+            }
+        }
+        log.info("✅ 第三方接口批量调用成功 [调用次数: {}/{}] - 消息数: {}, 成功: {}",
+                currentCount, MAX_CALLS_PER_SECOND, messages.size(), succeeded);
+        return results;
+    }
+
+    /**
+     * 计入一次调用，返回当前秒内的调用次数
+     */
+    private int countCall() throws RateLimitException {
+        // 检查是否需要重置计数器
+        long currentSecond = System.currentTimeMillis() / 1000;
+        long lastSecond = lastResetTime.get();
+        if (currentSecond > lastSecond && lastResetTime.compareAndSet(lastSecond, currentSecond)) {
+            callCount.set(0);
+            log.debug("计数器已重置，当前秒: {}", currentSecond);
+        }
+
+        // 检查是否超过限制
+        int currentCount = callCount.incrementAndGet();
+        if (currentCount > MAX_CALLS_PER_SECOND) {
+            log.warn("⚠️ 超过频率限制！当前调用次数: {}, 限制: {}/秒", currentCount, MAX_CALLS_PER_SECOND);
+            throw new RateLimitException("超过第三方接口调用频率限制: " + MAX_CALLS_PER_SECOND + " 次/秒");
+        }
+        return currentCount;
+    }
+
     /**
      * 获取当前剩余调用次数
      */
     public int getRemainingCalls() {
         long currentSecond = System.currentTimeMillis() / 1000;
-        if (currentSecond > lastResetTime) {
+        if (currentSecond > lastResetTime.get()) {
             return MAX_CALLS_PER_SECOND;
         }
         int remaining = MAX_CALLS_PER_SECOND - callCount.get();
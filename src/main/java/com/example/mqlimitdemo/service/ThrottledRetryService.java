@@ -0,0 +1,167 @@
+package com.example.mqlimitdemo.service;
+
+import com.example.mqlimitdemo.producer.MessageProducer;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 限流重试服务
+ *
+ * 被限流的消息抛异常后，RocketMQ 按固定的重试阶梯（10s 30s 1m 2m ...）重新投递，与配额何时恢复无关：
+ * 配额很快恢复时消息白等，配额长时间不足时又集中重试形成重试风暴。
+ * 本服务改为按限流器计算的等待时间重新投递：
+ * 1. 选择不短于等待时间的最小延迟级别（超过最大级别时取最大级别），通过 {@link MessageProducer#sendRawDelayMessage}
+ *    重新发送到原 Topic：消息体 byte[] 原样复制，Tag、Keys 和所有用户属性（如编解码器 CODEC）保留
+ * 2. 重试次数记录在用户属性 THROTTLE_RETRY_ATTEMPT 中，超过上限后交回 RocketMQ 正常重试（最终进入死信队列）
+ * 3. 重新发送成功后由调用方正常返回，原消息即被确认
+ * 4. 第一次发送的时间和截止时间随重试消息传递，消息有效期不会因为重试而重新计算
+ *
+ * @author demo
+ */
+@Slf4j
+@Service
+public class ThrottledRetryService {
+
+    /**
+     * 重试次数属性
+     */
+    public static final String PROPERTY_RETRY_ATTEMPT = "THROTTLE_RETRY_ATTEMPT";
+
+    /**
+     * 原始消息ID属性，重新发送后仍可追踪到第一次投递的消息
+     */
+    public static final String PROPERTY_ORIGIN_MSG_ID = "THROTTLE_ORIGIN_MSG_ID";
+
+    /**
+     * 原始消息发送时间属性，重新发送后仍按第一次发送的时间计算消息有效期
+     */
+    public static final String PROPERTY_ORIGIN_BORN_TIMESTAMP = "THROTTLE_ORIGIN_BORN_TIMESTAMP";
+
+    /**
+     * Broker 默认延迟级别 1~18 对应的延迟时间（毫秒）
+     */
+    private static final long[] DELAY_LEVEL_MILLIS = {
+            1_000, 5_000, 10_000, 30_000,
+            60_000, 120_000, 180_000, 240_000, 300_000, 360_000, 420_000, 480_000, 540_000, 600_000,
+            1_200_000, 1_800_000, 3_600_000, 7_200_000
+    };
+
+    @Resource
+    private MessageProducer messageProducer;
+
+    /**
+     * 最大限流重试次数
+     */
+    @Value("${rate-limiter.throttle-retry.max-attempts:16}")
+    private int maxAttempts;
+
+    private final LongAdder scheduled = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+    private final AtomicLongArray levelCounts = new AtomicLongArray(DELAY_LEVEL_MILLIS.length);
+
+    /**
+     * 按限流器给出的等待时间延迟重新投递消息
+     *
+     * @param message         原消息
+     * @param retryAfterMillis 限流器计算的等待时间（毫秒）
+     * @return true 已重新投递，调用方应正常返回以确认原消息；false 应抛出异常交给 RocketMQ 重试
+     */
+    public boolean retryLater(MessageExt message, long retryAfterMillis) {
+        int attempt = parseAttempt(message.getUserProperty(PROPERTY_RETRY_ATTEMPT)) + 1;
+        if (attempt > maxAttempts) {
+            exhausted.increment();
+            log.error("❌ 限流重试次数已达上限 {}，交给 RocketMQ 重试 - MsgId: {}", maxAttempts, message.getMsgId());
+            return false;
+        }
+
+        int delayLevel = delayLevelFor(retryAfterMillis);
+        try {
+            messageProducer.sendRawDelayMessage(copyForRetry(message, attempt), delayLevel);
+            scheduled.increment();
+            levelCounts.incrementAndGet(delayLevel - 1);
+            log.warn("⏳ 消息被限流，{} ms 后重试（延迟级别 {}，第 {} 次）- MsgId: {}",
+                    DELAY_LEVEL_MILLIS[delayLevel - 1], delayLevel, attempt, message.getMsgId());
+            return true;
+        } catch (Exception e) {
+            sendFailures.increment();
+            log.error("❌ 限流重试消息发送失败，交给 RocketMQ 重试 - MsgId: {}, error: {}",
+                    message.getMsgId(), e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 不短于等待时间的最小延迟级别（1~18），等待时间超过最大级别时取最大级别；
+     * 选更短的级别会在配额恢复前重新投递，白白再被限流一次
+     */
+    public static int delayLevelFor(long waitMillis) {
+        for (int i = 0; i < DELAY_LEVEL_MILLIS.length; i++) {
+            if (DELAY_LEVEL_MILLIS[i] >= waitMillis) {
+                return i + 1;
+            }
+        }
+        return DELAY_LEVEL_MILLIS.length;
+    }
+
+    /**
+     * 复制原消息：消息体、Tag、Keys 和用户属性原样保留，系统属性（UNIQ_KEY、延迟级别等）由发送时重新生成，
+     * 并写入重试次数、原始消息ID和第一次发送时间
+     */
+    private Message copyForRetry(MessageExt message, int attempt) {
+        Message retry = new Message(message.getTopic(), message.getTags(), message.getKeys(), message.getBody());
+        for (Map.Entry<String, String> property : message.getProperties().entrySet()) {
+            if (!MessageConst.STRING_HASH_SET.contains(property.getKey())) {
+                retry.putUserProperty(property.getKey(), property.getValue());
+            }
+        }
+        String originMsgId = message.getUserProperty(PROPERTY_ORIGIN_MSG_ID);
+        retry.putUserProperty(PROPERTY_RETRY_ATTEMPT, String.valueOf(attempt));
+        retry.putUserProperty(PROPERTY_ORIGIN_MSG_ID, originMsgId != null ? originMsgId : message.getMsgId());
+        if (message.getUserProperty(PROPERTY_ORIGIN_BORN_TIMESTAMP) == null) {
+            retry.putUserProperty(PROPERTY_ORIGIN_BORN_TIMESTAMP, String.valueOf(message.getBornTimestamp()));
+        }
+        return retry;
+    }
+
+    private int parseAttempt(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 限流重试统计
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> levels = new LinkedHashMap<>();
+        for (int i = 0; i < DELAY_LEVEL_MILLIS.length; i++) {
+            long count = levelCounts.get(i);
+            if (count > 0) {
+                levels.put((i + 1) + "(" + DELAY_LEVEL_MILLIS[i] / 1000 + "s)", count);
+            }
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("maxAttempts", maxAttempts);
+        stats.put("scheduled", scheduled.sum());
+        stats.put("exhausted", exhausted.sum());
+        stats.put("sendFailures", sendFailures.sum());
+        stats.put("delayLevels", levels);
+        return stats;
+    }
+}
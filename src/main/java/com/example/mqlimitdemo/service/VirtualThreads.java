@@ -0,0 +1,62 @@
+package com.example.mqlimitdemo.service;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 虚拟线程支持
+ *
+ * 项目仍按 Java 8 编译，虚拟线程 API（Java 21）通过反射调用：
+ * 使用 java21 profile 构建或直接运行在 Java 21 及以上的 JVM 上时可用，否则 {@link #isSupported()} 返回 false
+ *
+ * @author demo
+ */
+final class VirtualThreads {
+
+    private static final ThreadFactory PROBE = createFactory("virtual-probe-");
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * 当前 JVM 是否支持虚拟线程
+     */
+    static boolean isSupported() {
+        return PROBE != null;
+    }
+
+    /**
+     * 每个任务一个虚拟线程的执行器
+     *
+     * @param namePrefix 线程名前缀，后接递增序号
+     * @throws IllegalStateException 当前 JVM 不支持虚拟线程
+     */
+    static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+        ThreadFactory factory = createFactory(namePrefix);
+        if (factory == null) {
+            throw new IllegalStateException("当前 JVM 不支持虚拟线程: " + System.getProperty("java.version"));
+        }
+        try {
+            Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) method.invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("创建虚拟线程执行器失败", e);
+        }
+    }
+
+    /**
+     * Thread.ofVirtual().name(namePrefix, 0).factory()
+     */
+    private static ThreadFactory createFactory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
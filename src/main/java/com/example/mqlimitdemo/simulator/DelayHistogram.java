@@ -0,0 +1,79 @@
+package com.example.mqlimitdemo.simulator;
+
+/**
+ * 排队延迟直方图（微秒）
+ *
+ * 对数-线性分桶：小于 64 微秒精确计数，之后每个 2 的幂区间再分 32 个子桶，相对误差约 3%；
+ * 固定约 2000 个桶，记录一次只是一次数组累加，不保存原始样本
+ *
+ * @author demo
+ */
+final class DelayHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+
+    private final long[] counts = new long[(64 - SUB_BUCKET_BITS) * SUB_BUCKETS + LINEAR_LIMIT];
+
+    private long total;
+    private long sum;
+    private long max;
+
+    void record(long micros) {
+        long value = Math.max(0, micros);
+        counts[index(value)]++;
+        total++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    long count() {
+        return total;
+    }
+
+    long max() {
+        return max;
+    }
+
+    double mean() {
+        return total > 0 ? (double) sum / total : 0;
+    }
+
+    /**
+     * 分位数（返回所在桶的上界）
+     *
+     * @param quantile 0~1
+     */
+    long percentile(double quantile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, upperBound(i));
+            }
+        }
+        return max;
+    }
+
+    private static int index(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return exponent * SUB_BUCKETS + (int) (value >>> exponent);
+    }
+
+    private static long upperBound(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS - 1;
+        long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << exponent) - 1;
+    }
+}
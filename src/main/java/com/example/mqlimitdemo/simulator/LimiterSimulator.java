@@ -0,0 +1,245 @@
+package com.example.mqlimitdemo.simulator;
+
+import com.example.mqlimitdemo.limiter.RateLimitAlgorithm;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * 限流离线仿真器（离散事件仿真）
+ *
+ * 在虚拟时间上把同一条到达流量分别交给四种限流算法，比较吞吐、排队延迟、窗口边界超发和下游 429：
+ * 1. 消费者模型：consumers 个消费者共享一个 FIFO 队列，每个消费者一次处理一条消息
+ * 2. Redis 限流被拒绝后按 retryMillis 重试（与 RedisRateLimitConsumer 一致），
+ *    Guava 限流按预约的等待时间阻塞（与 acquire / tryAcquire(timeout) 一致）
+ * 3. 等待超过 maxWaitMillis 的消息放弃，计为拒绝
+ * 4. 下游按 downstreamQps 严格限流（1 秒滑动窗口），统计放行后仍被下游拒绝的次数
+ *
+ * 事件严格按虚拟时间顺序处理，不睡眠、不访问 Redis、热路径不分配对象，单线程每秒可处理数百万事件
+ *
+ * @author demo
+ */
+@Slf4j
+@Component
+public class LimiterSimulator {
+
+    private static final long MICROS_PER_SECOND = 1_000_000L;
+
+    private static final long NONE = -1;
+
+    /**
+     * 用同一条合成流量（相同种子）依次仿真所有算法
+     */
+    public List<SimulationResult> simulateAll(SimulationConfig config) {
+        List<SimulationResult> results = new ArrayList<>();
+        for (RateLimitAlgorithm algorithm : RateLimitAlgorithm.values()) {
+            results.add(simulate(algorithm, config));
+        }
+        return results;
+    }
+
+    /**
+     * 仿真单个算法（合成流量）
+     */
+    public SimulationResult simulate(RateLimitAlgorithm algorithm, SimulationConfig config) {
+        return run(algorithm, config, () -> TrafficTrace.of(config), config.getTrace().name());
+    }
+
+    /**
+     * 用录制的到达时间依次仿真所有算法
+     *
+     * @param timestampsMillis 到达时间戳（毫秒），无需有序
+     */
+    public List<SimulationResult> replayAll(SimulationConfig config, long[] timestampsMillis) {
+        long[] sorted = timestampsMillis.clone();
+        Arrays.sort(sorted);
+        List<SimulationResult> results = new ArrayList<>();
+        for (RateLimitAlgorithm algorithm : RateLimitAlgorithm.values()) {
+            results.add(run(algorithm, config, () -> TrafficTrace.recorded(sorted), TrafficTrace.Type.RECORDED.name()));
+        }
+        return results;
+    }
+
+    private SimulationResult run(RateLimitAlgorithm algorithm, SimulationConfig config,
+                                 Supplier<TrafficTrace> traceSupplier, String traceName) {
+        long wallStart = System.nanoTime();
+
+        TrafficTrace trace = traceSupplier.get();
+        VirtualLimiter limiter = VirtualLimiter.create(algorithm, config);
+        double nominal = limiter.permitsPerSecond();
+        int downstreamQps = config.getDownstreamQps() > 0
+                ? config.getDownstreamQps() : (int) Math.max(1, Math.round(nominal));
+
+        long retryMicros = Math.max(1, config.getRetryMillis()) * 1000;
+        long maxWaitMicros = config.getMaxWaitMillis() < 0 ? Long.MAX_VALUE : config.getMaxWaitMillis() * 1000;
+        long serviceMicros = Math.max(0, config.getServiceMillis()) * 1000;
+
+        // 消费者状态：下一次事件时间、持有消息的到达时间、是否已预约许可
+        int consumers = Math.max(1, config.getConsumers());
+        long[] nextTime = new long[consumers];
+        long[] held = new long[consumers];
+        boolean[] reserved = new boolean[consumers];
+        Arrays.fill(held, NONE);
+
+        DelayHistogram delays = new DelayHistogram();
+        TimeWindow admittedWindow = new TimeWindow();
+        TimeWindow downstreamWindow = new TimeWindow();
+
+        long arrivals = 0;
+        long attempts = 0;
+        long rejected = 0;
+        long maxAdmittedInAnySecond = 0;
+        long excessAdmissions = 0;
+        long downstream429 = 0;
+        long lastEventTime = 0;
+
+        long nextArrival = trace.next();
+        while (true) {
+            // 取下一次事件时间最早的消费者（消费者数量很少，线性扫描比堆更快）
+            int i = -1;
+            long t = Long.MAX_VALUE;
+            for (int c = 0; c < consumers; c++) {
+                if (nextTime[c] < t) {
+                    t = nextTime[c];
+                    i = c;
+                }
+            }
+            if (i < 0) {
+                break;
+            }
+
+            if (held[i] == NONE) {
+                if (nextArrival < 0) {
+                    // 流量结束，消费者退出
+                    nextTime[i] = Long.MAX_VALUE;
+                    continue;
+                }
+                arrivals++;
+                held[i] = nextArrival;
+                nextTime[i] = Math.max(t, nextArrival);
+                nextArrival = trace.next();
+                continue;
+            }
+
+            long arrival = held[i];
+            lastEventTime = t;
+            if (reserved[i]) {
+                reserved[i] = false;
+            } else {
+                attempts++;
+                long timeout = maxWaitMicros == Long.MAX_VALUE ? Long.MAX_VALUE : maxWaitMicros - (t - arrival);
+                long wait = limiter.acquire(t, timeout);
+                if (wait > 0) {
+                    // 已预约许可，到点后放行
+                    reserved[i] = true;
+                    nextTime[i] = t + wait;
+                    continue;
+                }
+                if (wait < 0) {
+                    if (maxWaitMicros != Long.MAX_VALUE && t + retryMicros - arrival > maxWaitMicros) {
+                        rejected++;
+                        held[i] = NONE;
+                    } else {
+                        nextTime[i] = t + retryMicros;
+                    }
+                    continue;
+                }
+            }
+
+            delays.record(t - arrival);
+
+            admittedWindow.evictUpTo(t - MICROS_PER_SECOND);
+            admittedWindow.add(t);
+            int inWindow = admittedWindow.size();
+            maxAdmittedInAnySecond = Math.max(maxAdmittedInAnySecond, inWindow);
+            if (inWindow > nominal) {
+                excessAdmissions++;
+            }
+
+            downstreamWindow.evictUpTo(t - MICROS_PER_SECOND);
+            if (downstreamWindow.size() < downstreamQps) {
+                downstreamWindow.add(t);
+            } else {
+                downstream429++;
+            }
+
+            held[i] = NONE;
+            nextTime[i] = t + serviceMicros;
+        }
+
+        long wallNanos = Math.max(1, System.nanoTime() - wallStart);
+        double simulatedSeconds = Math.max(lastEventTime, 1) / (double) MICROS_PER_SECOND;
+
+        SimulationResult result = new SimulationResult();
+        result.setAlgorithm(algorithm.getTag());
+        result.setTrace(traceName);
+        result.setNominalPerSecond(nominal);
+        result.setArrivals(arrivals);
+        result.setAdmitted(delays.count());
+        result.setRejected(rejected);
+        result.setAttempts(attempts);
+        result.setSimulatedSeconds(round(simulatedSeconds));
+        result.setThroughputPerSecond(round(delays.count() / simulatedSeconds));
+        result.setMeanDelayMillis(round(delays.mean() / 1000));
+        result.setP50DelayMillis(round(delays.percentile(0.5) / 1000.0));
+        result.setP90DelayMillis(round(delays.percentile(0.9) / 1000.0));
+        result.setP99DelayMillis(round(delays.percentile(0.99) / 1000.0));
+        result.setP999DelayMillis(round(delays.percentile(0.999) / 1000.0));
+        result.setMaxDelayMillis(round(delays.max() / 1000.0));
+        result.setMaxAdmittedInAnySecond(maxAdmittedInAnySecond);
+        result.setOverAdmission(round(Math.max(0, maxAdmittedInAnySecond - nominal)));
+        result.setExcessAdmissions(excessAdmissions);
+        result.setDownstream429(downstream429);
+        result.setWallMillis(wallNanos / 1_000_000);
+        result.setEventsPerSecond((arrivals + attempts) * 1_000_000_000L / wallNanos);
+
+        log.info("仿真完成 - 算法: {}, 流量: {}, 到达: {}, 放行: {}, 拒绝: {}, P99 延迟: {} ms, 下游 429: {}, 耗时: {} ms",
+                result.getAlgorithm(), traceName, arrivals, result.getAdmitted(), rejected,
+                result.getP99DelayMillis(), downstream429, result.getWallMillis());
+        return result;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+
+    /**
+     * 按时间升序保存事件时间的环形数组，容量不足时翻倍扩容
+     */
+    private static final class TimeWindow {
+        private long[] times = new long[64];
+        private int head;
+        private int size;
+
+        void add(long time) {
+            if (size == times.length) {
+                long[] grown = new long[times.length * 2];
+                for (int k = 0; k < size; k++) {
+                    grown[k] = times[(head + k) % times.length];
+                }
+                times = grown;
+                head = 0;
+            }
+            times[(head + size) % times.length] = time;
+            size++;
+        }
+
+        /**
+         * 移除时间不大于 bound 的事件
+         */
+        void evictUpTo(long bound) {
+            while (size > 0 && times[head] <= bound) {
+                head = (head + 1) % times.length;
+                size--;
+            }
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
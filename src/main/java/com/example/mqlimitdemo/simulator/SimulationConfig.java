@@ -0,0 +1,102 @@
+package com.example.mqlimitdemo.simulator;
+
+import lombok.Data;
+
+/**
+ * 限流仿真参数
+ *
+ * 所有时间均为虚拟时间，与实际运行耗时无关
+ *
+ * @author demo
+ */
+@Data
+public class SimulationConfig {
+
+    // ==================== 流量 ====================
+
+    /**
+     * 流量模型：POISSON / BURSTY / DIURNAL（RECORDED 仅用于回放）
+     */
+    private TrafficTrace.Type trace = TrafficTrace.Type.POISSON;
+
+    /**
+     * 平均到达速率（条/秒）
+     */
+    private double arrivalRate = 8;
+
+    /**
+     * 流量时长（秒）
+     */
+    private int durationSeconds = 600;
+
+    /**
+     * 突发倍数（BURSTY）：突发期速率 = 平均速率 × 倍数，突发期占比 = 1 / 倍数
+     */
+    private double burstFactor = 5;
+
+    /**
+     * 平均突发时长（毫秒，BURSTY）
+     */
+    private long burstMillis = 2000;
+
+    /**
+     * 波动幅度 0~1（DIURNAL）：速率在 平均速率 ×（1 ± 幅度）之间按正弦变化
+     */
+    private double amplitude = 0.8;
+
+    /**
+     * 波动周期（秒，DIURNAL），仿真中通常把一天压缩成几分钟
+     */
+    private int periodSeconds = 300;
+
+    /**
+     * 随机种子，相同种子生成相同流量，便于对比不同算法和参数
+     */
+    private long seed = 42;
+
+    // ==================== 限流 ====================
+
+    /**
+     * 目标速率（个/秒），四种算法按此速率换算参数
+     */
+    private double permitsPerSecond = 5;
+
+    /**
+     * 窗口大小（秒），滑动窗口和固定窗口的限流次数 = 目标速率 × 窗口大小
+     */
+    private int windowSize = 1;
+
+    /**
+     * 令牌桶容量，不大于 0 时取目标速率（即 1 秒的突发量）
+     */
+    private int bucketCapacity;
+
+    // ==================== 消费者 ====================
+
+    /**
+     * 并发消费者数
+     */
+    private int consumers = 1;
+
+    /**
+     * Redis 限流被拒绝后的重试间隔（毫秒），与 RedisRateLimitConsumer 一致
+     */
+    private long retryMillis = 200;
+
+    /**
+     * 单条消息最长等待（毫秒）：超过后放弃（计为拒绝）；0 表示被拒绝立即放弃，小于 0 表示一直等待
+     */
+    private long maxWaitMillis = 30000;
+
+    /**
+     * 获得许可后的处理耗时（毫秒），期间该消费者不处理其他消息
+     */
+    private long serviceMillis = 0;
+
+    // ==================== 下游 ====================
+
+    /**
+     * 下游接口严格限流（次/秒，1 秒滑动窗口），超出即返回 429；不大于 0 时取目标速率
+     */
+    private int downstreamQps;
+}
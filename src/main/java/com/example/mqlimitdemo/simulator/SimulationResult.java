@@ -0,0 +1,97 @@
+package com.example.mqlimitdemo.simulator;
+
+import lombok.Data;
+
+/**
+ * 单个算法的仿真结果
+ *
+ * @author demo
+ */
+@Data
+public class SimulationResult {
+
+    /**
+     * 限流算法
+     */
+    private String algorithm;
+
+    /**
+     * 流量模型
+     */
+    private String trace;
+
+    /**
+     * 名义速率（个/秒）
+     */
+    private double nominalPerSecond;
+
+    /**
+     * 到达消息数
+     */
+    private long arrivals;
+
+    /**
+     * 放行消息数
+     */
+    private long admitted;
+
+    /**
+     * 超过最长等待被放弃的消息数
+     */
+    private long rejected;
+
+    /**
+     * 限流器调用次数（含重试）
+     */
+    private long attempts;
+
+    /**
+     * 仿真覆盖的虚拟时长（秒），含流量结束后排空队列的时间
+     */
+    private double simulatedSeconds;
+
+    /**
+     * 实际吞吐（放行数 / 虚拟时长）
+     */
+    private double throughputPerSecond;
+
+    /**
+     * 排队延迟（从到达到获得许可，毫秒）
+     */
+    private double meanDelayMillis;
+    private double p50DelayMillis;
+    private double p90DelayMillis;
+    private double p99DelayMillis;
+    private double p999DelayMillis;
+    private double maxDelayMillis;
+
+    /**
+     * 任意 1 秒滑动窗口内的最大放行数
+     */
+    private long maxAdmittedInAnySecond;
+
+    /**
+     * 最大 1 秒放行数超过名义速率的部分（窗口边界超发）
+     */
+    private double overAdmission;
+
+    /**
+     * 放行时所在 1 秒窗口已超过名义速率的放行数
+     */
+    private long excessAdmissions;
+
+    /**
+     * 下游严格限流返回 429 的次数
+     */
+    private long downstream429;
+
+    /**
+     * 仿真实际耗时（毫秒）
+     */
+    private long wallMillis;
+
+    /**
+     * 仿真速度（每秒处理的事件数，事件 = 到达 + 限流器调用）
+     */
+    private long eventsPerSecond;
+}
@@ -0,0 +1,183 @@
+package com.example.mqlimitdemo.simulator;
+
+import java.util.SplittableRandom;
+
+/**
+ * 到达流量（虚拟时间，微秒）
+ *
+ * 按需逐条生成到达时间，不预先生成整条序列，长时间、高速率的仿真也不占用额外内存
+ *
+ * @author demo
+ */
+public abstract class TrafficTrace {
+
+    /**
+     * 流量模型
+     */
+    public enum Type {
+        /**
+         * 泊松到达（到达间隔服从指数分布）
+         */
+        POISSON,
+        /**
+         * 开关式突发：突发期按高速率泊松到达，静默期无到达
+         */
+        BURSTY,
+        /**
+         * 周期波动（昼夜流量），速率按正弦变化
+         */
+        DIURNAL,
+        /**
+         * 回放录制的到达时间
+         */
+        RECORDED
+    }
+
+    private static final double MICROS_PER_SECOND = 1_000_000.0;
+
+    /**
+     * 下一条到达时间（微秒），没有更多到达时返回 -1
+     */
+    public abstract long next();
+
+    /**
+     * 按配置生成合成流量
+     */
+    public static TrafficTrace of(SimulationConfig config) {
+        long endMicros = config.getDurationSeconds() * 1_000_000L;
+        SplittableRandom random = new SplittableRandom(config.getSeed());
+        double rate = config.getArrivalRate();
+
+        switch (config.getTrace()) {
+            case POISSON:
+                return new Poisson(random, rate, endMicros);
+            case BURSTY:
+                return config.getBurstFactor() <= 1
+                        ? new Poisson(random, rate, endMicros)
+                        : new Bursty(random, rate, config.getBurstFactor(), config.getBurstMillis(), endMicros);
+            case DIURNAL:
+                return new Diurnal(random, rate, Math.max(0, Math.min(1, config.getAmplitude())),
+                        config.getPeriodSeconds(), endMicros);
+            default:
+                throw new IllegalArgumentException("合成流量不支持的模型: " + config.getTrace());
+        }
+    }
+
+    /**
+     * 回放录制的到达时间
+     *
+     * @param timestampsMillis 到达时间戳（毫秒，需升序），转换为相对第一条的虚拟时间
+     */
+    public static TrafficTrace recorded(long[] timestampsMillis) {
+        return new Recorded(timestampsMillis);
+    }
+
+    /**
+     * 指数分布间隔（微秒）
+     */
+    private static double exponential(SplittableRandom random, double ratePerSecond) {
+        return -Math.log(1.0 - random.nextDouble()) / ratePerSecond * MICROS_PER_SECOND;
+    }
+
+    private static final class Poisson extends TrafficTrace {
+        private final SplittableRandom random;
+        private final double rate;
+        private final long endMicros;
+        private double now;
+
+        private Poisson(SplittableRandom random, double rate, long endMicros) {
+            this.random = random;
+            this.rate = rate;
+            this.endMicros = endMicros;
+        }
+
+        @Override
+        public long next() {
+            now += exponential(random, rate);
+            return now < endMicros ? (long) now : -1;
+        }
+    }
+
+    private static final class Bursty extends TrafficTrace {
+        private final SplittableRandom random;
+        private final double burstRate;
+        private final double meanOnMicros;
+        private final double meanOffMicros;
+        private final long endMicros;
+        private double now;
+        private double onEnd;
+
+        private Bursty(SplittableRandom random, double rate, double burstFactor, long burstMillis, long endMicros) {
+            this.random = random;
+            this.burstRate = rate * burstFactor;
+            this.meanOnMicros = burstMillis * 1000.0;
+            this.meanOffMicros = meanOnMicros * (burstFactor - 1);
+            this.endMicros = endMicros;
+            this.onEnd = -Math.log(1.0 - random.nextDouble()) * meanOnMicros;
+        }
+
+        @Override
+        public long next() {
+            while (now < endMicros) {
+                double candidate = now + exponential(random, burstRate);
+                if (candidate < onEnd) {
+                    now = candidate;
+                    return now < endMicros ? (long) now : -1;
+                }
+                // 突发期结束，跳过静默期进入下一个突发期
+                now = onEnd - Math.log(1.0 - random.nextDouble()) * meanOffMicros;
+                onEnd = now - Math.log(1.0 - random.nextDouble()) * meanOnMicros;
+            }
+            return -1;
+        }
+    }
+
+    private static final class Diurnal extends TrafficTrace {
+        private final SplittableRandom random;
+        private final double peakRate;
+        private final double amplitude;
+        private final double omega;
+        private final long endMicros;
+        private double now;
+
+        private Diurnal(SplittableRandom random, double rate, double amplitude, int periodSeconds, long endMicros) {
+            this.random = random;
+            this.peakRate = rate * (1 + amplitude);
+            this.amplitude = amplitude;
+            this.omega = 2 * Math.PI / (Math.max(1, periodSeconds) * MICROS_PER_SECOND);
+            this.endMicros = endMicros;
+        }
+
+        @Override
+        public long next() {
+            // 稀疏化（thinning）：按峰值速率生成，再按当前速率与峰值之比接受
+            while (true) {
+                now += exponential(random, peakRate);
+                if (now >= endMicros) {
+                    return -1;
+                }
+                double ratio = (1 + amplitude * Math.sin(omega * now)) / (1 + amplitude);
+                if (random.nextDouble() < ratio) {
+                    return (long) now;
+                }
+            }
+        }
+    }
+
+    private static final class Recorded extends TrafficTrace {
+        private final long[] timestampsMillis;
+        private int index;
+
+        private Recorded(long[] timestampsMillis) {
+            this.timestampsMillis = timestampsMillis;
+        }
+
+        @Override
+        public long next() {
+            if (index >= timestampsMillis.length) {
+                return -1;
+            }
+            return (timestampsMillis[index++] - timestampsMillis[0]) * 1000;
+        }
+    }
+}
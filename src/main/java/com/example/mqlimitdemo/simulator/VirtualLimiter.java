@@ -0,0 +1,226 @@
+package com.example.mqlimitdemo.simulator;
+
+import com.example.mqlimitdemo.limiter.RateLimitAlgorithm;
+
+/**
+ * 虚拟时间下的限流器
+ *
+ * 逐行复刻 lua 目录下的限流脚本和 Guava SmoothBursty 的计算逻辑，时间由仿真器传入，
+ * 单线程执行、不访问 Redis，仿真结果与线上算法的行为一致
+ *
+ * @author demo
+ */
+public interface VirtualLimiter {
+
+    /**
+     * 尝试获取一个许可
+     *
+     * @param nowMicros     当前虚拟时间（微秒）
+     * @param timeoutMicros 最长可等待时间（微秒），仅预约型限流器（Guava）使用
+     * @return 0 立即放行；大于 0 表示已预约许可，需等待的微秒数；-1 被拒绝
+     */
+    long acquire(long nowMicros, long timeoutMicros);
+
+    /**
+     * 名义速率（个/秒）
+     */
+    double permitsPerSecond();
+
+    /**
+     * 按目标速率创建对应算法的限流器
+     */
+    static VirtualLimiter create(RateLimitAlgorithm algorithm, SimulationConfig config) {
+        double pps = config.getPermitsPerSecond();
+        int windowSize = config.getWindowSize();
+        int windowLimit = (int) Math.max(1, Math.round(pps * windowSize));
+
+        switch (algorithm) {
+            case SLIDING_WINDOW:
+                return new SlidingWindow(windowLimit, windowSize);
+            case TOKEN_BUCKET:
+                int capacity = config.getBucketCapacity() > 0
+                        ? config.getBucketCapacity() : (int) Math.max(1, Math.round(pps));
+                return new TokenBucket(capacity, pps);
+            case FIXED_WINDOW:
+                return new FixedWindow(windowLimit, windowSize);
+            case GUAVA:
+                return new SmoothBursty(pps);
+            default:
+                throw new IllegalArgumentException("不支持的算法: " + algorithm);
+        }
+    }
+
+    /**
+     * 滑动窗口（sliding_window_rate_limit.lua）
+     *
+     * ZSET 中最多 limit 个成员，这里用环形数组保存放行时间
+     */
+    final class SlidingWindow implements VirtualLimiter {
+        private final int limit;
+        private final int windowSize;
+        private final long[] admitted;
+        private int head;
+        private int size;
+
+        SlidingWindow(int limit, int windowSize) {
+            this.limit = limit;
+            this.windowSize = windowSize;
+            this.admitted = new long[limit];
+        }
+
+        @Override
+        public long acquire(long nowMicros, long timeoutMicros) {
+            long now = nowMicros / 1000;
+            long windowStart = now - windowSize * 1000L;
+            // zremrangebyscore key 0 windowStart
+            while (size > 0 && admitted[head] <= windowStart) {
+                head = (head + 1) % limit;
+                size--;
+            }
+            if (size < limit) {
+                admitted[(head + size) % limit] = now;
+                size++;
+                return 0;
+            }
+            return -1;
+        }
+
+        @Override
+        public double permitsPerSecond() {
+            return (double) limit / windowSize;
+        }
+    }
+
+    /**
+     * 令牌桶（token_bucket_rate_limit.lua），含 60 秒无放行后 key 过期重新装满的行为
+     */
+    final class TokenBucket implements VirtualLimiter {
+        private static final long EXPIRE_MILLIS = 60_000;
+
+        private final int limit;
+        private final double rate;
+        private boolean exists;
+        private long tokens;
+        private double timestamp;
+        private long expireAt;
+
+        TokenBucket(int limit, double rate) {
+            this.limit = limit;
+            this.rate = rate;
+        }
+
+        @Override
+        public long acquire(long nowMicros, long timeoutMicros) {
+            long now = nowMicros / 1000;
+            if (exists && now >= expireAt) {
+                exists = false;
+            }
+            long currentTokens;
+            double currentTimestamp;
+            if (!exists) {
+                currentTokens = limit;
+                currentTimestamp = now;
+            } else {
+                currentTokens = tokens;
+                currentTimestamp = timestamp;
+                double deltaTime = Math.max(0, now - currentTimestamp);
+                long newTokens = (long) Math.floor(deltaTime * rate / 1000);
+                if (newTokens > 0) {
+                    currentTokens = Math.min(limit, currentTokens + newTokens);
+                    if (currentTokens >= limit) {
+                        currentTimestamp = now;
+                    } else {
+                        currentTimestamp = currentTimestamp + newTokens * 1000 / rate;
+                    }
+                }
+            }
+            if (currentTokens >= 1) {
+                // 只有放行时才写回（hmset + expire）
+                exists = true;
+                tokens = currentTokens - 1;
+                timestamp = currentTimestamp;
+                expireAt = now + EXPIRE_MILLIS;
+                return 0;
+            }
+            return -1;
+        }
+
+        @Override
+        public double permitsPerSecond() {
+            return rate;
+        }
+    }
+
+    /**
+     * 固定窗口（fixed_window_rate_limit.lua），窗口按时间对齐，被拒绝的请求同样计数
+     */
+    final class FixedWindow implements VirtualLimiter {
+        private final int limit;
+        private final long windowMillis;
+        private long window = -1;
+        private long count;
+
+        FixedWindow(int limit, int windowSize) {
+            this.limit = limit;
+            this.windowMillis = windowSize * 1000L;
+        }
+
+        @Override
+        public long acquire(long nowMicros, long timeoutMicros) {
+            long current = nowMicros / 1000 / windowMillis;
+            if (current != window) {
+                window = current;
+                count = 0;
+            }
+            return ++count <= limit ? 0 : -1;
+        }
+
+        @Override
+        public double permitsPerSecond() {
+            return limit * 1000.0 / windowMillis;
+        }
+    }
+
+    /**
+     * Guava RateLimiter.create(permitsPerSecond)，即 SmoothBursty（最多积累 1 秒的许可）
+     */
+    final class SmoothBursty implements VirtualLimiter {
+        private final double permitsPerSecond;
+        private final double stableIntervalMicros;
+        private final double maxPermits;
+        private double storedPermits;
+        private long nextFreeTicketMicros;
+
+        SmoothBursty(double permitsPerSecond) {
+            this.permitsPerSecond = permitsPerSecond;
+            this.stableIntervalMicros = 1_000_000.0 / permitsPerSecond;
+            this.maxPermits = permitsPerSecond;
+        }
+
+        @Override
+        public long acquire(long nowMicros, long timeoutMicros) {
+            // tryAcquire(timeout)：预计可用时间超过等待上限时直接拒绝
+            if (timeoutMicros < Long.MAX_VALUE && nextFreeTicketMicros - timeoutMicros > nowMicros) {
+                return -1;
+            }
+            // resync
+            if (nowMicros > nextFreeTicketMicros) {
+                double newPermits = (nowMicros - nextFreeTicketMicros) / stableIntervalMicros;
+                storedPermits = Math.min(maxPermits, storedPermits + newPermits);
+                nextFreeTicketMicros = nowMicros;
+            }
+            // reserveEarliestAvailable(1)
+            long momentAvailable = nextFreeTicketMicros;
+            double storedPermitsToSpend = Math.min(1, storedPermits);
+            double freshPermits = 1 - storedPermitsToSpend;
+            nextFreeTicketMicros += (long) (freshPermits * stableIntervalMicros);
+            storedPermits -= storedPermitsToSpend;
+            return Math.max(momentAvailable - nowMicros, 0);
+        }
+
+        @Override
+        public double permitsPerSecond() {
+            return permitsPerSecond;
+        }
+    }
+}
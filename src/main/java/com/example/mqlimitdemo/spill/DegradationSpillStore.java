@@ -0,0 +1,385 @@
+package com.example.mqlimitdemo.spill;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.example.mqlimitdemo.dedup.MessageDeduplicator;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 降级消息本地存储
+ *
+ * 拿不到令牌的消息写入本地 {@link SpillLog} 后直接确认，不再经过 Broker 延迟重投递，也不占用堆内存；
+ * 由 {@link SpillReplayer} 按限流器的空闲速率回放。
+ *
+ * 1. 批量刷盘（group commit）：刷盘线程每 flushIntervalMillis 刷一次，写入方等待自己的记录落盘后才返回，
+ *    多个消费线程的写入共用一次 force
+ * 2. 回放进度（checkpoint）单独保存在 checkpoint 文件中，重启后从上次回放位置继续；
+ *    记录回放后、进度保存前宕机会重复回放，下游需要幂等（至少一次）
+ * 3. 已全部回放的段和超过保留时间的段由刷盘线程定期删除
+ * 4. 多次回放失败的消息转入死信日志（dir/dead-letter，格式相同，按保留时间删除），不再阻塞后续回放
+ *
+ * 5. 记录保存原消息的 byte[] 消息体和全部属性（CODEC、KEYS、用户属性等），回放和死信与原消息一致
+ *
+ * 写入失败（磁盘满、记录过大等）返回 false，调用方按原有方式重试；记录一旦写入就返回 true，
+ * 等待落盘超时也不例外，否则调用方重试后回放又处理一次
+ *
+ * @author demo
+ */
+@Slf4j
+@Component
+public class DegradationSpillStore {
+
+    /**
+     * 是否启用本地降级存储
+     */
+    @Value("${rate-limiter.spill.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 日志目录
+     */
+    @Value("${rate-limiter.spill.dir:${java.io.tmpdir}/mq-limit-demo/spill}")
+    private String dir;
+
+    /**
+     * 段文件大小（MB）
+     */
+    @Value("${rate-limiter.spill.segment-mb:64}")
+    private int segmentMb;
+
+    /**
+     * 刷盘间隔（毫秒），写入方最多等待这么久
+     */
+    @Value("${rate-limiter.spill.flush-interval-millis:10}")
+    private long flushIntervalMillis;
+
+    /**
+     * 写入方等待落盘的最长时间（毫秒）
+     */
+    @Value("${rate-limiter.spill.flush-timeout-millis:1000}")
+    private long flushTimeoutMillis;
+
+    /**
+     * 段保留时间（小时），超过后即使未回放也删除
+     */
+    @Value("${rate-limiter.spill.retention-hours:72}")
+    private long retentionHours;
+
+    @Resource
+    private MessageDeduplicator messageDeduplicator;
+
+    private SpillLog spillLog;
+
+    private SpillLog deadLetterLog;
+
+    private FileChannel checkpointChannel;
+
+    private volatile long checkpoint;
+
+    private volatile long savedCheckpoint;
+
+    private ScheduledExecutorService flusher;
+
+    /**
+     * 刷盘进度通知：写入方等待自己的记录落盘（ReentrantLock 而不是监视器等待，虚拟线程等待时不会固定载体线程）
+     */
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private final Condition flushed = flushLock.newCondition();
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder appendFailures = new LongAdder();
+    private final LongAdder flushTimeouts = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder deletedSegments = new LongAdder();
+    private final LongAdder deadLettered = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            log.info("本地降级存储未启用");
+            return;
+        }
+        File directory = new File(dir);
+        try {
+            spillLog = new SpillLog(directory, segmentMb * 1024 * 1024);
+            deadLetterLog = new SpillLog(new File(directory, "dead-letter"), segmentMb * 1024 * 1024);
+            checkpointChannel = new RandomAccessFile(new File(directory, "checkpoint"), "rw").getChannel();
+            checkpoint = Math.max(readCheckpoint(), spillLog.getStartPosition());
+            savedCheckpoint = checkpoint;
+        } catch (IOException e) {
+            log.error("❌ 本地降级存储初始化失败，降级消息将按延迟重试处理: {}", e.getMessage(), e);
+            spillLog = null;
+            return;
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "spill-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        flusher.scheduleWithFixedDelay(this::cleanSegments, 1, 1, TimeUnit.MINUTES);
+        log.info("本地降级存储已启动 - 目录: {}, 段大小: {} MB, 刷盘间隔: {} ms, 保留: {} 小时, 待回放: {} 字节",
+                directory.getAbsolutePath(), segmentMb, flushIntervalMillis, retentionHours,
+                spillLog.getWritePosition() - checkpoint);
+    }
+
+    /**
+     * 写入降级消息，等待落盘后返回
+     *
+     * 等待落盘超时或被中断时记录已在段文件中（进程退出不会丢失，由刷盘线程继续刷盘），仍返回 true：
+     * 返回 false 会让调用方重试，记录又会被回放，同一条消息处理两次
+     *
+     * @return true 已写入，调用方可以确认原消息；false 写入失败
+     */
+    public boolean append(MessageExt message) {
+        if (spillLog == null) {
+            return false;
+        }
+        JSONObject record = new JSONObject();
+        record.put("topic", message.getTopic());
+        record.put("msgId", message.getMsgId());
+        // 回放时按原消息的去重 Key 去重
+        record.put("dedupKey", messageDeduplicator.dedupKey(message));
+        record.put("spillTime", System.currentTimeMillis());
+        // 原样保存消息体（Base64）和全部属性，二进制和 CODEC 编码的消息体不经过字符串转换
+        record.put("rawBody", message.getBody());
+        record.put("properties", message.getProperties());
+
+        long position;
+        try {
+            position = spillLog.append(JSON.toJSONBytes(record));
+        } catch (IOException e) {
+            appendFailures.increment();
+            log.error("❌ 降级消息写入失败 - MsgId: {}, error: {}", message.getMsgId(), e.getMessage());
+            return false;
+        }
+        appended.increment();
+        try {
+            if (!awaitFlushed(position)) {
+                flushTimeouts.increment();
+                log.warn("⚠️ 降级消息等待落盘超时 {} ms，记录已写入，由刷盘线程继续刷盘 - MsgId: {}",
+                        flushTimeoutMillis, message.getMsgId());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    /**
+     * 从降级记录还原消息：消息体和属性与原消息一致
+     *
+     * 旧版本写入的记录消息体是 UTF-8 字符串（body），只有 KEYS、TAGS 两个属性
+     */
+    static MessageExt decode(JSONObject record) {
+        MessageExt message = new MessageExt();
+        message.setTopic(record.getString("topic"));
+        message.setMsgId(record.getString("msgId"));
+        if (record.containsKey("rawBody")) {
+            message.setBody(record.getBytes("rawBody"));
+        } else {
+            message.setBody(record.getString("body").getBytes(StandardCharsets.UTF_8));
+        }
+        Map<String, String> properties = new HashMap<>();
+        JSONObject stored = record.getJSONObject("properties");
+        if (stored != null) {
+            stored.forEach((name, value) -> properties.put(name, String.valueOf(value)));
+        } else {
+            if (record.getString("keys") != null) {
+                properties.put(MessageConst.PROPERTY_KEYS, record.getString("keys"));
+            }
+            if (record.getString("tags") != null) {
+                properties.put(MessageConst.PROPERTY_TAGS, record.getString("tags"));
+            }
+        }
+        MessageAccessor.setProperties(message, properties);
+        return message;
+    }
+
+    private boolean awaitFlushed(long position) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushTimeoutMillis);
+        flushLock.lock();
+        try {
+            while (spillLog.getFlushedPosition() < position) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                flushed.awaitNanos(remaining);
+            }
+        } finally {
+            flushLock.unlock();
+        }
+        return true;
+    }
+
+    private void flush() {
+        try {
+            long before = spillLog.getFlushedPosition();
+            if (spillLog.flush() > before) {
+                flushes.increment();
+                flushLock.lock();
+                try {
+                    flushed.signalAll();
+                } finally {
+                    flushLock.unlock();
+                }
+            }
+            saveCheckpoint();
+        } catch (Exception e) {
+            log.error("降级日志刷盘失败: {}", e.getMessage(), e);
+        }
+    }
+
+    private void cleanSegments() {
+        try {
+            long expireBefore = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(retentionHours);
+            int deleted = spillLog.deleteSegments(checkpoint, expireBefore);
+            if (deleted > 0) {
+                deletedSegments.add(deleted);
+                checkpoint = Math.max(checkpoint, spillLog.getStartPosition());
+                log.info("降级日志删除 {} 个段，剩余 {} 个", deleted, spillLog.getSegmentCount());
+            }
+            // 死信不会被回放，只按保留时间删除
+            int deletedDeadLetters = deadLetterLog.deleteSegments(0, expireBefore);
+            if (deletedDeadLetters > 0) {
+                log.info("死信日志删除 {} 个过期段，剩余 {} 个", deletedDeadLetters, deadLetterLog.getSegmentCount());
+            }
+        } catch (Exception e) {
+            log.error("降级日志清理失败: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 读取回放位置处的下一条降级消息
+     *
+     * @return 消息及其结束位置；没有待回放的消息时返回 null
+     */
+    SpillLog.Record peek() {
+        return spillLog == null ? null : spillLog.read(checkpoint);
+    }
+
+    /**
+     * 记录已回放到 position（由刷盘线程定期保存）
+     */
+    void commit(long position) {
+        checkpoint = position;
+    }
+
+    /**
+     * 把无法回放的消息写入死信日志并立即刷盘，然后跳过该消息
+     *
+     * @return 写入成功返回 true；失败时不跳过，下次继续处理该消息
+     */
+    boolean deadLetter(SpillLog.Record record) {
+        try {
+            deadLetterLog.append(record.getPayload());
+            deadLetterLog.flush();
+        } catch (IOException e) {
+            log.error("❌ 写入死信日志失败: {}", e.getMessage());
+            return false;
+        }
+        deadLettered.increment();
+        commit(record.getNextPosition());
+        return true;
+    }
+
+    private long readCheckpoint() throws IOException {
+        if (checkpointChannel.size() < 8) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        checkpointChannel.read(buffer, 0);
+        buffer.flip();
+        return buffer.getLong();
+    }
+
+    private void saveCheckpoint() throws IOException {
+        long position = checkpoint;
+        if (position == savedCheckpoint) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(position).flip();
+        checkpointChannel.write(buffer, 0);
+        checkpointChannel.force(false);
+        savedCheckpoint = position;
+    }
+
+    public boolean isAvailable() {
+        return spillLog != null;
+    }
+
+    /**
+     * 存储统计
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("available", spillLog != null);
+        if (spillLog != null) {
+            stats.put("dir", new File(dir).getAbsolutePath());
+            stats.put("segments", spillLog.getSegmentCount());
+            stats.put("writePosition", spillLog.getWritePosition());
+            stats.put("flushedPosition", spillLog.getFlushedPosition());
+            stats.put("checkpoint", checkpoint);
+            stats.put("pendingBytes", spillLog.getWritePosition() - checkpoint);
+        }
+        stats.put("appended", appended.sum());
+        stats.put("appendFailures", appendFailures.sum());
+        stats.put("flushTimeouts", flushTimeouts.sum());
+        stats.put("flushes", flushes.sum());
+        stats.put("deletedSegments", deletedSegments.sum());
+        stats.put("deadLettered", deadLettered.sum());
+        long count = flushes.sum();
+        stats.put("avgRecordsPerFlush", count == 0 ? 0 : String.format("%.2f", (double) appended.sum() / count));
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (flusher == null) {
+            return;
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            spillLog.close();
+            deadLetterLog.close();
+            saveCheckpoint();
+            checkpointChannel.close();
+        } catch (IOException e) {
+            log.warn("关闭降级日志失败: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package com.example.mqlimitdemo.spill;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+/**
+ * 内存映射的追加写日志
+ *
+ * 与 RocketMQ CommitLog 相同的组织方式：
+ * 1. 按固定大小（segmentBytes）切分为多个段文件，文件名为段起始的全局偏移量（20 位补零），
+ *    全局偏移量 / segmentBytes 即可定位到段
+ * 2. 每条记录：长度（4 字节）+ CRC32（4 字节）+ 内容；长度为 0 表示段内后续没有记录
+ *    （映射文件初始全为 0），段剩余空间不足时写入结束标记并切换到下一段
+ * 3. 写入只写映射内存，{@link #flush()} 调用 force 刷盘；由调用方按批次刷盘（group commit）
+ * 4. 启动时扫描最后一段，遇到长度越界或 CRC 不匹配的记录（写入一半时宕机）即为写入位置，
+ *    之后的数据清零
+ *
+ * 写入需要调用方串行（append 已加锁）；读取可以和写入并发，只读取 {@link #getWritePosition()} 之前的数据
+ *
+ * @author demo
+ */
+@Slf4j
+public class SpillLog {
+
+    private static final int HEADER_BYTES = 8;
+
+    private static final String SUFFIX = ".log";
+
+    private final File dir;
+
+    private final int segmentBytes;
+
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    private volatile long writePosition;
+
+    private volatile long flushedPosition;
+
+    /**
+     * @param dir          日志目录
+     * @param segmentBytes 段文件大小
+     */
+    public SpillLog(File dir, int segmentBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("无法创建降级日志目录: " + dir.getAbsolutePath());
+        }
+        load();
+    }
+
+    private void load() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                long base = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+                segments.put(base, new Segment(base, file, segmentBytes));
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, createSegment(0L));
+        }
+
+        Segment last = segments.lastEntry().getValue();
+        int offset = recover(last);
+        writePosition = last.base + offset;
+        flushedPosition = writePosition;
+        log.info("降级日志已加载 - 目录: {}, 段数: {}, 写入位置: {}", dir.getAbsolutePath(), segments.size(), writePosition);
+    }
+
+    /**
+     * 扫描段内有效记录，返回有效数据的结束位置，之后的残留数据清零
+     */
+    private int recover(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        CRC32 crc = new CRC32();
+        while (offset + HEADER_BYTES <= segmentBytes) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + HEADER_BYTES + length > segmentBytes) {
+                break;
+            }
+            int checksum = buffer.getInt(offset + 4);
+            byte[] payload = segment.read(offset + HEADER_BYTES, length);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                log.warn("⚠️ 降级日志记录校验失败，从此处截断 - 段: {}, 偏移: {}", segment.base, offset);
+                break;
+            }
+            offset += HEADER_BYTES + length;
+        }
+
+        boolean dirty = false;
+        for (int i = offset; i < segmentBytes; i++) {
+            if (buffer.get(i) != 0) {
+                buffer.put(i, (byte) 0);
+                dirty = true;
+            }
+        }
+        if (dirty) {
+            buffer.force();
+        }
+        return offset;
+    }
+
+    private Segment createSegment(long base) throws IOException {
+        return new Segment(base, new File(dir, String.format("%020d", base) + SUFFIX), segmentBytes);
+    }
+
+    /**
+     * 追加一条记录
+     *
+     * @return 记录结束的全局位置，{@link #getFlushedPosition()} 不小于该值后记录已落盘
+     */
+    public synchronized long append(byte[] payload) throws IOException {
+        int recordBytes = HEADER_BYTES + payload.length;
+        if (recordBytes > segmentBytes) {
+            throw new IOException("记录大小 " + recordBytes + " 超过段大小 " + segmentBytes);
+        }
+
+        long position = writePosition;
+        Segment segment = segments.lastEntry().getValue();
+        int offset = (int) (position - segment.base);
+        if (offset + recordBytes > segmentBytes) {
+            // 当前段放不下：写入结束标记，刷盘后切换到下一段
+            if (offset + 4 <= segmentBytes) {
+                segment.buffer.putInt(offset, 0);
+            }
+            segment.buffer.force();
+            long next = segment.base + segmentBytes;
+            segment = createSegment(next);
+            segments.put(next, segment);
+            position = next;
+            offset = 0;
+            log.info("降级日志切换到新段: {}", segment.file.getName());
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        MappedByteBuffer buffer = segment.buffer;
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + HEADER_BYTES);
+        view.put(payload);
+        buffer.putInt(offset + 4, (int) crc.getValue());
+        // 长度最后写入：读取方看到非 0 长度时内容已完整
+        buffer.putInt(offset, payload.length);
+
+        writePosition = position + recordBytes;
+        return writePosition;
+    }
+
+    /**
+     * 把已写入的数据刷盘
+     *
+     * @return 已落盘的位置
+     */
+    public long flush() {
+        long position = writePosition;
+        if (position > flushedPosition) {
+            // 切段时旧段已刷盘，只需刷写入位置所在的段
+            Map.Entry<Long, Segment> entry = segments.floorEntry(position == 0 ? 0 : position - 1);
+            if (entry != null) {
+                entry.getValue().buffer.force();
+            }
+            flushedPosition = position;
+        }
+        return flushedPosition;
+    }
+
+    /**
+     * 读取 position 处的记录
+     *
+     * @return 记录；position 处还没有已写入的记录时返回 null
+     */
+    public Record read(long position) {
+        while (position < writePosition) {
+            long base = position - position % segmentBytes;
+            Segment segment = segments.get(base);
+            if (segment == null) {
+                // 段已被删除（超过保留时间），跳到下一个存在的段
+                Long next = segments.ceilingKey(base);
+                if (next == null) {
+                    return null;
+                }
+                log.warn("⚠️ 降级日志段已删除，跳过 {} 字节", next - position);
+                position = next;
+                continue;
+            }
+            int offset = (int) (position - base);
+            int length = offset + HEADER_BYTES <= segmentBytes ? segment.buffer.getInt(offset) : 0;
+            if (length <= 0) {
+                // 段结束标记
+                position = base + segmentBytes;
+                continue;
+            }
+            return new Record(segment.read(offset + HEADER_BYTES, length), position + HEADER_BYTES + length);
+        }
+        return null;
+    }
+
+    /**
+     * 删除段：结束位置不超过 position 的段（已全部回放），以及最后修改时间早于 expireBefore 的段（超过保留时间）；
+     * 当前写入段不删除
+     *
+     * @return 删除的段数
+     */
+    public int deleteSegments(long position, long expireBefore) {
+        List<Segment> expired = new ArrayList<>();
+        long activeBase = segments.lastKey();
+        for (Segment segment : segments.values()) {
+            if (segment.base == activeBase) {
+                break;
+            }
+            if (segment.base + segmentBytes <= position) {
+                expired.add(segment);
+            } else if (segment.file.lastModified() < expireBefore) {
+                log.warn("⚠️ 降级日志段超过保留时间，未回放的消息将被丢弃 - 段: {}", segment.file.getName());
+                expired.add(segment);
+            }
+        }
+        for (Segment segment : expired) {
+            segments.remove(segment.base);
+            segment.close();
+            if (!segment.file.delete()) {
+                log.warn("降级日志段删除失败: {}", segment.file.getAbsolutePath());
+            }
+        }
+        return expired.size();
+    }
+
+    public long getWritePosition() {
+        return writePosition;
+    }
+
+    public long getFlushedPosition() {
+        return flushedPosition;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * 最早一个段的起始位置
+     */
+    public long getStartPosition() {
+        return segments.firstKey();
+    }
+
+    public synchronized void close() {
+        flush();
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+    }
+
+    /**
+     * 一条记录及下一条记录的位置
+     */
+    public static class Record {
+        private final byte[] payload;
+        private final long nextPosition;
+
+        Record(byte[] payload, long nextPosition) {
+            this.payload = payload;
+            this.nextPosition = nextPosition;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public long getNextPosition() {
+            return nextPosition;
+        }
+    }
+
+    /**
+     * 段文件
+     *
+     * Java 8 没有公开的 unmap 方法，关闭后映射内存在 MappedByteBuffer 被回收时释放；
+     * Linux 上删除仍在映射中的文件不影响其他段
+     */
+    private static class Segment {
+        private final long base;
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+
+        Segment(long base, File file, int size) throws IOException {
+            this.base = base;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.raf.setLength(size);
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        byte[] read(int offset, int length) {
+            byte[] bytes = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            view.get(bytes);
+            return bytes;
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                log.warn("关闭降级日志段失败: {}", file.getName());
+            }
+        }
+    }
+}
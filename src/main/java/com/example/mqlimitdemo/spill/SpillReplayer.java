@@ -0,0 +1,340 @@
+package com.example.mqlimitdemo.spill;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.example.mqlimitdemo.breaker.CircuitBreaker;
+import com.example.mqlimitdemo.breaker.CircuitBreakerRegistry;
+import com.example.mqlimitdemo.dedup.MessageDeduplicator;
+import com.example.mqlimitdemo.service.DownstreamScheduler;
+import com.example.mqlimitdemo.service.ThirdPartyApiService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 降级消息回放
+ *
+ * 单个后台线程按写入顺序回放 {@link DegradationSpillStore} 中的消息，速率等于共享配额的空闲速率：
+ * 1. 回放提交到 {@link DownstreamScheduler} 的后台队列（权重 0）：只有其他 Topic 的队列都为空时才派发，
+ *    回放不会挤占正常消费，也不会浪费配额
+ * 2. 一个许可间隔内没有轮到时放弃本次排队，休眠一个许可间隔再试
+ * 3. 与正常消费共用第三方接口熔断器，熔断期间暂停回放
+ * 4. 调用失败不推进回放位置，稍后重试同一条消息，保证按顺序回放；同一条消息连续失败 maxAttempts 次
+ *    （限流、排队超时、熔断不计入）后转入死信日志并跳过，不会因一条消息阻塞全部回放
+ * 5. 回放前按原消息的去重 Key 经过 {@link MessageDeduplicator}（去重范围 spill-replay）：
+ *    已回放成功但回放进度未保存就宕机的消息，重启后不会再次调用下游
+ *
+ * @author demo
+ */
+@Slf4j
+@Component
+public class SpillReplayer {
+
+    private static final String RATE_LIMIT_KEY = "third_party_api";
+    private static final String SCHEDULER_FLOW = "spill-replay";
+    private static final String DEDUP_SCOPE = SCHEDULER_FLOW;
+
+    /**
+     * 一次回放尝试的结果
+     */
+    private enum Outcome {
+        /**
+         * 调用成功
+         */
+        SUCCESS,
+        /**
+         * 调用失败，计入失败次数
+         */
+        FAILED,
+        /**
+         * 未调用或下游限流（没有空闲配额、熔断、对方限流），不计入失败次数
+         */
+        DEFERRED
+    }
+
+    @Resource
+    private DownstreamScheduler downstreamScheduler;
+
+    @Resource
+    private DegradationSpillStore degradationSpillStore;
+
+    @Resource
+    private ThirdPartyApiService thirdPartyApiService;
+
+    @Resource
+    private CircuitBreakerRegistry circuitBreakerRegistry;
+
+    @Resource
+    private MessageDeduplicator messageDeduplicator;
+
+    /**
+     * 是否回放降级消息
+     */
+    @Value("${rate-limiter.spill.replay-enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 没有待回放消息时的检查间隔（毫秒）
+     */
+    @Value("${rate-limiter.spill.idle-millis:500}")
+    private long idleMillis;
+
+    /**
+     * 调用失败后的重试间隔（毫秒）
+     */
+    @Value("${rate-limiter.spill.failure-backoff-millis:1000}")
+    private long failureBackoffMillis;
+
+    /**
+     * 同一条消息最多回放失败次数，达到后转入死信日志
+     */
+    @Value("${rate-limiter.spill.max-attempts:5}")
+    private int maxAttempts;
+
+    private CircuitBreaker circuitBreaker;
+
+    private Thread worker;
+
+    private volatile boolean running;
+
+    /**
+     * 当前消息的位置和已失败次数（只由回放线程访问）
+     */
+    private long attemptPosition = -1;
+    private int attempts;
+
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder deadLettered = new LongAdder();
+    private final LongAdder noSparePermit = new LongAdder();
+    private final LongAdder breakerRejected = new LongAdder();
+
+    @PostConstruct
+    public void start() {
+        if (!enabled || !degradationSpillStore.isAvailable()) {
+            log.info("降级消息回放未启动 - enabled: {}, 存储可用: {}", enabled, degradationSpillStore.isAvailable());
+            return;
+        }
+        circuitBreaker = circuitBreakerRegistry.get(RATE_LIMIT_KEY);
+        downstreamScheduler.registerFlow(SCHEDULER_FLOW, 0);
+        running = true;
+        worker = new Thread(this::run, "spill-replay");
+        worker.setDaemon(true);
+        worker.start();
+        log.info("降级消息回放已启动 - 按共享配额空闲速率回放（本实例份额 {}/s）",
+                String.format("%.3f", downstreamScheduler.getRate()));
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                try {
+                    replayOne();
+                } catch (RuntimeException e) {
+                    log.error("降级消息回放异常: {}", e.getMessage(), e);
+                    sleep(failureBackoffMillis);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 尝试回放一条消息
+     *
+     * @return 是否回放成功
+     */
+    private boolean replayOne() throws InterruptedException {
+        SpillLog.Record record = degradationSpillStore.peek();
+        if (record == null) {
+            sleep(idleMillis);
+            return false;
+        }
+
+        String body;
+        String dedupKey;
+        try {
+            JSONObject json = JSON.parseObject(new String(record.getPayload(), StandardCharsets.UTF_8));
+            MessageExt message = DegradationSpillStore.decode(json);
+            // 与消费者调用第三方接口时的转换一致
+            body = new String(message.getBody(), StandardCharsets.UTF_8);
+            // 旧版本写入的记录没有 dedupKey，按 MsgId 去重
+            dedupKey = json.getString("dedupKey") != null ? json.getString("dedupKey") : message.getMsgId();
+        } catch (Exception e) {
+            // CRC 校验通过但内容无法解析（不应出现），转入死信避免阻塞后续消息
+            skipped.increment();
+            log.error("❌ 降级消息无法解析，转入死信: {}", e.getMessage());
+            if (!deadLetter(record)) {
+                sleep(failureBackoffMillis);
+            }
+            return false;
+        }
+
+        MessageDeduplicator.Decision decision = messageDeduplicator.begin(DEDUP_SCOPE, dedupKey);
+        if (decision == MessageDeduplicator.Decision.DUPLICATE) {
+            duplicates.increment();
+            log.info("♻️ 降级消息已回放过，跳过 - Key: {}", dedupKey);
+            degradationSpillStore.commit(record.getNextPosition());
+            return false;
+        }
+        if (decision == MessageDeduplicator.Decision.IN_PROGRESS) {
+            // 上次回放中途宕机，等处理租约过期
+            sleep(failureBackoffMillis);
+            return false;
+        }
+
+        Outcome outcome = Outcome.FAILED;
+        try {
+            outcome = send(body);
+        } finally {
+            if (outcome == Outcome.SUCCESS) {
+                messageDeduplicator.complete(DEDUP_SCOPE, dedupKey);
+            } else {
+                messageDeduplicator.release(DEDUP_SCOPE, dedupKey);
+            }
+        }
+
+        if (outcome == Outcome.SUCCESS) {
+            attemptPosition = -1;
+            degradationSpillStore.commit(record.getNextPosition());
+            replayed.increment();
+            log.info("♻️ 降级消息回放成功: {}", body);
+            return true;
+        }
+        if (outcome == Outcome.FAILED) {
+            failures.increment();
+            onFailure(record, dedupKey);
+            sleep(failureBackoffMillis);
+        }
+        return false;
+    }
+
+    /**
+     * 经熔断器和下游调度器调用第三方接口
+     */
+    private Outcome send(String body) throws InterruptedException {
+        CircuitBreaker.Permission permission = circuitBreaker.tryAcquirePermission();
+        if (permission == null) {
+            breakerRejected.increment();
+            sleep(Math.max(circuitBreaker.getRemainingOpenMillis(), permitIntervalMillis()));
+            return Outcome.DEFERRED;
+        }
+        long[] callStartHolder = new long[1];
+        long callStart = 0;
+        try {
+            boolean success;
+            try {
+                success = downstreamScheduler.execute(SCHEDULER_FLOW, () -> {
+                    callStartHolder[0] = System.nanoTime();
+                    return thirdPartyApiService.sendMessage(body);
+                }, permitIntervalMillis());
+            } finally {
+                callStart = callStartHolder[0];
+            }
+            if (success) {
+                permission.onSuccess(System.nanoTime() - callStart);
+                return Outcome.SUCCESS;
+            }
+            permission.onError(System.nanoTime() - callStart);
+            return Outcome.FAILED;
+        } catch (DownstreamScheduler.QueueTimeoutException e) {
+            // 没有空闲配额（正常消费正在使用全部配额）
+            permission.release();
+            noSparePermit.increment();
+            sleep(permitIntervalMillis());
+            return Outcome.DEFERRED;
+        } catch (InterruptedException e) {
+            permission.release();
+            throw e;
+        } catch (ThirdPartyApiService.RateLimitException e) {
+            // 超出对方配额不代表下游故障，不计入熔断失败率，也不计入本条消息的失败次数
+            permission.release();
+            log.warn("降级消息回放触发第三方接口限流，下一秒重试");
+            sleep(1000 - System.currentTimeMillis() % 1000);
+            return Outcome.DEFERRED;
+        } catch (Exception e) {
+            if (callStart > 0) {
+                permission.onError(System.nanoTime() - callStart);
+            } else {
+                permission.release();
+            }
+            log.warn("降级消息回放失败: {}", e.getMessage());
+            return Outcome.FAILED;
+        }
+    }
+
+    /**
+     * 记录当前消息的失败次数，达到 maxAttempts 后转入死信日志
+     */
+    private void onFailure(SpillLog.Record record, String dedupKey) {
+        long position = record.getNextPosition();
+        attempts = attemptPosition == position ? attempts + 1 : 1;
+        attemptPosition = position;
+        if (attempts < maxAttempts) {
+            return;
+        }
+        log.error("❌ 降级消息连续回放失败 {} 次，转入死信 - Key: {}", attempts, dedupKey);
+        deadLetter(record);
+    }
+
+    private boolean deadLetter(SpillLog.Record record) {
+        if (!degradationSpillStore.deadLetter(record)) {
+            return false;
+        }
+        deadLettered.increment();
+        attemptPosition = -1;
+        return true;
+    }
+
+    private long permitIntervalMillis() {
+        return Math.max(1, (long) (1000 / Math.max(0.001, downstreamScheduler.getRate())));
+    }
+
+    private void sleep(long millis) throws InterruptedException {
+        TimeUnit.MILLISECONDS.sleep(millis);
+    }
+
+    /**
+     * 回放统计
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("running", running);
+        stats.put("replayed", replayed.sum());
+        stats.put("failures", failures.sum());
+        stats.put("skipped", skipped.sum());
+        stats.put("duplicates", duplicates.sum());
+        stats.put("deadLettered", deadLettered.sum());
+        stats.put("maxAttempts", maxAttempts);
+        stats.put("noSparePermit", noSparePermit.sum());
+        stats.put("breakerRejected", breakerRejected.sum());
+        return stats;
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+            try {
+                worker.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
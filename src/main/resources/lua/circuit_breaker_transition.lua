@@ -0,0 +1,87 @@
+--[[
+集群熔断器状态切换
+
+熔断状态保存在 Hash 中，所有实例共享；切换成功后在同一脚本内 PUBLISH 事件，
+各实例收到后更新本地缓存的状态，热路径不读 Redis
+
+参数说明：
+KEYS[1] - 熔断器key（Hash，字段：state / generation / openUntil / prober / probeUntil）
+ARGV[1] - 操作：
+          open   - CLOSED -> OPEN（本地失败率超过阈值）
+          probe  - OPEN 等待期满 -> HALF_OPEN，调用方成为唯一的探测实例；
+                   探测实例超时未给出结果时，其他实例可以接管
+          close  - HALF_OPEN -> CLOSED（仅探测实例，探测成功）
+          reopen - HALF_OPEN -> OPEN（仅探测实例，探测失败）
+ARGV[2] - 实例ID
+ARGV[3] - 熔断等待时间（毫秒），同时作为探测超时时间
+ARGV[4] - 事件频道
+ARGV[5] - 熔断器名称
+
+返回值：
+切换成功返回新的版本号（> 0），状态不满足返回 0
+--]]
+
+local key = KEYS[1]
+local op = ARGV[1]
+local instance = ARGV[2]
+local wait = tonumber(ARGV[3])
+local channel = ARGV[4]
+local name = ARGV[5]
+
+-- 使用 Redis 服务器时间，不受各实例时钟偏移影响
+if redis.replicate_commands then
+    redis.replicate_commands()
+end
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+local info = redis.call('hmget', key, 'state', 'generation', 'openUntil', 'prober', 'probeUntil')
+local state = info[1] or 'CLOSED'
+local generation = tonumber(info[2]) or 0
+local openUntil = tonumber(info[3]) or 0
+local prober = info[4] or ''
+local probeUntil = tonumber(info[5]) or 0
+
+local newState
+if op == 'open' then
+    if state ~= 'CLOSED' then
+        return 0
+    end
+    newState = 'OPEN'
+elseif op == 'probe' then
+    if not ((state == 'OPEN' and now >= openUntil) or (state == 'HALF_OPEN' and now >= probeUntil)) then
+        return 0
+    end
+    newState = 'HALF_OPEN'
+elseif op == 'close' or op == 'reopen' then
+    if state ~= 'HALF_OPEN' or prober ~= instance then
+        return 0
+    end
+    newState = op == 'close' and 'CLOSED' or 'OPEN'
+else
+    return redis.error_reply('unknown op: ' .. op)
+end
+
+-- 版本号单调递增：取服务器时间，key 过期重建后也不会小于各实例已见过的版本
+generation = math.max(generation + 1, now)
+local remaining = 0
+if newState == 'OPEN' then
+    remaining = wait
+    redis.call('hset', key, 'state', newState, 'generation', generation, 'openUntil', now + wait, 'prober', '')
+elseif newState == 'HALF_OPEN' then
+    redis.call('hset', key, 'state', newState, 'generation', generation, 'prober', instance, 'probeUntil', now + wait)
+else
+    redis.call('hset', key, 'state', newState, 'generation', generation, 'prober', '')
+end
+-- 长时间没有状态变化的熔断器自动过期（过期后视为 CLOSED）
+redis.call('pexpire', key, 86400000)
+
+redis.call('publish', channel, cjson.encode({
+    name = name,
+    state = newState,
+    generation = generation,
+    remainingMillis = remaining,
+    instance = instance
+}))
+
+return generation
@@ -0,0 +1,65 @@
+--[[
+分布式配额分配（按积压加权的公平份额）
+
+每个实例定期调用一次（心跳），上报自己的积压消息数，返回本实例应得的每秒许可数，
+实例在本地按该速率限流，不再每条消息访问 Redis
+
+参数说明：
+KEYS[1] - 配额key（Hash，field 为实例ID，value 为 "心跳时间戳,积压数"）
+ARGV[1] - 实例ID
+ARGV[2] - 本实例积压消息数
+ARGV[3] - 全局限流速率（个/秒）
+ARGV[4] - 实例心跳超时（毫秒），超时未心跳的实例视为已下线并移除
+ARGV[5] - 保底份额占比（0~1），这部分配额在存活实例间平分，其余按积压比例分配
+
+份额计算：
+share = limit * minFraction / 实例数 + limit * (1 - minFraction) * 本实例积压 / 总积压
+所有实例都没有积压时平分全局配额，各实例份额之和始终等于全局速率
+
+返回值：
+本实例份额（千分之一许可/秒，整数）
+--]]
+
+local key = KEYS[1]
+local instance = ARGV[1]
+local backlog = tonumber(ARGV[2])
+local limit = tonumber(ARGV[3])
+local ttl = tonumber(ARGV[4])
+local minFraction = tonumber(ARGV[5])
+
+-- 使用 Redis 服务器时间判断心跳超时，不受各实例时钟偏移影响
+if redis.replicate_commands then
+    redis.replicate_commands()
+end
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+redis.call('hset', key, instance, now .. ',' .. backlog)
+
+-- 统计存活实例和总积压，移除心跳超时的实例
+local entries = redis.call('hgetall', key)
+local live = 0
+local totalBacklog = 0
+for i = 1, #entries, 2 do
+    local value = entries[i + 1]
+    local sep = string.find(value, ',', 1, true)
+    local heartbeat = tonumber(string.sub(value, 1, sep - 1))
+    if now - heartbeat > ttl then
+        redis.call('hdel', key, entries[i])
+    else
+        live = live + 1
+        totalBacklog = totalBacklog + tonumber(string.sub(value, sep + 1))
+    end
+end
+
+-- 所有实例都下线后 key 自动过期
+redis.call('pexpire', key, ttl * 2)
+
+local share
+if totalBacklog > 0 then
+    share = limit * minFraction / live + limit * (1 - minFraction) * backlog / totalBacklog
+else
+    share = limit / live
+end
+
+return math.floor(share * 1000)
@@ -0,0 +1,38 @@
+--[[
+固定窗口限流算法（使用 Redis 服务器时间）
+
+参数说明：
+KEYS[1] - 限流key
+ARGV[1] - 限流次数
+ARGV[2] - 窗口大小（秒）
+
+窗口边界按 Redis 服务器时间对齐，计数与过期时间在同一脚本内设置，
+不会出现 incr 成功但 expire 丢失的情况
+
+返回值：
+1 - 允许通过
+0 - 限流拦截
+--]]
+
+local key = KEYS[1]
+local limit = tonumber(ARGV[1])
+local windowMillis = tonumber(ARGV[2]) * 1000
+
+-- Redis 5 以下需先开启脚本效果复制，否则调用 TIME 后不允许写操作
+if redis.replicate_commands then
+    redis.replicate_commands()
+end
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+local count = redis.call('incr', key)
+if count == 1 then
+    -- 过期时间为当前窗口剩余时长，使窗口与服务器时间对齐
+    redis.call('pexpire', key, windowMillis - (now % windowMillis))
+end
+
+if count <= limit then
+    return 1
+else
+    return 0
+end
@@ -0,0 +1,47 @@
+--[[
+消息去重（幂等）
+
+每条消息（按业务 Key 或 MsgId）一个 key：处理中为实例ID（带租约过期时间），处理成功后为 DONE
+
+参数说明：
+KEYS[1] - 去重key
+ARGV[1] - 操作：
+          claim   - 开始处理：key 不存在时写入实例ID（租约 ARGV[3] 毫秒）
+          done    - 处理成功：写入 DONE（保留 ARGV[3] 毫秒）
+          release - 处理失败：key 仍是本实例的租约时删除，重投递的消息可以重新处理
+ARGV[2] - 实例ID
+ARGV[3] - 过期时间（毫秒）
+
+返回值：
+claim   - 1 新消息，本实例获得处理权；2 已处理成功（重复消息）；3 其他实例正在处理
+done    - 1
+release - 1 已删除；0 租约已不属于本实例
+--]]
+
+local key = KEYS[1]
+local op = ARGV[1]
+local owner = ARGV[2]
+local ttl = tonumber(ARGV[3])
+
+if op == 'claim' then
+    local value = redis.call('get', key)
+    if not value then
+        redis.call('set', key, owner, 'px', ttl)
+        return 1
+    end
+    if value == 'DONE' then
+        return 2
+    end
+    return 3
+elseif op == 'done' then
+    redis.call('set', key, 'DONE', 'px', ttl)
+    return 1
+elseif op == 'release' then
+    if redis.call('get', key) == owner then
+        redis.call('del', key)
+        return 1
+    end
+    return 0
+end
+
+return redis.error_reply('unknown op: ' .. op)
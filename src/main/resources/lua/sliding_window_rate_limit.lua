@@ -3,10 +3,11 @@
 
 参数说明：
 KEYS[1] - 限流key
-ARGV[1] - 当前时间戳（毫秒）
-ARGV[2] - 窗口开始时间戳（毫秒）
+ARGV[1] - 当前时间戳（毫秒），传空字符串时使用 Redis 服务器时间
+ARGV[2] - 窗口开始时间戳（毫秒），使用服务器时间时由脚本计算
 ARGV[3] - 限流次数
 ARGV[4] - 窗口大小（秒）
+ARGV[5] - 请求唯一标识（可选，客户端时间模式下作为成员，避免同一毫秒的请求互相覆盖）
 
 返回值：
 1 - 允许通过
@@ -14,10 +15,32 @@ ARGV[4] - 窗口大小（秒）
 --]]
 
 local key = KEYS[1]
-local now = tonumber(ARGV[1])
-local windowStart = tonumber(ARGV[2])
 local limit = tonumber(ARGV[3])
 local windowSize = tonumber(ARGV[4])
+local now
+local windowStart
+local member
+
+if ARGV[1] == '' then
+    -- 使用 Redis 服务器时间，消除各消费者主机之间的时钟偏移
+    -- Redis 5 以下需先开启脚本效果复制，否则调用 TIME 后不允许写操作
+    if redis.replicate_commands then
+        redis.replicate_commands()
+    end
+    local time = redis.call('time')
+    now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    windowStart = now - windowSize * 1000
+    -- 使用微秒精度作为成员，避免同一毫秒内的请求互相覆盖
+    member = time[1] .. string.format('%06d', tonumber(time[2]))
+else
+    now = tonumber(ARGV[1])
+    windowStart = tonumber(ARGV[2])
+    if ARGV[5] ~= nil and ARGV[5] ~= '' then
+        member = now .. '-' .. ARGV[5]
+    else
+        member = now
+    end
+end
 
 -- 移除窗口外的数据
 redis.call('zremrangebyscore', key, 0, windowStart)
@@ -27,11 +50,10 @@ local current = redis.call('zcard', key)
 
 if current < limit then
     -- 添加当前请求
-    redis.call('zadd', key, now, now)
+    redis.call('zadd', key, now, member)
     -- 设置过期时间
     redis.call('expire', key, windowSize)
     return 1
 else
     return 0
 end
-
@@ -3,7 +3,7 @@
 
 参数说明：
 KEYS[1] - 限流key
-ARGV[1] - 当前时间戳（毫秒）
+ARGV[1] - 当前时间戳（毫秒），传空字符串时使用 Redis 服务器时间
 ARGV[2] - 桶容量（最大令牌数）
 ARGV[3] - 令牌生成速率（个/秒）
 
@@ -13,9 +13,21 @@ ARGV[3] - 令牌生成速率（个/秒）
 --]]
 
 local key = KEYS[1]
-local now = tonumber(ARGV[1])
 local limit = tonumber(ARGV[2])
 local rate = tonumber(ARGV[3])
+local now
+
+if ARGV[1] == '' then
+    -- 使用 Redis 服务器时间，消除各消费者主机之间的时钟偏移
+    -- Redis 5 以下需先开启脚本效果复制，否则调用 TIME 后不允许写操作
+    if redis.replicate_commands then
+        redis.replicate_commands()
+    end
+    local time = redis.call('time')
+    now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+else
+    now = tonumber(ARGV[1])
+end
 
 local info = redis.call('hmget', key, 'tokens', 'timestamp')
 local tokens = tonumber(info[1])
@@ -29,8 +41,16 @@ else
     -- 计算新增的令牌数
     local deltaTime = math.max(0, now - timestamp)
     local newTokens = math.floor(deltaTime * rate / 1000)
-    tokens = math.min(limit, tokens + newTokens)
-    timestamp = now
+    if newTokens > 0 then
+        tokens = math.min(limit, tokens + newTokens)
+        if tokens >= limit then
+            timestamp = now
+        else
+            -- 只推进已兑换成令牌的时间，保留不足一个令牌的余量
+            timestamp = timestamp + newTokens * 1000 / rate
+        end
+    end
+    -- 时间回退（时钟偏慢的节点）时不回拨 timestamp，避免重复补充令牌
 end
 
 if tokens >= 1 then
@@ -43,4 +63,3 @@ else
     -- 令牌不足
     return 0
 end
-
@@ -0,0 +1,63 @@
+package com.example.mqlimitdemo.breaker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 熔断器开销测试（JMH）
+ *
+ * 多个线程在同一个熔断器上执行 tryAcquirePermission + onSuccess，与只做同样计时的 baseline 对比，
+ * 差值即每次调用的额外开销。阈值设为 101%，熔断器始终处于 CLOSED
+ *
+ * 运行：mvn -P jmh test-compile exec:exec -Djmh.args="CircuitBreakerBenchmark -t 4"
+ *
+ * @author demo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class CircuitBreakerBenchmark {
+
+    private CircuitBreaker breaker;
+
+    @Setup
+    public void setUp() {
+        CircuitBreakerConfig config = new CircuitBreakerConfig();
+        // 只统计开销，不让熔断器真正熔断
+        config.setFailureRateThreshold(101);
+        config.setSlowCallRateThreshold(101);
+        breaker = new CircuitBreaker("benchmark", config);
+    }
+
+    @Benchmark
+    public long baseline() {
+        long begin = System.nanoTime();
+        return System.nanoTime() - begin;
+    }
+
+    @Benchmark
+    public boolean acquireAndRecord() {
+        long begin = System.nanoTime();
+        CircuitBreaker.Permission permission = breaker.tryAcquirePermission();
+        if (permission == null) {
+            return false;
+        }
+        permission.onSuccess(System.nanoTime() - begin);
+        return true;
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.mqlimitdemo.breaker;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * 熔断器状态机测试
+ *
+ * @author demo
+ */
+class CircuitBreakerTest {
+
+    private CircuitBreaker breaker;
+
+    @BeforeEach
+    void setUp() {
+        CircuitBreakerConfig config = new CircuitBreakerConfig();
+        config.setFailureRateThreshold(50);
+        config.setSlidingWindowSize(4);
+        config.setMinimumNumberOfCalls(4);
+        config.setWaitDurationInOpenMillis(0);
+        config.setPermittedCallsInHalfOpen(2);
+        breaker = new CircuitBreaker("test", config);
+    }
+
+    @Test
+    void opensWhenFailureRateReachesThreshold() {
+        for (int i = 0; i < 2; i++) {
+            breaker.tryAcquirePermission().onSuccess(0);
+        }
+        breaker.tryAcquirePermission().onError(0);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.tryAcquirePermission().onError(0);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void callStartedWhileClosedIsNotCountedAsProbe() {
+        CircuitBreaker.Permission slowCall = breaker.tryAcquirePermission();
+        tripOpen();
+        // 等待期为 0，下一次申请切换为 HALF_OPEN
+        CircuitBreaker.Permission probe = breaker.tryAcquirePermission();
+        assertNotNull(probe);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        // CLOSED 时发起的调用此时才失败，不能占用探测窗口，也不能让熔断器重新打开
+        slowCall.onError(0);
+        slowCall.onError(0);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertEquals(0, breaker.getStatus().get("bufferedCalls"));
+        assertEquals(2L, breaker.getStatus().get("staleResults"));
+
+        probe.onSuccess(0);
+        breaker.tryAcquirePermission().onSuccess(0);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void halfOpenOnlyPermitsConfiguredProbes() {
+        tripOpen();
+        assertNotNull(breaker.tryAcquirePermission());
+        CircuitBreaker.Permission second = breaker.tryAcquirePermission();
+        assertNotNull(second);
+        assertNull(breaker.tryAcquirePermission());
+
+        // 归还的探测许可可以再次申请
+        second.release();
+        assertNotNull(breaker.tryAcquirePermission());
+        assertNull(breaker.tryAcquirePermission());
+    }
+
+    @Test
+    void failedProbeReopens() {
+        tripOpen();
+        breaker.tryAcquirePermission().onError(0);
+        breaker.tryAcquirePermission().onSuccess(0);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void releaseAfterTransitionDoesNotAddProbes() {
+        tripOpen();
+        CircuitBreaker.Permission probe = breaker.tryAcquirePermission();
+        breaker.transitionToOpen(60000);
+        breaker.transitionToHalfOpen();
+
+        // 上一轮半开的许可归还到已经失效的状态，新一轮仍只有 2 个探测许可
+        probe.release();
+        assertNotNull(breaker.tryAcquirePermission());
+        assertNotNull(breaker.tryAcquirePermission());
+        assertNull(breaker.tryAcquirePermission());
+    }
+
+    private void tripOpen() {
+        for (int i = 0; i < 4; i++) {
+            breaker.tryAcquirePermission().onError(0);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+}
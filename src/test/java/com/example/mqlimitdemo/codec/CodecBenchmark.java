@@ -0,0 +1,92 @@
+package com.example.mqlimitdemo.codec;
+
+import com.alibaba.fastjson.JSON;
+import com.example.mqlimitdemo.domain.OrderMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 编解码器对比测试（JMH）
+ *
+ * 对每个订单消息编解码器和原来的 String 方式（JSON.toJSONString + getBytes / new String + JSON.parseObject）
+ * 分别测试编码、解码耗时。每条消息分配的字节数用 -prof gc 查看（gc.alloc.rate.norm），
+ * 每条消息的编码字节数在初始化时打印
+ *
+ * 运行：mvn -P jmh test-compile exec:exec -Djmh.args="CodecBenchmark -prof gc"
+ *
+ * @author demo
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    private static final String STRING_PATH = "string";
+
+    /**
+     * 编解码方式：string（原方式）、json、binary
+     */
+    @Param({STRING_PATH, JsonOrderMessageCodec.NAME, BinaryOrderMessageCodec.NAME})
+    private String codec;
+
+    private MessageCodec<OrderMessage> messageCodec;
+
+    private OrderMessage sample;
+
+    private byte[] body;
+
+    @Setup
+    public void setUp() {
+        sample = sample();
+        if (!STRING_PATH.equals(codec)) {
+            messageCodec = JsonOrderMessageCodec.NAME.equals(codec)
+                    ? new JsonOrderMessageCodec() : new BinaryOrderMessageCodec();
+        }
+        body = encode();
+        if (!sample.equals(decode())) {
+            throw new IllegalStateException("编解码结果与原消息不一致: " + codec);
+        }
+        System.out.println("\n" + codec + " 每条消息字节数: " + body.length);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        if (messageCodec == null) {
+            return JSON.toJSONString(sample).getBytes(StandardCharsets.UTF_8);
+        }
+        return messageCodec.encode(sample);
+    }
+
+    @Benchmark
+    public OrderMessage decode() {
+        if (messageCodec == null) {
+            return JSON.parseObject(new String(body, StandardCharsets.UTF_8), OrderMessage.class);
+        }
+        return messageCodec.decode(body);
+    }
+
+    /**
+     * 与 /message/send/order 相同内容的订单消息
+     */
+    private static OrderMessage sample() {
+        return new OrderMessage("ORDER-1a2b3c4d", "USER-1700000000000", "MacBook Pro",
+                new BigDecimal("12999.00"), "PENDING", new Date(1700000000000L), "这是一个测试订单");
+    }
+}
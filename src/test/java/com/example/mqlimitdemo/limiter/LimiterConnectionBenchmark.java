@@ -0,0 +1,171 @@
+package com.example.mqlimitdemo.limiter;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.resource.ClientResources;
+import io.lettuce.core.resource.DefaultClientResources;
+import io.lettuce.core.support.ConnectionPoolSupport;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 限流器专用连接与连接池对比测试（JMH）
+ *
+ * 多个线程并发执行限流统计命令（ZCARD），分别测量：
+ * 1. LIMITER：{@link LimiterRedisConnection}，所有线程共用一个多路复用连接，没有借连接这一步，
+ *    输出连接统计中的写入时间（dispatch）与命令时间
+ * 2. POOL：与 application.yml 中 spring.redis.lettuce.pool.max-active 相同大小的 Lettuce 连接池，
+ *    每次命令先借连接再执行，借出等待（borrow）和命令时间分开计时；线程数大于连接数时借出等待明显增加
+ *
+ * 使用嵌入式 Redis，不需要外部 Redis。
+ * 运行：mvn -P jmh test-compile exec:exec -Djmh.args="LimiterConnectionBenchmark"
+ *
+ * @author demo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Threads(32)
+@Fork(1)
+public class LimiterConnectionBenchmark {
+
+    private static final String KEY = RedisRateLimiter.KEY_PREFIX + "sliding:connection_test";
+
+    /**
+     * 连接方式：LIMITER、POOL
+     */
+    @Param({"LIMITER", "POOL"})
+    private String mode;
+
+    /**
+     * POOL 的最大连接数（application.yml 中为 8）
+     */
+    @Param({"8"})
+    private int poolSize;
+
+    /**
+     * LIMITER 是否开启自动批量刷写
+     */
+    @Param({"true"})
+    private boolean batching;
+
+    private RedisServer redisServer;
+
+    private ClientResources clientResources;
+
+    private LimiterRedisConnection limiterConnection;
+
+    private RedisClient poolClient;
+
+    private GenericObjectPool<StatefulRedisConnection<String, String>> pool;
+
+    private final LongAdder operations = new LongAdder();
+    private final LongAdder borrowNanos = new LongAdder();
+    private final LongAdder commandNanos = new LongAdder();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int port = freePort();
+        redisServer = RedisServer.newRedisServer().bind("127.0.0.1").port(port).setting("save \"\"").build();
+        redisServer.start();
+        clientResources = DefaultClientResources.create();
+        RedisURI uri = RedisURI.create("127.0.0.1", port);
+
+        if ("LIMITER".equals(mode)) {
+            limiterConnection = new LimiterRedisConnection(
+                    RedisClient.create(clientResources, uri), 3000, batching, 64, 100);
+        } else {
+            poolClient = RedisClient.create(clientResources, uri);
+            GenericObjectPoolConfig<StatefulRedisConnection<String, String>> config = new GenericObjectPoolConfig<>();
+            config.setMaxTotal(poolSize);
+            config.setMaxIdle(poolSize);
+            pool = ConnectionPoolSupport.createGenericObjectPool(poolClient::connect, config);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void resetStats() {
+        if (limiterConnection != null) {
+            limiterConnection.resetStats();
+        }
+        operations.reset();
+        borrowNanos.reset();
+        commandNanos.reset();
+    }
+
+    @TearDown(Level.Iteration)
+    public void printStats() {
+        if (limiterConnection != null) {
+            Map<String, Object> stats = limiterConnection.getStats();
+            System.out.println("\nLIMITER（无连接池，没有借出等待）平均写入: " + stats.get("avgDispatchMicros")
+                    + " 微秒, 平均命令: " + stats.get("avgCommandMicros") + " 微秒");
+        } else {
+            long count = Math.max(1, operations.sum());
+            System.out.println("\nPOOL 平均借出等待: " + borrowNanos.sum() / count / 1000
+                    + " 微秒, 平均命令: " + commandNanos.sum() / count / 1000 + " 微秒");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (limiterConnection != null) {
+            limiterConnection.destroy();
+        }
+        if (pool != null) {
+            pool.close();
+            poolClient.shutdown();
+        }
+        clientResources.shutdown();
+        redisServer.stop();
+    }
+
+    @Benchmark
+    public Long zcard() throws Exception {
+        if (limiterConnection != null) {
+            return limiterConnection.execute(commands -> commands.zcard(KEY));
+        }
+
+        long start = System.nanoTime();
+        StatefulRedisConnection<String, String> connection = pool.borrowObject();
+        long borrowed = System.nanoTime();
+        try {
+            return connection.sync().zcard(KEY);
+        } finally {
+            long completed = System.nanoTime();
+            pool.returnObject(connection);
+            operations.increment();
+            borrowNanos.add(borrowed - start);
+            commandNanos.add(completed - borrowed);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.mqlimitdemo.limiter;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Lua 脚本注册中心测试：自检期望值、只补齐缺失的脚本
+ *
+ * @author demo
+ */
+class LuaScriptRegistryTest extends EmbeddedRedisTestSupport {
+
+    @Test
+    void fairShareQuotaSelfTestChecksExpectedShare() {
+        // 与 QuotaCoordinator 注册的自检参数一致
+        luaScriptRegistry.registerSelfTest("fair_share_quota", 5000, "self-test", "0", "5", "1000", "0.2");
+        luaScriptRegistry.selfTest();
+        assertEquals("PASSED", selfTestResult("fair_share_quota"));
+
+        luaScriptRegistry.registerSelfTest("fair_share_quota", 1, "self-test", "0", "5", "1000", "0.2");
+        luaScriptRegistry.selfTest();
+        assertEquals("FAILED: 返回值 5000，期望 1", selfTestResult("fair_share_quota"));
+    }
+
+    @Test
+    void loadMissingOnlyLoadsFlushedScripts() {
+        luaScriptRegistry.loadAll();
+        assertEquals(0, luaScriptRegistry.loadMissing());
+
+        connection.execute(commands -> commands.scriptFlush());
+        int total = luaScriptRegistry.getStatus().size();
+        assertEquals(total, luaScriptRegistry.loadMissing());
+        assertEquals(0, luaScriptRegistry.loadMissing());
+    }
+
+    private String selfTestResult(String name) {
+        List<Map<String, Object>> status = luaScriptRegistry.getStatus();
+        return status.stream()
+                .filter(item -> name.equals(item.get("name")))
+                .map(item -> (String) item.get("selfTest"))
+                .findFirst()
+                .orElse(null);
+    }
+}
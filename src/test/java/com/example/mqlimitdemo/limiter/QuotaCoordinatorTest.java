@@ -0,0 +1,86 @@
+package com.example.mqlimitdemo.limiter;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 分布式配额协调器测试：启动预热份额上限、重复注册的速率冲突、按登记方上报积压
+ *
+ * @author demo
+ */
+class QuotaCoordinatorTest extends EmbeddedRedisTestSupport {
+
+    private static final String KEY = "quota_test";
+
+    private QuotaCoordinator quotaCoordinator;
+
+    @BeforeEach
+    void setUpCoordinator() {
+        quotaCoordinator = new QuotaCoordinator();
+        ReflectionTestUtils.setField(quotaCoordinator, "luaScriptRegistry", luaScriptRegistry);
+        ReflectionTestUtils.setField(quotaCoordinator, "limiterRedisConnection", connection);
+        ReflectionTestUtils.setField(quotaCoordinator, "heartbeatMillis", 60_000L);
+        ReflectionTestUtils.setField(quotaCoordinator, "instanceTtlMillis", 60_000L);
+        ReflectionTestUtils.setField(quotaCoordinator, "minShareFraction", 0.2);
+        ReflectionTestUtils.setField(quotaCoordinator, "expectedInstances", 4);
+        quotaCoordinator.init();
+    }
+
+    @AfterEach
+    void tearDownCoordinator() {
+        quotaCoordinator.destroy();
+    }
+
+    @Test
+    void warmupCapsShareAtExpectedInstanceAverage() {
+        // 只有本实例心跳，脚本分到全部 8/s；预热期内不超过 8 / 4
+        quotaCoordinator.register(KEY, 8, "scheduler", () -> 0);
+
+        assertEquals(2.0, quotaCoordinator.getShare(KEY), 0.001);
+        assertTrue((Boolean) status().get("warmup"));
+    }
+
+    @Test
+    void shareIsUncappedAfterWarmup() {
+        ReflectionTestUtils.setField(quotaCoordinator, "instanceTtlMillis", 0L);
+        quotaCoordinator.register(KEY, 8, "scheduler", () -> 0);
+
+        assertEquals(8.0, quotaCoordinator.getShare(KEY), 0.001);
+    }
+
+    @Test
+    void registeringDifferentRateForSameKeyFails() {
+        quotaCoordinator.register(KEY, 8, "scheduler", () -> 0);
+        quotaCoordinator.register(KEY, 8, "other", () -> 0);
+
+        assertThrows(IllegalStateException.class, () -> quotaCoordinator.register(KEY, 5, "consumer", () -> 0));
+        assertThrows(IllegalStateException.class, () -> quotaCoordinator.addBacklog("unknown", "consumer", () -> 0));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void backlogIsReportedPerRegistrant() {
+        ReflectionTestUtils.setField(quotaCoordinator, "instanceTtlMillis", 0L);
+        quotaCoordinator.register(KEY, 8, "scheduler", () -> 3);
+        quotaCoordinator.addBacklog(KEY, "consumer", () -> 7);
+        ReflectionTestUtils.invokeMethod(quotaCoordinator, "heartbeatAll");
+
+        Map<String, Object> status = status();
+        assertEquals(10L, status.get("backlog"));
+        Map<String, Long> backlogs = (Map<String, Long>) status.get("backlogs");
+        assertEquals(Long.valueOf(3), backlogs.get("scheduler"));
+        assertEquals(Long.valueOf(7), backlogs.get("consumer"));
+    }
+
+    private Map<String, Object> status() {
+        return quotaCoordinator.getStatus().get(0);
+    }
+}
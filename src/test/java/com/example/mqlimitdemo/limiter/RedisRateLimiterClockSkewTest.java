@@ -0,0 +1,167 @@
+package com.example.mqlimitdemo.limiter;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 令牌桶时钟偏移测试
+ *
+ * 多个节点争抢同一个令牌桶，每个节点是一个独立的限流器实例，时钟替换为带偏移的 {@link Clock}：
+ * 客户端时间模式下时钟偏快的节点会提前补充令牌，放行数随节点数增长，超过 桶容量 + 速率 × 时长；
+ * 服务器时间模式下所有节点使用 Redis 的 TIME，无论多少节点放行数都不超过该上限。
+ * 另外验证客户端时间模式下滑动窗口对同一毫秒内的请求逐个计数
+ *
+ * @author demo
+ */
+class RedisRateLimiterClockSkewTest extends EmbeddedRedisTestSupport {
+
+    private static final int CAPACITY = 5;
+
+    private static final double RATE = 5.0;
+
+    private static final long SKEW_MILLIS = 1000;
+
+    @Test
+    void clientTimeOverAdmitsWhenClockRunsAhead() {
+        String key = "clock_skew:client";
+
+        // 时钟准确的节点取完桶中的令牌
+        assertEquals(CAPACITY, acquire(node(false, 0), key, CAPACITY + 1));
+        // 时钟快 1 秒的节点按 1 秒后的时间补充令牌，同一时刻又拿到一整桶
+        assertEquals(CAPACITY, acquire(node(false, SKEW_MILLIS), key, CAPACITY + 1));
+        // 时钟慢的节点时间回退，不会再补充，也不会回拨 timestamp 造成重复补充
+        assertEquals(0, acquire(node(false, -SKEW_MILLIS), key, CAPACITY));
+        assertEquals(0, acquire(node(false, 0), key, CAPACITY));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {2, 4, 8})
+    void clientTimeOverAdmissionGrowsWithNodeCount(int nodes) {
+        String key = "clock_skew:client:" + nodes;
+
+        // 节点 i 的时钟快 i 秒，每个节点都按自己的时间补满一整桶
+        int allowed = 0;
+        for (int i = 0; i < nodes; i++) {
+            allowed += acquire(node(false, i * SKEW_MILLIS), key, CAPACITY + 1);
+        }
+
+        assertEquals(nodes * CAPACITY, allowed);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {2, 4, 8})
+    void serverTimeIsNotAffectedBySkew(int nodes) {
+        String key = "clock_skew:server:" + nodes;
+        long start = System.nanoTime();
+
+        int allowed = 0;
+        for (int i = 0; i < nodes; i++) {
+            allowed += acquire(node(true, i * SKEW_MILLIS), key, CAPACITY + 1);
+        }
+
+        assertTrue(allowed >= CAPACITY, "至少放行一整桶: " + allowed);
+        assertTrue(allowed <= bound(start), "放行 " + allowed + " 超过上限 " + bound(start));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {2, 4, 8})
+    void concurrentSkewedNodesStayWithinBoundOnServerTime(int nodes) throws Exception {
+        String key = "clock_skew:concurrent:" + nodes;
+        long durationMillis = 1500;
+        ExecutorService executor = Executors.newFixedThreadPool(nodes);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < nodes; i++) {
+                // 0, +skew, -skew, +2skew, -2skew ...
+                long skew = (i % 2 == 1 ? 1 : -1) * ((i + 1) / 2) * SKEW_MILLIS;
+                RedisRateLimiter node = node(true, skew);
+                futures.add(executor.submit(() -> {
+                    int allowed = 0;
+                    while (System.nanoTime() < deadline) {
+                        if (node.tokenBucketRateLimit(key, CAPACITY, RATE)) {
+                            allowed++;
+                        }
+                        Thread.sleep(10);
+                    }
+                    return allowed;
+                }));
+            }
+            int allowed = 0;
+            for (Future<Integer> future : futures) {
+                allowed += future.get(10, TimeUnit.SECONDS);
+            }
+
+            long expectedMin = CAPACITY + (long) (RATE * durationMillis / 1000) - 1;
+            assertTrue(allowed >= expectedMin, nodes + " 个节点放行 " + allowed + " 低于 " + expectedMin);
+            assertTrue(allowed <= bound(start), nodes + " 个节点放行 " + allowed + " 超过上限 " + bound(start));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void clientTimeSlidingWindowCountsRequestsInSameMillisecond() {
+        String key = "clock_skew:sliding";
+        Clock fixed = Clock.fixed(Clock.systemUTC().instant(), Clock.systemUTC().getZone());
+        RedisRateLimiter first = node(false, 0);
+        RedisRateLimiter second = node(false, 0);
+        ReflectionTestUtils.setField(first, "clock", fixed);
+        ReflectionTestUtils.setField(second, "clock", fixed);
+
+        // 两个节点在同一毫秒各申请 CAPACITY 次，每次请求都是窗口中的一个成员
+        int allowed = 0;
+        for (int i = 0; i < CAPACITY; i++) {
+            allowed += first.slidingWindowRateLimit(key, CAPACITY, 1) ? 1 : 0;
+            allowed += second.slidingWindowRateLimit(key, CAPACITY, 1) ? 1 : 0;
+        }
+
+        assertEquals(CAPACITY, allowed);
+    }
+
+    /**
+     * 一个节点：独立的限流器实例，时钟相对系统时间偏移 skewMillis
+     */
+    private static RedisRateLimiter node(boolean serverTime, long skewMillis) {
+        RedisRateLimiter limiter = newRateLimiter();
+        ReflectionTestUtils.setField(limiter, "serverTime", serverTime);
+        ReflectionTestUtils.setField(limiter, "clock", Clock.offset(Clock.systemUTC(), Duration.ofMillis(skewMillis)));
+        return limiter;
+    }
+
+    /**
+     * 连续申请 attempts 次，返回放行次数
+     */
+    private static int acquire(RedisRateLimiter node, String key, int attempts) {
+        int allowed = 0;
+        for (int i = 0; i < attempts; i++) {
+            if (node.tokenBucketRateLimit(key, CAPACITY, RATE)) {
+                allowed++;
+            }
+        }
+        return allowed;
+    }
+
+    /**
+     * 理论上限：桶容量 + 从 start 到现在按速率补充的令牌数
+     */
+    private static long bound(long startNanos) {
+        double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+        return CAPACITY + (long) Math.ceil(RATE * elapsedSeconds);
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.mqlimitdemo.limiter;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 限流计数重置、SCAN 分页和固定窗口重试等待时间测试
+ *
+ * @author demo
+ */
+class RedisRateLimiterResetTest extends EmbeddedRedisTestSupport {
+
+    private static final String FIXED_PREFIX = RedisRateLimiter.KEY_PREFIX + "fixed:";
+
+    @Test
+    void resetRemovesClientTimeFixedWindowKeys() {
+        useServerTime(false);
+        String key = "reset:client";
+        redisRateLimiter.fixedWindowRateLimit(key, 1, 60);
+        redisRateLimiter.fixedWindowRateLimit(key, 1, 1);
+        // 上一个窗口遗留的 key，以及前缀相同、但不是窗口编号的其他限流key
+        connection.execute(commands -> commands.set(FIXED_PREFIX + key + ":1", "1"));
+        connection.execute(commands -> commands.set(FIXED_PREFIX + key + ":1a", "1"));
+        assertEquals(4, fixedKeys(key + ":*").size());
+
+        redisRateLimiter.reset(key);
+
+        assertEquals(Collections.singletonList(FIXED_PREFIX + key + ":1a"), fixedKeys(key + "*"));
+        assertTrue(redisRateLimiter.fixedWindowRateLimit(key, 1, 60), "重置后当前窗口重新计数");
+    }
+
+    @Test
+    void resetRemovesServerTimeKeys() {
+        useServerTime(true);
+        String key = "reset:server";
+        assertTrue(redisRateLimiter.fixedWindowRateLimit(key, 1, 60));
+        assertFalse(redisRateLimiter.fixedWindowRateLimit(key, 1, 60));
+        redisRateLimiter.tokenBucketRateLimit(key, 1, 1.0);
+
+        redisRateLimiter.reset(key);
+
+        assertEquals(0, fixedKeys(key + "*").size());
+        assertEquals(Long.valueOf(0), connection.execute(commands -> commands.exists(RedisRateLimiter.KEY_PREFIX + "token:" + key)));
+        assertTrue(redisRateLimiter.fixedWindowRateLimit(key, 1, 60));
+    }
+
+    @Test
+    void bulkScanAndResetLeaveOtherSubsystemsUntouched() {
+        useServerTime(true);
+        redisRateLimiter.slidingWindowRateLimit("bulk:a", 5, 60);
+        redisRateLimiter.tokenBucketRateLimit("bulk:a", 5, 1.0);
+        redisRateLimiter.fixedWindowRateLimit("bulk:b", 5, 60);
+        // 同样使用 rate_limit: 前缀的去重、熔断、配额、影子限流和脚本自检 key
+        List<String> others = Arrays.asList(
+                RedisRateLimiter.KEY_PREFIX + "dedup:spill-replay:msg-1",
+                RedisRateLimiter.KEY_PREFIX + "breaker:third_party_api",
+                RedisRateLimiter.KEY_PREFIX + "quota:third_party_api",
+                RedisRateLimiter.KEY_PREFIX + "shadow:sliding:bulk:a",
+                RedisRateLimiter.KEY_PREFIX + "self_test:fair_share_quota:1");
+        for (String other : others) {
+            connection.execute(commands -> commands.set(other, "1"));
+        }
+
+        List<String> scanned = new ArrayList<>();
+        String cursor = "0";
+        do {
+            RedisRateLimiter.KeyPage page = redisRateLimiter.scanLimiterKeys("*", cursor, 2);
+            scanned.addAll(page.getKeys());
+            cursor = page.getCursor();
+        } while (!"0".equals(cursor));
+        Collections.sort(scanned);
+        assertEquals(Arrays.asList(FIXED_PREFIX + "bulk:b",
+                RedisRateLimiter.KEY_PREFIX + "sliding:bulk:a",
+                RedisRateLimiter.KEY_PREFIX + "token:bulk:a"), scanned);
+
+        assertEquals(3, redisRateLimiter.resetByPrefix(""));
+        for (String other : others) {
+            assertEquals(Long.valueOf(1), connection.execute(commands -> commands.exists(other)), other);
+        }
+    }
+
+    @Test
+    void scanKeysRejectsNonPositiveCount() {
+        assertThrows(IllegalArgumentException.class,
+                () -> redisRateLimiter.scanKeys(RedisRateLimiter.KEY_PREFIX + "*", "0", 0));
+        assertThrows(IllegalArgumentException.class,
+                () -> redisRateLimiter.scanKeys(RedisRateLimiter.KEY_PREFIX + "*", "0", -1));
+    }
+
+    @Test
+    void scanKeysPagesThroughAllKeys() {
+        for (int i = 0; i < 25; i++) {
+            String key = "scan:" + i;
+            connection.execute(commands -> commands.set(FIXED_PREFIX + key, "1"));
+        }
+
+        int total = 0;
+        String cursor = "0";
+        do {
+            RedisRateLimiter.KeyPage page = redisRateLimiter.scanKeys(FIXED_PREFIX + "scan:*", cursor, 10);
+            total += page.getKeys().size();
+            cursor = page.getCursor();
+        } while (!"0".equals(cursor));
+
+        assertEquals(25, total);
+    }
+
+    @Test
+    void serverTimeRetryAfterReadsScriptKeyTtl() {
+        useServerTime(true);
+        String key = "retry:server";
+        assertEquals(0, redisRateLimiter.fixedWindowRetryAfter(key, 10), "窗口未开始时无需等待");
+
+        redisRateLimiter.fixedWindowRateLimit(key, 1, 10);
+        long retryAfter = redisRateLimiter.fixedWindowRetryAfter(key, 10);
+
+        assertTrue(retryAfter > 0 && retryAfter <= 10_000, "重试等待时间应在窗口内: " + retryAfter);
+    }
+
+    @Test
+    void clientTimeRetryAfterIsWindowRemainder() {
+        useServerTime(false);
+        long retryAfter = redisRateLimiter.fixedWindowRetryAfter("retry:client", 10);
+
+        assertTrue(retryAfter > 0 && retryAfter <= 10_000, "重试等待时间应在窗口内: " + retryAfter);
+    }
+
+    private void useServerTime(boolean serverTime) {
+        ReflectionTestUtils.setField(redisRateLimiter, "serverTime", serverTime);
+    }
+
+    private List<String> fixedKeys(String pattern) {
+        return connection.execute(commands -> commands.keys(FIXED_PREFIX + pattern));
+    }
+}
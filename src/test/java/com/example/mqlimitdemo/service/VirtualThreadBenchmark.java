@@ -0,0 +1,119 @@
+package com.example.mqlimitdemo.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 虚拟线程对比测试（JMH）
+ *
+ * 模拟大量同时在途的消息，每条消息阻塞 latencyMillis（相当于一次下游调用），测量处理完一批消息的耗时：
+ * 1. PLATFORM_POOL：固定大小的平台线程池（当前消费线程池的做法），耗时约为 消息数 / 线程数 × 延迟
+ * 2. PLATFORM_PER_TASK：每条消息一个平台线程，每个线程都有独立的栈内存；
+ *    默认不运行（一次创建上万个本地线程），需要时通过 -p executor=PLATFORM_PER_TASK 指定
+ * 3. VIRTUAL：每条消息一个虚拟线程，阻塞时释放载体线程；需在 Java 21 上运行，否则直接失败
+ *
+ * 运行：mvn -P jmh test-compile exec:exec -Djmh.args="VirtualThreadBenchmark -prof gc"
+ * 内存对比用 -prof gc（每批分配量）；平台线程的栈内存不在堆中，可另加 -prof stack 或观察进程 RSS
+ *
+ * @author demo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VirtualThreadBenchmark {
+
+    /**
+     * 执行方式：PLATFORM_POOL、PLATFORM_PER_TASK、VIRTUAL
+     */
+    @Param({"PLATFORM_POOL", "VIRTUAL"})
+    private String executor;
+
+    /**
+     * 消息数（同时提交，即同时在途的消息数）
+     */
+    @Param({"10000"})
+    private int messages;
+
+    /**
+     * 每条消息的阻塞时间（毫秒）
+     */
+    @Param({"100"})
+    private long latencyMillis;
+
+    /**
+     * PLATFORM_POOL 的线程数
+     */
+    @Param({"200"})
+    private int poolSize;
+
+    private ExecutorService executorService;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        switch (executor) {
+            case "PLATFORM_POOL":
+                executorService = Executors.newFixedThreadPool(poolSize);
+                break;
+            case "PLATFORM_PER_TASK":
+                executorService = Executors.newCachedThreadPool();
+                break;
+            case "VIRTUAL":
+                if (!VirtualThreads.isSupported()) {
+                    throw new IllegalStateException("当前 JVM（" + System.getProperty("java.version")
+                            + "）不支持虚拟线程，请在 Java 21 上运行");
+                }
+                executorService = VirtualThreads.newThreadPerTaskExecutor("vt-benchmark-");
+                break;
+            default:
+                throw new IllegalArgumentException("未知的执行方式: " + executor);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws InterruptedException {
+        executorService.shutdownNow();
+        executorService.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 提交一批消息并等待全部完成
+     */
+    @Benchmark
+    public void processBatch() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(messages);
+        Runnable task = () -> {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                done.countDown();
+            }
+        };
+        for (int i = 0; i < messages; i++) {
+            executorService.execute(task);
+        }
+        if (!done.await(10, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("10 分钟内未完成");
+        }
+    }
+}